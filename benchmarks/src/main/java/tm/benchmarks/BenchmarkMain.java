@@ -0,0 +1,95 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.benchmarks;
+
+import tm.tilecodecs.TileCodec;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+*
+* Runs the benchmarks and prints a summary in ns/tile and MB/s.
+*
+* Takes the usual JMH command line options, e.g. a regular expression to pick
+* benchmarks, or -p codec=PL01,LN04 to limit the codecs. Unless given, the
+* codec benchmarks are run for every tile codec in tmspec.xml.
+*
+* MB/s is the rate at which encoded tile data is processed, so it is only
+* given for benchmarks that work on a codec.
+*
+**/
+
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        if (cmdOptions.shouldHelp()) {
+            cmdOptions.showHelp();
+            return;
+        }
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(cmdOptions);
+        if (!cmdOptions.getParameter("codec").hasValue()) {
+            builder.param("codec", Fixtures.getTileCodecIDs());
+        }
+        Options options = builder.build();
+        if (cmdOptions.shouldList()) {
+            new Runner(options).list();
+            return;
+        }
+        Collection results = new Runner(options).run();
+
+        System.out.println();
+        System.out.println(String.format("%-50s %-20s %12s %10s", "Benchmark", "Parameters", "ns/tile", "MB/s"));
+        for (Iterator it = results.iterator(); it.hasNext(); ) {
+            RunResult result = (RunResult)it.next();
+            BenchmarkParams params = result.getParams();
+            String name = params.getBenchmark();
+            name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1);
+            StringBuffer paramText = new StringBuffer();
+            for (Iterator keys = params.getParamsKeys().iterator(); keys.hasNext(); ) {
+                String key = (String)keys.next();
+                paramText.append(key).append('=').append(params.getParam(key)).append(' ');
+            }
+            double nsPerTile = result.getPrimaryResult().getScore();
+            String grid = params.getParam("grid");
+            if (grid != null) {
+                // the canvas benchmarks process a grid x grid canvas per operation
+                nsPerTile /= Integer.parseInt(grid) * Integer.parseInt(grid);
+            }
+            String rate = "-";
+            String codecID = params.getParam("codec");
+            if (codecID != null) {
+                TileCodec codec = Fixtures.getTileCodec(codecID);
+                // bytes per ns = 1000 MB/s
+                rate = String.format("%10.1f", codec.getTileSize() * 1000.0 / nsPerTile);
+            }
+            System.out.println(String.format("%-50s %-20s %12.1f %10s", name, paramText.toString().trim(), nsPerTile, rate));
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.benchmarks;
+
+import tm.canvases.TMTileCanvas;
+import tm.tilecodecs.TileCodec;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+*
+* Rendering and encoding of a whole tile grid, as the editor does it when
+* the view changes or a tool has modified the pixels. Each operation is the
+* whole grid; BenchmarkMain divides the time by the number of tiles.
+*
+**/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CanvasBenchmark {
+
+    @Param({"PL01", "CP02", "LN04", "DC02"})
+    public String codec;
+
+    @Param({"16", "32", "64"})
+    public int grid;
+
+    private TMTileCanvas canvas;
+
+    @Setup
+    public void setup() throws Exception {
+        TileCodec tileCodec = Fixtures.getTileCodec(codec);
+        canvas = new TMTileCanvas(Fixtures.randomBytes(grid * grid * tileCodec.getTileSize()), grid, grid);
+        canvas.setCodec(tileCodec);
+        canvas.setGridSize(grid, grid);
+        canvas.setPalette(Fixtures.getDefaultPalette());
+        canvas.setMode(TileCodec.MODE_1D);
+        canvas.unpackPixels();
+    }
+
+    @Benchmark
+    public TMTileCanvas unpackPixels() {
+        canvas.unpackPixels();
+        return canvas;
+    }
+
+    @Benchmark
+    public TMTileCanvas packPixels() {
+        canvas.packPixels();
+        return canvas;
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.benchmarks;
+
+import tm.tilecodecs.TileCodec;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+*
+* Decoding and encoding of tiles, for every tile codec in the specs.
+* Each operation is one 8x8 (or whatever the codec's default is) tile in 1-D
+* mode.
+*
+**/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    // BenchmarkMain replaces these with all codecs in the specs
+    @Param({"PL01", "PL03", "CP02", "LN04", "DC02", "DC10"})
+    public String codec;
+
+    private TileCodec tileCodec;
+    private int tileSize;
+    private byte[] bits;
+    private byte[] encoded;
+    private int[] pixels;       // all tiles, decoded, one after the other
+
+    @Setup
+    public void setup() throws Exception {
+        tileCodec = Fixtures.getTileCodec(codec);
+        tileSize = tileCodec.getTileSize();
+        bits = Fixtures.randomBytes(Fixtures.TILES * tileSize);
+        encoded = new byte[bits.length];
+        int area = tileCodec.getTileWidth() * tileCodec.getTileHeight();
+        pixels = new int[Fixtures.TILES * area];
+        for (int t=0; t<Fixtures.TILES; t++) {
+            tileCodec.decodeInto(bits, t * tileSize, 0, pixels, t * area, tileCodec.getTileWidth());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.TILES)
+    public int[] decode() {
+        int area = tileCodec.getTileWidth() * tileCodec.getTileHeight();
+        for (int t=0; t<Fixtures.TILES; t++) {
+            tileCodec.decodeInto(bits, t * tileSize, 0, pixels, t * area, tileCodec.getTileWidth());
+        }
+        return pixels;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.TILES)
+    public byte[] encode() {
+        int area = tileCodec.getTileWidth() * tileCodec.getTileHeight();
+        int[] tile = new int[area];
+        for (int t=0; t<Fixtures.TILES; t++) {
+            System.arraycopy(pixels, t * area, tile, 0, area);
+            tileCodec.encode(tile, encoded, t * tileSize, 0);
+        }
+        return encoded;
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.benchmarks;
+
+import tm.TMPalette;
+import tm.TMSpecReader;
+import tm.colorcodecs.ColorCodec;
+import tm.tilecodecs.TileCodec;
+
+import java.io.File;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+*
+* Shared setup for the benchmarks.
+*
+* The codecs are read from the tmspec.xml in the working directory (or the
+* file given by the tm.spec system property), so the benchmarks should be run
+* from the root of the project.
+*
+**/
+
+public class Fixtures {
+
+    // number of tiles each codec and canvas benchmark invocation processes
+    public static final int TILES = 1024;
+
+    private static boolean specsRead = false;
+
+/**
+*
+* Reads the specs, once.
+*
+**/
+
+    public static synchronized void readSpecs() throws Exception {
+        if (!specsRead) {
+            TMSpecReader.readSpecsFromFile(new File(System.getProperty("tm.spec", "tmspec.xml")));
+            specsRead = true;
+        }
+    }
+
+/**
+*
+* Gets the IDs of all tile codecs defined in the specs.
+*
+**/
+
+    public static String[] getTileCodecIDs() throws Exception {
+        readSpecs();
+        Vector codecs = TMSpecReader.getTileCodecs();
+        String[] ids = new String[codecs.size()];
+        for (int i=0; i<codecs.size(); i++) {
+            ids[i] = ((TileCodec)codecs.get(i)).getID();
+        }
+        return ids;
+    }
+
+/**
+*
+* Gets the tile codec with the given ID.
+*
+**/
+
+    public static TileCodec getTileCodec(String id) throws Exception {
+        readSpecs();
+        Vector codecs = TMSpecReader.getTileCodecs();
+        for (int i=0; i<codecs.size(); i++) {
+            TileCodec codec = (TileCodec)codecs.get(i);
+            if (codec.getID().equals(id)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("No tile codec with ID " + id);
+    }
+
+/**
+*
+* Gets the palette a new file starts out with: the default 256 colors in
+* 24-bit RGB format.
+*
+**/
+
+    public static TMPalette getDefaultPalette() throws Exception {
+        readSpecs();
+        Vector colorCodecs = TMSpecReader.getColorCodecs();
+        for (int i=0; i<colorCodecs.size(); i++) {
+            ColorCodec colorCodec = (ColorCodec)colorCodecs.get(i);
+            if (colorCodec.getID().equals("CF01")) {
+                return new TMPalette("PAL000", TMPalette.defaultPalette, colorCodec, ColorCodec.LITTLE_ENDIAN, true);
+            }
+        }
+        throw new IllegalArgumentException("No color codec with ID CF01");
+    }
+
+/**
+*
+* Gets a buffer of reproducible random bytes.
+*
+**/
+
+    public static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(0x544D).nextBytes(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.benchmarks;
+
+import tm.TMPalette;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+*
+* Palette lookups as done when encoding palettized tiles. Each operation is
+* the 64 pixels of one 8x8 tile.
+*
+**/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PaletteBenchmark {
+
+    private static final int PIXELS = 64 * 256;
+
+    private TMPalette palette;
+    private int[] colors;
+
+    @Setup
+    public void setup() throws Exception {
+        palette = Fixtures.getDefaultPalette();
+        colors = new int[PIXELS];
+        Random random = new Random(0x544D);
+        for (int i=0; i<PIXELS; i++) {
+            colors[i] = palette.getEntryRGB(random.nextInt(palette.getSize()));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIXELS / 64)
+    public int indexOf() {
+        int sum = 0;
+        for (int i=0; i<PIXELS; i++) {
+            sum += palette.indexOf(0, colors[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIXELS / 64)
+    public int closestMatchingEntry() {
+        int sum = 0;
+        for (int i=0; i<PIXELS; i++) {
+            sum += palette.closestMatchingEntry(0, 256, colors[i] ^ 0x030103);
+        }
+        return sum;
+    }
+
+}
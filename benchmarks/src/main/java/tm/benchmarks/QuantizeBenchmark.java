@@ -0,0 +1,97 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.benchmarks;
+
+import tm.gfxlibs.OctreeQuantizer;
+import tm.gfxlibs.Quantize;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+*
+* Color reduction of an imported 128x128 bitmap. Each operation is the 64
+* pixels of one 8x8 tile. OctreeQuantizer gets the same pixels row after
+* row, on one thread so that the two compare like for like.
+*
+**/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuantizeBenchmark {
+
+    private static final int SIZE = 128;
+
+    @Param({"16", "256"})
+    public int maxColors;
+
+    private int[][] image;
+    private int[][] work;
+    private int[] flatImage;
+    private int[] flatWork;
+
+    @Setup
+    public void setup() {
+        // smooth gradients with some noise, like a photo
+        Random random = new Random(0x544D);
+        image = new int[SIZE][SIZE];
+        work = new int[SIZE][SIZE];
+        for (int x=0; x<SIZE; x++) {
+            for (int y=0; y<SIZE; y++) {
+                int r = Math.min(255, x * 2 + random.nextInt(8));
+                int g = Math.min(255, y * 2 + random.nextInt(8));
+                int b = Math.min(255, (x + y) + random.nextInt(8));
+                image[x][y] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        flatImage = new int[SIZE * SIZE];
+        flatWork = new int[SIZE * SIZE];
+        for (int y=0; y<SIZE; y++) {
+            for (int x=0; x<SIZE; x++) {
+                flatImage[y * SIZE + x] = image[x][y];
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation((SIZE / 8) * (SIZE / 8))
+    public int[] quantizeImage() {
+        // the pixels are reduced in place, so start from a fresh copy
+        for (int x=0; x<SIZE; x++) {
+            System.arraycopy(image[x], 0, work[x], 0, SIZE);
+        }
+        return Quantize.quantizeImage(work, maxColors);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation((SIZE / 8) * (SIZE / 8))
+    public int[] octreeQuantizer() {
+        System.arraycopy(flatImage, 0, flatWork, 0, flatImage.length);
+        OctreeQuantizer quantizer = new OctreeQuantizer(maxColors);
+        quantizer.setThreads(1);
+        return quantizer.quantize(flatWork);
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.benchmarks;
+
+import tm.tilecodecs.SwizzleUtil;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+*
+* SwizzleUtil.applySwizzle for every pattern, over a 256x256 canvas.
+* Each operation is the 64 pixels of one 8x8 tile.
+*
+**/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SwizzleBenchmark {
+
+    private static final int SIZE = 256;
+
+    @Param({"None", "BC", "PSP", "NDS", "3DS", "WII", "SWITCH", "Custom"})
+    public String pattern;
+
+    @Benchmark
+    @OperationsPerInvocation((SIZE / 8) * (SIZE / 8))
+    public int applySwizzle() {
+        int sum = 0;
+        for (int y=0; y<SIZE; y++) {
+            for (int x=0; x<SIZE; x++) {
+                sum += SwizzleUtil.applySwizzle(x, y, SIZE, SIZE, pattern);
+            }
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,498 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+*
+* Searches a FileImage for a byte pattern.
+*
+* Two kinds of search are supported:
+*
+* - Exact: the bytes must equal those of the pattern. This is done with
+*   Boyer-Moore-Horspool, where a wildcard byte in the pattern limits the
+*   shift to its distance from the end of the pattern.
+* - Relative: the differences between the bytes must equal those between
+*   the bytes of the pattern, so "HERO" also matches text stored in a custom
+*   encoding where the letters are consecutive. The chunk is turned into a
+*   stream of differences between neighbouring bytes, which is searched
+*   exactly for the differences of the pattern; each hit is then checked
+*   against the whole pattern, since a wildcard breaks the chain of
+*   differences.
+*
+* The file is split into chunks of CHUNK_SIZE bytes that are searched by a
+* pool of worker threads. Matches are handed to a MatchListener chunk by
+* chunk, in ascending order, as soon as all chunks before them are done, so
+* results can be shown while the search is still running.
+*
+**/
+
+public class ByteSearcher {
+
+    public static final int CHUNK_SIZE = 1 << 20;
+
+    private FileImage img;
+    private Pattern pattern;
+    private int threads;
+    private int maxMatches;
+    private int chunkCount;
+    private AtomicInteger chunksDone = new AtomicInteger();
+    private volatile boolean cancelled = false;
+
+    // in-order delivery of the chunk results
+    private int[][] chunkMatches;
+    private int nextChunk = 0;
+    private int matchCount = 0;
+
+/**
+*
+* Creates a searcher for the given file and pattern.
+*
+* @param img        The file to search
+* @param pattern    The pattern to look for
+* @param threads    Number of worker threads to use
+* @param maxMatches The search stops after this many matches
+*
+**/
+
+    public ByteSearcher(FileImage img, Pattern pattern, int threads, int maxMatches) {
+        this.img = img;
+        this.pattern = pattern;
+        this.threads = Math.max(1, threads);
+        this.maxMatches = maxMatches;
+        chunkCount = (img.getSize() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+/**
+*
+* Gets the percentage of the file that has been searched.
+*
+**/
+
+    public int getPercentageCompleted() {
+        if (chunkCount == 0) return 100;
+        return (int)(((long)chunksDone.get() * 100) / chunkCount);
+    }
+
+/**
+*
+* Stops the search. Chunks that are being searched are finished, but their
+* matches aren't delivered.
+*
+**/
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+/**
+*
+* Returns true if the search was cancelled, or stopped because it found
+* maxMatches matches.
+*
+**/
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+/**
+*
+* Searches the file, passing the matches to <code>listener</code> (from the
+* worker threads) as they are found. Returns when the search is done.
+*
+**/
+
+    public void search(final MatchListener listener) {
+        chunkMatches = new int[chunkCount][];
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ByteSearcher");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);  // keep the UI responsive
+                return t;
+            }
+        });
+        try {
+            Vector tasks = new Vector();
+            for (int c=0; c<chunkCount; c++) {
+                final int chunk = c;
+                tasks.add(new Callable() {
+                    public Object call() {
+                        if (!cancelled) {
+                            int[] found = searchChunk(chunk * CHUNK_SIZE);
+                            chunksDone.incrementAndGet();
+                            chunkSearched(chunk, found, listener);
+                        }
+                        return null;
+                    }
+                });
+            }
+            java.util.List results = pool.invokeAll(tasks);
+            for (int i=0; i<results.size(); i++) {
+                ((Future)results.get(i)).get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        chunksDone.set(chunkCount);
+    }
+
+/**
+*
+* Stores the matches of a chunk, and delivers those of all chunks that are
+* now complete up to the first one still being searched.
+*
+**/
+
+    private synchronized void chunkSearched(int chunk, int[] found, MatchListener listener) {
+        chunkMatches[chunk] = found;
+        while ((nextChunk < chunkCount) && (chunkMatches[nextChunk] != null) && !cancelled) {
+            int[] matches = chunkMatches[nextChunk];
+            chunkMatches[nextChunk++] = null;
+            if (matchCount + matches.length >= maxMatches) {
+                int[] head = new int[maxMatches - matchCount];
+                System.arraycopy(matches, 0, head, 0, head.length);
+                matches = head;
+                cancelled = true;
+            }
+            matchCount += matches.length;
+            if (matches.length > 0) {
+                listener.matchesFound(matches);
+            }
+        }
+    }
+
+/**
+*
+* Finds the matches that start in the given chunk.
+*
+**/
+
+    private int[] searchChunk(int chunkStart) {
+        int size = img.getSize();
+        int m = pattern.getLength();
+        int chunkEnd = (int)Math.min((long)chunkStart + CHUNK_SIZE, (long)size);
+        int dataEnd = (int)Math.min((long)chunkEnd + m - 1, (long)size);
+        byte[] data;
+        int base;   // file offset of data[0]
+        if (!img.isMapped()) {
+            data = img.getContents();
+            base = 0;
+        }
+        else {
+            data = new byte[dataEnd - chunkStart];
+            img.read(chunkStart, data, 0, data.length);
+            base = chunkStart;
+        }
+        IntList found = new IntList();
+        if (pattern.isRelative()) {
+            pattern.findRelative(data, chunkStart - base, chunkEnd - base, dataEnd - base, found);
+        }
+        else {
+            pattern.findExact(data, chunkStart - base, chunkEnd - base, dataEnd - base, found);
+        }
+        int[] result = found.toArray();
+        for (int i=0; i<result.length; i++) {
+            result[i] += base;
+        }
+        return result;
+    }
+
+/**
+*
+* Receives the matches of a search.
+*
+**/
+
+    public interface MatchListener {
+
+        // offsets are in ascending order, and follow those of the previous call
+        void matchesFound(int[] offsets);
+
+    }
+
+/**
+*
+* A sequence of bytes to look for, some of which may be wildcards that match
+* any byte.
+*
+**/
+
+    public static class Pattern {
+
+        private byte[] values;
+        private boolean[] mask;     // false for wildcards
+        private boolean relative;
+        private int[] shift;        // Horspool shift table
+
+        // relative search: the differences between neighbouring bytes
+        private byte[] deltas;
+        private boolean[] deltaMask;
+        private int[] deltaShift;
+
+/**
+*
+* Creates a pattern.
+*
+* @param values     The bytes to look for (ignored where mask is false)
+* @param mask       Which bytes must match; null if all of them
+* @param relative   Match the differences between the bytes rather than the bytes
+*
+**/
+
+        public Pattern(byte[] values, boolean[] mask, boolean relative) {
+            if (values.length == 0) {
+                throw new IllegalArgumentException("Empty pattern");
+            }
+            if (mask == null) {
+                mask = new boolean[values.length];
+                Arrays.fill(mask, true);
+            }
+            this.values = values;
+            this.mask = mask;
+            this.relative = relative;
+            int fixed = 0;
+            for (int i=0; i<mask.length; i++) {
+                if (mask[i]) fixed++;
+            }
+            if (fixed < (relative ? 2 : 1)) {
+                throw new IllegalArgumentException("Pattern has too few fixed bytes");
+            }
+            if (relative) {
+                int n = values.length - 1;
+                deltas = new byte[n];
+                deltaMask = new boolean[n];
+                for (int i=0; i<n; i++) {
+                    deltas[i] = (byte)(values[i + 1] - values[i]);
+                    deltaMask[i] = mask[i] && mask[i + 1];
+                }
+                deltaShift = shiftTable(deltas, deltaMask);
+            }
+            else {
+                shift = shiftTable(values, mask);
+            }
+        }
+
+/**
+*
+* Parses a pattern of hexadecimal byte values, such as "A9 ?? 8D 00 21".
+* Whitespace is ignored, and "??" is a wildcard.
+*
+**/
+
+        public static Pattern parseHex(String s, boolean relative) {
+            s = s.replaceAll("\\s", "");
+            if ((s.length() == 0) || ((s.length() % 2) != 0)) {
+                throw new IllegalArgumentException("Odd number of hex digits");
+            }
+            byte[] values = new byte[s.length() / 2];
+            boolean[] mask = new boolean[values.length];
+            for (int i=0; i<values.length; i++) {
+                String b = s.substring(i * 2, i * 2 + 2);
+                if (b.equals("??")) {
+                    continue;
+                }
+                values[i] = (byte)Integer.parseInt(b, 16);
+                mask[i] = true;
+            }
+            return new Pattern(values, mask, relative);
+        }
+
+/**
+*
+* Makes a pattern of the characters of a string (one byte each, the low 8
+* bits). '*' is a wildcard.
+*
+**/
+
+        public static Pattern fromText(String s, boolean relative) {
+            byte[] values = new byte[s.length()];
+            boolean[] mask = new boolean[values.length];
+            for (int i=0; i<values.length; i++) {
+                char c = s.charAt(i);
+                if (c == '*') {
+                    continue;
+                }
+                values[i] = (byte)c;
+                mask[i] = true;
+            }
+            return new Pattern(values, mask, relative);
+        }
+
+/**
+*
+* Gets the number of bytes in the pattern.
+*
+**/
+
+        public int getLength() {
+            return values.length;
+        }
+
+/**
+*
+* Returns true if this is a relative pattern.
+*
+**/
+
+        public boolean isRelative() {
+            return relative;
+        }
+
+/**
+*
+* Builds the Horspool shift table: for each byte value, how far the
+* pattern can be moved when that value is under its last position. A
+* wildcard matches every value, so no shift goes past one.
+*
+**/
+
+        private static int[] shiftTable(byte[] pat, boolean[] patMask) {
+            int m = pat.length;
+            int maxShift = m;
+            for (int j=0; j<m-1; j++) {
+                if (!patMask[j]) maxShift = m - 1 - j;
+            }
+            int[] table = new int[256];
+            Arrays.fill(table, maxShift);
+            for (int j=0; j<m-1; j++) {
+                if (patMask[j]) {
+                    table[pat[j] & 0xFF] = Math.min(maxShift, m - 1 - j);
+                }
+            }
+            return table;
+        }
+
+/**
+*
+* Adds the positions in from..to-1 where pat occurs in data to found.
+* The match must lie before limit.
+*
+**/
+
+        private static void horspool(byte[] data, int from, int to, int limit,
+                                     byte[] pat, boolean[] patMask, int[] table, IntList found) {
+            int m = pat.length;
+            int last = m - 1;
+            int end = Math.min(to, limit - m + 1);
+            for (int i=from; i<end; i+=table[data[i + last] & 0xFF]) {
+                int k = last;
+                while ((k >= 0) && (!patMask[k] || (data[i + k] == pat[k]))) {
+                    k--;
+                }
+                if (k < 0) {
+                    found.add(i);
+                }
+            }
+        }
+
+/**
+*
+* Adds the positions in from..to-1 where the pattern occurs in data to
+* found.
+*
+**/
+
+        void findExact(byte[] data, int from, int to, int limit, IntList found) {
+            horspool(data, from, to, limit, values, mask, shift, found);
+        }
+
+/**
+*
+* Adds the positions in from..to-1 where the pattern occurs in data,
+* relatively, to found.
+*
+**/
+
+        void findRelative(byte[] data, int from, int to, int limit, IntList found) {
+            int end = Math.min(to, limit - values.length + 1);
+            if (from >= end) return;
+            // differences of neighbouring bytes, for the span the matches can cover
+            int span = end - from + deltas.length - 1;
+            byte[] diff = new byte[span];
+            for (int i=0; i<span; i++) {
+                diff[i] = (byte)(data[from + i + 1] - data[from + i]);
+            }
+            IntList candidates = new IntList();
+            horspool(diff, 0, end - from, span, deltas, deltaMask, deltaShift, candidates);
+            int first = 0;
+            while (!mask[first]) first++;
+            for (int c=0; c<candidates.size(); c++) {
+                int i = from + candidates.get(c);
+                int offset = data[i + first] - values[first];
+                boolean match = true;
+                for (int k=first+1; match && (k<values.length); k++) {
+                    match = !mask[k] || ((byte)(data[i + k] - values[k]) == (byte)offset);
+                }
+                if (match) {
+                    found.add(i);
+                }
+            }
+        }
+
+    }
+
+/**
+*
+* Growable list of ints.
+*
+**/
+
+    static class IntList {
+
+        private int[] items = new int[16];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == items.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(items, 0, grown, 0, size);
+                items = grown;
+            }
+            items[size++] = value;
+        }
+
+        int get(int index) {
+            return items[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            int[] result = new int[size];
+            System.arraycopy(items, 0, result, 0, size);
+            return result;
+        }
+
+    }
+
+}
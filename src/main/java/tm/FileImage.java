@@ -18,10 +18,17 @@
 
 package tm;
 
+import tm.canvases.TMEditorCanvas;
+import tm.filelistener.TMFileListener;
+import tm.tilecodecs.TileCodec;
 import tm.treenodes.*;
 import tm.ui.TMView;
 import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.Vector;
+import javax.swing.SwingUtilities;
 
 /**
 *
@@ -32,11 +39,19 @@ import java.util.Vector;
 public class FileImage {
 
     private byte[] contents;
+    private MappedFileBuffer mapped;    // non-null when the file is memory-mapped
     private File file;
     private Vector views = new Vector();
     private static int fileNum=0;
+    private static int imageCount=0;
+    private final int id = imageCount++;    // unique for the session
     private boolean modified;
+    private int version;        // incremented whenever the image is modified
+    private TreeMap dirtyRanges = new TreeMap(); // start -> end of bytes changed since the last save
+    private boolean allDirty;   // the file on disk can't be patched, it must be rewritten
     private TMFileResources resources;
+    private Vector tileIndexes = new Vector();  // duplicate tile indexes, one per layout in use by the views
+    private TMFileListener fileListener;    // notified of changed bytes, if it keeps a checksum
 
 /**
 *
@@ -53,6 +68,21 @@ public class FileImage {
         setModified(false);
     }
 
+/**
+*
+* Creates a FileImage that is backed by a memory-mapped file.
+*
+* Nothing is read up front; pages are brought in as they are viewed.
+*
+**/
+
+    public FileImage(File file, MappedFileBuffer mapped) {
+        this.file = file;
+        this.mapped = mapped;
+        this.resources = null;
+        setModified(false);
+    }
+
 /**
 *
 * Creates a blank FileImage of the requested size.
@@ -61,6 +91,7 @@ public class FileImage {
 
     public FileImage(int size) throws OutOfMemoryError {
         file = new File(System.getProperty("user.dir") + (fileNum++));
+        allDirty = true;
         this.resources = null;
         try {
             contents = new byte[size];
@@ -82,6 +113,9 @@ public class FileImage {
 **/
 
     public void setFile(File file) {
+        if ((file == null) || !file.equals(this.file)) {
+            allDirty = true;
+        }
         this.file = file;
     }
 
@@ -99,19 +133,208 @@ public class FileImage {
 *
 * Gets the binary contents of this FileImage.
 *
+* Only FileImages whose contents are on the heap have an array to return;
+* use read() for the parts of a memory-mapped one that are needed.
+*
 **/
 
-    public byte[] getContents() {
+    public byte[] getContents() throws IllegalStateException {
+        if (mapped != null) {
+            throw new IllegalStateException("The contents of " + getName() + " are memory-mapped");
+        }
         return contents;
     }
 
+/**
+*
+* Returns true if the contents are memory-mapped rather than held in a heap buffer.
+*
+**/
+
+    public boolean isMapped() {
+        return (mapped != null);
+    }
+
+/**
+*
+* Gets the memory-mapped buffer, or null if the contents are on the heap.
+*
+**/
+
+    public MappedFileBuffer getMappedBuffer() {
+        return mapped;
+    }
+
+/**
+*
+* Copies <code>len</code> bytes starting at offset <code>pos</code> of the
+* contents into <code>dst</code>.
+*
+**/
+
+    public void read(int pos, byte[] dst, int ofs, int len) {
+        if (mapped != null) {
+            mapped.read(pos, dst, ofs, len);
+        }
+        else {
+            System.arraycopy(contents, pos, dst, ofs, len);
+        }
+    }
+
+/**
+*
+* Copies <code>len</code> bytes from <code>src</code> to offset
+* <code>pos</code> of the contents.
+*
+**/
+
+    public void write(int pos, byte[] src, int ofs, int len) {
+        byte[] old = null;
+        if (isWatched()) {
+            old = new byte[len];
+            read(pos, old, 0, len);
+        }
+        if (mapped != null) {
+            mapped.write(pos, src, ofs, len);
+        }
+        else {
+            System.arraycopy(src, ofs, contents, pos, len);
+        }
+        if (old != null) {
+            fileListener.bytesChanged(pos, old, 0, src, ofs, len);
+        }
+        markDirty(pos, pos + len);
+    }
+
+/**
+*
+* Reports that the bytes at offset <code>pos</code> of the (heap) contents
+* have been changed in place; <code>old</code> holds their previous values.
+* Callers that change the contents array directly should take a copy of the
+* bytes first when isWatched() returns true, and pass it here afterwards.
+*
+**/
+
+    public void bytesReplaced(int pos, byte[] old) {
+        if (isWatched() && (contents != null)) {
+            fileListener.bytesChanged(pos, old, 0, contents, pos, old.length);
+        }
+    }
+
+/**
+*
+* Returns true if changes to the contents have to be reported with their
+* old values (see bytesReplaced()).
+*
+**/
+
+    public boolean isWatched() {
+        return (fileListener != null) && fileListener.hasChecksum();
+    }
+
+/**
+*
+* Sets the file listener that was detected for this file.
+* If it keeps track of a checksum, it is told about every change.
+*
+**/
+
+    public void setFileListener(TMFileListener fileListener) {
+        this.fileListener = fileListener;
+    }
+
+/**
+*
+* Gets the file listener that was detected for this file, or null.
+*
+**/
+
+    public TMFileListener getFileListener() {
+        return fileListener;
+    }
+
+/**
+*
+* Records that the bytes from <code>start</code> (inclusive) to
+* <code>end</code> (exclusive) have been changed, so that saving can write
+* just the changed parts of the file. Overlapping and adjacent ranges are
+* merged. The modification count goes up, so that tiles decoded from the
+* old bytes aren't taken from the cache any more.
+*
+**/
+
+    public void markDirty(int start, int end) {
+        start = Math.max(0, start);
+        end = Math.min(getSize(), end);
+        if (start >= end) return;
+        version++;
+        // merge with a range that starts before (or at) this one
+        Map.Entry before = dirtyRanges.floorEntry(Integer.valueOf(start));
+        if ((before != null) && (((Integer)before.getValue()).intValue() >= start)) {
+            start = ((Integer)before.getKey()).intValue();
+            end = Math.max(end, ((Integer)before.getValue()).intValue());
+        }
+        // swallow the ranges that start inside this one
+        Iterator it = dirtyRanges.subMap(Integer.valueOf(start), true, Integer.valueOf(end), true).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry e = (Map.Entry)it.next();
+            end = Math.max(end, ((Integer)e.getValue()).intValue());
+            it.remove();
+        }
+        dirtyRanges.put(Integer.valueOf(start), Integer.valueOf(end));
+        TileIndex[] indexes = getTileIndexes();
+        for (int i=0; i<indexes.length; i++) {
+            indexes[i].update(start, end);
+        }
+    }
+
+/**
+*
+* Gets the ranges of bytes changed since the last save, as
+* (start, end) pairs in ascending order, or null if the whole file has to
+* be written: when the file is new or has been renamed, or when it has been
+* modified without recording where.
+*
+**/
+
+    public int[] getDirtyRanges() {
+        if (allDirty || (modified && dirtyRanges.isEmpty())) {
+            return null;
+        }
+        int[] ranges = new int[dirtyRanges.size() * 2];
+        int i = 0;
+        Iterator it = dirtyRanges.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry e = (Map.Entry)it.next();
+            ranges[i++] = ((Integer)e.getKey()).intValue();
+            ranges[i++] = ((Integer)e.getValue()).intValue();
+        }
+        return ranges;
+    }
+
+/**
+*
+* Forgets the changed ranges. Call this when the contents have been saved.
+*
+**/
+
+    public void clearDirtyRanges() {
+        dirtyRanges.clear();
+        allDirty = false;
+    }
+
 /**
 *
 * Gets the size (in # of bytes) of the file contents.
+* Offsets are ints throughout the editor, so a mapped file larger than
+* 2 GB reports (and is addressable up to) Integer.MAX_VALUE bytes.
 *
 **/
 
     public int getSize() {
+        if (mapped != null) {
+            return (int)Math.min(mapped.length(), Integer.MAX_VALUE);
+        }
         return contents.length;
     }
 
@@ -159,9 +382,17 @@ public class FileImage {
         views.remove(view);
         if (views.size() == 0) {
             contents = null;    // kill the contents reference
+            if (mapped != null) {
+                mapped.close();
+                mapped = null;
+            }
+            if (resources != null) {
+                resources.close();
+            }
             resources = null;
             file = null;
         }
+        dropUnusedTileIndexes();
     }
 
 /**
@@ -172,6 +403,9 @@ public class FileImage {
 
     public void setModified(boolean modified) {
         this.modified = modified;
+        if (modified) {
+            version++;
+        }
         // update view titles
         TMView[] views = getViews();
         for (int i=0; i<views.length; i++) {
@@ -197,6 +431,107 @@ public class FileImage {
         return modified;
     }
 
+/**
+*
+* Gets the modification count, which is incremented every time the image
+* is flagged as modified or bytes of it are changed. Can be used to tell whether data that was decoded
+* earlier may be out of date.
+*
+**/
+
+    public int getVersion() {
+        return version;
+    }
+
+/**
+*
+* Gets a number that identifies this image for the rest of the session.
+*
+**/
+
+    public int getID() {
+        return id;
+    }
+
+/**
+*
+* Gets the index of the tiles of <code>tileSize</code> bytes that are aligned
+* with <code>offset</code>. One index is kept per layout that the views of
+* the image use; if none matches, a new one is built in the background, and
+* the views are repainted when it is ready. Indexes of layouts that no view
+* uses any more are dropped at that point.
+* Use TileIndex.isReady() to tell whether the index can be queried yet.
+* Returns null if the file has more than TileIndex.MAX_WINDOWS tiles (as a
+* memory-mapped file is likely to), since the index would take up too much
+* memory.
+*
+**/
+
+    public TileIndex getTileIndex(int tileSize, int offset) {
+        TileIndex[] indexes = getTileIndexes();
+        for (int i=0; i<indexes.length; i++) {
+            if (indexes[i].covers(tileSize, offset)) {
+                return indexes[i];
+            }
+        }
+        dropUnusedTileIndexes();
+        if (TileIndex.getWindowCount(getSize(), tileSize, offset % tileSize) > TileIndex.MAX_WINDOWS) {
+            return null;
+        }
+        TileIndex tileIndex = new TileIndex(this, tileSize, offset % tileSize);
+        tileIndexes.add(tileIndex);
+        tileIndex.build(new Runnable() {
+            public void run() {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        TMView[] views = getViews();
+                        for (int i=0; i<views.length; i++) {
+                            views[i].repaint();
+                        }
+                    }
+                });
+            }
+        });
+        return tileIndex;
+    }
+
+/**
+*
+* Gets the duplicate tile indexes currently kept for this image.
+*
+**/
+
+    private TileIndex[] getTileIndexes() {
+        TileIndex[] indexes = new TileIndex[tileIndexes.size()];
+        tileIndexes.toArray(indexes);
+        return indexes;
+    }
+
+/**
+*
+* Cancels and drops the tile indexes whose layout isn't the one of any view
+* (in 1-dimensional mode) of this image.
+*
+**/
+
+    private void dropUnusedTileIndexes() {
+        TMView[] views = getViews();
+        TileIndex[] indexes = getTileIndexes();
+        for (int i=0; i<indexes.length; i++) {
+            boolean used = false;
+            for (int j=0; j<views.length && !used; j++) {
+                TMEditorCanvas ec = views[j].getEditorCanvas();
+                used = (ec != null) && (ec.getCodec() != null)
+                    && (ec.getMode() == TileCodec.MODE_1D)
+                    && indexes[i].covers(ec.getCodec().getTileSize(), ec.getOffset());
+            }
+            if (!used) {
+                indexes[i].cancel();
+                tileIndexes.remove(indexes[i]);
+            }
+        }
+    }
+
 /**
 *
 * Sets the resources associated with this fileimage.
@@ -0,0 +1,555 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm;
+
+import tm.tilecodecs.TileCodec;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+*
+* Sweeps a FileImage looking for regions that are likely to contain graphics.
+*
+* The file is processed in chunks of CHUNK_SIZE bytes, so only a few chunks
+* are held in memory at any time no matter how big the file is. Chunks are
+* handed out to a pool of worker threads, and each chunk is decoded with every
+* codec in both 1-dimensional and 2-dimensional mode, one window of
+* WINDOW_COLS x WINDOW_ROWS tiles at a time. Each window is scored with a
+* few cheap heuristics:
+*
+* - Byte entropy. Empty (fill) data is rejected, and compressed or random
+*   data, which is close to 8 bits/byte, is penalized.
+* - Repeated-tile ratio. Tilesets usually have some identical tiles (blanks),
+*   but a window made only of repeats is just a fill pattern.
+* - Bitplane correlation. Graphics decoded with the right codec are smooth,
+*   so each bitplane of a pixel tends to agree with its neighbours; with the
+*   wrong codec (or non-graphics data) the planes look like noise.
+* - Palette-index histogram. Graphics use a skewed subset of the available
+*   colors, whereas noise spreads evenly over all of them.
+*
+* Consecutive windows scoring at least MIN_SCORE are merged into regions,
+* the regions are ranked, overlapping regions found with different codecs are
+* reduced to the best one, and the start offset of each survivor is refined
+* to the best sub-tile alignment.
+*
+**/
+
+public class GraphicsScanner {
+
+    public static final int CHUNK_SIZE = 1 << 20;
+    public static final int WINDOW_COLS = 16;
+    public static final int WINDOW_ROWS = 4;
+    public static final double MIN_SCORE = 0.6;
+    public static final int MAX_CANDIDATES = 100;
+
+    private FileImage img;
+    private TileCodec[] codecs;
+    private int[] tileSizes;    // snapshot, in case a codec is reconfigured later
+    private int threads;
+    private int chunkCount;
+    private AtomicInteger chunksDone = new AtomicInteger();
+
+/**
+*
+* Creates a scanner for the given file and codecs.
+*
+* @param img        The file to scan
+* @param codecs     The tile codecs to try
+* @param threads    Number of worker threads to use
+*
+**/
+
+    public GraphicsScanner(FileImage img, TileCodec[] codecs, int threads) {
+        this.img = img;
+        this.codecs = codecs;
+        this.threads = Math.max(1, threads);
+        tileSizes = new int[codecs.length];
+        for (int i=0; i<codecs.length; i++) {
+            tileSizes[i] = codecs[i].getTileSize();
+        }
+        chunkCount = (img.getSize() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+/**
+*
+* Gets the percentage of the file that has been scanned.
+*
+**/
+
+    public int getPercentageCompleted() {
+        if (chunkCount == 0) return 100;
+        return (int)(((long)chunksDone.get() * 100) / chunkCount);
+    }
+
+/**
+*
+* Scans the file and returns the candidates, best first.
+*
+**/
+
+    public Candidate[] scan() {
+        int maxWindowBytes = 0;
+        for (int i=0; i<codecs.length; i++) {
+            maxWindowBytes = Math.max(maxWindowBytes, tileSizes[i] * WINDOW_COLS * WINDOW_ROWS);
+        }
+        final int overlap = maxWindowBytes;
+
+        Vector regions = new Vector();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GraphicsScanner");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);  // keep the UI responsive
+                return t;
+            }
+        });
+        try {
+            Vector tasks = new Vector();
+            for (int c=0; c<chunkCount; c++) {
+                final int chunkStart = c * CHUNK_SIZE;
+                tasks.add(new Callable() {
+                    public Object call() {
+                        Vector found = scanChunk(chunkStart, overlap);
+                        chunksDone.incrementAndGet();
+                        return found;
+                    }
+                });
+            }
+            java.util.List results = pool.invokeAll(tasks);
+            for (int i=0; i<results.size(); i++) {
+                regions.addAll((Vector)((Future)results.get(i)).get());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+
+        Candidate[] result = rank(mergeRegions(regions));
+        chunksDone.set(chunkCount);
+        return result;
+    }
+
+/**
+*
+* Scans one chunk with all codecs and modes, returning the regions of
+* consecutive windows that scored at least MIN_SCORE.
+* Windows are aligned to their size relative to the start of the file, so
+* that regions from neighbouring chunks can be joined afterwards.
+*
+**/
+
+    private Vector scanChunk(int chunkStart, int overlap) {
+        int size = img.getSize();
+        int len = (int)Math.min((long)CHUNK_SIZE + overlap, (long)size - chunkStart);
+        byte[] data = new byte[len];
+        img.read(chunkStart, data, 0, len);
+        int chunkEnd = chunkStart + Math.min(CHUNK_SIZE, len);
+
+        Scorer scorer = new Scorer();
+        Vector found = new Vector();
+        for (int i=0; i<codecs.length; i++) {
+            int windowBytes = tileSizes[i] * WINDOW_COLS * WINDOW_ROWS;
+            long first = ((chunkStart + (long)windowBytes - 1) / windowBytes) * windowBytes;
+            for (int m=TileCodec.MODE_1D; m<=TileCodec.MODE_2D; m++) {
+                Region current = null;
+                for (long ofs=first; ofs<chunkEnd; ofs+=windowBytes) {
+                    int rel = (int)(ofs - chunkStart);
+                    if (rel + windowBytes > len) break;
+                    double score = scorer.score(codecs[i], tileSizes[i], m, data, rel);
+                    if (score >= MIN_SCORE) {
+                        if (current == null) {
+                            current = new Region(i, m, (int)ofs);
+                            found.add(current);
+                        }
+                        current.addWindow(windowBytes, score);
+                    }
+                    else {
+                        current = null;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+/**
+*
+* Joins regions of the same codec and mode that continue across chunk
+* boundaries.
+*
+**/
+
+    private Vector mergeRegions(Vector regions) {
+        Collections.sort(regions, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                Region r1 = (Region)o1;
+                Region r2 = (Region)o2;
+                if (r1.codec != r2.codec) return r1.codec - r2.codec;
+                if (r1.mode != r2.mode) return r1.mode - r2.mode;
+                return Integer.compare(r1.start, r2.start);
+            }
+        });
+        Vector merged = new Vector();
+        Region prev = null;
+        for (int i=0; i<regions.size(); i++) {
+            Region r = (Region)regions.get(i);
+            if ((prev != null) && (prev.codec == r.codec) && (prev.mode == r.mode)
+                && (prev.end == r.start)) {
+                prev.end = r.end;
+                prev.windows += r.windows;
+                prev.scoreSum += r.scoreSum;
+            }
+            else {
+                merged.add(r);
+                prev = r;
+            }
+        }
+        return merged;
+    }
+
+/**
+*
+* Ranks the regions, drops the ones that overlap a better region, and turns
+* the best MAX_CANDIDATES of the remaining ones into candidates.
+*
+**/
+
+    private Candidate[] rank(Vector regions) {
+        Collections.sort(regions, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                Region r1 = (Region)o1;
+                Region r2 = (Region)o2;
+                int c = Double.compare(r2.getRank(), r1.getRank());
+                if (c != 0) return c;
+                return Integer.compare(r1.start, r2.start);
+            }
+        });
+        Vector accepted = new Vector();
+        for (int i=0; (i<regions.size()) && (accepted.size()<MAX_CANDIDATES); i++) {
+            Region r = (Region)regions.get(i);
+            boolean overlaps = false;
+            for (int j=0; j<accepted.size() && !overlaps; j++) {
+                Region a = (Region)accepted.get(j);
+                int common = Math.min(a.end, r.end) - Math.max(a.start, r.start);
+                overlaps = (common * 2 > Math.min(a.end - a.start, r.end - r.start));
+            }
+            if (!overlaps) {
+                accepted.add(r);
+            }
+        }
+
+        Scorer scorer = new Scorer();
+        Candidate[] result = new Candidate[accepted.size()];
+        for (int i=0; i<result.length; i++) {
+            Region r = (Region)accepted.get(i);
+            int ofs = refineOffset(scorer, r);
+            result[i] = new Candidate(ofs, r.end - r.start, codecs[r.codec], r.mode, r.getScore());
+        }
+        return result;
+    }
+
+/**
+*
+* Tries every alignment within one tile, and returns the start of the region
+* moved to the alignment that scores best. The alignment is measured on the
+* middle window, since the first one may only partly contain graphics.
+*
+**/
+
+    private int refineOffset(Scorer scorer, Region r) {
+        int tileSize = tileSizes[r.codec];
+        int windowBytes = tileSize * WINDOW_COLS * WINDOW_ROWS;
+        int windowStart = r.start + (r.windows / 2) * windowBytes;
+        int len = Math.min(windowBytes + tileSize, img.getSize() - windowStart);
+        if (len < windowBytes) return r.start;
+        byte[] data = new byte[len];
+        img.read(windowStart, data, 0, len);
+        int best = 0;
+        double bestScore = -1;
+        for (int p=0; (p<tileSize) && (p+windowBytes<=len); p++) {
+            double score = scorer.score(codecs[r.codec], tileSize, r.mode, data, p);
+            if (score > bestScore) {
+                bestScore = score;
+                best = p;
+            }
+        }
+        return r.start + best;
+    }
+
+/**
+*
+* Per-thread scoring state: the decoded window and scratch tables.
+*
+**/
+
+    private static class Scorer {
+
+        private int[] pixels = new int[0];
+        private int[] byteHist = new int[256];
+        private int[] indexHist = new int[256];
+        private int[] tileHashes = new int[WINDOW_COLS * WINDOW_ROWS];
+
+/**
+*
+* Scores the window of WINDOW_COLS x WINDOW_ROWS tiles starting at
+* <code>ofs</code>, from 0 (not graphics) to 1.
+*
+**/
+
+        double score(TileCodec codec, int tileSize, int mode, byte[] data, int ofs) {
+            int windowBytes = tileSize * WINDOW_COLS * WINDOW_ROWS;
+
+            // byte entropy
+            Arrays.fill(byteHist, 0);
+            for (int i=ofs; i<ofs+windowBytes; i++) {
+                byteHist[data[i] & 0xFF]++;
+            }
+            double entropy = entropy(byteHist, windowBytes);
+            if (entropy < 0.25) return 0;   // (nearly) empty
+            double entropyScore;
+            if (entropy < 1.0) entropyScore = entropy;
+            else if (entropy > 7.0) entropyScore = Math.max(0, 8.0 - entropy);
+            else entropyScore = 1.0;
+
+            // repeated-tile ratio
+            int tileCount = tileHashes.length;
+            for (int t=0; t<tileCount; t++) {
+                tileHashes[t] = hashTile(data, ofs, t, tileSize, codec, mode);
+            }
+            Arrays.sort(tileHashes);
+            int distinct = 1;
+            for (int t=1; t<tileCount; t++) {
+                if (tileHashes[t] != tileHashes[t-1]) distinct++;
+            }
+            if (distinct == 1) return 0;   // fill pattern
+            double repeated = 1.0 - (double)distinct / tileCount;
+            double repeatScore = (repeated <= 0.5) ? 0.6 + 0.8 * repeated : Math.max(0, 1.0 - (repeated - 0.5) * 2);
+
+            // decode the window
+            int tw = codec.getTileWidth();
+            int th = codec.getTileHeight();
+            int width = WINDOW_COLS * tw;
+            int height = WINDOW_ROWS * th;
+            if (pixels.length < width * height) {
+                pixels = new int[width * height];
+            }
+            int stride = (mode == TileCodec.MODE_1D) ? 0 : WINDOW_COLS - 1;
+            for (int i=0; i<WINDOW_ROWS; i++) {
+                for (int j=0; j<WINDOW_COLS; j++) {
+                    codec.decodeInto(data, tileOffset(ofs, i * WINDOW_COLS + j, tileSize, codec, mode),
+                        stride, pixels, (i * th * width) + (j * tw), width);
+                }
+            }
+
+            // bitplane correlation between horizontally and vertically adjacent pixels
+            int bpp = codec.getBitsPerPixel();
+            boolean indexed = (bpp <= 8);
+            int planeMask = indexed ? (1 << bpp) - 1 : 0x00C0C0C0;  // direct color: top 2 bits of R, G, B
+            int planes = indexed ? bpp : 6;
+            long disagree = 0;
+            long pairs = 0;
+            for (int y=0; y<height; y++) {
+                int row = y * width;
+                for (int x=0; x<width; x++) {
+                    int p = pixels[row + x] & planeMask;
+                    if (x+1 < width) {
+                        disagree += Integer.bitCount(p ^ (pixels[row + x + 1] & planeMask));
+                        pairs++;
+                    }
+                    if (y+1 < height) {
+                        disagree += Integer.bitCount(p ^ (pixels[row + width + x] & planeMask));
+                        pairs++;
+                    }
+                }
+            }
+            double agree = 1.0 - (double)disagree / (pairs * planes);
+            double correlationScore = Math.max(0, (agree - 0.5) * 2);
+
+            // palette-index histogram
+            double histogramScore = 0.5;
+            if (indexed) {
+                Arrays.fill(indexHist, 0);
+                int count = width * height;
+                for (int i=0; i<count; i++) {
+                    indexHist[pixels[i] & planeMask]++;
+                }
+                double spread = (bpp == 0) ? 0 : entropy(indexHist, count) / bpp;
+                if (spread < 0.05) histogramScore = 0;
+                else if (spread > 0.85) histogramScore = Math.max(0, (1.0 - spread) / 0.15);
+                else histogramScore = 1.0;
+            }
+
+            return (0.5 * correlationScore) + (0.2 * histogramScore)
+                 + (0.15 * entropyScore) + (0.15 * repeatScore);
+        }
+
+/**
+*
+* Gets the data offset of tile <code>t</code> of the window at
+* <code>ofs</code>.
+*
+**/
+
+        private static int tileOffset(int ofs, int t, int tileSize, TileCodec codec, int mode) {
+            int i = t / WINDOW_COLS;
+            int j = t % WINDOW_COLS;
+            int rowSize = WINDOW_COLS * tileSize;
+            int increment = (mode == TileCodec.MODE_1D) ? tileSize : codec.getBytesPerRow();
+            return ofs + (i * rowSize) + (j * increment);
+        }
+
+/**
+*
+* Hashes the encoded data of tile <code>t</code> of the window at
+* <code>ofs</code>.
+*
+**/
+
+        private static int hashTile(byte[] data, int ofs, int t, int tileSize, TileCodec codec, int mode) {
+            int pos = tileOffset(ofs, t, tileSize, codec, mode);
+            int h = 1;
+            if (mode == TileCodec.MODE_1D) {
+                for (int k=0; k<tileSize; k++) {
+                    h = 31 * h + data[pos + k];
+                }
+            }
+            else {
+                // rows of the tile are one row of tiles apart
+                int bytesPerRow = codec.getBytesPerRow();
+                int rowStep = WINDOW_COLS * bytesPerRow;
+                for (int r=0; r<tileSize/bytesPerRow; r++) {
+                    for (int k=0; k<bytesPerRow; k++) {
+                        h = 31 * h + data[pos + (r * rowStep) + k];
+                    }
+                }
+            }
+            return h;
+        }
+
+/**
+*
+* Gets the Shannon entropy (in bits) of the given histogram.
+*
+**/
+
+        private static double entropy(int[] hist, int total) {
+            double e = 0;
+            for (int i=0; i<hist.length; i++) {
+                if (hist[i] != 0) {
+                    double p = (double)hist[i] / total;
+                    e -= p * Math.log(p);
+                }
+            }
+            return e / Math.log(2);
+        }
+
+    }
+
+/**
+*
+* A run of consecutive windows of one codec and mode.
+*
+**/
+
+    private static class Region {
+
+        int codec;
+        int mode;
+        int start;
+        int end;
+        int windows = 0;
+        double scoreSum = 0;
+
+        Region(int codec, int mode, int start) {
+            this.codec = codec;
+            this.mode = mode;
+            this.start = start;
+            this.end = start;
+        }
+
+        void addWindow(int windowBytes, double score) {
+            end += windowBytes;
+            windows++;
+            scoreSum += score;
+        }
+
+        double getScore() {
+            return scoreSum / windows;
+        }
+
+        // isolated windows are often false positives; longer runs rank higher
+        double getRank() {
+            return getScore() * (1.0 - 0.25 / windows);
+        }
+
+    }
+
+/**
+*
+* A likely graphics region: where it starts, how long it is, and which codec
+* and mode it looked best in.
+*
+**/
+
+    public static class Candidate {
+
+        private int offset;
+        private int length;
+        private TileCodec codec;
+        private int mode;
+        private double score;
+
+        public Candidate(int offset, int length, TileCodec codec, int mode, double score) {
+            this.offset = offset;
+            this.length = length;
+            this.codec = codec;
+            this.mode = mode;
+            this.score = score;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public TileCodec getCodec() {
+            return codec;
+        }
+
+        public int getMode() {
+            return mode;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+    }
+
+}
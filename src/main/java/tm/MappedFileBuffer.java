@@ -0,0 +1,254 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+*
+* Read-only, memory-mapped view of a file on disk.
+*
+* The file is mapped lazily in windows of PAGE_SIZE bytes, so opening is
+* instant and only the pages that are actually read become resident.
+* Modifications are never written through to the mapping; instead the
+* affected BLOCK_SIZE region is copied to the heap on first write
+* (copy-on-write) and subsequent reads of that region are served from the copy.
+*
+* Any number of threads may read at once (the tile decoders and scanners
+* do); a write waits for the reads in progress and holds off new ones
+* until the block has been copied and modified.
+*
+**/
+
+public class MappedFileBuffer {
+
+    public static final int PAGE_SIZE = 1 << 24;    // 16 MB per mapped window
+    public static final int BLOCK_SIZE = 1 << 16;   // 64 KB copy-on-write granularity
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long length;
+    private AtomicReferenceArray pages;   // MappedByteBuffers, null until mapped
+    private byte[][] blocks;    // heap copies of modified blocks, null if untouched
+    private File tempFile;      // deleted on close, if the mapped file is a temporary one
+    private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+/**
+*
+* Maps the given file.
+*
+**/
+
+    public MappedFileBuffer(File file) throws IOException {
+        this(file, false);
+    }
+
+/**
+*
+* Maps the given file. If <code>temporary</code> is true, the file is
+* deleted when the buffer is closed.
+*
+**/
+
+    public MappedFileBuffer(File file, boolean temporary) throws IOException {
+        if (temporary) {
+            tempFile = file;
+            file.deleteOnExit();
+        }
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+        length = channel.size();
+        pages = new AtomicReferenceArray((int)((length + PAGE_SIZE - 1) / PAGE_SIZE));
+        blocks = new byte[(int)((length + BLOCK_SIZE - 1) / BLOCK_SIZE)][];
+    }
+
+/**
+*
+* Gets the length of the mapped file.
+*
+**/
+
+    public long length() {
+        return length;
+    }
+
+/**
+*
+* Gets the mapped window with the given index, mapping it if necessary.
+* Only the absolute get() methods are used on it, which don't change its
+* position, so it is shared by all threads.
+*
+**/
+
+    private MappedByteBuffer getPage(int index) {
+        MappedByteBuffer page = (MappedByteBuffer)pages.get(index);
+        if (page == null) {
+            synchronized (pages) {
+                page = (MappedByteBuffer)pages.get(index);
+                if (page == null) {
+                    long pos = (long)index * PAGE_SIZE;
+                    long size = Math.min(PAGE_SIZE, length - pos);
+                    try {
+                        page = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    pages.set(index, page);
+                }
+            }
+        }
+        return page;
+    }
+
+/**
+*
+* Copies <code>len</code> bytes starting at file position <code>pos</code>
+* into <code>dst</code>.
+*
+**/
+
+    public void read(long pos, byte[] dst, int ofs, int len) {
+        lock.readLock().lock();
+        try {
+            readBlocks(pos, dst, ofs, len);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void readBlocks(long pos, byte[] dst, int ofs, int len) {
+        while (len > 0) {
+            int blockIndex = (int)(pos / BLOCK_SIZE);
+            int blockOfs = (int)(pos % BLOCK_SIZE);
+            int n = Math.min(len, BLOCK_SIZE - blockOfs);
+            byte[] block = blocks[blockIndex];
+            if (block != null) {
+                System.arraycopy(block, blockOfs, dst, ofs, n);
+            }
+            else {
+                // fetch from the mapping; a block never straddles two pages
+                MappedByteBuffer page = getPage((int)(pos / PAGE_SIZE));
+                page.get((int)(pos % PAGE_SIZE), dst, ofs, n);
+            }
+            pos += n;
+            ofs += n;
+            len -= n;
+        }
+    }
+
+/**
+*
+* Gets the byte at file position <code>pos</code>.
+*
+**/
+
+    public byte get(long pos) {
+        lock.readLock().lock();
+        try {
+            byte[] block = blocks[(int)(pos / BLOCK_SIZE)];
+            if (block != null) {
+                return block[(int)(pos % BLOCK_SIZE)];
+            }
+            return getPage((int)(pos / PAGE_SIZE)).get((int)(pos % PAGE_SIZE));
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+/**
+*
+* Copies <code>len</code> bytes from <code>src</code> to file position
+* <code>pos</code>. The file on disk is not touched until it is saved.
+*
+**/
+
+    public void write(long pos, byte[] src, int ofs, int len) {
+        lock.writeLock().lock();
+        try {
+            while (len > 0) {
+                int blockIndex = (int)(pos / BLOCK_SIZE);
+                int blockOfs = (int)(pos % BLOCK_SIZE);
+                int n = Math.min(len, BLOCK_SIZE - blockOfs);
+                byte[] block = blocks[blockIndex];
+                if (block == null) {
+                    // copy the block to the heap before modifying it
+                    long blockPos = (long)blockIndex * BLOCK_SIZE;
+                    block = new byte[(int)Math.min(BLOCK_SIZE, length - blockPos)];
+                    getPage((int)(blockPos / PAGE_SIZE)).get((int)(blockPos % PAGE_SIZE), block, 0, block.length);
+                    blocks[blockIndex] = block;
+                }
+                System.arraycopy(src, ofs, block, blockOfs, n);
+                pos += n;
+                ofs += n;
+                len -= n;
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+/**
+*
+* Reads the whole file into a new array.
+*
+**/
+
+    public byte[] toByteArray() throws OutOfMemoryError {
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new OutOfMemoryError("File too large for a heap buffer");
+        }
+        byte[] contents = new byte[(int)length];
+        read(0, contents, 0, contents.length);
+        return contents;
+    }
+
+/**
+*
+* Closes the underlying file. The buffer must not be used afterwards.
+*
+**/
+
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            pages = null;
+            blocks = null;
+            try {
+                raf.close();
+            }
+            catch (IOException e) { }
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+}
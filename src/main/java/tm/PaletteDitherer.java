@@ -0,0 +1,326 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm;
+
+import tm.colorcodecs.ColorLookup;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+*
+* Reduces true color images to the colors of a range of palette entries
+* (the entries a palettized codec can use at a given palette index), so
+* that imported bitmaps can be encoded with few colors without banding.
+*
+* - NONE maps each pixel to the closest entry, like pasting always has.
+* - ORDERED adds an 8x8 Bayer threshold pattern before looking up the
+*   closest entry. Its strength is the average distance between the
+*   entries, so that it fits both coarse and fine palettes. Pixels don't
+*   depend on each other, so the rows are split among several threads.
+* - FLOYD_STEINBERG spreads the difference between each pixel and its
+*   entry to the pixels that haven't been done yet, going back and forth
+*   along the rows.
+*
+* The closest entries are looked up among the copied range only (by a
+* plain scan if it's small), which gives the same entries as
+* TMPalette.closestMatchingEntry() without searching past the rest of the
+* palette for each pixel.
+*
+**/
+
+public class PaletteDitherer {
+
+    public static final int NONE = 0;
+    public static final int ORDERED = 1;
+    public static final int FLOYD_STEINBERG = 2;
+
+    private static final String[] MODE_NAMES = { "none", "ordered", "floyd-steinberg" };
+    private static final int MIN_ROWS_PER_THREAD = 32;
+    private static final int MAX_SCANNED_COLORS = 32;
+
+    private static final int[] BAYER = {
+         0, 32,  8, 40,  2, 34, 10, 42,
+        48, 16, 56, 24, 50, 18, 58, 26,
+        12, 44,  4, 36, 14, 46,  6, 38,
+        60, 28, 52, 20, 62, 30, 54, 22,
+         3, 35, 11, 43,  1, 33,  9, 41,
+        51, 19, 59, 27, 49, 17, 57, 25,
+        15, 47,  7, 39, 13, 45,  5, 37,
+        63, 31, 55, 23, 61, 29, 53, 21
+    };
+
+    private int[] colors;
+    private ColorLookup lookup;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+/**
+*
+* Creates a ditherer for the colorCount entries of the palette starting
+* at startIndex.
+*
+**/
+
+    public PaletteDitherer(TMPalette palette, int startIndex, int colorCount) {
+        colors = new int[colorCount];
+        for (int i=0; i<colorCount; i++) {
+            colors[i] = palette.getEntryRGB(startIndex + i);
+        }
+        if (colorCount > MAX_SCANNED_COLORS) {
+            lookup = new ColorLookup(colors);
+        }
+    }
+
+/**
+*
+* Sets the number of threads to dither with.
+*
+**/
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+/**
+*
+* Gets the dithering mode with the given name: "none", "ordered" or
+* "floyd-steinberg" (or "fs").
+*
+**/
+
+    public static int parseMode(String name) throws IllegalArgumentException {
+        if (name.equalsIgnoreCase("fs")) {
+            return FLOYD_STEINBERG;
+        }
+        for (int i=0; i<MODE_NAMES.length; i++) {
+            if (MODE_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown dithering mode " + name);
+    }
+
+/**
+*
+* Gets the name of the given dithering mode.
+*
+**/
+
+    public static String getModeName(int mode) {
+        return MODE_NAMES[mode];
+    }
+
+/**
+*
+* Replaces each of the (A)RGB pixels of the given image, stored row after
+* row, by the RGB value of the palette entry it is drawn with.
+*
+**/
+
+    public void dither(final int[] pixels, final int width, int height, int mode) {
+        if (mode == FLOYD_STEINBERG) {
+            floydSteinberg(pixels, width, height);
+            return;
+        }
+        final int spread = (mode == ORDERED) ? getSpread() : 0;
+        int bands = Math.max(1, Math.min(threads, height / MIN_ROWS_PER_THREAD));
+        if (bands == 1) {
+            ordered(pixels, width, 0, height, spread);
+            return;
+        }
+        final int rowsPerBand = (height + bands - 1) / bands;
+        Vector tasks = new Vector();
+        for (int i=0; i<height; i+=rowsPerBand) {
+            final int first = i;
+            final int end = Math.min(height, i + rowsPerBand);
+            tasks.add(new Callable() {
+                public Object call() {
+                    ordered(pixels, width, first, end, spread);
+                    return null;
+                }
+            });
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(bands, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PaletteDitherer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            java.util.List results = pool.invokeAll(tasks);
+            for (int i=0; i<results.size(); i++) {
+                ((Future)results.get(i)).get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+/**
+*
+* Gets the strength of the ordered dithering: the average distance from
+* each entry to the closest different one, per channel.
+*
+**/
+
+    private int getSpread() {
+        long sum = 0;
+        int count = 0;
+        for (int i=0; i<colors.length; i++) {
+            int best = Integer.MAX_VALUE;
+            for (int j=0; j<colors.length; j++) {
+                int d = distance(colors[i], colors[j]);
+                if ((d != 0) && (d < best)) {
+                    best = d;
+                }
+            }
+            if (best != Integer.MAX_VALUE) {
+                sum += best;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return 0;   // only one color
+        }
+        // squared distance over three channels -> distance per channel
+        return (int)Math.round(Math.sqrt((double)sum / count / 3));
+    }
+
+    private static int distance(int c1, int c2) {
+        int r = ((c1 >> 16) & 0xFF) - ((c2 >> 16) & 0xFF);
+        int g = ((c1 >> 8) & 0xFF) - ((c2 >> 8) & 0xFF);
+        int b = (c1 & 0xFF) - (c2 & 0xFF);
+        return (r * r) + (g * g) + (b * b);
+    }
+
+/**
+*
+* Dithers the rows first..end-1 with the Bayer pattern scaled to the given
+* spread (no pattern at all if it's 0).
+*
+**/
+
+    private void ordered(int[] pixels, int width, int first, int end, int spread) {
+        for (int y=first; y<end; y++) {
+            int row = y * width;
+            for (int x=0; x<width; x++) {
+                int argb = pixels[row + x];
+                if (spread != 0) {
+                    // threshold in -spread/2 .. spread/2
+                    int d = (((BAYER[((y & 7) << 3) | (x & 7)] * 2 + 1) * spread) >> 7) - (spread >> 1);
+                    argb = rgb(((argb >> 16) & 0xFF) + d, ((argb >> 8) & 0xFF) + d, (argb & 0xFF) + d);
+                }
+                pixels[row + x] = closest(argb);
+            }
+        }
+    }
+
+/**
+*
+* Floyd-Steinberg error diffusion, in serpentine order. The errors of the
+* current and the next row are kept in 1/16ths, with a pixel of room on
+* either side.
+*
+**/
+
+    private void floydSteinberg(int[] pixels, int width, int height) {
+        int[] current = new int[(width + 2) * 3];
+        int[] next = new int[(width + 2) * 3];
+        for (int y=0; y<height; y++) {
+            boolean reverse = (y & 1) != 0;
+            int step = reverse ? -1 : 1;
+            int row = y * width;
+            for (int n=0; n<width; n++) {
+                int x = reverse ? (width - 1 - n) : n;
+                int e = (x + 1) * 3;
+                int argb = pixels[row + x];
+                int r = clamp(((argb >> 16) & 0xFF) + ((current[e] + 8) >> 4));
+                int g = clamp(((argb >> 8) & 0xFF) + ((current[e + 1] + 8) >> 4));
+                int b = clamp((argb & 0xFF) + ((current[e + 2] + 8) >> 4));
+                int c = closest(rgb(r, g, b));
+                pixels[row + x] = c;
+                int er = r - ((c >> 16) & 0xFF);
+                int eg = g - ((c >> 8) & 0xFF);
+                int eb = b - (c & 0xFF);
+                int ahead = e + (step * 3);
+                int behind = e - (step * 3);
+                current[ahead]     += er * 7;
+                current[ahead + 1] += eg * 7;
+                current[ahead + 2] += eb * 7;
+                next[behind]     += er * 3;
+                next[behind + 1] += eg * 3;
+                next[behind + 2] += eb * 3;
+                next[e]     += er * 5;
+                next[e + 1] += eg * 5;
+                next[e + 2] += eb * 5;
+                next[ahead]     += er;
+                next[ahead + 1] += eg;
+                next[ahead + 2] += eb;
+            }
+            int[] t = current;
+            current = next;
+            next = t;
+            Arrays.fill(next, 0);
+        }
+    }
+
+/**
+*
+* Gets the RGB value of the entry closest to the given color. Like
+* ColorLookup, the distance is the sum of the differences of the
+* components, and ties go to the first entry.
+*
+**/
+
+    private int closest(int argb) {
+        if (lookup != null) {
+            return colors[lookup.closest(0, colors.length, argb)];
+        }
+        int r = (argb >> 16) & 0xFF;
+        int g = (argb >> 8) & 0xFF;
+        int b = argb & 0xFF;
+        int best = 0;
+        int bestDiff = Integer.MAX_VALUE;
+        for (int i=0; i<colors.length; i++) {
+            int c = colors[i];
+            int diff = Math.abs(r - ((c >> 16) & 0xFF)) + Math.abs(g - ((c >> 8) & 0xFF)) + Math.abs(b - (c & 0xFF));
+            if (diff < bestDiff) {
+                bestDiff = diff;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private static int clamp(int v) {
+        return (v < 0) ? 0 : ((v > 255) ? 255 : v);
+    }
+
+    private static int rgb(int r, int g, int b) {
+        return 0xFF000000 | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+    }
+
+}
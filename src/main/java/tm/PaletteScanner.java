@@ -0,0 +1,464 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm;
+
+import tm.colorcodecs.ColorCodec;
+import tm.colorcodecs.DirectColorCodec;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+*
+* Sweeps a FileImage looking for palettes stored in it.
+*
+* Like GraphicsScanner, the file is processed in chunks of CHUNK_SIZE bytes
+* by a pool of worker threads. Each chunk is read as a stream of color values
+* with every direct color codec, in both byte orders and at every alignment,
+* and every window of 16 and 256 consecutive values is scored with a few
+* hints:
+*
+* - Unused bits. Most formats leave some bits of a value unused (the top
+*   bit of 15-bit BGR, for instance), and real palettes keep them clear.
+*   The more unused bits a window has, the more this counts.
+* - Smoothness. Palettes are largely made of ramps of related colors, so
+*   neighbouring entries tend to be close; values read from other data
+*   jump around.
+* - Leading black (or transparent) entries, which is where color 0 of a
+*   palette, and of each of its 16-color subpalettes, usually is.
+* - Diversity. Windows where the values hardly ever change are fill data,
+*   and are rejected outright.
+*
+* The hints are kept as prefix sums over the value stream (see Scorer), so
+* each window is scored in constant time. Within a pass, overlapping
+* windows that score at least MIN_SCORE are reduced to the best one; the
+* survivors of all chunks are then ranked, and the ones that overlap a
+* better candidate are dropped.
+*
+**/
+
+public class PaletteScanner {
+
+    public static final int CHUNK_SIZE = 1 << 20;
+    public static final int[] PALETTE_SIZES = { 16, 256 };
+    public static final double MIN_SCORE = 0.6;
+    public static final int MAX_CANDIDATES = 100;
+
+    // neighbouring entries that differ by this much (per channel, on average) aren't smooth at all
+    private static final int MAX_SMOOTH_DISTANCE = 96;
+    // palettes are often made of 16-color subpalettes, each starting with black
+    private static final int SUBPALETTE_SIZE = 16;
+    // clear unused bits count fully once a window has this many of them
+    private static final int MIN_UNUSED_BITS = 512;
+
+    private FileImage img;
+    private DirectColorCodec[] codecs;
+    private int threads;
+    private int chunkCount;
+    private AtomicInteger chunksDone = new AtomicInteger();
+
+/**
+*
+* Creates a scanner for the given file and color codecs.
+*
+* @param img        The file to scan
+* @param codecs     The color codecs to try
+* @param threads    Number of worker threads to use
+*
+**/
+
+    public PaletteScanner(FileImage img, DirectColorCodec[] codecs, int threads) {
+        this.img = img;
+        this.codecs = codecs;
+        this.threads = Math.max(1, threads);
+        chunkCount = (img.getSize() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+/**
+*
+* Gets the percentage of the file that has been scanned.
+*
+**/
+
+    public int getPercentageCompleted() {
+        if (chunkCount == 0) return 100;
+        return (int)(((long)chunksDone.get() * 100) / chunkCount);
+    }
+
+/**
+*
+* Scans the file and returns the candidates, best first.
+*
+**/
+
+    public Candidate[] scan() {
+        int maxBytes = 0;
+        for (int i=0; i<codecs.length; i++) {
+            maxBytes = Math.max(maxBytes, codecs[i].getBytesPerPixel());
+        }
+        final int overlap = maxBytes * PALETTE_SIZES[PALETTE_SIZES.length - 1];
+
+        Vector found = new Vector();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PaletteScanner");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);  // keep the UI responsive
+                return t;
+            }
+        });
+        try {
+            Vector tasks = new Vector();
+            for (int c=0; c<chunkCount; c++) {
+                final int chunkStart = c * CHUNK_SIZE;
+                tasks.add(new Callable() {
+                    public Object call() {
+                        Vector candidates = scanChunk(chunkStart, overlap);
+                        chunksDone.incrementAndGet();
+                        return candidates;
+                    }
+                });
+            }
+            java.util.List results = pool.invokeAll(tasks);
+            for (int i=0; i<results.size(); i++) {
+                found.addAll((Vector)((Future)results.get(i)).get());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+
+        Candidate[] result = rank(found);
+        chunksDone.set(chunkCount);
+        return result;
+    }
+
+/**
+*
+* Scans the windows that start in one chunk with all codecs, byte orders and
+* alignments.
+*
+**/
+
+    private Vector scanChunk(int chunkStart, int overlap) {
+        int size = img.getSize();
+        int len = (int)Math.min((long)CHUNK_SIZE + overlap, (long)size - chunkStart);
+        byte[] data = new byte[len];
+        img.read(chunkStart, data, 0, len);
+        int chunkEnd = chunkStart + Math.min(CHUNK_SIZE, len);
+
+        Scorer scorer = new Scorer();
+        Vector found = new Vector();
+        for (int i=0; i<codecs.length; i++) {
+            int bpp = codecs[i].getBytesPerPixel();
+            for (int e=ColorCodec.LITTLE_ENDIAN; e<=ColorCodec.BIG_ENDIAN; e++) {
+                if ((bpp == 1) && (e == ColorCodec.BIG_ENDIAN)) break;    // same thing
+                for (int r=0; r<bpp; r++) {
+                    // first value whose offset is congruent to r, modulo bpp
+                    int first = (int)(((long)r - chunkStart) % bpp);
+                    if (first < 0) first += bpp;
+                    int count = scorer.decode(codecs[i], e, data, first);
+                    for (int s=0; s<PALETTE_SIZES.length; s++) {
+                        int n = PALETTE_SIZES[s];
+                        int windows = Math.min(count - n + 1, (chunkEnd - chunkStart - first + bpp - 1) / bpp);
+                        scanWindows(scorer, codecs[i], e, chunkStart + first, n, windows, found);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+/**
+*
+* Scores the first <code>windows</code> windows of n values of the stream
+* the scorer holds, adding the best window of each run of overlapping
+* windows that score at least MIN_SCORE to <code>found</code>.
+*
+* @param streamStart    File offset of the first value of the stream
+*
+**/
+
+    private void scanWindows(Scorer scorer, DirectColorCodec codec, int endianness, int streamStart,
+                             int n, int windows, Vector found) {
+        int bestIndex = -1;         // best of the current run of overlapping windows
+        double bestScore = 0;
+        for (int k=0; k<windows; k++) {
+            double score = scorer.score(k, n);
+            if (score < MIN_SCORE) continue;
+            if ((bestIndex >= 0) && (k < bestIndex + n)) {
+                // overlaps the best window so far
+                if (score > bestScore) {
+                    bestIndex = k;
+                    bestScore = score;
+                }
+            }
+            else {
+                if (bestIndex >= 0) {
+                    found.add(scorer.makeCandidate(codec, endianness, streamStart, bestIndex, n, bestScore));
+                }
+                bestIndex = k;
+                bestScore = score;
+            }
+        }
+        if (bestIndex >= 0) {
+            found.add(scorer.makeCandidate(codec, endianness, streamStart, bestIndex, n, bestScore));
+        }
+    }
+
+/**
+*
+* Ranks the candidates, drops the ones that overlap a better candidate, and
+* returns the best MAX_CANDIDATES of the remaining ones. Of two candidates
+* with the same score, the larger one wins.
+*
+**/
+
+    private Candidate[] rank(Vector candidates) {
+        Collections.sort(candidates, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                Candidate c1 = (Candidate)o1;
+                Candidate c2 = (Candidate)o2;
+                int c = Double.compare(c2.score, c1.score);
+                if (c != 0) return c;
+                if (c1.size != c2.size) return c2.size - c1.size;
+                return Integer.compare(c1.offset, c2.offset);
+            }
+        });
+        Vector accepted = new Vector();
+        for (int i=0; (i<candidates.size()) && (accepted.size()<MAX_CANDIDATES); i++) {
+            Candidate c = (Candidate)candidates.get(i);
+            boolean overlaps = false;
+            for (int j=0; j<accepted.size() && !overlaps; j++) {
+                Candidate a = (Candidate)accepted.get(j);
+                overlaps = (c.offset < a.getEnd()) && (a.offset < c.getEnd());
+            }
+            if (!overlaps) {
+                accepted.add(c);
+            }
+        }
+        Candidate[] result = new Candidate[accepted.size()];
+        accepted.toArray(result);
+        return result;
+    }
+
+/**
+*
+* Per-thread scoring state: a chunk decoded as a stream of colors, and the
+* prefix sums of the hints, so that any window can be scored in constant
+* time. The arrays are reused from pass to pass.
+*
+**/
+
+    private static class Scorer {
+
+        private int[] rgb = new int[0];
+        private int[] clearSum;     // values with the unused bits clear
+        private int[] distSum;      // distance between neighbours
+        private int[] changeSum;    // neighbours that differ
+        private int[] blackSum;     // black values, every SUBPALETTE_SIZE values
+        private int count;
+        private int unusedBits;     // number of unused bits in a value
+
+/**
+*
+* Decodes data[first...] as a stream of values with the given codec and
+* byte order, and builds the prefix sums.
+*
+* @return   The number of values in the stream
+*
+**/
+
+        int decode(DirectColorCodec codec, int endianness, byte[] data, int first) {
+            int bpp = codec.getBytesPerPixel();
+            count = Math.max(0, (data.length - first) / bpp);
+            if (rgb.length < count) {
+                rgb = new int[count];
+                clearSum = new int[count + 1];
+                distSum = new int[count];
+                changeSum = new int[count];
+                blackSum = new int[count];
+            }
+            int usedMask = codec.getRedMask() | codec.getGreenMask() | codec.getBlueMask() | codec.getAlphaMask();
+            int unusedMask = (bpp >= 4) ? ~usedMask : (((1 << (bpp * 8)) - 1) & ~usedMask);
+            unusedBits = Integer.bitCount(unusedMask);
+
+            int prev = 0;
+            for (int k=0; k<count; k++) {
+                int ofs = first + (k * bpp);
+                int v = 0;
+                if (endianness == ColorCodec.LITTLE_ENDIAN) {
+                    for (int b=bpp-1; b>=0; b--) {
+                        v = (v << 8) | (data[ofs + b] & 0xFF);
+                    }
+                }
+                else {
+                    for (int b=0; b<bpp; b++) {
+                        v = (v << 8) | (data[ofs + b] & 0xFF);
+                    }
+                }
+                int c = codec.decode(v);
+                rgb[k] = c;
+                clearSum[k + 1] = clearSum[k] + (((v & unusedMask) == 0) ? 1 : 0);
+                int black = ((c & 0xFFFFFF) == 0) ? 1 : 0;
+                blackSum[k] = (k >= SUBPALETTE_SIZE) ? blackSum[k - SUBPALETTE_SIZE] + black : black;
+                if (k > 0) {
+                    distSum[k] = distSum[k - 1] + distance(rgb[k - 1], c);
+                    changeSum[k] = changeSum[k - 1] + ((prev != v) ? 1 : 0);
+                }
+                else {
+                    distSum[0] = 0;
+                    changeSum[0] = 0;
+                }
+                prev = v;
+            }
+            return count;
+        }
+
+/**
+*
+* Scores the window of n values starting at value k, from 0 (not a palette)
+* to 1.
+*
+**/
+
+        double score(int k, int n) {
+            int last = k + n - 1;
+            int changes = changeSum[last] - changeSum[k];
+            if (changes * 2 < n - 1) return 0;      // mostly fill data
+            double diversity = (double)changes / (n - 1);
+
+            double smoothness = 1.0 - ((double)(distSum[last] - distSum[k])
+                                       / ((n - 1) * MAX_SMOOTH_DISTANCE));
+            if (smoothness < 0) smoothness = 0;
+
+            // fraction of the (sub)palettes that start with black
+            int subpalettes = (n + SUBPALETTE_SIZE - 1) / SUBPALETTE_SIZE;
+            int lastStart = k + ((subpalettes - 1) * SUBPALETTE_SIZE);
+            int blacks = blackSum[lastStart] - ((k >= SUBPALETTE_SIZE) ? blackSum[k - SUBPALETTE_SIZE] : 0);
+            double leading = (double)blacks / subpalettes;
+
+            // unused bits that are all clear say more the more of them there are;
+            // what they don't tell is counted as a coin toss
+            double weight = Math.min(1.0, (double)(unusedBits * n) / MIN_UNUSED_BITS);
+            double clear = (double)(clearSum[k + n] - clearSum[k]) / n;
+            clear *= clear;
+            clear *= clear;     // a few set bits are enough to make it unlikely
+            double unused = (weight * clear) + ((1 - weight) * 0.5);
+
+            return (0.5 * smoothness) + (0.3 * unused) + (0.1 * leading) + (0.1 * diversity);
+        }
+
+/**
+*
+* Creates the candidate for the window of n values starting at value k.
+*
+**/
+
+        Candidate makeCandidate(DirectColorCodec codec, int endianness, int streamStart,
+                                int k, int n, double score) {
+            int[] colors = new int[n];
+            System.arraycopy(rgb, k, colors, 0, n);
+            return new Candidate(streamStart + (k * codec.getBytesPerPixel()), n, codec, endianness, score, colors);
+        }
+
+/**
+*
+* Gets the distance between two colors: the average difference of their
+* red, green and blue components.
+*
+**/
+
+        private static int distance(int c1, int c2) {
+            int dr = Math.abs(((c1 >> 16) & 0xFF) - ((c2 >> 16) & 0xFF));
+            int dg = Math.abs(((c1 >> 8) & 0xFF) - ((c2 >> 8) & 0xFF));
+            int db = Math.abs((c1 & 0xFF) - (c2 & 0xFF));
+            return (dr + dg + db) / 3;
+        }
+
+    }
+
+/**
+*
+* A likely palette: where it starts, how many entries it has, which codec
+* and byte order it looked best in, and the colors it holds.
+*
+**/
+
+    public static class Candidate {
+
+        private int offset;
+        private int size;
+        private DirectColorCodec codec;
+        private int endianness;
+        private double score;
+        private int[] colors;
+
+        public Candidate(int offset, int size, DirectColorCodec codec, int endianness, double score, int[] colors) {
+            this.offset = offset;
+            this.size = size;
+            this.codec = codec;
+            this.endianness = endianness;
+            this.score = score;
+            this.colors = colors;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getEnd() {
+            return offset + (size * codec.getBytesPerPixel());
+        }
+
+        public DirectColorCodec getCodec() {
+            return codec;
+        }
+
+        public int getEndianness() {
+            return endianness;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+/**
+*
+* Gets the decoded (RGB) colors of the palette.
+*
+**/
+
+        public int[] getColors() {
+            return colors;
+        }
+
+    }
+
+}
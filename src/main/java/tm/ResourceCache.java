@@ -0,0 +1,713 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm;
+
+import tm.colorcodecs.ColorCodec;
+import tm.tilecodecs.TileCodec;
+import tm.treenodes.*;
+import tm.utils.HexStringConverter;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ *
+ * Binary cache of the resources of a file, kept next to the XML resource
+ * file. Opening a file with many bookmarks from the cache is much faster
+ * than parsing (and validating) the XML, and the folders are only read
+ * when they are opened (see FolderNode.setLazy()).
+ *
+ * The cache is written incrementally: the children of each folder are
+ * stored together in a section, and saving only appends the sections of
+ * the folders that have changed since (see FolderNode.isDirty()), followed
+ * by a new root section.
+ * The header, which points to the root, is updated last, so an interrupted
+ * save leaves the previous state intact. When most of the file is made up
+ * of sections that are no longer used, it is rewritten from scratch.
+ *
+ * The XML stays the interchange format. After each save it is rewritten
+ * from the cache in the background; the header records the size and date
+ * of the XML file it matches, and the cache is ignored if the XML has
+ * changed since (for instance because it was edited by hand).
+ *
+ * Layout: the header is followed by sections, each of which consists of
+ * its length, the number of records in it and the records. A record is a
+ * folder (name, number of children, section of the children), a bookmark
+ * or a palette.
+ *
+ **/
+
+public class ResourceCache implements FolderNode.Loader {
+
+	private static final int MAGIC = 0x544D5243; // "TMRC"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 40;   // magic, version, XML size & date, root, garbage
+	private static final int COMPACT_SIZE = 1 << 20; // don't bother compacting smaller files
+
+	private static final byte FOLDER = 0;
+	private static final byte BOOKMARK = 1;
+	private static final byte PALETTE = 2;
+
+	private static final int ROW_INTERLEAVED = 1;
+	private static final int SIZE_BLOCK_TO_CANVAS = 2;
+	private static final int MODE_2D = 4;
+	private static final int DIRECT = 1;
+	private static final int BIG_ENDIAN = 2;
+
+	// writes the XML files, one at a time and in order
+	private static final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ResourceWriter");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private File file;
+	private FileChannel channel;
+	private TMFileResources resources;
+	private long end;           // where the next section goes
+	private long root;          // section that holds the two resource roots
+	private long garbage;       // bytes taken up by sections that are no longer used
+	private FolderNode[] roots = new FolderNode[2];
+
+	private ResourceCache(File file, TMFileResources resources) {
+		this.file = file;
+		this.resources = resources;
+	}
+
+	/**
+	 *
+	 * Gets the cache file for the given XML resource file.
+	 *
+	 **/
+
+	public static File getCacheFileFor(File xmlFile) {
+		String name = xmlFile.getName();
+		int i = name.lastIndexOf('.');
+		if (i != -1) {
+			name = name.substring(0, i);
+		}
+		return new File(xmlFile.getParentFile(), name + ".tmc");
+	}
+
+	/**
+	 *
+	 * Opens the cache of the given XML resource file. Returns null if there
+	 * is no cache, or if it doesn't match the XML file.
+	 *
+	 **/
+
+	public static ResourceCache open(File xmlFile, TMFileResources resources) {
+		File file = getCacheFileFor(xmlFile);
+		if (!file.exists()) {
+			return null;
+		}
+		ResourceCache cache = new ResourceCache(file, resources);
+		try {
+			cache.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(cache.channel, header, 0);
+			header.flip();
+			if ((header.getInt() != MAGIC) || (header.getInt() != VERSION)
+					|| (header.getLong() != xmlFile.length()) || (header.getLong() != xmlFile.lastModified())) {
+				cache.channel.close();
+				return null;
+			}
+			cache.root = header.getLong();
+			cache.garbage = header.getLong();
+			cache.end = cache.channel.size();
+			DataInputStream in = cache.readSection(cache.root);
+			int count = in.readInt();
+			for (int i = 0; i < 2; i++) {
+				if ((count != 2) || (in.readByte() != FOLDER)) {
+					throw new IOException("Bad root section");
+				}
+				FolderNode folder = new FolderNode(in.readUTF());
+				int childCount = in.readInt();
+				folder.setLazy(cache, in.readLong(), childCount);
+				cache.roots[i] = folder;
+			}
+			return cache;
+		} catch (IOException e) {
+			try {
+				if (cache.channel != null) {
+					cache.channel.close();
+				}
+			} catch (IOException x) {
+			}
+			return null;
+		}
+	}
+
+	/**
+	 *
+	 * Creates a new cache for the given XML resource file from the given
+	 * resource trees, replacing the old one if there is one. The XML file is
+	 * assumed to hold the same resources; if it doesn't, call writeXML().
+	 *
+	 **/
+
+	public static ResourceCache create(File xmlFile, TMFileResources resources,
+			FolderNode bookmarks, FolderNode palettes) throws IOException {
+		awaitWrites();   // an earlier cache of the same file may still be in use
+		ResourceCache cache = new ResourceCache(getCacheFileFor(xmlFile), resources);
+		cache.roots[0] = bookmarks;
+		cache.roots[1] = palettes;
+		synchronized (cache) {
+			cache.rewrite();
+		}
+		cache.setXMLStamp(cache.root, xmlFile);
+		return cache;
+	}
+
+	/**
+	 *
+	 * Gets the root of the bookmarks (0) or the palettes (1), with the given
+	 * name.
+	 *
+	 **/
+
+	public FolderNode getRoot(int index, String name) {
+		roots[index].setText(name);
+		return roots[index];
+	}
+
+	/**
+	 *
+	 * Reads the children of a lazily loaded folder.
+	 *
+	 **/
+
+	public void loadChildren(FolderNode folder, long section) {
+		try {
+			DataInputStream in = readSection(section);
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				folder.add(readNode(in));
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 *
+	 * Stores the given resource trees. Only the folders that have changed
+	 * since the last save are written.
+	 *
+	 **/
+
+	public void write(FolderNode bookmarks, FolderNode palettes) throws IOException {
+		boolean compact = (end > COMPACT_SIZE) && (garbage > end / 2);
+		if (compact) {
+			awaitWrites();   // the XML writer may still be reading the old file
+		}
+		synchronized (this) {
+			roots[0] = bookmarks;
+			roots[1] = palettes;
+			if (compact) {
+				rewrite();
+				return;
+			}
+			long rootSection = writeRoot();
+			channel.force(false);
+			root = rootSection;
+			writeHeader(0, 0);   // the XML is out of date until writeXML() has finished
+			channel.force(false);
+		}
+	}
+
+	/**
+	 *
+	 * Writes the whole cache to a new file, which then replaces the old one.
+	 *
+	 **/
+
+	private void rewrite() throws IOException {
+		// read everything that is still only in the old file
+		loadAll(roots[0]);
+		loadAll(roots[1]);
+		root = -1;
+		File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		FileChannel oldChannel = channel;
+		channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			end = HEADER_SIZE;
+			garbage = 0;
+			root = writeRoot();
+			writeHeader(0, 0);
+			channel.force(false);
+		} catch (IOException e) {
+			channel.close();
+			tempFile.delete();
+			channel = oldChannel;
+			throw e;
+		}
+		if (oldChannel != null) {
+			oldChannel.close();
+		}
+		try {
+			Files.move(tempFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private void loadAll(FolderNode folder) {
+		TMTreeNode[] children = folder.getChildren();
+		folder.setSection(-1);   // (the old sections don't count as garbage in the new file)
+		for (int i = 0; i < children.length; i++) {
+			if (children[i] instanceof FolderNode) {
+				loadAll((FolderNode) children[i]);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * Writes the folders that have to be, and a new root section.
+	 *
+	 **/
+
+	private long writeRoot() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(2);
+		for (int i = 0; i < 2; i++) {
+			long section = writeFolder(roots[i]);
+			out.writeByte(FOLDER);
+			out.writeUTF(roots[i].toString());
+			out.writeInt(roots[i].getChildCount());
+			out.writeLong(section);
+		}
+		if (root >= HEADER_SIZE) {
+			garbage += getSectionSize(root);
+		}
+		return append(bytes);
+	}
+
+	/**
+	 *
+	 * Writes the section of the given folder, after those of its subfolders,
+	 * unless it is unchanged since it was last written. Returns where it is
+	 * stored.
+	 *
+	 **/
+
+	private long writeFolder(FolderNode folder) throws IOException {
+		if (folder.isLazy()) {
+			return folder.getSection();
+		}
+		TMTreeNode[] children = folder.getChildren();
+		boolean changed = folder.isDirty() || (folder.getSection() < HEADER_SIZE);
+		long[] sections = new long[children.length];
+		for (int i = 0; i < children.length; i++) {
+			if (children[i] instanceof FolderNode) {
+				// the section of a subfolder is recorded in this one
+				FolderNode subfolder = (FolderNode) children[i];
+				long oldSection = subfolder.getSection();
+				sections[i] = writeFolder(subfolder);
+				changed |= (sections[i] != oldSection);
+			} else if (children[i] instanceof PaletteItemNode) {
+				changed |= ((PaletteItemNode) children[i]).isPaletteChanged();
+			}
+		}
+		if (!changed) {
+			return folder.getSection();
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(children.length);
+		for (int i = 0; i < children.length; i++) {
+			writeNode(children[i], sections[i], out);
+		}
+		if (folder.getSection() >= HEADER_SIZE) {
+			garbage += getSectionSize(folder.getSection());
+		}
+		long section = append(bytes);
+		folder.setSection(section);
+		folder.setDirty(false);
+		return section;
+	}
+
+	private void writeNode(TMTreeNode node, long section, DataOutputStream out) throws IOException {
+		if (node instanceof FolderNode) {
+			FolderNode folder = (FolderNode) node;
+			out.writeByte(FOLDER);
+			out.writeUTF(folder.toString());
+			out.writeInt(folder.getChildCount());
+			out.writeLong(section);
+		} else if (node instanceof BookmarkItemNode) {
+			BookmarkItemNode bookmark = (BookmarkItemNode) node;
+			out.writeByte(BOOKMARK);
+			out.writeInt(bookmark.getOffset());
+			out.writeInt(bookmark.getCols());
+			out.writeInt(bookmark.getRows());
+			out.writeInt(bookmark.getBlockWidth());
+			out.writeInt(bookmark.getBlockHeight());
+			int flags = 0;
+			if (bookmark.getRowInterleaved()) flags |= ROW_INTERLEAVED;
+			if (bookmark.getSizeBlockToCanvas()) flags |= SIZE_BLOCK_TO_CANVAS;
+			if (bookmark.getMode() == TileCodec.MODE_2D) flags |= MODE_2D;
+			out.writeByte(flags);
+			out.writeInt(bookmark.getPalIndex());
+			out.writeUTF((bookmark.getCodec() != null) ? bookmark.getCodec().getID() : "");
+			out.writeUTF(nonNull(bookmark.getSwizzlePattern()));
+			out.writeUTF(nonNull(bookmark.getDescription()));
+		} else if (node instanceof PaletteItemNode) {
+			PaletteItemNode paletteNode = (PaletteItemNode) node;
+			TMPalette palette = paletteNode.getPalette();
+			paletteNode.setStored();
+			out.writeByte(PALETTE);
+			int flags = 0;
+			if (palette.isDirect()) flags |= DIRECT;
+			if (palette.getEndianness() == ColorCodec.BIG_ENDIAN) flags |= BIG_ENDIAN;
+			out.writeByte(flags);
+			out.writeUTF(nonNull(palette.getID()));
+			out.writeUTF(palette.getCodec().getID());
+			out.writeInt(palette.getSize());
+			out.writeInt(palette.isDirect() ? 0 : palette.getOffset());
+			out.writeUTF(nonNull(paletteNode.getDescription()));
+			if (palette.isDirect()) {
+				byte[] data = palette.entriesToBytes();
+				out.writeInt(data.length);
+				out.write(data);
+			}
+		}
+	}
+
+	private TMTreeNode readNode(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		if (type == FOLDER) {
+			FolderNode folder = new FolderNode(in.readUTF());
+			int childCount = in.readInt();
+			folder.setLazy(this, in.readLong(), childCount);
+			return folder;
+		} else if (type == BOOKMARK) {
+			int offset = in.readInt();
+			int cols = in.readInt();
+			int rows = in.readInt();
+			int blockWidth = in.readInt();
+			int blockHeight = in.readInt();
+			int flags = in.readByte();
+			int palIndex = in.readInt();
+			TileCodec codec = resources.getTileCodecByID(in.readUTF());
+			String swizzlePattern = in.readUTF();
+			String desc = in.readUTF();
+			return new BookmarkItemNode(
+					offset,
+					cols,
+					rows,
+					blockWidth,
+					blockHeight,
+					(flags & ROW_INTERLEAVED) != 0,
+					(flags & SIZE_BLOCK_TO_CANVAS) != 0,
+					((flags & MODE_2D) != 0) ? TileCodec.MODE_2D : TileCodec.MODE_1D,
+					palIndex,
+					codec,
+					swizzlePattern,
+					desc);
+		} else if (type == PALETTE) {
+			int flags = in.readByte();
+			boolean direct = (flags & DIRECT) != 0;
+			String id = in.readUTF();
+			ColorCodec codec = resources.getColorCodecByID(in.readUTF());
+			int size = in.readInt();
+			int offset = in.readInt();
+			String desc = in.readUTF();
+			int endianness = ((flags & BIG_ENDIAN) != 0) ? ColorCodec.BIG_ENDIAN : ColorCodec.LITTLE_ENDIAN;
+			TMPalette pal;
+			if (direct) {
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				pal = new TMPalette(id, data, offset, size, codec, endianness, direct, false);
+			} else {
+				pal = new TMPalette(id, resources.getFileImage(), offset, size, codec, endianness, direct, false);
+			}
+			return new PaletteItemNode(pal, desc);
+		}
+		throw new IOException("Bad record type " + type);
+	}
+
+	/**
+	 *
+	 * Appends a section to the file and returns its position.
+	 *
+	 **/
+
+	private long append(ByteArrayOutputStream bytes) throws IOException {
+		long pos = end;
+		ByteBuffer buf = ByteBuffer.allocate(4 + bytes.size());
+		buf.putInt(bytes.size());
+		buf.put(bytes.toByteArray());
+		buf.flip();
+		writeFully(channel, buf, pos);
+		end += buf.limit();
+		return pos;
+	}
+
+	private int getSectionSize(long section) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(4);
+		readFully(channel, buf, section);
+		return 4 + buf.getInt(0);
+	}
+
+	private DataInputStream readSection(long section) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(getSectionSize(section));
+		readFully(channel, buf, section);
+		return new DataInputStream(new ByteArrayInputStream(buf.array(), 4, buf.capacity() - 4));
+	}
+
+	private void writeHeader(long xmlSize, long xmlModified) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putLong(xmlSize).putLong(xmlModified).putLong(root).putLong(garbage);
+		header.flip();
+		writeFully(channel, header, 0);
+	}
+
+	/**
+	 *
+	 * Records that the XML file matches the cache, provided that nothing has
+	 * been saved since the root section <code>rootSection</code>.
+	 *
+	 **/
+
+	private synchronized void setXMLStamp(long rootSection, File xmlFile) throws IOException {
+		if ((root == rootSection) && channel.isOpen()) {
+			writeHeader(xmlFile.length(), xmlFile.lastModified());
+			channel.force(false);
+		}
+	}
+
+	/**
+	 *
+	 * Rewrites the XML file from what was stored by the last write(), in the
+	 * background.
+	 *
+	 **/
+
+	public synchronized void writeXML(final File xmlFile) {
+		final long rootSection = root;
+		writer.execute(new Runnable() {
+			public void run() {
+				try {
+					File tempFile = File.createTempFile(xmlFile.getName(), ".tmp",
+							xmlFile.getAbsoluteFile().getParentFile());
+					try {
+						OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile));
+						try {
+							writeXML(rootSection, os);
+						} finally {
+							os.close();
+						}
+						try {
+							Files.move(tempFile.toPath(), xmlFile.toPath(),
+									StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+						} catch (AtomicMoveNotSupportedException e) {
+							Files.move(tempFile.toPath(), xmlFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+						}
+					} finally {
+						tempFile.delete();
+					}
+					setXMLStamp(rootSection, xmlFile);
+				} catch (Exception e) {
+					// the cache stays marked as out of date, so the XML will be written on the next save
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 *
+	 * Streams the resources stored at the given root section as XML.
+	 *
+	 **/
+
+	private void writeXML(long rootSection, OutputStream os) throws IOException, XMLStreamException {
+		XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(os, "UTF-8");
+		xml.writeStartDocument("UTF-8", "1.0");
+		xml.writeCharacters("\n");
+		xml.writeDTD("<!DOCTYPE tmres SYSTEM \"resources\\tmres.dtd\">");
+		xml.writeCharacters("\n");
+		xml.writeStartElement("tmres");
+		DataInputStream in = readSection(rootSection);
+		in.readInt();
+		String[] tags = { "bookmarks", "palettes" };
+		for (int i = 0; i < tags.length; i++) {
+			in.readByte();
+			in.readUTF();
+			in.readInt();
+			long section = in.readLong();
+			indent(xml, 1);
+			xml.writeStartElement(tags[i]);
+			writeXMLChildren(xml, section, 2);
+			indent(xml, 1);
+			xml.writeEndElement();
+		}
+		xml.writeCharacters("\n");
+		xml.writeEndElement();
+		xml.writeCharacters("\n");
+		xml.writeEndDocument();
+		xml.close();
+	}
+
+	private void writeXMLChildren(XMLStreamWriter xml, long section, int depth)
+			throws IOException, XMLStreamException {
+		DataInputStream in = readSection(section);
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			byte type = in.readByte();
+			indent(xml, depth);
+			if (type == FOLDER) {
+				xml.writeStartElement("folder");
+				writeXMLElement(xml, "name", in.readUTF(), depth + 1);
+				in.readInt();
+				writeXMLChildren(xml, in.readLong(), depth + 1);
+			} else if (type == BOOKMARK) {
+				xml.writeStartElement("bookmark");
+				xml.writeAttribute("offset", Integer.toString(in.readInt()));
+				xml.writeAttribute("columns", Integer.toString(in.readInt()));
+				xml.writeAttribute("rows", Integer.toString(in.readInt()));
+				xml.writeAttribute("blockwidth", Integer.toString(in.readInt()));
+				xml.writeAttribute("blockheight", Integer.toString(in.readInt()));
+				int flags = in.readByte();
+				xml.writeAttribute("rowinterleaved", Boolean.toString((flags & ROW_INTERLEAVED) != 0));
+				xml.writeAttribute("sizeblocktocanvas", Boolean.toString((flags & SIZE_BLOCK_TO_CANVAS) != 0));
+				int palIndex = in.readInt();
+				String codecID = in.readUTF();
+				xml.writeAttribute("swizzlepattern", in.readUTF());
+				xml.writeAttribute("mode", ((flags & MODE_2D) != 0) ? "2D" : "1D");
+				xml.writeAttribute("palIndex", Integer.toString(palIndex));
+				xml.writeAttribute("codec", codecID);
+				writeXMLElement(xml, "description", in.readUTF(), depth + 1);
+			} else {
+				xml.writeStartElement("palette");
+				int flags = in.readByte();
+				boolean direct = (flags & DIRECT) != 0;
+				String id = in.readUTF();
+				if (id.length() > 0) {
+					xml.writeAttribute("id", id);
+				}
+				String codecID = in.readUTF();
+				xml.writeAttribute("size", Integer.toString(in.readInt()));
+				xml.writeAttribute("direct", direct ? "yes" : "no");
+				int offset = in.readInt();
+				if (!direct) {
+					xml.writeAttribute("offset", Integer.toString(offset));
+				}
+				xml.writeAttribute("codec", codecID);
+				xml.writeAttribute("endianness", ((flags & BIG_ENDIAN) != 0) ? "big" : "little");
+				writeXMLElement(xml, "description", in.readUTF(), depth + 1);
+				if (direct) {
+					byte[] data = new byte[in.readInt()];
+					in.readFully(data);
+					writeXMLElement(xml, "data", HexStringConverter.bytesToHexString(data), depth + 1);
+				}
+			}
+			indent(xml, depth);
+			xml.writeEndElement();
+		}
+	}
+
+	private static void writeXMLElement(XMLStreamWriter xml, String tag, String text, int depth)
+			throws XMLStreamException {
+		indent(xml, depth);
+		xml.writeStartElement(tag);
+		xml.writeCharacters(text);
+		xml.writeEndElement();
+	}
+
+	private static void indent(XMLStreamWriter xml, int depth) throws XMLStreamException {
+		StringBuffer sb = new StringBuffer("\n");
+		for (int i = 0; i < depth; i++) {
+			sb.append("  ");
+		}
+		xml.writeCharacters(sb.toString());
+	}
+
+	/**
+	 *
+	 * Closes the cache once the XML writes that are under way are done.
+	 *
+	 **/
+
+	public void close() {
+		writer.execute(new Runnable() {
+			public void run() {
+				try {
+					channel.close();
+				} catch (IOException e) {
+				}
+			}
+		});
+	}
+
+	/**
+	 *
+	 * Waits until all XML files that are being written have been written.
+	 *
+	 **/
+
+	public static void awaitWrites() {
+		try {
+			writer.submit(new Runnable() {
+				public void run() {
+				}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+		}
+	}
+
+	private static String nonNull(String s) {
+		return (s != null) ? s : "";
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, pos);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			pos += n;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			pos += channel.write(buf, pos);
+		}
+	}
+
+}
@@ -0,0 +1,562 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm;
+
+import tm.canvases.TMBookmarkCanvas;
+import tm.canvases.TMTileCanvas;
+import tm.colorcodecs.ColorCodec;
+import tm.filelistener.TMFileListener;
+import tm.fileselection.TMFileFilter;
+import tm.gfxlibs.ParallelPngEncoder;
+import tm.gfxlibs.PngEncoder;
+import tm.tilecodecs.TileCodec;
+import tm.treenodes.*;
+import tm.utils.ByteBufferChannel;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Callable;
+import javax.imageio.ImageIO;
+
+/**
+ *
+ * Headless batch mode.
+ * Exports graphics regions of files to PNG images, or injects edited images
+ * back into the files, without starting the user interface:
+ *
+ * java -jar tilemolester.jar export|inject [options] file...
+ *
+ * The regions are the bookmarks in each file's resources, or the regions
+ * given with -g. The images of a file go in a directory of their own, named
+ * after the file, and are named after the number and offset of the region,
+ * so that inject finds the images that export wrote.
+ *
+ * Files are processed concurrently, one file per worker thread. The
+ * regions are rendered and encoded with TMBookmarkCanvas.
+ *
+ **/
+
+public class TMBatch {
+
+	private static final String USAGE =
+		"Usage: java -jar tilemolester.jar export|inject [options] file...\n" +
+		"Options:\n" +
+		"  -d <dir>     directory of the image directories (default: .)\n" +
+		"  -r <file>    resource file (default: resources/<file name>.xml)\n" +
+		"  -s <file>    format specification (default: tmspec.xml)\n" +
+		"  -g <region>  region to process instead of the bookmarks; may be repeated\n" +
+		"               offset:codec:<cols>x<rows>[:1D|2D[:palette[:palindex]]]\n" +
+		"               palette is a palette ID from the resources, or\n" +
+		"               <colorcodec>@<offset> to read the palette from the file\n" +
+		"  -j <n>       number of files to process at once (default: # of cores)\n" +
+		"  -t <mode>    dithering of images injected into palettized regions:\n" +
+		"               none, ordered or fs (Floyd-Steinberg) (default: none)\n";
+
+	private boolean inject;
+	private File imageDir = new File(".");
+	private File resourceFile = null;
+	private File specFile = new File("tmspec.xml");
+	private Vector regions = new Vector();
+	private Vector files = new Vector();
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int ditherMode = PaletteDitherer.NONE;
+
+	// palettes set the endianness of their (shared) color codec while they
+	// are created, so resources and palettes are created under a lock
+	private static final Object resourceLock = new Object();
+
+	/**
+	 *
+	 * Parses the command line.
+	 *
+	 **/
+
+	public TMBatch(String[] args) throws IllegalArgumentException {
+		if (!isBatchCommand((args.length > 0) ? args[0] : null)) {
+			throw new IllegalArgumentException("export or inject expected");
+		}
+		inject = args[0].equals("inject");
+		for (int i = 1; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.startsWith("-") && (arg.length() == 2)) {
+				if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value for " + arg);
+				}
+				String value = args[++i];
+				switch (arg.charAt(1)) {
+					case 'd':
+						imageDir = new File(value);
+						break;
+					case 'r':
+						resourceFile = new File(value);
+						break;
+					case 's':
+						specFile = new File(value);
+						break;
+					case 'g':
+						regions.add(value);
+						break;
+					case 'j':
+						threads = Math.max(1, Integer.parseInt(value));
+						break;
+					case 't':
+						ditherMode = PaletteDitherer.parseMode(value);
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			} else {
+				files.add(new File(arg));
+			}
+		}
+		if (files.size() == 0) {
+			throw new IllegalArgumentException("No files given");
+		}
+	}
+
+	/**
+	 *
+	 * Returns true if the given command line argument starts a batch job.
+	 *
+	 **/
+
+	public static boolean isBatchCommand(String arg) {
+		return "export".equals(arg) || "inject".equals(arg);
+	}
+
+	/**
+	 *
+	 * Processes all files. Returns the number of files that failed.
+	 *
+	 **/
+
+	public int run() throws Exception {
+		TMSpecReader.readSpecsFromFile(specFile);
+		// the files are processed concurrently, so each grid is rendered
+		// and encoded on its worker alone
+		TMTileCanvas.setRenderThreads(1);
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, files.size()));
+		Vector results = new Vector();
+		for (int i = 0; i < files.size(); i++) {
+			final File file = (File) files.get(i);
+			results.add(pool.submit(new Callable() {
+				public Object call() throws Exception {
+					return Integer.valueOf(processFile(file));
+				}
+			}));
+		}
+		pool.shutdown();
+
+		int failed = 0;
+		for (int i = 0; i < results.size(); i++) {
+			File file = (File) files.get(i);
+			try {
+				int count = ((Integer) ((Future) results.get(i)).get()).intValue();
+				System.out.println(file.getName() + ": " + count + " region(s) " + (inject ? "injected" : "exported"));
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				System.err.println(file.getName() + ": " + cause);
+				failed++;
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 *
+	 * Exports or injects all regions of a file.
+	 * Returns the number of regions processed.
+	 *
+	 **/
+
+	private int processFile(File file) throws Exception {
+		String ext = TMFileFilter.getExtension(file);
+
+		// let a filelistener convert the data, like the ui does when opening
+		TMFileListener listener = null;
+		byte[] header = TMFileListener.readHeader(file);
+		Vector filelisteners = TMSpecReader.getFileListeners();
+		for (int i = 0; i < filelisteners.size(); i++) {
+			TMFileListener fl = (TMFileListener) filelisteners.get(i);
+			if (fl.doFormatDetect(header, file.length(), ext)) {
+				listener = fl.newInstance();   // files may be processed in parallel
+				break;
+			}
+		}
+		byte[] contents;
+		if ((listener != null) && listener.transformsFile(ext)) {
+			contents = new byte[(int) file.length()];
+			ByteBufferChannel out = new ByteBufferChannel(contents);
+			FileChannel in = FileChannel.open(file.toPath());
+			try {
+				listener.transformLoad(in, out, ext);
+			} finally {
+				in.close();
+			}
+			if (out.position() < contents.length) {
+				contents = Arrays.copyOf(contents, (int) out.position());
+			}
+		} else {
+			contents = Files.readAllBytes(file.toPath());
+		}
+		if (listener != null) {
+			listener.fileLoaded(contents, ext);
+		}
+		FileImage img = new FileImage(file, contents);
+		byte[] original = inject ? contents.clone() : null;
+
+		TMFileResources resources = null;
+		File resFile = (resourceFile != null) ? resourceFile : TMFileResources.getResourceFileFor(file);
+		if (resFile.exists() && (resFile.length() > 0)) {
+			synchronized (resourceLock) {
+				resources = new TMFileResources(resFile, img, TMSpecReader.getTileCodecs(),
+						TMSpecReader.getColorCodecs());
+			}
+		}
+
+		Vector jobs = new Vector();
+		if (regions.size() > 0) {
+			for (int i = 0; i < regions.size(); i++) {
+				jobs.add(parseRegion((String) regions.get(i), resources, contents));
+			}
+		} else if (resources != null) {
+			TMPalette palette = getPalette(resources, null, contents);
+			Vector bookmarks = new Vector();
+			collectBookmarks(resources.getBookmarksRoot(), bookmarks);
+			for (int i = 0; i < bookmarks.size(); i++) {
+				BookmarkItemNode bookmark = (BookmarkItemNode) bookmarks.get(i);
+				if (bookmark.getCodec() == null) {
+					throw new Exception("Unknown tile codec in bookmark at offset " + bookmark.getOffset());
+				}
+				jobs.add(new Job(bookmark, palette));
+			}
+		} else {
+			throw new Exception("No regions given and no resources found (" + resFile + ")");
+		}
+
+		String name = file.getName();
+		File dir = new File(imageDir, name.replace('.', '_'));
+		if (!inject) {
+			dir.mkdirs();
+		}
+		int count = 0;
+		for (int i = 0; i < jobs.size(); i++) {
+			Job job = (Job) jobs.get(i);
+			File imageFile = new File(dir, String.format("%04d_%08X.png", Integer.valueOf(i), Integer.valueOf(job.bookmark.getOffset())));
+			if (inject) {
+				if (imageFile.exists()) {
+					injectRegion(contents, job, imageFile);
+					count++;
+				}
+			} else {
+				exportRegion(contents, job, imageFile);
+				count++;
+			}
+		}
+
+		if (inject && !Arrays.equals(original, contents)) {
+			if (listener != null) {
+				listener.fileSaving(contents, ext);
+			}
+			writeFile(file, contents, listener, ext);
+		}
+		return count;
+	}
+
+	/**
+	 *
+	 * Writes the injected contents to a temporary file next to the original
+	 * and moves it over the original, so that a failed write leaves the ROM
+	 * untouched.
+	 *
+	 **/
+
+	private void writeFile(File file, byte[] contents, TMFileListener listener, String ext) throws IOException {
+		// replace the file a symbolic link points to, not the link
+		Path target = file.toPath().toRealPath();
+		File tempFile = File.createTempFile(file.getName(), ".tmp", target.getParent().toFile());
+		try {
+			// temporary files are private; keep the permissions of the original
+			try {
+				Files.setPosixFilePermissions(tempFile.toPath(), Files.getPosixFilePermissions(target));
+			} catch (UnsupportedOperationException e) {
+			}
+			FileOutputStream fos = new FileOutputStream(tempFile);
+			try {
+				if (listener != null) {
+					listener.transformSave(new ByteBufferChannel(contents), fos.getChannel(), ext);
+				} else {
+					fos.write(contents);
+				}
+			} finally {
+				fos.close();
+			}
+			try {
+				Files.move(tempFile.toPath(), target, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			tempFile.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 *
+	 * Renders a region and saves it as a PNG image.
+	 *
+	 **/
+
+	private void exportRegion(byte[] contents, Job job, File imageFile) throws Exception {
+		TMBookmarkCanvas canvas = new TMBookmarkCanvas(contents, job.bookmark, job.palette);
+		canvas.render();
+		ParallelPngEncoder encoder = new ParallelPngEncoder(canvas.getImage(), PngEncoder.NO_ALPHA);
+		encoder.setThreads(1);
+		encoder.write(imageFile);
+	}
+
+	/**
+	 *
+	 * Loads a PNG image and encodes it to a region. Colors that aren't in the
+	 * palette are mapped to the closest palette entry, or dithered (see -t).
+	 *
+	 **/
+
+	private void injectRegion(byte[] contents, Job job, File imageFile) throws Exception {
+		BufferedImage image = ImageIO.read(imageFile);
+		if (image == null) {
+			throw new Exception("Can't read " + imageFile);
+		}
+		TMBookmarkCanvas canvas = new TMBookmarkCanvas(contents, job.bookmark, job.palette);
+		int w = canvas.getCanvasWidth();
+		int h = canvas.getCanvasHeight();
+		if ((image.getWidth() != w) || (image.getHeight() != h)) {
+			throw new Exception(imageFile.getName() + " is " + image.getWidth() + "x" + image.getHeight()
+					+ ", expected " + w + "x" + h);
+		}
+		TileCodec codec = job.bookmark.getCodec();
+		boolean palettized = (codec.getBitsPerPixel() <= 8) && (job.palette != null);
+		int colorCount = codec.getColorCount();
+		int colorIndex = job.bookmark.getPalIndex() * colorCount;
+		int[] pixels = image.getRGB(0, 0, w, h, null, 0, w);
+		if (palettized) {
+			PaletteDitherer ditherer = new PaletteDitherer(job.palette, colorIndex, colorCount);
+			ditherer.setThreads(1);
+			ditherer.dither(pixels, w, h, ditherMode);
+		}
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				canvas.setPixel(x, y, pixels[(y * w) + x]);
+			}
+		}
+		canvas.encode();
+	}
+
+	/**
+	 *
+	 * Adds the bookmarks in a folder and its subfolders to a vector, in tree
+	 * order.
+	 *
+	 **/
+
+	private void collectBookmarks(TMTreeNode folder, Vector bookmarks) {
+		TMTreeNode[] children = folder.getChildren();
+		for (int i = 0; i < children.length; i++) {
+			if (children[i] instanceof BookmarkItemNode) {
+				bookmarks.add(children[i]);
+			} else if (children[i] instanceof FolderNode) {
+				collectBookmarks(children[i], bookmarks);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * Parses a region given on the command line:
+	 * offset:codec:<cols>x<rows>[:1D|2D[:palette[:palindex]]]
+	 *
+	 **/
+
+	private Job parseRegion(String spec, TMFileResources resources, byte[] contents) throws Exception {
+		String[] parts = spec.split(":");
+		if (parts.length < 3) {
+			throw new IllegalArgumentException("Invalid region " + spec);
+		}
+		int offset = Integer.decode(parts[0]).intValue();
+		TileCodec codec = null;
+		Vector tilecodecs = TMSpecReader.getTileCodecs();
+		for (int i = 0; i < tilecodecs.size(); i++) {
+			TileCodec tc = (TileCodec) tilecodecs.get(i);
+			if (tc.getID().equals(parts[1])) {
+				codec = tc;
+			}
+		}
+		if (codec == null) {
+			throw new IllegalArgumentException("Unknown tile codec " + parts[1]);
+		}
+		int x = parts[2].indexOf('x');
+		if (x == -1) {
+			throw new IllegalArgumentException("Invalid grid size " + parts[2]);
+		}
+		int cols = Integer.parseInt(parts[2].substring(0, x));
+		int rows = Integer.parseInt(parts[2].substring(x + 1));
+		int mode = TileCodec.MODE_1D;
+		if ((parts.length > 3) && parts[3].equals("2D")) {
+			mode = TileCodec.MODE_2D;
+		}
+		TMPalette palette = getPalette(resources, (parts.length > 4) ? parts[4] : null, contents);
+		int palIndex = (parts.length > 5) ? Integer.parseInt(parts[5]) : 0;
+		BookmarkItemNode bookmark = new BookmarkItemNode(offset, cols, rows, cols, rows, false, true,
+				mode, palIndex, codec, TileCodec.SWIZZLE_NONE, spec);
+		return new Job(bookmark, palette);
+	}
+
+	/**
+	 *
+	 * Gets the palette with the given ID from the resources, or reads one
+	 * from the file data if the ID is of the form <colorcodec>@<offset>.
+	 * With no ID, the first palette of the resources is used, or the default
+	 * palette if there is none.
+	 *
+	 **/
+
+	private TMPalette getPalette(TMFileResources resources, String id, byte[] contents) throws Exception {
+		if ((id != null) && (id.indexOf('@') != -1)) {
+			int at = id.indexOf('@');
+			ColorCodec codec = null;
+			Vector colorcodecs = TMSpecReader.getColorCodecs();
+			for (int i = 0; i < colorcodecs.size(); i++) {
+				ColorCodec cc = (ColorCodec) colorcodecs.get(i);
+				if (cc.getID().equals(id.substring(0, at))) {
+					codec = cc;
+				}
+			}
+			if (codec == null) {
+				throw new IllegalArgumentException("Unknown color codec " + id.substring(0, at));
+			}
+			int offset = Integer.decode(id.substring(at + 1)).intValue();
+			int size = Math.min(256, (contents.length - offset) / codec.getBytesPerPixel());
+			if ((offset < 0) || (size <= 0)) {
+				throw new IllegalArgumentException("Palette offset out of range: " + id);
+			}
+			synchronized (resourceLock) {
+				return new TMPalette(id, contents, offset, size, codec, ColorCodec.LITTLE_ENDIAN, false, false);
+			}
+		}
+		if (resources != null) {
+			Vector palettes = new Vector();
+			collectPalettes(resources.getPalettesRoot(), palettes);
+			for (int i = 0; i < palettes.size(); i++) {
+				TMPalette pal = (TMPalette) palettes.get(i);
+				if ((id == null) || pal.getID().equals(id)) {
+					return pal;
+				}
+			}
+		}
+		if (id != null) {
+			throw new IllegalArgumentException("Unknown palette " + id);
+		}
+		synchronized (resourceLock) {
+			ColorCodec cf01 = null;
+			Vector colorcodecs = TMSpecReader.getColorCodecs();
+			for (int i = 0; i < colorcodecs.size(); i++) {
+				ColorCodec cc = (ColorCodec) colorcodecs.get(i);
+				if (cc.getID().equals("CF01")) {
+					cf01 = cc;
+				}
+			}
+			return new TMPalette("PAL000", TMPalette.defaultPalette, cf01, ColorCodec.LITTLE_ENDIAN, true);
+		}
+	}
+
+	/**
+	 *
+	 * Adds the palettes in a folder and its subfolders to a vector, in tree
+	 * order.
+	 *
+	 **/
+
+	private void collectPalettes(TMTreeNode folder, Vector palettes) {
+		TMTreeNode[] children = folder.getChildren();
+		for (int i = 0; i < children.length; i++) {
+			if (children[i] instanceof PaletteItemNode) {
+				palettes.add(((PaletteItemNode) children[i]).getPalette());
+			} else if (children[i] instanceof FolderNode) {
+				collectPalettes(children[i], palettes);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * Starts a batch job.
+	 *
+	 **/
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		TMBatch batch;
+		try {
+			batch = new TMBatch(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(2);
+			return;
+		}
+		try {
+			System.exit((batch.run() == 0) ? 0 : 1);
+		} catch (Exception e) {
+			System.err.println(e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 *
+	 * One region to process: a bookmark and the palette to use for it.
+	 *
+	 **/
+
+	private static class Job {
+		BookmarkItemNode bookmark;
+		TMPalette palette;
+
+		Job(BookmarkItemNode bookmark, TMPalette palette) {
+			this.bookmark = bookmark;
+			this.palette = palette;
+		}
+	}
+
+}
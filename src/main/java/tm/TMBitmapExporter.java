@@ -55,14 +55,15 @@ public class TMBitmapExporter {
             bmp.write(file);
         }
         else if (ext.equals("gif")) {
-            try {
-                FileOutputStream fis = new FileOutputStream(file);
+            // keep the exact colors if they fit in a GIF color table
+            FileOutputStream fis = new FileOutputStream(file);
+            int res = GIFOutputStream.writeGIF(fis, img, GIFOutputStream.ORIGINAL_COLOR);
+            fis.close();
+            if (res == GIFOutputStream.TOO_MANY_COLORS) {
+                fis = new FileOutputStream(file);
                 GIFOutputStream.writeGIF(fis, img, GIFOutputStream.STANDARD_256_COLORS);
                 fis.close();
             }
-            catch (Exception e) {
-               throw e;
-            }
         }
         else if (ext.equals("jpg")) {
             ImageWriter jpegEncoder = (ImageWriter)ImageIO.getImageWritersByFormatName("jpeg").next();
@@ -79,15 +80,9 @@ public class TMBitmapExporter {
             }
         }
         else if (ext.equals("png")) {
-            try {
-                byte[] pngBytes = new PngEncoder(img).pngEncode();
-                FileOutputStream fis = new FileOutputStream(file);
-                fis.write(pngBytes);
-                fis.close();
-            }
-            catch (Exception e) {
-                throw e;
-            }
+            ParallelPngEncoder encoder = new ParallelPngEncoder(img, PngEncoder.NO_ALPHA);
+            encoder.setThreads(TMTileCanvas.getRenderThreads());
+            encoder.write(file);
         }
         else if (ext.equals("pcx")) {
             try {
@@ -45,6 +45,26 @@ public class TMBitmapImporter {
 **/
 
     public static TMTileCanvas loadTileCanvasFromFile(File file)
+        throws Exception {
+        return loadTileCanvasFromFile(file, null, 0, 0, PaletteDitherer.NONE, false);
+    }
+
+/**
+*
+* Like loadTileCanvasFromFile(File), but for pasting into a palettized view
+* that uses the <code>colorCount</code> entries of <code>palette</code>
+* starting at <code>startIndex</code>. If <code>derivePalette</code> is
+* true, those entries are first set to the colors the bitmap reduces to.
+* Unless ditherMode is NONE, the bitmap is then dithered to the entries, so
+* that pasting it takes the dithered colors as they are. Only the entries
+* that the palette actually has are used (an 8bpp view can have a smaller
+* palette); nothing is done to the colors if <code>palette</code> is null or
+* has no entries from <code>startIndex</code> on.
+*
+**/
+
+    public static TMTileCanvas loadTileCanvasFromFile(File file, TMPalette palette, int startIndex,
+        int colorCount, int ditherMode, boolean derivePalette)
         throws Exception {
         Image img = null;
         String ext = getExtension(file);
@@ -87,6 +107,20 @@ public class TMBitmapImporter {
             throw new Exception();
         }
 
+        if (palette != null) {
+            colorCount = Math.min(colorCount, palette.getSize() - startIndex);
+        }
+        if ((palette != null) && (colorCount > 0)) {
+            if (derivePalette) {
+                derivePalette(pixels, palette, startIndex, colorCount);
+            }
+            if (ditherMode != PaletteDitherer.NONE) {
+                PaletteDitherer ditherer = new PaletteDitherer(palette, startIndex, colorCount);
+                ditherer.setThreads(TMTileCanvas.getRenderThreads());
+                ditherer.dither(pixels, w, h, ditherMode);
+            }
+        }
+
         DirectColorTileCodec codec = new DirectColorTileCodec("", 32, 0x00FF0000, 0x0000FF00, 0x000000FF, 0xFF000000, "");
         // copy to a new canvas
         int cols = w / 8;
@@ -110,6 +144,24 @@ public class TMBitmapImporter {
         return tc;
     }
 
+/**
+*
+* Sets the <code>colorCount</code> entries of the palette starting at
+* <code>startIndex</code> to the colors that the pixels are quantized to.
+* If the image has fewer colors, the remaining entries are left alone.
+*
+**/
+
+    private static void derivePalette(int[] pixels, TMPalette palette, int startIndex, int colorCount) {
+        OctreeQuantizer quantizer = new OctreeQuantizer(colorCount);
+        quantizer.setThreads(TMTileCanvas.getRenderThreads());
+        // (the quantizer replaces the pixels by indices into the colormap)
+        int[] colormap = quantizer.quantize(pixels.clone());
+        for (int i=0; i<colormap.length; i++) {
+            palette.setEntryRGB(startIndex + i, colormap[i]);
+        }
+    }
+
 /**
 *
 * Gets file extension.
@@ -29,6 +29,7 @@ import org.w3c.dom.NodeList;
 import org.w3c.dom.Node;
 import java.io.File;
 import java.io.IOException;
+import java.util.Vector;
 import javax.xml.parsers.ParserConfigurationException;
 import org.xml.sax.SAXException;
 
@@ -46,6 +47,9 @@ public class TMFileResources {
 
 	private FileImage fileImage;
 	private TMUI ui;
+	private Vector tilecodecs;   // codecs to resolve IDs against when there is no ui
+	private Vector colorcodecs;
+	private ResourceCache cache; // binary copy of the resources, or null
 
 	/**
 	 *
@@ -54,8 +58,10 @@ public class TMFileResources {
 	 **/
 
 	public TMFileResources(FileImage fileImage, TMUI ui) {
-		this.bookmarkRoot = new FolderNode(ui.xlate("Bookmarks"));
-		this.paletteRoot = new FolderNode(ui.xlate("Palettes"));
+		this.ui = ui;
+		this.fileImage = fileImage;
+		this.bookmarkRoot = new FolderNode(xlate("Bookmarks"));
+		this.paletteRoot = new FolderNode(xlate("Palettes"));
 		fileImage.setResources(this);
 	}
 
@@ -76,6 +82,43 @@ public class TMFileResources {
 
 	public TMFileResources(File file, FileImage fileImage, TMUI ui)
 			throws SAXException, ParserConfigurationException, IOException {
+		this.ui = ui;
+		load(file, fileImage);
+	}
+
+	/**
+	 *
+	 * Loads resources for a fileimage from an XML document without a user
+	 * interface, e.g. for batch processing. Codec IDs are resolved against
+	 * the given vectors of tile and color codecs (see TMSpecReader).
+	 *
+	 **/
+
+	public TMFileResources(File file, FileImage fileImage, Vector tilecodecs, Vector colorcodecs)
+			throws SAXException, ParserConfigurationException, IOException {
+		this.tilecodecs = tilecodecs;
+		this.colorcodecs = colorcodecs;
+		load(file, fileImage);
+	}
+
+	/**
+	 *
+	 * Parses the XML document and sets up the resource trees.
+	 *
+	 **/
+
+	private void load(File file, FileImage fileImage)
+			throws SAXException, ParserConfigurationException, IOException {
+		this.fileImage = fileImage;
+		cache = ResourceCache.open(file, this);
+		if (cache != null) {
+			// the folders are read from the cache as they are opened
+			bookmarkRoot = cache.getRoot(0, xlate("Bookmarks"));
+			paletteRoot = cache.getRoot(1, xlate("Palettes"));
+			fileImage.setResources(this);
+			return;
+		}
+
 		Document doc = null;
 		try {
 			doc = XMLParser.parse(file);
@@ -89,14 +132,61 @@ public class TMFileResources {
 
 		if (doc == null)
 			return;
-		this.fileImage = fileImage;
-		this.ui = ui;
 
 		Element root = doc.getDocumentElement();
 		bookmarkRoot = parseBookmarks(root);
 		paletteRoot = parsePalettes(root);
 
 		fileImage.setResources(this);
+
+		if (ui != null) {
+			// so that the XML doesn't have to be parsed again next time
+			try {
+				cache = ResourceCache.create(file, this, bookmarkRoot, paletteRoot);
+			} catch (IOException e) {
+				cache = null;
+			}
+		}
+	}
+
+	/**
+	 *
+	 * Saves the resources to the given XML file.
+	 * The changes are stored in the binary cache right away; the XML file is
+	 * rewritten from the cache in the background.
+	 *
+	 **/
+
+	public void save(File file) throws IOException {
+		if (cache == null) {
+			cache = ResourceCache.create(file, this, bookmarkRoot, paletteRoot);
+		} else {
+			cache.write(bookmarkRoot, paletteRoot);
+		}
+		cache.writeXML(file);
+	}
+
+	/**
+	 *
+	 * Releases the cache once it is no longer needed.
+	 *
+	 **/
+
+	public void close() {
+		if (cache != null) {
+			cache.close();
+			cache = null;
+		}
+	}
+
+	/**
+	 *
+	 * Gets the fileimage these resources belong to.
+	 *
+	 **/
+
+	public FileImage getFileImage() {
+		return fileImage;
 	}
 
 	/**
@@ -115,7 +205,7 @@ public class TMFileResources {
 
 	public FolderNode parseBookmarks(Element root) {
 		Element e = getChildTag(root, "bookmarks", 0);
-		FolderNode bookmarkRoot = new FolderNode(ui.xlate("Bookmarks"));
+		FolderNode bookmarkRoot = new FolderNode(xlate("Bookmarks"));
 		if (e != null) {
 			// parse bookmarks into tree
 			NodeList children = e.getChildNodes();
@@ -162,7 +252,7 @@ public class TMFileResources {
 			int palIndex = Integer.parseInt(e.getAttribute("palIndex"));
 			// String palID = e.getAttribute("palette");
 			String codecID = e.getAttribute("codec");
-			TileCodec codec = ui.getTileCodecByID(codecID);
+			TileCodec codec = getTileCodecByID(codecID);
 			String swizzlePattern = e.getAttribute("swizzlepattern");
 			if (swizzlePattern == null || swizzlePattern.isEmpty()) {
 				swizzlePattern = TileCodec.SWIZZLE_NONE; // Default value for backward compatibility
@@ -194,7 +284,7 @@ public class TMFileResources {
 
 	public FolderNode parsePalettes(Element root) {
 		Element e = getChildTag(root, "palettes", 0);
-		FolderNode paletteRoot = new FolderNode(ui.xlate("Palettes"));
+		FolderNode paletteRoot = new FolderNode(xlate("Palettes"));
 		if (e != null) {
 			// parse palettes into tree
 			NodeList children = e.getChildNodes();
@@ -230,26 +320,26 @@ public class TMFileResources {
 			String id = e.getAttribute("id");
 			boolean direct = e.getAttribute("direct").equals("yes");
 			String codecID = e.getAttribute("codec");
-			ColorCodec codec = ui.getColorCodecByID(codecID);
+			ColorCodec codec = getColorCodecByID(codecID);
 			int size = Integer.parseInt(e.getAttribute("size"));
 			int offset = 0;
 			int endianness = ColorCodec.LITTLE_ENDIAN;
 			if (e.getAttribute("endianness").equals("big")) {
 				endianness = ColorCodec.BIG_ENDIAN;
 			}
-			byte[] data;
+			TMPalette pal;
 			if (direct) {
 				// data is in XML, parse it
 				String hexString = XMLParser.getNodeValue(getChildTag(e, "data", 0));
 				// alt: hexString = ((CDATASection)palette.getFirstChild()).getData());
-				data = HexStringConverter.hexStringToBytes(hexString);
+				byte[] data = HexStringConverter.hexStringToBytes(hexString);
+				pal = new TMPalette(id, data, offset, size, codec, endianness, direct, false);
 			} else {
 				// data is in file
 				offset = Integer.parseInt(e.getAttribute("offset"));
-				data = fileImage.getContents();
+				pal = new TMPalette(id, fileImage, offset, size, codec, endianness, direct, false);
 			}
 			String desc = XMLParser.getNodeValue(getChildTag(e, "description", 0));
-			TMPalette pal = new TMPalette(id, data, offset, size, codec, endianness, direct, false);
 			PaletteItemNode palette = new PaletteItemNode(
 					pal,
 					desc);
@@ -348,6 +438,54 @@ public class TMFileResources {
 		return new File("./resources/" + name);
 	}
 
+	/**
+	 *
+	 * Translates a string, or returns it as is if there is no ui.
+	 *
+	 **/
+
+	private String xlate(String key) {
+		return (ui != null) ? ui.xlate(key) : key;
+	}
+
+	/**
+	 *
+	 * Gets the tile codec with the given ID, or null if there is none.
+	 *
+	 **/
+
+	TileCodec getTileCodecByID(String codecID) {
+		if (ui != null) {
+			return ui.getTileCodecByID(codecID);
+		}
+		for (int i = 0; i < tilecodecs.size(); i++) {
+			TileCodec tc = (TileCodec) tilecodecs.get(i);
+			if (tc.getID().equals(codecID)) {
+				return tc;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 *
+	 * Gets the color codec with the given ID, or null if there is none.
+	 *
+	 **/
+
+	ColorCodec getColorCodecByID(String codecID) {
+		if (ui != null) {
+			return ui.getColorCodecByID(codecID);
+		}
+		for (int i = 0; i < colorcodecs.size(); i++) {
+			ColorCodec cc = (ColorCodec) colorcodecs.get(i);
+			if (cc.getID().equals(codecID)) {
+				return cc;
+			}
+		}
+		return null;
+	}
+
 	private Element getChildTag(Element e, String Tag, int i) {
 		return (Element) e.getElementsByTagName(Tag).item(i);
 	}
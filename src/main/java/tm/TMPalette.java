@@ -76,6 +76,9 @@ public class TMPalette {
     private int offset;
 
     private boolean modified;
+    private int version;        // incremented whenever the palette is modified
+
+    private ColorLookup lookup;     // reverse lookup of rgbvalues, rebuilt when the entries change
 
 /**
 *
@@ -139,6 +142,25 @@ public class TMPalette {
         setModified(modified);
     }
 
+/**
+*
+* Creates a new palette from the entries stored at the given offset of a
+* file. Only the bytes of the palette are read, so the contents of a
+* memory-mapped file stay mapped. Entries past the end of the file are 0.
+*
+**/
+
+    public TMPalette(String id, FileImage img, int offset, int size, ColorCodec codec, int endianness, boolean direct, boolean modified) {
+        this(id, readEntries(img, offset, size, codec), 0, size, codec, endianness, direct, modified);
+        this.offset = offset;
+    }
+
+    private static byte[] readEntries(FileImage img, int offset, int size, ColorCodec codec) {
+        byte[] bytes = new byte[size * codec.getBytesPerPixel()];
+        img.read(offset, bytes, 0, Math.max(0, Math.min(bytes.length, img.getSize() - offset)));
+        return bytes;
+    }
+
 /**
 *
 * Creates a new palette from an existing palette.
@@ -294,9 +316,17 @@ public class TMPalette {
 **/
 
     public int indexOf(int startIndex, int rgbval) {
-        for (int i=0; i<entries.length-startIndex; i++) {
-            if (getEntryRGB(startIndex+i) == rgbval) {
-                return i;
+        if ((startIndex >= 0) && (startIndex <= entries.length)) {
+            int i = getLookup().indexOf(startIndex, rgbval);
+            if (i >= 0) {
+                return i - startIndex;
+            }
+        }
+        else {
+            for (int i=0; i<entries.length-startIndex; i++) {
+                if (getEntryRGB(startIndex+i) == rgbval) {
+                    return i;
+                }
             }
         }
         System.out.println("RGB value not in palette");
@@ -390,6 +420,10 @@ public class TMPalette {
 **/
 
     public int closestMatchingEntry(int startIndex, int colorCount, int argb) {
+        if ((startIndex >= 0) && (colorCount >= 0) && (startIndex + colorCount <= entries.length)) {
+            return getLookup().closest(startIndex, colorCount, argb) - startIndex;
+        }
+        // the range reaches outside the palette; missing entries count as black
         int targetR = (argb & 0x00FF0000) >> 16;
         int targetG = (argb & 0x0000FF00) >> 8;
         int targetB = (argb & 0x000000FF);
@@ -434,6 +468,22 @@ public class TMPalette {
         return bytes;
     }
 
+/**
+*
+* Gets the reverse lookup of the RGB values, rebuilding it if the entries
+* have changed since it was last built.
+*
+**/
+
+    private ColorLookup getLookup() {
+        ColorLookup l = lookup;
+        if ((l == null) || (l.getSize() != rgbvalues.length)) {
+            l = new ColorLookup(rgbvalues);
+            lookup = l;
+        }
+        return l;
+    }
+
 /**
 *
 * Sets the modified state of this palette.
@@ -442,6 +492,10 @@ public class TMPalette {
 
     public void setModified(boolean modified) {
         this.modified = modified;
+        if (modified) {
+            version++;
+            lookup = null;
+        }
     }
 
 /**
@@ -454,4 +508,15 @@ public class TMPalette {
         return modified;
     }
 
+/**
+*
+* Gets the modification count of this palette, which is incremented every
+* time an entry (or the format) changes.
+*
+**/
+
+    public int getVersion() {
+        return version;
+    }
+
 }
\ No newline at end of file
@@ -22,14 +22,19 @@ import tm.colorcodecs.*;
 import tm.tilecodecs.*;
 import tm.fileselection.*;
 import tm.utils.*;
+import java.util.Hashtable;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.zip.CRC32;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.Node;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import javax.xml.parsers.ParserConfigurationException;
 import org.xml.sax.SAXException;
 
@@ -38,16 +43,34 @@ import org.xml.sax.SAXException;
 * This class has methods for reading an XML document containing specifications
 * for the various program resources.
 *
+* Parsing and validating the XML takes up a good part of the startup time,
+* so the specs are also saved in a binary cache next to the XML file
+* (tmspec.xml -> tmspec.cache), which is used as long as the date and the
+* checksum of the XML file match those it was made from.
+* Tile codecs are only created when they are first used (see TileCodecSpec).
+*
 **/
 
 public class TMSpecReader {
 
+    private static final int CACHE_MAGIC = 0x544D5343;    // "TMSC"
+    private static final int CACHE_VERSION = 1;
+
+    // the tags that make up the specs; everything else just groups them
+    private static final String[] SPEC_TAGS = {
+        "directcolor", "indexedcolor",
+        "planartile", "lineartile", "directcolortile", "compositetile",
+        "filefilter", "palettefilter", "filelistener"
+    };
+
     private static Vector colorcodecs;
-    private static Vector tilecodecs;
+    private static Vector tilecodecs;   // TileCodecSpecs
     private static Vector filefilters;
     private static Vector palettefilters;
     private static Vector filelisteners;
-    private static Element tmspec;
+    private static Vector entries;
+    private static boolean readFromCache;
+    private static long readTime;
 
 /**
 *
@@ -57,26 +80,28 @@ public class TMSpecReader {
 
     public static void readSpecsFromFile(File file)
     throws SAXException, ParserConfigurationException, IOException {
+        long start = System.nanoTime();
         colorcodecs = new Vector();
         tilecodecs = new Vector();
         filefilters = new Vector();
         palettefilters = new Vector();
         filelisteners = new Vector();
-        Document doc = null;
-        try {
-            doc = XMLParser.parse(file);
-        } catch (SAXException e) {
-            throw e;
-        }
-        catch (ParserConfigurationException e) {
-            throw e;
-        }
-        catch (IOException e) {
-            throw e;
-        }
-        if (doc == null) return;
 
-        tmspec = doc.getDocumentElement();   // root element (<tmspec> tag)
+        byte[] xml = Files.readAllBytes(file.toPath());
+        CRC32 crc = new CRC32();
+        crc.update(xml);
+        long checksum = crc.getValue();
+        long modified = file.lastModified();
+        File cacheFile = getCacheFileFor(file);
+
+        readFromCache = readCache(cacheFile, modified, checksum);
+        if (!readFromCache) {
+            Document doc = XMLParser.parse(file);
+            if (doc == null) return;
+            entries = new Vector();
+            readEntries(doc.getDocumentElement());   // root element (<tmspec> tag)
+            writeCache(cacheFile, modified, checksum);
+        }
 
         readDirectColorFormats();
         readIndexedColorFormats();
@@ -89,6 +114,159 @@ public class TMSpecReader {
         readFileFilters();
         readPaletteFilters();
         readFileListeners();
+        entries = null;
+        readTime = (System.nanoTime() - start) / 1000000;
+    }
+
+/**
+*
+* Gets the cache file for the given spec file.
+*
+**/
+
+    public static File getCacheFileFor(File file) {
+        String name = file.getName();
+        int i = name.lastIndexOf('.');
+        if (i != -1) {
+            name = name.substring(0, i);
+        }
+        return new File(file.getAbsoluteFile().getParentFile(), name + ".cache");
+    }
+
+/**
+*
+* Collects the spec tags below the given element, in document order.
+*
+**/
+
+    private static void readEntries(Element parent) {
+        NodeList children = parent.getChildNodes();
+        for (int i=0; i<children.getLength(); i++) {
+            if (children.item(i).getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            Element e = (Element)children.item(i);
+            if (!isSpecTag(e.getTagName())) {
+                readEntries(e);
+                continue;
+            }
+            Entry entry = new Entry(e.getTagName());
+            NamedNodeMap attributes = e.getAttributes();  // (includes the defaults from the DTD)
+            for (int j=0; j<attributes.getLength(); j++) {
+                Node a = attributes.item(j);
+                entry.attributes.put(a.getNodeName(), a.getNodeValue());
+            }
+            entry.description = XMLParser.getNodeValue(e.getElementsByTagName("description").item(0));
+            entry.data = XMLParser.getNodeValue(e.getElementsByTagName("data").item(0));
+            entries.add(entry);
+        }
+    }
+
+    private static boolean isSpecTag(String tag) {
+        for (int i=0; i<SPEC_TAGS.length; i++) {
+            if (SPEC_TAGS[i].equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+/**
+*
+* Gets the entries with the given tag, in document order.
+*
+**/
+
+    private static Vector getEntries(String tag) {
+        Vector v = new Vector();
+        for (int i=0; i<entries.size(); i++) {
+            Entry e = (Entry)entries.get(i);
+            if (e.tag.equals(tag)) {
+                v.add(e);
+            }
+        }
+        return v;
+    }
+
+/**
+*
+* Reads the entries from the cache file, if it was made from the spec file
+* with the given date and checksum. Returns false if it can't be used.
+*
+**/
+
+    private static boolean readCache(File cacheFile, long modified, long checksum) {
+        if (!cacheFile.exists()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if ((in.readInt() != CACHE_MAGIC) || (in.readInt() != CACHE_VERSION)
+                || (in.readLong() != modified) || (in.readLong() != checksum)) {
+                return false;
+            }
+            int count = in.readInt();
+            Vector v = new Vector(count);
+            for (int i=0; i<count; i++) {
+                Entry e = new Entry(in.readUTF());
+                int attributeCount = in.readInt();
+                for (int j=0; j<attributeCount; j++) {
+                    e.attributes.put(in.readUTF(), in.readUTF());
+                }
+                e.description = in.readUTF();
+                e.data = in.readUTF();
+                v.add(e);
+            }
+            entries = v;
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+/**
+*
+* Writes the entries to the cache file. Failing to do so isn't an error;
+* the XML is simply parsed again next time.
+*
+**/
+
+    private static void writeCache(File cacheFile, long modified, long checksum) {
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getParentFile());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(CACHE_MAGIC);
+                out.writeInt(CACHE_VERSION);
+                out.writeLong(modified);
+                out.writeLong(checksum);
+                out.writeInt(entries.size());
+                for (int i=0; i<entries.size(); i++) {
+                    Entry e = (Entry)entries.get(i);
+                    out.writeUTF(e.tag);
+                    out.writeInt(e.attributes.size());
+                    for (java.util.Enumeration keys = e.attributes.keys(); keys.hasMoreElements(); ) {
+                        String name = (String)keys.nextElement();
+                        out.writeUTF(name);
+                        out.writeUTF((String)e.attributes.get(name));
+                    }
+                    out.writeUTF(e.description);
+                    out.writeUTF(e.data);
+                }
+            }
+            try {
+                Files.move(tempFile.toPath(), cacheFile.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException e) {
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
     }
 
 /**
@@ -98,9 +276,9 @@ public class TMSpecReader {
 **/
 
     private static void readDirectColorFormats() {
-        NodeList directColorTags = tmspec.getElementsByTagName("directcolor");
-        for (int i=0; i<directColorTags.getLength(); i++) {
-            Element dc = (Element)directColorTags.item(i);
+        Vector directColorTags = getEntries("directcolor");
+        for (int i=0; i<directColorTags.size(); i++) {
+            Entry dc = (Entry)directColorTags.get(i);
             String id = dc.getAttribute("id");
             int bpp = Integer.parseInt(dc.getAttribute("bpp"));
             int rmask = (int)Long.parseLong(dc.getAttribute("rmask"), 16);
@@ -109,7 +287,7 @@ public class TMSpecReader {
             int amask = 0;
             if (!dc.getAttribute("amask").equals(""))
                 amask = (int)Long.parseLong(dc.getAttribute("amask"), 16);
-            String desc = XMLParser.getNodeValue(dc.getElementsByTagName("description").item(0));
+            String desc = dc.description;
             colorcodecs.add(new DirectColorCodec(id, bpp, rmask, gmask, bmask, amask, desc));
         }
     }
@@ -121,14 +299,14 @@ public class TMSpecReader {
 **/
 
     private static void readIndexedColorFormats() {
-        NodeList indexedColorTags = tmspec.getElementsByTagName("indexedcolor");
-        for (int i=0; i<indexedColorTags.getLength(); i++) {
-            Element ic = (Element)indexedColorTags.item(i);
+        Vector indexedColorTags = getEntries("indexedcolor");
+        for (int i=0; i<indexedColorTags.size(); i++) {
+            Entry ic = (Entry)indexedColorTags.get(i);
             String id = ic.getAttribute("id");
             int bpp = Integer.parseInt(ic.getAttribute("bpp"));
-            String desc = XMLParser.getNodeValue(ic.getElementsByTagName("description").item(0));
+            String desc = ic.description;
             int endianness = ic.getAttribute("endianness").equals("little") ? ColorCodec.LITTLE_ENDIAN : ColorCodec.BIG_ENDIAN;
-            String hexString = XMLParser.getNodeValue(ic.getElementsByTagName("data").item(0));
+            String hexString = ic.data;
             byte[] data = HexStringConverter.hexStringToBytes(hexString);
 
             // pack the data into array of 32-bit ARGB ints
@@ -150,18 +328,19 @@ public class TMSpecReader {
 **/
 
     private static void readPlanarTileFormats() {
-        NodeList planarTileTags = tmspec.getElementsByTagName("planartile");
-        for (int i=0; i<planarTileTags.getLength(); i++) {
-            Element plc = (Element)planarTileTags.item(i);
-            String id = plc.getAttribute("id");
-            int bpp = Integer.parseInt(plc.getAttribute("bpp"));
-            String desc = XMLParser.getNodeValue(plc.getElementsByTagName("description").item(0));
-            StringTokenizer st = new StringTokenizer(plc.getAttribute("planeorder"), ",");
-            int[] ofs = new int[st.countTokens()];
-            for (int j=0; j<ofs.length; j++) {
-                ofs[j] = Integer.parseInt(st.nextToken());
-            }
-            tilecodecs.add(new PlanarTileCodec(id, ofs, desc));
+        Vector planarTileTags = getEntries("planartile");
+        for (int i=0; i<planarTileTags.size(); i++) {
+            final Entry plc = (Entry)planarTileTags.get(i);
+            tilecodecs.add(new TileCodecSpec(plc.getAttribute("id"), plc.description) {
+                protected TileCodec createCodec() {
+                    StringTokenizer st = new StringTokenizer(plc.getAttribute("planeorder"), ",");
+                    int[] ofs = new int[st.countTokens()];
+                    for (int j=0; j<ofs.length; j++) {
+                        ofs[j] = Integer.parseInt(st.nextToken());
+                    }
+                    return new PlanarTileCodec(getID(), ofs, getDescription());
+                }
+            });
         }
     }
 
@@ -172,16 +351,18 @@ public class TMSpecReader {
 **/
 
     private static void readLinearTileFormats() {
-        NodeList linearTileTags = tmspec.getElementsByTagName("lineartile");
-        for (int i=0; i<linearTileTags.getLength(); i++) {
-            Element lnc = (Element)linearTileTags.item(i);
-            String id = lnc.getAttribute("id");
-            int bpp = Integer.parseInt(lnc.getAttribute("bpp"));
-            int ordering = LinearTileCodec.IN_ORDER;
-            if(lnc.getAttribute("ordering").equals("reverse"))
-                ordering = LinearTileCodec.REVERSE_ORDER;
-            String desc = XMLParser.getNodeValue(lnc.getElementsByTagName("description").item(0));
-            tilecodecs.add(new LinearTileCodec(id, bpp, ordering, desc));
+        Vector linearTileTags = getEntries("lineartile");
+        for (int i=0; i<linearTileTags.size(); i++) {
+            final Entry lnc = (Entry)linearTileTags.get(i);
+            tilecodecs.add(new TileCodecSpec(lnc.getAttribute("id"), lnc.description) {
+                protected TileCodec createCodec() {
+                    int bpp = Integer.parseInt(lnc.getAttribute("bpp"));
+                    int ordering = LinearTileCodec.IN_ORDER;
+                    if(lnc.getAttribute("ordering").equals("reverse"))
+                        ordering = LinearTileCodec.REVERSE_ORDER;
+                    return new LinearTileCodec(getID(), bpp, ordering, getDescription());
+                }
+            });
         }
     }
 
@@ -192,20 +373,22 @@ public class TMSpecReader {
 **/
 
     private static void readDirectColorTileFormats() {
-        NodeList directColorTileTags = tmspec.getElementsByTagName("directcolortile");
-        for (int i=0; i<directColorTileTags.getLength(); i++) {
-            Element dcc = (Element)directColorTileTags.item(i);
-            String id = dcc.getAttribute("id");
-            // String formatID = dcc.getAttribute("colorformat"); TODO
-            int bpp = Integer.parseInt(dcc.getAttribute("bpp"));
-            int rmask = (int)Long.parseLong(dcc.getAttribute("rmask"), 16);
-            int gmask = (int)Long.parseLong(dcc.getAttribute("gmask"), 16);
-            int bmask = (int)Long.parseLong(dcc.getAttribute("bmask"), 16);
-            int amask = 0;
-            if (!dcc.getAttribute("amask").equals(""))
-                amask = (int)Long.parseLong(dcc.getAttribute("amask"), 16);
-            String desc = XMLParser.getNodeValue(dcc.getElementsByTagName("description").item(0));
-            tilecodecs.add(new DirectColorTileCodec(id, bpp, rmask, gmask, bmask, amask, desc));
+        Vector directColorTileTags = getEntries("directcolortile");
+        for (int i=0; i<directColorTileTags.size(); i++) {
+            final Entry dcc = (Entry)directColorTileTags.get(i);
+            tilecodecs.add(new TileCodecSpec(dcc.getAttribute("id"), dcc.description) {
+                protected TileCodec createCodec() {
+                    // String formatID = dcc.getAttribute("colorformat"); TODO
+                    int bpp = Integer.parseInt(dcc.getAttribute("bpp"));
+                    int rmask = (int)Long.parseLong(dcc.getAttribute("rmask"), 16);
+                    int gmask = (int)Long.parseLong(dcc.getAttribute("gmask"), 16);
+                    int bmask = (int)Long.parseLong(dcc.getAttribute("bmask"), 16);
+                    int amask = 0;
+                    if (!dcc.getAttribute("amask").equals(""))
+                        amask = (int)Long.parseLong(dcc.getAttribute("amask"), 16);
+                    return new DirectColorTileCodec(getID(), bpp, rmask, gmask, bmask, amask, getDescription());
+                }
+            });
         }
     }
 
@@ -216,31 +399,37 @@ public class TMSpecReader {
 **/
 
     private static void readCompositeTileFormats() {
-        NodeList compositeTileTags = tmspec.getElementsByTagName("compositetile");
-        for (int i=0; i<compositeTileTags.getLength(); i++) {
-            Element cpc = (Element)compositeTileTags.item(i);
-            String id = cpc.getAttribute("id");
-            String desc = XMLParser.getNodeValue(cpc.getElementsByTagName("description").item(0));
-            // build array of planar codecs
+        Vector compositeTileTags = getEntries("compositetile");
+        for (int i=0; i<compositeTileTags.size(); i++) {
+            Entry cpc = (Entry)compositeTileTags.get(i);
+            // find the codecs it's made of
             StringTokenizer st = new StringTokenizer(cpc.getAttribute("formats"), ",");
-            TileCodec[] codecs = new TileCodec[st.countTokens()];
+            final TileCodecSpec[] parts = new TileCodecSpec[st.countTokens()];
             int cc=0;
-            int bpp=0;
-            for (int j=0; j<codecs.length; j++) {
+            for (int j=0; j<parts.length; j++) {
                 String cid = st.nextToken();
                 // find the codec with correct id
                 for (int k=0; k<tilecodecs.size(); k++) {
-                    TileCodec tc = (TileCodec)tilecodecs.get(k);
+                    TileCodecSpec tc = (TileCodecSpec)tilecodecs.get(k);
                     if (tc.getID().equals(cid)) {
-                        codecs[j] = tc;
+                        parts[j] = tc;
                         cc++;
-                        bpp += tc.getBitsPerPixel();
                         break;
                     }
                 }
             }
-            if (cc != codecs.length) continue;  // one or more codec IDs invalid
-            tilecodecs.add(new CompositeTileCodec(id, bpp, codecs, desc));
+            if (cc != parts.length) continue;  // one or more codec IDs invalid
+            tilecodecs.add(new TileCodecSpec(cpc.getAttribute("id"), cpc.description) {
+                protected TileCodec createCodec() {
+                    TileCodec[] codecs = new TileCodec[parts.length];
+                    int bpp=0;
+                    for (int j=0; j<codecs.length; j++) {
+                        codecs[j] = parts[j].getCodec();
+                        bpp += codecs[j].getBitsPerPixel();
+                    }
+                    return new CompositeTileCodec(getID(), bpp, codecs, getDescription());
+                }
+            });
         }
     }
 
@@ -251,11 +440,11 @@ public class TMSpecReader {
 **/
 
     private static void readFileFilters() {
-        NodeList fftags = tmspec.getElementsByTagName("filefilter");
-        for (int i=0; i<fftags.getLength(); i++) {
-            Element ff = (Element)fftags.item(i);
+        Vector fftags = getEntries("filefilter");
+        for (int i=0; i<fftags.size(); i++) {
+            Entry ff = (Entry)fftags.get(i);
             String extlist = ff.getAttribute("extensions");
-            String desc = XMLParser.getNodeValue(ff.getElementsByTagName("description").item(0));
+            String desc = ff.description;
             String codecID = ff.getAttribute("tileformat");
             int defaultMode = TileCodec.MODE_1D;
             if (ff.getAttribute("mode").equals("2D"))
@@ -271,11 +460,11 @@ public class TMSpecReader {
 **/
 
     private static void readPaletteFilters() {
-        NodeList pftags = tmspec.getElementsByTagName("palettefilter");
-        for (int i=0; i<pftags.getLength(); i++) {
-            Element pf = (Element)pftags.item(i);
+        Vector pftags = getEntries("palettefilter");
+        for (int i=0; i<pftags.size(); i++) {
+            Entry pf = (Entry)pftags.get(i);
             String extlist = pf.getAttribute("extensions");
-            String desc = XMLParser.getNodeValue(pf.getElementsByTagName("description").item(0));
+            String desc = pf.description;
             String codecID = pf.getAttribute("colorformat");
             int size = Integer.parseInt(pf.getAttribute("size"));
             int offset = Integer.parseInt(pf.getAttribute("offset"));
@@ -295,17 +484,24 @@ public class TMSpecReader {
 
     private static void readFileListeners() {
         ClassLoader loader = ClassLoader.getSystemClassLoader();
-        NodeList fltags = tmspec.getElementsByTagName("filelistener");
-        for (int i=0; i<fltags.getLength(); i++) {
-            Element fl = (Element)fltags.item(i);
+        Vector fltags = getEntries("filelistener");
+        for (int i=0; i<fltags.size(); i++) {
+            Entry fl = (Entry)fltags.get(i);
             String extlist = fl.getAttribute("extensions");
             String classname = fl.getAttribute("classname");
             Class c;
             try {
-                c = loader.loadClass(classname);
+                // the spec names the listeners by their simple class names,
+                // so look in the filelistener package first
+                c = loader.loadClass((classname.indexOf('.') == -1) ? "tm.filelistener." + classname : classname);
             }
             catch (Exception e) {
-                continue;
+                try {
+                    c = loader.loadClass(classname);
+                }
+                catch (Exception e2) {
+                    continue;
+                }
             }
             Object o;
             try {
@@ -331,13 +527,45 @@ public class TMSpecReader {
 /**
 *
 * Gets the vector of tile codecs that's been created based on the XML.
+* This creates all of them; see getTileCodecSpecs().
 *
 **/
 
     public static Vector getTileCodecs() {
+        Vector v = new Vector(tilecodecs.size());
+        for (int i=0; i<tilecodecs.size(); i++) {
+            v.add(((TileCodecSpec)tilecodecs.get(i)).getCodec());
+        }
+        return v;
+    }
+
+/**
+*
+* Gets the vector of TileCodecSpecs that's been created based on the XML.
+*
+**/
+
+    public static Vector getTileCodecSpecs() {
         return tilecodecs;
     }
 
+/**
+*
+* Gets the tile codec that has the specified ID, or null if no such codec
+* exists. The codec is created if this is the first time it's used.
+*
+**/
+
+    public static TileCodec getTileCodecByID(String codecID) {
+        for (int i=0; i<tilecodecs.size(); i++) {
+            TileCodecSpec tc = (TileCodecSpec)tilecodecs.get(i);
+            if (tc.getID().equals(codecID)) {
+                return tc.getCodec();
+            }
+        }
+        return null;
+    }
+
 /**
 *
 * Gets the vector of file filters that's been created based on the XML.
@@ -368,4 +596,49 @@ public class TMSpecReader {
         return filelisteners;
     }
 
+/**
+*
+* Returns true if the specs were last read from the cache rather than the XML.
+*
+**/
+
+    public static boolean wasReadFromCache() {
+        return readFromCache;
+    }
+
+/**
+*
+* Gets the time it took to read the specs, in milliseconds.
+*
+**/
+
+    public static long getReadTime() {
+        return readTime;
+    }
+
+/**
+*
+* One spec tag: its attributes and the text of its description and data
+* child tags.
+*
+**/
+
+    private static class Entry {
+
+        String tag;
+        Hashtable attributes = new Hashtable();
+        String description;
+        String data;
+
+        Entry(String tag) {
+            this.tag = tag;
+        }
+
+        String getAttribute(String name) {
+            String value = (String)attributes.get(name);
+            return (value != null) ? value : "";
+        }
+
+    }
+
 }
\ No newline at end of file
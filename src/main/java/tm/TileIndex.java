@@ -0,0 +1,435 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+*
+* Index of the tiles in a FileImage, for finding repeated tiles.
+*
+* The file is divided into windows of <code>tileSize</code> bytes, starting
+* at <code>phase</code>; these are the tiles that a view in 1-dimensional
+* mode sees when its offset is congruent to the phase. Each window is hashed
+* with a polynomial hash of its bytes, and the windows are kept in a
+* multimap from hash value to the (doubly linked) list of windows having
+* it. Counting the windows with a hash is a single lookup; listing them
+* touches only those windows.
+*
+* The index is built in the background (see build()). Changes to the file
+* are fed in through update(), which rehashes the windows that overlap the
+* changed range; changes made while the index is being built are applied
+* when it is done.
+*
+**/
+
+public class TileIndex {
+
+    private static final int HASH_BASE = 0x01000193;
+    private static final int READ_SIZE = 64 * 1024;
+
+    // the index takes up about 36 bytes per window; files with more are not indexed
+    public static final int MAX_WINDOWS = 2 * 1024 * 1024;
+
+    private FileImage image;
+    private int tileSize;
+    private int phase;
+
+    private boolean ready = false;
+    private volatile boolean cancelled = false;
+    private Vector pendingRanges = new Vector();   // int[] {start, end} reported while building
+
+    // windows
+    private int count;
+    private int[] windowHash;
+    private int[] windowPrev;       // -1 if first in its list
+    private int[] windowNext;       // -1 if last in its list
+
+    // hash -> list of windows, open addressing
+    private int[] slotKey;
+    private int[] slotHead;
+    private int[] slotCount;        // -1 if the slot is empty
+    private int usedSlots;
+
+/**
+*
+* Creates an (empty) index of the windows of <code>tileSize</code> bytes
+* starting at <code>phase</code> in the given image.
+*
+**/
+
+    public TileIndex(FileImage image, int tileSize, int phase) {
+        this.image = image;
+        this.tileSize = tileSize;
+        this.phase = phase;
+    }
+
+/**
+*
+* Gets the size of the indexed windows.
+*
+**/
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+/**
+*
+* Gets the offset of the first window.
+*
+**/
+
+    public int getPhase() {
+        return phase;
+    }
+
+/**
+*
+* Returns true if the index can be used for the given tile size and data
+* offset.
+*
+**/
+
+    public boolean covers(int tileSize, int offset) {
+        return (tileSize == this.tileSize) && (offset % tileSize == phase);
+    }
+
+/**
+*
+* Gets the number of windows of <code>tileSize</code> bytes starting at
+* <code>phase</code> in a file of <code>size</code> bytes.
+*
+**/
+
+    public static int getWindowCount(int size, int tileSize, int phase) {
+        return Math.max(0, (size - phase) / tileSize);
+    }
+
+/**
+*
+* Builds the index in a background thread. <code>onReady</code> (if not
+* null) is run on that thread when the index is ready to use.
+*
+**/
+
+    public void build(final Runnable onReady) {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                if (buildIndex() && (onReady != null)) {
+                    onReady.run();
+                }
+            }
+        }, "Tile index");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+/**
+*
+* Stops building the index. A cancelled index never becomes ready.
+*
+**/
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+/**
+*
+* Returns true when the index has been built.
+*
+**/
+
+    public synchronized boolean isReady() {
+        return ready;
+    }
+
+/**
+*
+* Hashes all windows and fills the multimap.
+*
+* @return   false if the build was cancelled or the image went away
+*
+**/
+
+    private boolean buildIndex() {
+        int n = getWindowCount(image.getSize(), tileSize, phase);
+        int[] hashes = new int[n];
+        int windowsPerRead = Math.max(1, READ_SIZE / tileSize);
+        byte[] buf = new byte[windowsPerRead * tileSize];
+        try {
+            for (int w=0; w<n; w+=windowsPerRead) {
+                if (cancelled) return false;
+                int m = Math.min(windowsPerRead, n - w);
+                image.read(phase + (w * tileSize), buf, 0, m * tileSize);
+                for (int i=0; i<m; i++) {
+                    hashes[w + i] = hash(buf, i * tileSize);
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            // the image was closed
+            return false;
+        }
+
+        synchronized (this) {
+            if (cancelled) return false;
+            count = n;
+            windowHash = hashes;
+            windowPrev = new int[n];
+            windowNext = new int[n];
+            allocateSlots(n);
+            // insert from the back, so that the lists start out in ascending order
+            for (int w=n-1; w>=0; w--) {
+                link(w);
+            }
+            ready = true;
+            for (int i=0; i<pendingRanges.size(); i++) {
+                int[] range = (int[])pendingRanges.get(i);
+                update(range[0], range[1]);
+            }
+            pendingRanges = null;
+        }
+        return true;
+    }
+
+/**
+*
+* Rehashes the windows that overlap the bytes from <code>start</code>
+* (inclusive) to <code>end</code> (exclusive), after they have changed.
+*
+**/
+
+    public synchronized void update(int start, int end) {
+        if (cancelled) return;
+        if (!ready) {
+            pendingRanges.add(new int[] { start, end });
+            return;
+        }
+        int first = Math.max(0, (start - phase) / tileSize);
+        int last = Math.min(count - 1, (end - 1 - phase) / tileSize);
+        if ((end <= phase) || (first > last)) return;
+        byte[] buf = new byte[tileSize];
+        for (int w=first; w<=last; w++) {
+            image.read(phase + (w * tileSize), buf, 0, tileSize);
+            int h = hash(buf, 0);
+            if (h != windowHash[w]) {
+                unlink(w);
+                windowHash[w] = h;
+                link(w);
+            }
+        }
+    }
+
+/**
+*
+* Gets the number of windows that hash like the one at <code>offset</code>
+* (including itself). Windows whose bytes differ can share a hash, so this is
+* an upper bound on the number of occurrences of the tile.
+* Returns 0 if the index isn't ready or offset isn't the start of a window.
+*
+**/
+
+    public synchronized int getHashCount(int offset) {
+        int w = windowAt(offset);
+        if (w < 0) return 0;
+        return slotCount[findSlot(windowHash[w])];
+    }
+
+/**
+*
+* Returns true if the bytes of the window at <code>offset</code> occur in
+* another window too.
+*
+**/
+
+    public synchronized boolean hasDuplicate(int offset) {
+        int w = windowAt(offset);
+        if (w < 0) return false;
+        int slot = findSlot(windowHash[w]);
+        if (slotCount[slot] < 2) return false;
+        byte[] tile = new byte[tileSize];
+        byte[] other = new byte[tileSize];
+        image.read(offset, tile, 0, tileSize);
+        for (int v=slotHead[slot]; v>=0; v=windowNext[v]) {
+            if (v == w) continue;
+            image.read(phase + (v * tileSize), other, 0, tileSize);
+            if (Arrays.equals(tile, other)) return true;
+        }
+        return false;
+    }
+
+/**
+*
+* Gets the offsets of all windows whose bytes equal those of the window at
+* <code>offset</code> (including itself), in ascending order.
+* Returns an empty array if the index isn't ready or offset isn't the start
+* of a window.
+*
+**/
+
+    public synchronized int[] getOccurrences(int offset) {
+        int w = windowAt(offset);
+        if (w < 0) return new int[0];
+        int slot = findSlot(windowHash[w]);
+        int[] result = new int[slotCount[slot]];
+        int n = 0;
+        byte[] tile = new byte[tileSize];
+        byte[] other = new byte[tileSize];
+        image.read(offset, tile, 0, tileSize);
+        for (int v=slotHead[slot]; v>=0; v=windowNext[v]) {
+            int ofs = phase + (v * tileSize);
+            if (v != w) {
+                image.read(ofs, other, 0, tileSize);
+                if (!Arrays.equals(tile, other)) continue;
+            }
+            result[n++] = ofs;
+        }
+        int[] occurrences = new int[n];
+        System.arraycopy(result, 0, occurrences, 0, n);
+        Arrays.sort(occurrences);
+        return occurrences;
+    }
+
+/**
+*
+* Gets the window that starts at the given offset, or -1 if there is none.
+*
+**/
+
+    private int windowAt(int offset) {
+        if (!ready || (offset < phase) || ((offset - phase) % tileSize != 0)) return -1;
+        int w = (offset - phase) / tileSize;
+        return (w < count) ? w : -1;
+    }
+
+/**
+*
+* Computes the hash of the tileSize bytes starting at bits[ofs].
+*
+**/
+
+    private int hash(byte[] bits, int ofs) {
+        int h = 0;
+        for (int i=0; i<tileSize; i++) {
+            h = (h * HASH_BASE) + (bits[ofs + i] & 0xFF);
+        }
+        // spread the bits, for the slot index
+        h ^= (h >>> 16);
+        h *= 0x85EBCA6B;
+        h ^= (h >>> 13);
+        return h;
+    }
+
+/**
+*
+* (Re)allocates an empty slot table with room for the given number of
+* distinct hashes.
+*
+**/
+
+    private void allocateSlots(int n) {
+        int capacity = 16;
+        while (capacity < n * 2) capacity <<= 1;
+        slotKey = new int[capacity];
+        slotHead = new int[capacity];
+        slotCount = new int[capacity];
+        Arrays.fill(slotCount, -1);
+        usedSlots = 0;
+    }
+
+/**
+*
+* Gets the slot that holds the given hash, claiming an empty one if there is
+* none.
+*
+**/
+
+    private int findSlot(int h) {
+        int mask = slotKey.length - 1;
+        int slot = h & mask;
+        while ((slotCount[slot] >= 0) && (slotKey[slot] != h)) {
+            slot = (slot + 1) & mask;
+        }
+        if (slotCount[slot] < 0) {
+            slotKey[slot] = h;
+            slotHead[slot] = -1;
+            slotCount[slot] = 0;
+            usedSlots++;
+        }
+        return slot;
+    }
+
+/**
+*
+* Adds window w to the front of the list for its hash.
+*
+**/
+
+    private void link(int w) {
+        if (usedSlots * 4 >= slotKey.length * 3) {
+            rehash();   // links w as well
+            return;
+        }
+        int slot = findSlot(windowHash[w]);
+        windowPrev[w] = -1;
+        windowNext[w] = slotHead[slot];
+        if (slotHead[slot] >= 0) windowPrev[slotHead[slot]] = w;
+        slotHead[slot] = w;
+        slotCount[slot]++;
+    }
+
+/**
+*
+* Removes window w from the list for its hash.
+*
+**/
+
+    private void unlink(int w) {
+        int slot = findSlot(windowHash[w]);
+        if (windowPrev[w] >= 0) windowNext[windowPrev[w]] = windowNext[w];
+        else slotHead[slot] = windowNext[w];
+        if (windowNext[w] >= 0) windowPrev[windowNext[w]] = windowPrev[w];
+        slotCount[slot]--;
+    }
+
+/**
+*
+* Rebuilds the slot table from the windows' current hashes, dropping the
+* hashes that no window has anymore. Hashes are never removed from the table
+* as windows change, so it eventually fills up with them.
+*
+**/
+
+    private void rehash() {
+        allocateSlots(count);
+        for (int w=count-1; w>=0; w--) {
+            int slot = findSlot(windowHash[w]);
+            windowPrev[w] = -1;
+            windowNext[w] = slotHead[slot];
+            if (slotHead[slot] >= 0) windowPrev[slotHead[slot]] = w;
+            slotHead[slot] = w;
+            slotCount[slot]++;
+        }
+    }
+
+}
@@ -19,6 +19,7 @@
 package tm;
 
 import tm.ui.TMSettings;
+import tm.ui.TMSplashScreen;
 import tm.ui.TMTheme;
 import tm.ui.TMUI;
 
@@ -49,6 +50,7 @@ public class TileMolester {
 	Logger mLog = Logger.getGlobal();
 	ClassLoader cl = getClass().getClassLoader();
 	public static TMSettings settings;
+	private static long startTime;   // System.nanoTime() when main() was entered
 	
 	public TileMolester() {
 		if(SystemInfo.isMacOS) {
@@ -71,16 +73,30 @@ public class TileMolester {
 		
 		settings = new TMSettings();
 		new TMTheme();
-		new TMUI();
+		TMSplashScreen splash = new TMSplashScreen(null);
+		TMUI ui = new TMUI();
+		long millis = (System.nanoTime() - startTime) / 1000000;
+		String status = ui.xlate("Startup_Time") + " " + millis + " ms, "
+				+ ui.xlate("Codec_Registry_Time") + " " + TMSpecReader.getReadTime() + " ms";
+		if (TMSpecReader.wasReadFromCache()) {
+			status += " (" + ui.xlate("Cached") + ")";
+		}
+		splash.startupFinished(status);
 	}
 
 	/**
 	 *
-	 * Starts up the program.
+	 * Starts up the program, or runs a batch job without the user interface
+	 * if the first argument is a batch command (see TMBatch).
 	 *
 	 **/
 
 	public static void main(String[] args) {
+		startTime = System.nanoTime();
+		if ((args.length > 0) && TMBatch.isBatchCommand(args[0])) {
+			TMBatch.main(args);
+			return;
+		}
 		new TileMolester();
 	}
 
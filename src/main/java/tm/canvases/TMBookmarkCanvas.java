@@ -0,0 +1,154 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.canvases;
+
+import tm.TMPalette;
+import tm.tilecodecs.TileCodec;
+import tm.treenodes.BookmarkItemNode;
+
+/**
+*
+* Tile canvas laid out according to a bookmark: grid size, block arrangement,
+* mode, codec, swizzle pattern and palette index.
+* Used to render (and encode) bookmarks without an editor canvas, e.g. when
+* exporting them in the background.
+*
+**/
+
+public class TMBookmarkCanvas extends TMTileCanvas {
+
+    private int blockWidth;
+    private int blockHeight;
+    private boolean rowInterleaved;
+
+/**
+*
+* Creates a canvas for the given bookmark, with <code>bits</code> as the
+* encoded tile data. The offset is set to the one of the bookmark.
+*
+**/
+
+    public TMBookmarkCanvas(byte[] bits, BookmarkItemNode bookmark, TMPalette palette) {
+        super(bits);
+        int cols = bookmark.getCols();
+        int rows = bookmark.getRows();
+        if (bookmark.getSizeBlockToCanvas()) {
+            blockWidth = cols;
+            blockHeight = rows;
+        }
+        else {
+            blockWidth = bookmark.getBlockWidth();
+            blockHeight = bookmark.getBlockHeight();
+        }
+        blockWidth = Math.max(1, blockWidth);
+        blockHeight = Math.max(1, blockHeight);
+        rowInterleaved = bookmark.getRowInterleaved();
+        setCodec(bookmark.getCodec());
+        setSwizzlePattern(bookmark.getSwizzlePattern());
+        setMode(bookmark.getMode());
+        setGridSize(cols, rows);
+        setPalette(palette);
+        setPalIndex(bookmark.getPalIndex());
+        setOffset(bookmark.getOffset());
+    }
+
+/**
+*
+* Decodes the tiles to the canvas pixels.
+*
+**/
+
+    public void render() {
+        unpackPixels();
+    }
+
+/**
+*
+* Encodes the canvas pixels to the tiles.
+*
+**/
+
+    public void encode() {
+        packPixels();
+    }
+
+/**
+*
+* Gets the number of data bytes, from the offset, that tiles of the canvas
+* can be fetched from. Blocks that don't fit the grid entirely still take
+* up the space of whole blocks.
+*
+**/
+
+    public int getDataExtent() {
+        int blockCols = (cols + blockWidth - 1) / blockWidth;
+        int blockRows = (rows + blockHeight - 1) / blockHeight;
+        return blockCols * blockWidth * blockRows * blockHeight * codec.getTileSize();
+    }
+
+/**
+*
+* Gets the offset of the tile at (x, y), arranged in blocks the same way
+* as in TMEditorCanvas.
+*
+**/
+
+    protected int getTileBitsOffset(int x, int y) {
+        int blockRowSize = blockHeight * getRowSize();
+        int blockLineSize = blockWidth * codec.getTileSize();
+        int blockSize = blockHeight * blockLineSize;
+
+        // point relOfs to beginning of relevant block data
+        int relOfs = ((y / blockHeight) * blockRowSize) + ((x / blockWidth) * blockSize);
+
+        // point to tile within block
+        int tileX = x % blockWidth;
+        int tileY = y % blockHeight;
+        if (rowInterleaved) {
+            // point to relevant set of (even,odd) row-tuple
+            relOfs += (tileY >> 1) * (blockLineSize << 1);
+            tileX <<= 1;
+            if ((mode == TileCodec.MODE_2D) && (tileX >= blockWidth)) {
+                relOfs += blockLineSize;
+                tileX -= blockWidth;
+            }
+            if ((tileY % 2) != 0) {
+                // odd tile (1, 3, 5, ...)
+                tileX++;
+            }
+            relOfs += tileX * getTileIncrement();
+        }
+        else {
+            relOfs += (tileY * blockLineSize) + (tileX * getTileIncrement());
+        }
+
+        int absOfs = relOfs + offset;
+        // range check
+        int limit = 0;
+        if (mode == TileCodec.MODE_1D) {
+            limit = getDataSize() - codec.getTileSize();
+        }
+        else {
+            limit = getDataSize() - getRowIncrement();
+        }
+        if ((absOfs >= 0) && (absOfs <= limit)) return absOfs - bitsBase;
+        return -1;
+    }
+
+}
@@ -18,7 +18,9 @@
 
 package tm.canvases;
 
+import tm.FileImage;
 import tm.TMPalette;
+import tm.TileIndex;
 import tm.ui.TMUI;
 import tm.ui.TMView;
 import tm.tilecodecs.TileCodec;
@@ -26,7 +28,7 @@ import tm.treenodes.*;
 import tm.reversibleaction.*;
 import tm.utils.TMTools;
 
-import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.Vector;
 import javax.swing.*;
 import javax.swing.event.*;
@@ -61,19 +63,30 @@ public class TMEditorCanvas extends TMTileCanvas implements MouseInputListener {
 
     private TMUI ui;
     private TMView view;
+    private FileImage fileImage;
 
     private Point moveViewPoint;
     private Point moveMousePoint;
 
     private Vector modifiedTiles = new Vector(); // tiles modified by operation
-    private Vector modifiedPixels = new Vector();
     private Point[][] gridCoords;
 
+    // per-tile flags, indexed by row * cols + col
+    private static final int TILE_MODIFIED = 1;  // in modifiedTiles
+    private static final int TILE_DIRTY = 2;     // pixels changed since they were last shown
+    private byte[] tileFlags = new byte[0];
+    private int dirtyRowMin = Integer.MAX_VALUE;
+    private int dirtyRowMax = -1;
+    private int encodedStart = Integer.MAX_VALUE;   // range of bits encoded to by the last packPixels()
+    private int encodedEnd = -1;
+
     private int blockWidth=1;
     private int blockHeight=1;
     private boolean rowInterleaved=false;
-    private String swizzlePattern = tm.tilecodecs.TileCodec.SWIZZLE_NONE;
 	private boolean showBlockGrid=false;
+    private boolean showDuplicateTiles=false;
+    private boolean editAllCopies=false;
+    private static final Color DUPLICATE_COLOR = new Color(255, 0, 255, 80);
 
 /**
 *
@@ -82,9 +95,10 @@ public class TMEditorCanvas extends TMTileCanvas implements MouseInputListener {
 **/
 
     public TMEditorCanvas(TMUI ui, TMView view) {
-        super(view.getFileImage().getContents());
+        super(view.getFileImage().isMapped() ? new byte[0] : view.getFileImage().getContents());
         this.ui = ui;
         this.view = view;
+        this.fileImage = view.getFileImage();
         selectionCanvas = null;
         addMouseListener(this);
         addMouseMotionListener(this);
@@ -107,6 +121,7 @@ public class TMEditorCanvas extends TMTileCanvas implements MouseInputListener {
 
     public void paintComponent(Graphics g) {
 		super.paintComponent(g);
+        drawDuplicateTiles(g);
         drawBlockGrid(g);
         drawIntermediateSelection(g);
 	}
@@ -136,6 +151,40 @@ public class TMEditorCanvas extends TMTileCanvas implements MouseInputListener {
         }
     }
 
+/**
+*
+* Shades the tiles whose data occurs elsewhere in the file too.
+*
+**/
+
+    private void drawDuplicateTiles(Graphics g) {
+        if (!showDuplicateTiles) return;
+        TileIndex index = getTileIndex();
+        if ((index == null) || !index.isReady()) return;
+        int tileWidth = codec.getTileWidth();
+        int tileHeight = codec.getTileHeight();
+        int firstRow = 0, lastRow = rows - 1;
+        int firstCol = 0, lastCol = cols - 1;
+        Rectangle clip = g.getClipBounds();
+        if (clip != null) {
+            firstRow = Math.max(firstRow, (int)(clip.y / (scale * tileHeight)));
+            lastRow = Math.min(lastRow, (int)((clip.y + clip.height) / (scale * tileHeight)));
+            firstCol = Math.max(firstCol, (int)(clip.x / (scale * tileWidth)));
+            lastCol = Math.min(lastCol, (int)((clip.x + clip.width) / (scale * tileWidth)));
+        }
+        g.setColor(DUPLICATE_COLOR);
+        for (int row=firstRow; row<=lastRow; row++) {
+            for (int col=firstCol; col<=lastCol; col++) {
+                int ofs = getTileOffset(col, row);
+                if ((ofs >= 0) && index.hasDuplicate(ofs)) {
+                    int x = (int)(col * scale * tileWidth);
+                    int y = (int)(row * scale * tileHeight);
+                    g.fillRect(x, y, (int)((col + 1) * scale * tileWidth) - x, (int)((row + 1) * scale * tileHeight) - y);
+                }
+            }
+        }
+    }
+
 /**
 *
 * Draws a frame around the current selection, if there is one.
@@ -272,14 +321,14 @@ public class TMEditorCanvas extends TMTileCanvas implements MouseInputListener {
             case BRUSH_TOOL:
                 colorDraw = getDrawColor(e.getButton());
                 drawLine(x, y, x, y, true);
-                redraw();
+                redrawDirtyTiles();
                 lineX1 = x;
                 lineY1 = y;
                 break;
             case LINE_TOOL:
                 colorDraw = getDrawColor(e.getButton());
                 drawLine(x, y, x, y, false);
-                redraw();
+                redrawDirtyTiles();
                 lineX1 = x;
                 lineY1 = y;
                 lineX2 = x;
@@ -356,7 +405,7 @@ public class TMEditorCanvas extends TMTileCanvas implements MouseInputListener {
                 break;
             case BRUSH_TOOL:
                 drawLine(lineX1, lineY1, x, y, true);
-                redraw();
+                redrawDirtyTiles();
                 lineX1 = x;
                 lineY1 = y;
                 break;
@@ -369,7 +418,7 @@ public class TMEditorCanvas extends TMTileCanvas implements MouseInputListener {
                         drawLine(lineX1, lineY1, x, y, false);
                         lineX2 = x;
                         lineY2 = y;
-                        redraw();
+                        redrawDirtyTiles();
                     }
                 }
             case MOVE_TOOL:
@@ -594,20 +643,14 @@ public class TMEditorCanvas extends TMTileCanvas implements MouseInputListener {
             if (dy < 0) {
                 double i = x2;
                 for (int j=y2; j<=y1; j++) {
-                    if (trace)
-                        setPixelTraceable((int)i, j, colorDraw);
-                    else
-                        xorPixel((int)i, j);
+                    plotLinePixel((int)i, j, trace);
                     i += delta;
                 }
             }
             else {
                 double i = x1;
                 for (int j=y1; j<=y2; j++) {
-                    if (trace)
-                        setPixelTraceable((int)i, j, colorDraw);
-                    else
-                        xorPixel((int)i, j);
+                    plotLinePixel((int)i, j, trace);
                     i += delta;
                 }
             }
@@ -617,26 +660,39 @@ public class TMEditorCanvas extends TMTileCanvas implements MouseInputListener {
             if (dx < 0) {
                 double j = y2;
                 for (int i=x2; i<=x1; i++) {
-                    if (trace)
-                        setPixelTraceable(i, (int)j, colorDraw);
-                    else
-                        xorPixel(i, (int)j);
+                    plotLinePixel(i, (int)j, trace);
                     j += delta;
                 }
             }
             else {
                 double j = y1;
                 for (int i=x1; i<=x2; i++) {
-                    if (trace)
-                        setPixelTraceable(i, (int)j, colorDraw);
-                    else
-                        xorPixel(i, (int)j);
+                    plotLinePixel(i, (int)j, trace);
                     j += delta;
                 }
             }
         }
     }
 
+/**
+*
+* Plots one pixel of a line: drawn for good if <code>trace</code> is true,
+* otherwise XORed so that it can be erased again.
+*
+**/
+
+    private void plotLinePixel(int x, int y, boolean trace) {
+        if (trace) {
+            setPixelTraceable(x, y, colorDraw);
+        }
+        else {
+            xorPixel(x, y);
+            int tileWidth = (codec != null) ? codec.getTileWidth() : 8;
+            int tileHeight = (codec != null) ? codec.getTileHeight() : 8;
+            tileDirty(x/tileWidth, y/tileHeight);
+        }
+    }
+
 /**
 *
 * Sets the pixel at coordinate (x,y) in the canvas to the specified value,
@@ -656,23 +712,62 @@ public class TMEditorCanvas extends TMTileCanvas implements MouseInputListener {
 /**
 *
 * Marks the tile at location (col,row) in the grid as modified.
+* Modified tiles are also dirty, i.e. need to be shown again.
 *
 **/
 
     private void tileModified(int col, int row) {
-        Point p = gridCoords[row][col];
-        if (!modifiedTiles.contains(p)) {
-            modifiedTiles.add(p);
-            // save original pixels
-            int tileWidth = (codec != null) ? codec.getTileWidth() : 8;
-            int tileHeight = (codec != null) ? codec.getTileHeight() : 8;
-            int tileSize = tileWidth * tileHeight;
-            int[] tempPixels = new int[tileSize];
-            copyTilePixelsToBuffer(col, row, tempPixels, 0);
-            IntBuffer ib = IntBuffer.allocate(tileSize);
-            ib.put(tempPixels);
-            modifiedPixels.add(ib);
+        if ((col < 0) || (row < 0) || (col >= cols) || (row >= rows)) return;
+        int i = (row * cols) + col;
+        if ((tileFlags[i] & TILE_MODIFIED) == 0) {
+            tileFlags[i] |= TILE_MODIFIED;
+            modifiedTiles.add(gridCoords[row][col]);
+        }
+        tileDirty(col, row);
+    }
+
+/**
+*
+* Marks the tile at location (col,row) in the grid as dirty: its pixels have
+* changed and have to be pushed to the image by redrawDirtyTiles().
+*
+**/
+
+    private void tileDirty(int col, int row) {
+        if ((col < 0) || (row < 0) || (col >= cols) || (row >= rows)) return;
+        tileFlags[(row * cols) + col] |= TILE_DIRTY;
+        dirtyRowMin = Math.min(dirtyRowMin, row);
+        dirtyRowMax = Math.max(dirtyRowMax, row);
+    }
+
+/**
+*
+* Pushes the pixels of the dirty tiles to the image and repaints just those
+* parts of the canvas. Runs of dirty tiles in a row are updated together.
+*
+**/
+
+    private void redrawDirtyTiles() {
+        int tileWidth = (codec != null) ? codec.getTileWidth() : 8;
+        int tileHeight = (codec != null) ? codec.getTileHeight() : 8;
+        for (int row=dirtyRowMin; row<=dirtyRowMax; row++) {
+            int col = 0;
+            while (col < cols) {
+                int i = (row * cols) + col;
+                if ((tileFlags[i] & TILE_DIRTY) == 0) {
+                    col++;
+                    continue;
+                }
+                int first = col;
+                while ((col < cols) && ((tileFlags[(row * cols) + col] & TILE_DIRTY) != 0)) {
+                    tileFlags[(row * cols) + col] &= ~TILE_DIRTY;
+                    col++;
+                }
+                redraw(first * tileWidth, row * tileHeight, (col - first) * tileWidth, tileHeight);
+            }
         }
+        dirtyRowMin = Integer.MAX_VALUE;
+        dirtyRowMax = -1;
     }
 
 /**
@@ -737,36 +832,93 @@ public class TMEditorCanvas extends TMTileCanvas implements MouseInputListener {
         // Undo-stuff
         BookmarkItemNode bookmark = view.createBookmark("");
 
-        Point[] pts = new Point[modifiedTiles.size()];
-        int tileWidth = (codec != null) ? codec.getTileWidth() : 8;
-        int tileHeight = (codec != null) ? codec.getTileHeight() : 8;
-        int tileSize = tileWidth * tileHeight;
-        int[] oldPix = new int[pts.length * tileSize];
-        int[] newPix = new int[pts.length * tileSize];
-
+        syncWindow(false);
+        int extent = (codec != null) ? codec.getTileSize() * (getStride() + 1) : 0;
+        int[] tiles = new int[modifiedTiles.size()];    // data offsets of the modified tiles
+        int tileCount = 0;
         for (int i=0; i<modifiedTiles.size(); i++) {
             Point p = (Point)modifiedTiles.elementAt(i);
-            pts[i] = new Point(p);
-
-            IntBuffer ib = (IntBuffer)modifiedPixels.elementAt(i);
-            System.arraycopy(ib.array(), 0, oldPix, i * tileSize, tileSize);
+            int ofs = getTileBitsOffset(p.x, p.y);
+            if (ofs >= 0) {
+                tiles[tileCount++] = bitsBase + ofs;
+            }
+        }
+        Arrays.sort(tiles, 0, tileCount);
+
+        // when editing all copies, the other places in the file that hold
+        // the same data as a modified tile get its new data as well
+        Vector copies = new Vector();   // {offset of the copy, offset of the tile}
+        TileIndex index = editAllCopies ? getTileIndex() : null;
+        if ((index != null) && index.isReady()) {
+            for (int i=0; i<tileCount; i++) {
+                int[] occurrences = index.getOccurrences(tiles[i]);
+                for (int j=0; j<occurrences.length; j++) {
+                    if (Arrays.binarySearch(tiles, 0, tileCount, occurrences[j]) < 0) {
+                        copies.add(new int[] { occurrences[j], tiles[i] });
+                    }
+                }
+            }
+        }
 
-            copyTilePixelsToBuffer(p.x, p.y, newPix, i * tileSize);
+        // snapshot the data the tiles and copies are encoded to; each gets
+        // its own range (merged with the ones it touches), so that undo
+        // doesn't put back bytes in between that were left alone
+        int count = tileCount + copies.size();
+        int[] starts = new int[count];
+        System.arraycopy(tiles, 0, starts, 0, tileCount);
+        for (int i=0; i<copies.size(); i++) {
+            starts[tileCount + i] = ((int[])copies.get(i))[0];
+        }
+        Arrays.sort(starts);
+        Vector snapshots = new Vector();
+        int i = 0;
+        while (i < count) {
+            int start = starts[i];
+            int end = start + extent;
+            while ((++i < count) && (starts[i] <= end)) {
+                end = Math.max(end, starts[i] + extent);
+            }
+            end = Math.min(end, fileImage.getSize());
+            if (start < end) {
+                byte[] before = new byte[end - start];
+                fileImage.read(start, before, 0, before.length);
+                snapshots.add(new ByteSnapshot(start, before));
+            }
+        }
 
+        for (i=0; i<modifiedTiles.size(); i++) {
+            Point p = (Point)modifiedTiles.elementAt(i);
             packTile(p.x, p.y);
         }
+        if (copies.size() > 0) {
+            byte[] tile = new byte[extent];
+            for (i=0; i<copies.size(); i++) {
+                int[] copy = (int[])copies.get(i);
+                fileImage.read(copy[1], tile, 0, extent);
+                fileImage.write(copy[0], tile, 0, extent);
+            }
+            // copies in the grid show the old data until redecoded
+            unpackPixels();
+            redraw();
+        }
 
+        ByteSnapshot[] snapshotArray = new ByteSnapshot[snapshots.size()];
+        snapshots.toArray(snapshotArray);
             ReversibleTileModifyAction rtma = new ReversibleTileModifyAction(
-                    name, this, bookmark, pts, oldPix, newPix
+                    name, this, bookmark, snapshotArray
             );
         if (undoable) { //TODO: maybe will cause mem leak
             view.addReversibleAction(rtma);
         }
 
-        redraw();
+        // show the modified tiles that haven't been shown yet
+        redrawDirtyTiles();
 
+        for (i=0; i<modifiedTiles.size(); i++) {
+            Point p = (Point)modifiedTiles.elementAt(i);
+            tileFlags[(p.y * cols) + p.x] &= ~TILE_MODIFIED;
+        }
         modifiedTiles.clear();
-        modifiedPixels.clear();
         return rtma; //Dirty fix; should return something simpler
     }
 
@@ -863,9 +1015,10 @@ public class TMEditorCanvas extends TMTileCanvas implements MouseInputListener {
         for (int i=y1; i<y2; i++) {
             for (int j=x1; j<x2; j++) {
                 packTile(j, i);
+                tileDirty(j, i);
             }
         }
-        redraw();
+        redrawDirtyTiles();
     }
 /**
  *
@@ -911,7 +1064,7 @@ public class TMEditorCanvas extends TMTileCanvas implements MouseInputListener {
         int dim = getScaledTileDim();
         selectionCanvas.setLocation(x*dim, y*dim);
         selectionCanvas.setVisible(true);
-        redraw();
+        repaint(selectionCanvas.getBounds());
     }
 
 /**
@@ -1024,6 +1177,7 @@ public ReversibleTileModifyAction encodeSelection()
 
         // remove the selection
         remove(selectionCanvas);
+        repaint(selectionCanvas.getBounds());
 
         return modifiedTiles;
     }
@@ -1423,6 +1577,10 @@ public ReversibleTileModifyAction encodeSelection()
         super.setGridSize(cols, rows);
 
         gridCoords = new Point[rows][cols];
+        tileFlags = new byte[rows * cols];
+        modifiedTiles.clear();
+        dirtyRowMin = Integer.MAX_VALUE;
+        dirtyRowMax = -1;
         for (int i=0; i<rows; i++) {
             for (int j=0; j<cols; j++) {
                 gridCoords[i][j] = new Point(j, i);
@@ -1497,15 +1655,175 @@ public ReversibleTileModifyAction encodeSelection()
         // range check
         int limit = 0;
         if (mode == TileCodec.MODE_1D) {
-            limit = bits.length - codec.getTileSize();
+            limit = getDataSize() - codec.getTileSize();
         }
         else {
-            limit = bits.length - getRowIncrement();
+            limit = getDataSize() - getRowIncrement();
         }
-        if (absOfs <= limit) return absOfs;
+        if (absOfs <= limit) return absOfs - bitsBase;
         return -1;
     }
 
+/**
+*
+* Gets the total size of the data that tiles are fetched from.
+*
+**/
+
+    protected int getDataSize() {
+        if (fileImage.isMapped()) {
+            return fileImage.getSize();
+        }
+        return bits.length;
+    }
+
+/**
+*
+* Makes sure the bits buffer holds the data that the current grid is
+* decoded from. For a heap-backed FileImage this is the contents array
+* itself; for a memory-mapped one it is a window starting at the current
+* offset, which is refetched if <code>reload</code> is true or if it no
+* longer covers the grid.
+*
+**/
+
+    private void syncWindow(boolean reload) {
+        if (!fileImage.isMapped()) {
+            // the contents may have been moved to the heap since the last call
+            byte[] contents = fileImage.getContents();
+            if ((contents != null) && (bits != contents)) {
+                bits = contents;
+                bitsBase = 0;
+            }
+            return;
+        }
+        if (codec == null) return;
+        int end = (int)Math.min((long)fileImage.getSize(), (long)offset + getPageSpan());
+        int len = Math.max(0, end - offset);
+        if (reload || (bitsBase != offset) || (bits.length != len)) {
+            if (bits.length != len) {
+                bits = new byte[len];
+            }
+            fileImage.read(offset, bits, 0, len);
+            bitsBase = offset;
+        }
+    }
+
+/**
+*
+* Gets the number of bytes from the current offset that the grid can be
+* decoded from.
+*
+**/
+
+    private int getPageSpan() {
+        // blocks that are cut off by the grid edge can reach past the page
+        return getPageSize() + (blockHeight + 1) * getRowSize();
+    }
+
+/**
+*
+* Writes the given range of the bits window back to a memory-mapped FileImage.
+*
+**/
+
+    private void storeWindow(int ofs, int len) {
+        if (fileImage.isMapped() && (ofs >= 0)) {
+            len = Math.min(len, bits.length - ofs);
+            if (len > 0) {
+                fileImage.write(bitsBase + ofs, bits, ofs, len);
+            }
+        }
+    }
+
+/**
+*
+* Notifies the canvas that the ranges of the file covered by the given
+* snapshots have been changed other than by encoding the canvas' pixels
+* (i.e. by undo or redo), and redecodes the tiles.
+*
+**/
+
+    public void dataChanged(ByteSnapshot[] snapshots) {
+        for (int i=0; i<snapshots.length; i++) {
+            tilesEncoded(snapshots[i].getStart() - bitsBase, snapshots[i].getEnd() - bitsBase);
+        }
+        unpackPixels();
+    }
+
+/**
+*
+* Decodes tile data to pixel buffer.
+*
+**/
+
+    public void unpackPixels() {
+        syncWindow(true);
+        super.unpackPixels();
+    }
+
+/**
+*
+* Encodes tile data.
+*
+**/
+
+    public void packPixels() {
+        syncWindow(false);
+        int start = offset;
+        byte[] old = saveBytes(start, offset + getPageSpan());
+        encodedStart = Integer.MAX_VALUE;
+        encodedEnd = -1;
+        super.packPixels();
+        if (encodedStart < encodedEnd) {
+            // only the encoded tiles; the rest of the window may be out of date
+            storeWindow(encodedStart, encodedEnd - encodedStart);
+        }
+        if (old != null) {
+            fileImage.bytesReplaced(start, old);
+        }
+    }
+
+/**
+*
+* Encodes the specified tile.
+*
+**/
+
+    public void packTile(int x, int y) {
+        syncWindow(false);
+        int ofs = (codec != null) ? getTileBitsOffset(x, y) : -1;
+        int len = (codec != null) ? codec.getTileSize() * (getStride() + 1) : 0;
+        byte[] old = (ofs >= 0) ? saveBytes(bitsBase + ofs, bitsBase + ofs + len) : null;
+        super.packTile(x, y);
+        if (codec != null) {
+            storeWindow(ofs, len);
+        }
+        if (old != null) {
+            fileImage.bytesReplaced(bitsBase + ofs, old);
+        }
+    }
+
+/**
+*
+* Copies the bytes from <code>start</code> to <code>end</code> of a
+* heap-backed FileImage before they are encoded to in place, if the
+* FileImage wants to hear about changes (see FileImage.bytesReplaced()).
+* Returns null otherwise. Changes to a memory-mapped FileImage go through
+* FileImage.write(), which takes care of this itself.
+*
+**/
+
+    private byte[] saveBytes(int start, int end) {
+        if (fileImage.isMapped() || !fileImage.isWatched()) return null;
+        start = Math.max(0, start);
+        end = Math.min(end, fileImage.getSize());
+        if (start >= end) return null;
+        byte[] old = new byte[end - start];
+        fileImage.read(start, old, 0, old.length);
+        return old;
+    }
+
 /**
 *
 * Gets the stride.
@@ -1516,6 +1834,96 @@ public ReversibleTileModifyAction encodeSelection()
         return (mode == TileCodec.MODE_1D) ? 0 : blockWidth-1;
     }
 
+/**
+*
+* Tiles are cached per FileImage and modification count, so any change to the
+* image (see FileImage.markDirty()) makes the tiles decoded before it
+* unreachable.
+*
+**/
+
+    protected long getTileCacheSource() {
+        return ((long)fileImage.getID() << 32) | (fileImage.getVersion() & 0xFFFFFFFFL);
+    }
+
+/**
+*
+* Records the encoded range as changed in the FileImage, so that it is
+* written on the next save, and as to be written back by packPixels().
+*
+**/
+
+    protected void tilesEncoded(int start, int end) {
+        super.tilesEncoded(start, end);
+        encodedStart = Math.min(encodedStart, start);
+        encodedEnd = Math.max(encodedEnd, end);
+        fileImage.markDirty(bitsBase + start, bitsBase + end);
+        if (showDuplicateTiles) {
+            // tiles elsewhere in the grid may have gained or lost their twin
+            repaint();
+        }
+    }
+
+/**
+*
+* Gets the file offset of the data for the tile at position (col,row) in
+* the grid, or -1 if it lies outside the data.
+*
+**/
+
+    public int getTileOffset(int col, int row) {
+        if ((codec == null) || (col < 0) || (row < 0) || (col >= cols) || (row >= rows)) return -1;
+        int ofs = getTileBitsOffset(col, row);
+        return (ofs >= 0) ? bitsBase + ofs : -1;
+    }
+
+/**
+*
+* Gets the index of the file's tiles that lines up with the grid, or null
+* if there can't be one. The index only covers tiles stored as contiguous
+* bytes, i.e. 1-dimensional mode, and isn't built for files with very many
+* tiles (see FileImage.getTileIndex()).
+*
+**/
+
+    public TileIndex getTileIndex() {
+        if ((codec == null) || (mode != TileCodec.MODE_1D)) return null;
+        return fileImage.getTileIndex(codec.getTileSize(), offset);
+    }
+
+/**
+*
+* Gets the number of tile rows to scroll by for the block layout to repeat.
+* Blocks that span the whole grid width stack like plain rows; otherwise
+* (or when rows are interleaved) only whole rows of blocks line up.
+*
+**/
+
+    protected int getScrollUnitRows() {
+        if ((blockWidth == cols) && !rowInterleaved) {
+            return 1;
+        }
+        return blockHeight;
+    }
+
+/**
+*
+* Adds the block layout and the image's modification count to the settings
+* that decoded rows depend on.
+*
+**/
+
+    protected Object[] getDecodeState() {
+        Object[] state = super.getDecodeState();
+        Object[] result = new Object[state.length + 4];
+        System.arraycopy(state, 0, result, 0, state.length);
+        result[state.length] = Integer.valueOf(blockWidth);
+        result[state.length + 1] = Integer.valueOf(blockHeight);
+        result[state.length + 2] = Boolean.valueOf(rowInterleaved);
+        result[state.length + 3] = Integer.valueOf(fileImage.getVersion());
+        return result;
+    }
+
 /**
 *
 * Turns the block grid on or off.
@@ -1526,6 +1934,48 @@ public ReversibleTileModifyAction encodeSelection()
         this.showBlockGrid = showBlockGrid;
     }
 
+/**
+*
+* Turns highlighting of duplicate tiles on or off.
+*
+**/
+
+    public void setDuplicateTilesVisible(boolean showDuplicateTiles) {
+        this.showDuplicateTiles = showDuplicateTiles;
+    }
+
+/**
+*
+* Gets whether duplicate tiles are highlighted.
+*
+**/
+
+    public boolean isDuplicateTilesVisible() {
+        return showDuplicateTiles;
+    }
+
+/**
+*
+* Sets whether drawing on a tile also changes the other places in the file
+* that hold the same data (see FileImage.getTileIndex()). This is only done
+* in 1-dimensional mode, once the index has been built.
+*
+**/
+
+    public void setEditAllCopies(boolean editAllCopies) {
+        this.editAllCopies = editAllCopies;
+    }
+
+/**
+*
+* Gets whether drawing on a tile also changes its copies.
+*
+**/
+
+    public boolean getEditAllCopies() {
+        return editAllCopies;
+    }
+
 /**
 *
 * Gets the visibility status of the block grid.
@@ -1587,27 +2037,4 @@ public ReversibleTileModifyAction encodeSelection()
         return rowInterleaved;
     }
 
-/**
-*
-* Sets the swizzle pattern.
-*
-**/
-
-    public void setSwizzlePattern(String swizzlePattern) {
-        this.swizzlePattern = swizzlePattern;
-        if (codec != null) {
-            codec.setSwizzlePattern(swizzlePattern);
-        }
-    }
-
-/**
-*
-* Gets the swizzle pattern.
-*
-**/
-
-    public String getSwizzlePattern() {
-        return swizzlePattern;
-    }
-
 }
\ No newline at end of file
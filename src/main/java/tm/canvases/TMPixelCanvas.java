@@ -30,6 +30,12 @@ import java.awt.image.*;
 * graphics data, respectively.
 * Pixels must be decoded to 32-bit ARGB format (see implementation details below).
 *
+* The pixels array is the data buffer of an INT_RGB BufferedImage, so
+* changes to it show up in the image directly; subclasses only have to say
+* which part changed (see pixelsChanged()). The scaled frame is kept in a
+* VolatileImage where the display supports it, so repaints that don't
+* involve changed pixels are a single accelerated blit.
+*
 **/
 
 public abstract class TMPixelCanvas extends JPanel {
@@ -42,10 +48,15 @@ public abstract class TMPixelCanvas extends JPanel {
     protected int offset;   // starting offset in buffer
 
     protected int[] pixels;
-    protected MemoryImageSource source=null;
-    private Image image;
+    private BufferedImage image;
     private DirectColorModel colorModel;
 
+    // scaled frame cache
+    private static boolean volatileCacheEnabled = true;
+    private static final int MAX_CACHED_PIXELS = 16 * 1024 * 1024;
+    private VolatileImage frame;
+    private Rectangle stale;    // area of the frame (in canvas pixels) that must be rendered again
+
     private boolean showPixelGrid=false;
 
 /**
@@ -59,7 +70,7 @@ public abstract class TMPixelCanvas extends JPanel {
         this.bits = bits;
         setOffset(0);
         setLayout(null);
-        colorModel = new DirectColorModel(32, 0x00FF0000, 0x0000FF00, 0x000000FF, 0x00000000);
+        colorModel = new DirectColorModel(24, 0x00FF0000, 0x0000FF00, 0x000000FF);
         setBackground(Color.gray);
         setCanvasSize(0, 0);
         setScale(1.0);
@@ -76,7 +87,7 @@ public abstract class TMPixelCanvas extends JPanel {
         this.bits = bits;
         setOffset(0);
         setLayout(null);
-        colorModel = new DirectColorModel(32, 0x00FF0000, 0x0000FF00, 0x000000FF, 0x00000000);
+        colorModel = new DirectColorModel(24, 0x00FF0000, 0x0000FF00, 0x000000FF);
         setBackground(Color.gray);
         setCanvasSize(canvasWidth, canvasHeight);
         setScale(1.0);
@@ -94,9 +105,17 @@ public abstract class TMPixelCanvas extends JPanel {
 
         // create canvas image and initialize stuff
         pixels = new int[canvasWidth*canvasHeight];
-        source = new MemoryImageSource(canvasWidth, canvasHeight, colorModel, pixels, 0, canvasWidth);
-        source.setAnimated(true);
-        image = createImage(source);
+        if ((canvasWidth > 0) && (canvasHeight > 0)) {
+            // the raster shares the pixels array, alpha is ignored
+            WritableRaster raster = Raster.createPackedRaster(
+                new DataBufferInt(pixels, pixels.length), canvasWidth, canvasHeight, canvasWidth,
+                colorModel.getMasks(), null);
+            image = new BufferedImage(colorModel, raster, false, null);
+        }
+        else {
+            image = null;
+        }
+        pixelsChanged();
 
         setScale(scale);
     }
@@ -136,6 +155,7 @@ public abstract class TMPixelCanvas extends JPanel {
         int scaledWidth = (int)(canvasWidth*scale);
         int scaledHeight = (int)(canvasHeight*scale);
         setSize(scaledWidth, scaledHeight);
+        pixelsChanged();
     }
 
 /**
@@ -175,13 +195,89 @@ public abstract class TMPixelCanvas extends JPanel {
 
     public void paintComponent(Graphics g) {
         super.paintComponent(g);
-        g.drawImage(image, 0, 0, getWidth(), getHeight(), null);
+        if (image != null) {
+            if (!paintCachedFrame(g)) {
+                g.drawImage(image, 0, 0, getWidth(), getHeight(), null);
+            }
+        }
         // draw gridlines if necessary
         if (showPixelGrid) {
             drawPixelGrid(g);
         }
     }
 
+/**
+*
+* Paints the scaled frame from the VolatileImage cache, rendering the stale
+* part of it first.
+*
+* @return   false if the cache can't be used, and the image must be drawn directly
+*
+**/
+
+    private boolean paintCachedFrame(Graphics g) {
+        int w = getWidth();
+        int h = getHeight();
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        if (!volatileCacheEnabled || (gc == null) || (w <= 0) || (h <= 0)
+            || ((long)w * h > MAX_CACHED_PIXELS)) {
+            discardFrame();
+            return false;
+        }
+        do {
+            int status = (frame == null) ? VolatileImage.IMAGE_INCOMPATIBLE : frame.validate(gc);
+            if ((status == VolatileImage.IMAGE_INCOMPATIBLE)
+                || (frame.getWidth() != w) || (frame.getHeight() != h)) {
+                discardFrame();
+                try {
+                    frame = gc.createCompatibleVolatileImage(w, h);
+                }
+                catch (Exception e) {
+                    frame = null;
+                }
+                if (frame == null) return false;
+                stale = new Rectangle(0, 0, canvasWidth, canvasHeight);
+            }
+            else if (status == VolatileImage.IMAGE_RESTORED) {
+                stale = new Rectangle(0, 0, canvasWidth, canvasHeight);
+            }
+            if (stale != null) {
+                Graphics2D fg = frame.createGraphics();
+                if ((stale.width < canvasWidth) || (stale.height < canvasHeight)) {
+                    fg.clip(scaledBounds(stale.x, stale.y, stale.width, stale.height));
+                }
+                fg.drawImage(image, 0, 0, w, h, null);
+                fg.dispose();
+                stale = null;
+            }
+            g.drawImage(frame, 0, 0, null);
+        } while (frame.contentsLost());
+        return true;
+    }
+
+/**
+*
+* Releases the cached frame.
+*
+**/
+
+    private void discardFrame() {
+        if (frame != null) {
+            frame.flush();
+            frame = null;
+        }
+    }
+
+/**
+*
+* Turns the VolatileImage cache of the scaled frame on or off for all canvases.
+*
+**/
+
+    public static void setVolatileCacheEnabled(boolean enabled) {
+        volatileCacheEnabled = enabled;
+    }
+
 /**
 *
 * Draws pixel grid.
@@ -191,12 +287,22 @@ public abstract class TMPixelCanvas extends JPanel {
     private void drawPixelGrid(Graphics g) {
         if (scale < 8.0) return;    // don't show it for scales less than 8
         g.setColor(Color.gray);
+        // only the lines that cross the area being repainted
+        int firstRow = 1, lastRow = canvasHeight - 1;
+        int firstCol = 1, lastCol = canvasWidth - 1;
+        Rectangle clip = g.getClipBounds();
+        if (clip != null) {
+            firstRow = Math.max(firstRow, (int)(clip.y / scale));
+            lastRow = Math.min(lastRow, (int)((clip.y + clip.height) / scale) + 1);
+            firstCol = Math.max(firstCol, (int)(clip.x / scale));
+            lastCol = Math.min(lastCol, (int)((clip.x + clip.width) / scale) + 1);
+        }
         // draw horizontal lines
-        for (int i=1; i<canvasHeight; i++) {
+        for (int i=firstRow; i<=lastRow; i++) {
             g.fillRect(0, (int)(i*scale), getWidth(), 1);
         }
         // draw vertical lines
-        for (int i=1; i<canvasWidth; i++) {
+        for (int i=firstCol; i<=lastCol; i++) {
             g.fillRect((int)(i*scale), 0, 1, getHeight());
         }
     }
@@ -301,6 +407,16 @@ public abstract class TMPixelCanvas extends JPanel {
         return bits;
     }
 
+/**
+*
+* Gets the number of bytes taken up by the native data and pixel buffers.
+*
+**/
+
+    public int getBufferSize() {
+        return ((bits != null) ? bits.length : 0) + 4 * pixels.length;
+    }
+
 /**
 *
 * Updates the pixels and repaints the canvas.
@@ -308,13 +424,81 @@ public abstract class TMPixelCanvas extends JPanel {
 **/
 
     public void redraw() {
-        source.newPixels();
+        pixelsChanged();
         repaint();
     }
 
 /**
 *
-* Gets the image where the pixels are rendered.
+* Tells the canvas that all its pixels have changed, so that the cached
+* frame is rendered again on the next repaint.
+*
+**/
+
+    protected void pixelsChanged() {
+        stale = new Rectangle(0, 0, canvasWidth, canvasHeight);
+    }
+
+/**
+*
+* Tells the canvas that the pixels in the given rectangle (in canvas
+* pixels) have changed.
+*
+**/
+
+    protected void pixelsChanged(int x, int y, int w, int h) {
+        if (stale == null) {
+            stale = new Rectangle(x, y, w, h);
+        }
+        else {
+            stale.add(new Rectangle(x, y, w, h));
+        }
+    }
+
+/**
+*
+* Gets the area of the component that shows the given rectangle of canvas
+* pixels. Scaled pixels can straddle device pixels, so it is rounded
+* outwards.
+*
+**/
+
+    private Rectangle scaledBounds(int x, int y, int w, int h) {
+        int sx = (int)Math.floor(x * scale);
+        int sy = (int)Math.floor(y * scale);
+        int sw = (int)Math.ceil((x + w) * scale) - sx;
+        int sh = (int)Math.ceil((y + h) * scale) - sy;
+        return new Rectangle(sx, sy, sw + 1, sh + 1);
+    }
+
+/**
+*
+* Updates the pixels in the given rectangle (in canvas pixels) and repaints
+* only the part of the canvas that shows them.
+*
+**/
+
+    public void redraw(int x, int y, int w, int h) {
+        // clip to the canvas
+        if (x < 0) {
+            w += x;
+            x = 0;
+        }
+        if (y < 0) {
+            h += y;
+            y = 0;
+        }
+        w = Math.min(w, canvasWidth - x);
+        h = Math.min(h, canvasHeight - y);
+        if ((w <= 0) || (h <= 0)) return;
+        pixelsChanged(x, y, w, h);
+        repaint(scaledBounds(x, y, w, h));
+    }
+
+/**
+*
+* Gets the image where the pixels are rendered, or null if the canvas is
+* empty.
 *
 **/
 
@@ -20,8 +20,14 @@ package tm.canvases;
 
 import tm.TMPalette;
 import tm.tilecodecs.TileCodec;
-import tm.tilecodecs.SwizzleUtil;
+import tm.tilecodecs.SwizzleTable;
 import java.awt.*;
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
 *
@@ -38,12 +44,28 @@ public class TMTileCanvas extends TMPixelCanvas {
     protected int cols=0;
     protected int rows=0;
 
+    protected int bitsBase=0;   // data offset that bits[0] corresponds to
+
     protected TileCodec codec=null;
     protected TMPalette palette=null;
     protected int palIndex=0;
 
     private boolean showTileGrid=false;
 
+    private String swizzlePattern=TileCodec.SWIZZLE_NONE;  // one of the TileCodec constants
+    private SwizzleTable swizzleTable=null;    // cached for the current grid and swizzle settings
+
+    // incremental scrolling
+    private Object[] decodedState=null;    // settings the pixel buffer was last decoded with
+    private int decodedOffset=-1;          // offset the pixel buffer was last decoded at
+    private int scrollFrom=-1;             // previous offset while scrolling, see scrollTo()
+
+    // parallel rendering
+    private static final int PARALLEL_MIN_TILES = 256;  // smaller grids aren't worth splitting
+    private static int renderThreads = 1;
+    private static ForkJoinPool renderPool = null;
+    private static final ThreadLocal workerScratch = new ThreadLocal();
+
 /**
 *
 * Creates a tile pane, with <code>bits</code> as the encoded tile data source.
@@ -102,6 +124,7 @@ public class TMTileCanvas extends TMPixelCanvas {
             codec.setTileDimensions(this.codec.getTileWidth(), this.codec.getTileHeight());
         }
         this.codec = codec;
+        swizzleTable = null;
         updatePixdataSize();
     }
 
@@ -187,10 +210,57 @@ public class TMTileCanvas extends TMPixelCanvas {
         setCanvasSize(cols * tileWidth, rows * tileHeight);
         this.cols = cols;
         this.rows = rows;
+        swizzleTable = null;
         // Ensure pixdata array is properly sized
         updatePixdataSize();
     }
 
+/**
+*
+* Gets the swizzle table for the current grid size and swizzle settings,
+* (re)building it if any of them have changed since it was built.
+*
+**/
+
+    protected SwizzleTable getSwizzleTable() {
+        int width = cols * codec.getTileWidth();
+        int height = rows * codec.getTileHeight();
+        if ((swizzleTable == null) || !swizzleTable.matches(codec, swizzlePattern, width, height)) {
+            swizzleTable = SwizzleTable.forCodec(codec, swizzlePattern, width, height);
+        }
+        return swizzleTable;
+    }
+
+/**
+*
+* Sets the swizzle pattern the tiles are decoded and encoded with. It is a
+* setting of the canvas rather than of the (shared) codec, so canvases
+* using the same codec don't affect each other.
+*
+**/
+
+    public void setSwizzlePattern(String swizzlePattern) {
+        // the canvas compares patterns by reference
+        String[] patterns = TileCodec.getAvailableSwizzlePatterns();
+        this.swizzlePattern = TileCodec.SWIZZLE_NONE;
+        for (int i=0; i<patterns.length; i++) {
+            if (patterns[i].equalsIgnoreCase(swizzlePattern)) {
+                this.swizzlePattern = patterns[i];
+                break;
+            }
+        }
+    }
+
+/**
+*
+* Gets the swizzle pattern.
+*
+**/
+
+    public String getSwizzlePattern() {
+        return swizzlePattern;
+    }
+
 /**
 *
 * Encodes the specified tile. TODO
@@ -198,53 +268,79 @@ public class TMTileCanvas extends TMPixelCanvas {
 **/
 
     public void packTile(int x, int y) {
-        int pixOfs;
-        int bitsOfs, pos;
+        int bitsOfs;
         // encode single atomic tile
         bitsOfs = getTileBitsOffset(x, y);
         if (bitsOfs >= 0) {
-            // Ensure pixdata array is properly sized
-            updatePixdataSize();
-            
-            int tileWidth = codec.getTileWidth();
-            int tileHeight = codec.getTileHeight();
-            // copy pixels
-            pixOfs = (y * tileHeight * canvasWidth) + (x * tileWidth);
-            pos = 0;
-            if (codec.getBitsPerPixel() <= 8) {
-                int colorCount = codec.getColorCount();
-                int colorIndex = palIndex * colorCount;
-                // map RGB values to palette indices
-                for (int p=0; p<tileHeight; p++) {
-                    for (int q=0; q<tileWidth; q++) {
-                        if (pos < pixdata.length && pixOfs < pixels.length) {
-                            pixdata[pos++] = palette.indexOf(colorIndex, pixels[pixOfs++]);
-                        } else {
-                            pos++;
-                            pixOfs++;
-                        }
+            copyTilePixels(x, y);
+            codec.encode(pixdata, bits, bitsOfs, getStride());
+            tilesEncoded(bitsOfs, bitsOfs + codec.getTileSize() * (getStride() + 1));
+        }
+        else {
+            // not valid tile, do nothing
+        }
+    }
+
+/**
+*
+* Encodes the tile at position (x,y) in the grid into a new buffer, as it
+* is stored in 1-dimensional mode (i.e. codec.getTileSize() consecutive
+* bytes). The canvas' data is left alone.
+*
+**/
+
+    public byte[] encodeTile(int x, int y) {
+        byte[] tileBits = new byte[codec.getTileSize()];
+        copyTilePixels(x, y);
+        codec.encode(pixdata, tileBits, 0, 0);
+        return tileBits;
+    }
+
+/**
+*
+* Copies the pixels of the tile at position (x,y) in the grid to pixdata,
+* mapping them to palette indices if the codec is palettized.
+*
+**/
+
+    private void copyTilePixels(int x, int y) {
+        // Ensure pixdata array is properly sized
+        updatePixdataSize();
+
+        int tileWidth = codec.getTileWidth();
+        int tileHeight = codec.getTileHeight();
+        // copy pixels
+        int pixOfs = (y * tileHeight * canvasWidth) + (x * tileWidth);
+        int pos = 0;
+        if (codec.getBitsPerPixel() <= 8) {
+            int colorCount = codec.getColorCount();
+            int colorIndex = palIndex * colorCount;
+            // map RGB values to palette indices
+            for (int p=0; p<tileHeight; p++) {
+                for (int q=0; q<tileWidth; q++) {
+                    if (pos < pixdata.length && pixOfs < pixels.length) {
+                        pixdata[pos++] = palette.indexOf(colorIndex, pixels[pixOfs++]);
+                    } else {
+                        pos++;
+                        pixOfs++;
                     }
-                    pixOfs += canvasWidth - tileWidth;
                 }
+                pixOfs += canvasWidth - tileWidth;
             }
-            else {
-                // non-palettized: color is actual 32-bit ARGB value
-                for (int p=0; p<tileHeight; p++) {
-                    for (int q=0; q<tileWidth; q++) {
-                        if (pos < pixdata.length && pixOfs < pixels.length) {
-                            pixdata[pos++] = pixels[pixOfs++];
-                        } else {
-                            pos++;
-                            pixOfs++;
-                        }
+        }
+        else {
+            // non-palettized: color is actual 32-bit ARGB value
+            for (int p=0; p<tileHeight; p++) {
+                for (int q=0; q<tileWidth; q++) {
+                    if (pos < pixdata.length && pixOfs < pixels.length) {
+                        pixdata[pos++] = pixels[pixOfs++];
+                    } else {
+                        pos++;
+                        pixOfs++;
                     }
-                    pixOfs += canvasWidth - tileWidth;
                 }
+                pixOfs += canvasWidth - tileWidth;
             }
-            codec.encode(pixdata, bits, bitsOfs, getStride());
-        }
-        else {
-            // not valid tile, do nothing
         }
     }
 
@@ -272,6 +368,14 @@ public class TMTileCanvas extends TMPixelCanvas {
 *
 * Decodes tile data to pixel buffer.
 *
+* If parallel rendering is enabled (see setRenderThreads()) and the grid is
+* large enough, bands of tile rows are decoded concurrently. Each band writes
+* a disjoint region of the pixel buffer, and the image is updated once all
+* of them are done.
+*
+* When called from scrollTo(), rows of tiles that are still visible are moved
+* to their new place in the pixel buffer instead of being decoded again.
+*
 **/
 
     public void unpackPixels() {
@@ -279,98 +383,241 @@ public class TMTileCanvas extends TMPixelCanvas {
         
         // Ensure pixdata array is properly sized
         updatePixdataSize();
-        
-        int[] decodedTile;
-        int pixOfs = 0;
+
+        int firstRow = 0;
+        int lastRow = rows;
+        Object[] state = getDecodeState();
+        int shift = getScrollShift(state);
+        if (shift != 0) {
+            // the pixel buffer acts as a ring of decoded tile rows: keep the
+            // rows that are still visible and decode only the exposed ones
+            int rowPixels = codec.getTileHeight() * canvasWidth;
+            int kept = (rows - Math.abs(shift)) * rowPixels;
+            if (shift > 0) {
+                System.arraycopy(pixels, shift * rowPixels, pixels, 0, kept);
+                firstRow = rows - shift;
+            }
+            else {
+                System.arraycopy(pixels, 0, pixels, -shift * rowPixels, kept);
+                lastRow = -shift;
+            }
+        }
+        else if ((scrollFrom == offset) && (offset == decodedOffset) && Arrays.equals(state, decodedState)) {
+            // nothing changed
+            lastRow = 0;
+        }
+        // don't trust the buffer if decoding fails halfway
+        decodedState = null;
+        decodedOffset = -1;
+
+        int workers = renderThreads;
+        int count = lastRow - firstRow;
+        if ((workers > 1) && (count > 1) && (count * cols >= PARALLEL_MIN_TILES)) {
+            if (swizzlePattern != TileCodec.SWIZZLE_NONE) {
+                getSwizzleTable();  // build it here rather than racing for it in the workers
+            }
+            int bands = Math.min(count, workers * 4);
+            Vector tasks = new Vector();
+            for (int b=0; b<bands; b++) {
+                final int bandFirst = firstRow + (count * b) / bands;
+                final int bandLast = firstRow + (count * (b + 1)) / bands;
+                tasks.add(new Callable() {
+                    public Object call() {
+                        unpackRows(bandFirst, bandLast, getWorkerScratch());
+                        return null;
+                    }
+                });
+            }
+            try {
+                java.util.List results = getRenderPool().invokeAll(tasks);
+                for (int b=0; b<results.size(); b++) {
+                    ((Future)results.get(b)).get();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException)e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        else if (count > 0) {
+            unpackRows(firstRow, lastRow, pixdata);
+        }
+        decodedState = state;
+        decodedOffset = offset;
+        pixelsChanged();
+    }
+
+/**
+*
+* Moves the grid to the given offset and decodes it. If the offset moved by
+* whole rows of tiles since the last decode, and nothing else has changed,
+* only the rows that scrolled into view are decoded.
+*
+**/
+
+    public void scrollTo(int newOffset) {
+        scrollFrom = offset;
+        setOffset(newOffset);
+        try {
+            unpackPixels();
+        }
+        finally {
+            scrollFrom = -1;
+        }
+    }
+
+/**
+*
+* Gets the number of tile rows the decoded pixels can be shifted up
+* (positive) or down (negative) to match the current offset, or 0 if the
+* grid has to be decoded from scratch.
+*
+**/
+
+    private int getScrollShift(Object[] state) {
+        if ((scrollFrom < 0) || (scrollFrom != decodedOffset) || (offset == decodedOffset)
+            || !Arrays.equals(state, decodedState)) {
+            return 0;
+        }
+        // swizzling depends on the pixel's position in the grid, so swizzled
+        // rows can't be reused at another position
+        if ((swizzlePattern != TileCodec.SWIZZLE_NONE)
+            || (cols * codec.getTileWidth() > canvasWidth)
+            || (rows * codec.getTileHeight() > canvasHeight)) {
+            return 0;
+        }
+        int unit = getScrollUnitRows() * getRowSize();
+        int delta = offset - decodedOffset;
+        if ((unit <= 0) || (delta % unit != 0)) {
+            return 0;
+        }
+        int shift = delta / getRowSize();
+        if (Math.abs(shift) >= rows) {
+            return 0;
+        }
+        return shift;
+    }
+
+/**
+*
+* Gets the number of tile rows the grid has to be scrolled by for every tile
+* to move to the position of another. For a plain grid this is one row.
+*
+**/
+
+    protected int getScrollUnitRows() {
+        return 1;
+    }
+
+/**
+*
+* Gets the settings that determine the decoded pixels, other than the
+* offset. Decoded rows are only reused if none of these have changed.
+* Subclasses that lay out tiles differently should add their own settings.
+*
+**/
+
+    protected Object[] getDecodeState() {
+        return new Object[] {
+            codec, swizzlePattern,
+            Integer.valueOf(codec.getTileWidth()), Integer.valueOf(codec.getTileHeight()),
+            Integer.valueOf(mode), Integer.valueOf(getStride()),
+            palette, Integer.valueOf((palette != null) ? palette.getVersion() : 0),
+            Integer.valueOf(palIndex), Integer.valueOf(cols), Integer.valueOf(rows),
+            Integer.valueOf(canvasWidth), Integer.valueOf(canvasHeight), pixels, bits
+        };
+    }
+
+/**
+*
+* Decodes the tile rows firstRow (inclusive) to lastRow (exclusive) to the
+* pixel buffer. <code>scratch</code> must hold at least one decoded tile and
+* must not be shared with another thread.
+*
+**/
+
+    private void unpackRows(int firstRow, int lastRow, int[] scratch) {
+        int pixOfs;
         int bitsOfs, tileOfs, pos;
         int colorIndex = palIndex * codec.getColorCount(); // only valid for palettized codecs
         int bpp = codec.getBitsPerPixel();
         int stride = getStride();
         int tileWidth = codec.getTileWidth();
         int tileHeight = codec.getTileHeight();
+        boolean palettized = (bpp <= 8) && (palette != null);
+        boolean swizzled = swizzlePattern != TileCodec.SWIZZLE_NONE;
+        int gridWidth = cols * tileWidth;
+        int[] swizzle = swizzled ? getSwizzleTable().getTable() : null;
+        long cacheSource = getTileCacheSource();
+        TileCache cache = (cacheSource >= 0) ? TileCache.getSharedCache() : null;
+        // tiles can be decoded straight into the canvas unless they have to be
+        // rearranged first, or the grid doesn't fit (tile size changed under us)
+        boolean direct = !swizzled
+            && (cols * tileWidth <= canvasWidth) && (rows * tileHeight <= canvasHeight);
         // render grid of atomic tiles
-        for (int i=0; i<rows; i++) {
+        pixOfs = firstRow * tileHeight * canvasWidth;
+        for (int i=firstRow; i<lastRow; i++) {
             for (int j=0; j<cols; j++) {
                 bitsOfs = getTileBitsOffset(j, i);
-                if (bitsOfs >= 0) {
-                    decodedTile = codec.decode(bits, bitsOfs, stride);
-                    // copy pixels
-                    tileOfs = pixOfs;
-                    pos = 0;
-                    if ((bpp <= 8) && (palette != null)) {
+                if ((bitsOfs >= 0) && direct) {
+                    decodeTile(cache, cacheSource, bitsOfs, stride, pixels, pixOfs, canvasWidth);
+                    if (palettized) {
                         // map palette indices to RGB values
+                        tileOfs = pixOfs;
                         for (int p=0; p<tileHeight; p++) {
                             for (int q=0; q<tileWidth; q++) {
-                                if (tileOfs < pixels.length && pos < decodedTile.length) {
-                                    // Apply swizzle pattern: get correct source position from data
-                                    int srcPos = pos;
-                                    if (codec.getSwizzlePattern() != TileCodec.SWIZZLE_NONE) {
-                                        // Calculate global coordinates within the canvas
-                                        int globalX = j * tileWidth + q;
-                                        int globalY = i * tileHeight + p;
-                                        int canvasWidth = cols * tileWidth;
-                                        int canvasHeight = rows * tileHeight;
-                                        
-                                        // For display: Apply swizzle to get the correct data position
-                                        int globalPos = SwizzleUtil.applySwizzle(globalX, globalY, canvasWidth, canvasHeight, 
-                                            codec.getSwizzlePattern(), codec.getCustomBlockWidth(), 
-                                            codec.getCustomBlockHeight(), codec.getCustomMortonOrder());
-                                        
-                                        // Convert global position back to tile-relative position
-                                        srcPos = globalPos % (tileWidth * tileHeight);
-                                    }
-                                    
-                                    if (srcPos < decodedTile.length) {
-                                        pixels[tileOfs++] = palette.getEntryRGB(colorIndex + decodedTile[srcPos]);
-                                    } else {
-                                        pixels[tileOfs++] = 0xFF000000; // Fallback
-                                    }
-                                    pos++;
-                                } else {
-                                    // Se não há dados suficientes, use cor transparente/background
-                                    if (tileOfs < pixels.length) {
-                                        pixels[tileOfs] = 0xFF000000; // Preto transparente como fallback
-                                    }
-                                    tileOfs++;
-                                    pos++;
-                                }
+                                pixels[tileOfs] = palette.getEntryRGB(colorIndex + pixels[tileOfs]);
+                                tileOfs++;
                             }
                             tileOfs += canvasWidth - tileWidth;
                         }
                     }
-                    else {
-                        // non-palettized: color is actual 32-bit ARGB value
-                        for (int p=0; p<tileHeight; p++) {
-                            for (int q=0; q<tileWidth; q++) {
-                                if (tileOfs < pixels.length && pos < decodedTile.length) {
-                                    // Apply swizzle pattern: get correct source position from data
-                                    int srcPos = pos;
-                                    if (codec.getSwizzlePattern() != TileCodec.SWIZZLE_NONE) {
-                                        // Calculate global coordinates within the canvas
-                                        int globalX = j * tileWidth + q;
-                                        int globalY = i * tileHeight + p;
-                                        int canvasWidth = cols * tileWidth;
-                                        int canvasHeight = rows * tileHeight;
-                                        
-                                        // For display: Apply swizzle to get the correct data position
-                                        int globalPos = SwizzleUtil.applySwizzle(globalX, globalY, canvasWidth, canvasHeight, 
-                                            codec.getSwizzlePattern(), codec.getCustomBlockWidth(), 
-                                            codec.getCustomBlockHeight(), codec.getCustomMortonOrder());
-                                        
-                                        // Convert global position back to tile-relative position
-                                        srcPos = globalPos % (tileWidth * tileHeight);
+                }
+                else if (bitsOfs >= 0) {
+                    int[] decodedTile = scratch;
+                    decodeTile(cache, cacheSource, bitsOfs, stride, decodedTile, 0, tileWidth);
+                    // copy pixels
+                    tileOfs = pixOfs;
+                    pos = 0;
+                    for (int p=0; p<tileHeight; p++) {
+                        for (int q=0; q<tileWidth; q++) {
+                            if (tileOfs < pixels.length && pos < decodedTile.length) {
+                                // Apply swizzle pattern: get correct source position from data
+                                int srcPos = pos;
+                                if (swizzle != null) {
+                                    // For display: look up the tile-relative data position of this canvas pixel
+                                    srcPos = swizzle[(i * tileHeight + p) * gridWidth + (j * tileWidth + q)];
+                                }
+                                
+                                if (srcPos < decodedTile.length) {
+                                    if (palettized) {
+                                        // map palette indices to RGB values
+                                        pixels[tileOfs++] = palette.getEntryRGB(colorIndex + decodedTile[srcPos]);
                                     }
-                                    
-                                    if (srcPos < decodedTile.length) {
+                                    else {
+                                        // non-palettized: color is actual 32-bit ARGB value
                                         pixels[tileOfs++] = decodedTile[srcPos];
-                                    } else {
-                                        pixels[tileOfs++] = 0xFF000000; // Fallback
                                     }
-                                    pos++;
+                                } else {
+                                    pixels[tileOfs++] = 0xFF000000; // Fallback
+                                }
+                                pos++;
+                            } else {
+                                // Se não há dados suficientes, use cor transparente/background
+                                if (tileOfs < pixels.length) {
+                                    pixels[tileOfs] = 0xFF000000; // Preto transparente como fallback
                                 }
+                                tileOfs++;
+                                pos++;
                             }
-                            tileOfs += canvasWidth - tileWidth;
                         }
+                        tileOfs += canvasWidth - tileWidth;
                     }
                 }
                 else {
@@ -392,7 +639,104 @@ public class TMTileCanvas extends TMPixelCanvas {
             // Move to the next row of tiles - go back to start of row and move down by tile height
             pixOfs = (i + 1) * tileHeight * canvasWidth;
         }
-        source.newPixels();
+    }
+
+/**
+*
+* Decodes the tile at <code>bitsOfs</code>, or fetches it from the cache
+* if it has been decoded before.
+*
+**/
+
+    private void decodeTile(TileCache cache, long cacheSource, int bitsOfs, int stride,
+                            int[] dst, int dstOfs, int dstScan) {
+        if (cache == null) {
+            codec.decodeInto(bits, bitsOfs, stride, dst, dstOfs, dstScan);
+        }
+        else if (!cache.get(cacheSource, bitsBase + bitsOfs, codec, stride, dst, dstOfs, dstScan)) {
+            codec.decodeInto(bits, bitsOfs, stride, dst, dstOfs, dstScan);
+            cache.put(cacheSource, bitsBase + bitsOfs, codec, stride, dst, dstOfs, dstScan);
+        }
+    }
+
+/**
+*
+* Gets the key that tiles decoded by this canvas are cached under in the
+* shared TileCache, or -1 if they shouldn't be cached. The key must change
+* whenever the data is modified, since cached tiles are never removed.
+* The bits of a plain tile canvas are private and short-lived, so they
+* aren't cached.
+*
+**/
+
+    protected long getTileCacheSource() {
+        return -1;
+    }
+
+/**
+*
+* Called after tiles have been encoded to the given range of bits.
+*
+**/
+
+    protected void tilesEncoded(int start, int end) {
+    }
+
+/**
+*
+* Gets a tile-sized scratch buffer belonging to the calling render worker.
+*
+**/
+
+    private int[] getWorkerScratch() {
+        int size = pixdata.length;
+        int[] scratch = (int[])workerScratch.get();
+        if ((scratch == null) || (scratch.length < size)) {
+            scratch = new int[size];
+            workerScratch.set(scratch);
+        }
+        return scratch;
+    }
+
+/**
+*
+* Sets the number of threads used to decode the tile grid.
+* 1 (or less) renders on the calling thread only.
+*
+**/
+
+    public static synchronized void setRenderThreads(int threads) {
+        if (threads < 1) threads = 1;
+        if (threads != renderThreads) {
+            renderThreads = threads;
+            if (renderPool != null) {
+                renderPool.shutdown();
+                renderPool = null;
+            }
+        }
+    }
+
+/**
+*
+* Gets the number of threads used to decode the tile grid.
+*
+**/
+
+    public static int getRenderThreads() {
+        return renderThreads;
+    }
+
+/**
+*
+* Gets the pool that tile rows are decoded in, creating it if necessary.
+*
+**/
+
+    private static synchronized ForkJoinPool getRenderPool() {
+        if (renderPool == null) {
+            renderPool = new ForkJoinPool(renderThreads);
+        }
+        return renderPool;
     }
 
 /**
@@ -415,6 +759,10 @@ public class TMTileCanvas extends TMPixelCanvas {
         int stride = getStride();
         int tileWidth = codec.getTileWidth();
         int tileHeight = codec.getTileHeight();
+        int gridWidth = cols * tileWidth;
+        int[] swizzle = (swizzlePattern != TileCodec.SWIZZLE_NONE) ? getSwizzleTable().getTable() : null;
+        int minOfs = Integer.MAX_VALUE;
+        int maxOfs = -1;
         // encode grid of atomic tiles
         for (int i=0; i<rows; i++) {
             for (int j=0; j<cols; j++) {
@@ -430,20 +778,9 @@ public class TMTileCanvas extends TMPixelCanvas {
                                 if (pos < pixdata.length && tileOfs < pixels.length) {
                                     // Apply swizzle pattern: determine where this pixel should go in the tile data
                                     int destPos = pos;
-                                    if (codec.getSwizzlePattern() != TileCodec.SWIZZLE_NONE) {
-                                        // Calculate global coordinates within the canvas
-                                        int globalX = j * tileWidth + q;
-                                        int globalY = i * tileHeight + p;
-                                        int canvasWidth = cols * tileWidth;
-                                        int canvasHeight = rows * tileHeight;
-                                        
-                                        // For encoding: Apply swizzle to determine destination position
-                                        int globalPos = SwizzleUtil.applySwizzle(globalX, globalY, canvasWidth, canvasHeight, 
-                                            codec.getSwizzlePattern(), codec.getCustomBlockWidth(), 
-                                            codec.getCustomBlockHeight(), codec.getCustomMortonOrder());
-                                        
-                                        // Convert global position back to tile-relative position
-                                        destPos = globalPos % (tileWidth * tileHeight);
+                                    if (swizzle != null) {
+                                        // For encoding: look up where this pixel goes in the tile data
+                                        destPos = swizzle[(i * tileHeight + p) * gridWidth + (j * tileWidth + q)];
                                     }
                                     
                                     if (destPos < pixdata.length) {
@@ -475,6 +812,8 @@ public class TMTileCanvas extends TMPixelCanvas {
                         }
                     }
                     codec.encode(pixdata, bits, bitsOfs, stride);
+                    minOfs = Math.min(minOfs, bitsOfs);
+                    maxOfs = Math.max(maxOfs, bitsOfs);
                 }
                 else {
                     // not valid tile, do nothing
@@ -484,6 +823,9 @@ public class TMTileCanvas extends TMPixelCanvas {
             // Move to the next row of tiles - go back to start of row and move down by tile height
             pixOfs = (i + 1) * tileHeight * canvasWidth;
         }
+        if (maxOfs >= 0) {
+            tilesEncoded(minOfs, maxOfs + codec.getTileSize() * (stride + 1));
+        }
     }
 
 /**
@@ -566,15 +908,27 @@ public class TMTileCanvas extends TMPixelCanvas {
         // range check
         int limit = 0;
         if (mode == TileCodec.MODE_1D) {
-            limit = bits.length - codec.getTileSize();
+            limit = getDataSize() - codec.getTileSize();
         }
         else {
-            limit = bits.length - getRowIncrement();
+            limit = getDataSize() - getRowIncrement();
         }
-        if (absOfs <= limit) return absOfs;
+        if (absOfs <= limit) return absOfs - bitsBase;
         return -1;
     }
 
+/**
+*
+* Gets the total size of the data that tiles are fetched from.
+* This is the size of the bits buffer, unless the canvas only holds a
+* window of the data in it (see bitsBase).
+*
+**/
+
+    protected int getDataSize() {
+        return bits.length;
+    }
+
 /**
 *
 * Gets the size of one row of tiles.
@@ -0,0 +1,352 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.canvases;
+
+import tm.tilecodecs.TileCodec;
+
+/**
+*
+* Least-recently-used cache of decoded tiles.
+*
+* Tiles are stored as the codec produced them (palette indices for
+* palettized codecs, ARGB values otherwise), so the same entry serves every
+* palette and palette index. The palette lookup and the swizzle are applied
+* when the tile is copied to the canvas.
+*
+* An entry is keyed by the data source, the data offset of the tile, the
+* codec (and its current tile dimensions) and the stride. The source is a
+* number chosen by the canvas; TMEditorCanvas combines an ID of its
+* FileImage with the image's modification count, so entries from before a
+* modification are never hit again and simply age out. Nothing is ever
+* looked up to be removed.
+*
+* The cache is split into SEGMENTS independent parts, each with its own
+* lock, LRU order and share of the budget, and a key always goes to the
+* same part; the render workers decoding a canvas in parallel rarely wait
+* for each other. Each part keeps its storage in a few primitive arrays: a
+* slab of pixel data divided into equally sized slots, a chained hash table
+* for lookups and a doubly linked list (by slot index) for the LRU order.
+*
+**/
+
+public class TileCache {
+
+    private static final int SEGMENTS = 16;     // a power of two
+
+    private static TileCache sharedCache = new TileCache(16 << 18);    // 16 MB
+
+    private Segment[] segments = new Segment[SEGMENTS];
+
+/**
+*
+* Creates a cache that holds at most <code>budget</code> pixels.
+*
+**/
+
+    public TileCache(int budget) {
+        for (int i=0; i<SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(0, budget) / SEGMENTS);
+        }
+    }
+
+/**
+*
+* Gets the cache that is shared by all editor canvases.
+*
+**/
+
+    public static synchronized TileCache getSharedCache() {
+        return sharedCache;
+    }
+
+/**
+*
+* Replaces the shared cache with an empty one of the given size.
+* 0 disables caching.
+*
+**/
+
+    public static synchronized void setSharedCacheSize(int megabytes) {
+        sharedCache = new TileCache(megabytes << 18);
+    }
+
+/**
+*
+* Copies the decoded tile with the given key to <code>dst</code>, if it is
+* in the cache.
+*
+* @return   true if the tile was found
+*
+**/
+
+    public boolean get(long source, long offset, TileCodec codec, int stride,
+                       int[] dst, int dstOfs, int dstScan) {
+        int tileWidth = codec.getTileWidth();
+        int tileHeight = codec.getTileHeight();
+        int format = (tileWidth << 16) | tileHeight;
+        long h = hash(source, offset, codec, format, stride);
+        Segment segment = segments[(int)(h >>> 32) & (SEGMENTS - 1)];
+        synchronized (segment) {
+            return segment.get(h, source, offset, codec, format, stride, dst, dstOfs, dstScan);
+        }
+    }
+
+/**
+*
+* Stores a decoded tile, evicting the least recently used one if the cache
+* is full.
+*
+**/
+
+    public void put(long source, long offset, TileCodec codec, int stride,
+                    int[] src, int srcOfs, int srcScan) {
+        int tileWidth = codec.getTileWidth();
+        int tileHeight = codec.getTileHeight();
+        int format = (tileWidth << 16) | tileHeight;
+        long h = hash(source, offset, codec, format, stride);
+        Segment segment = segments[(int)(h >>> 32) & (SEGMENTS - 1)];
+        synchronized (segment) {
+            segment.put(h, source, offset, codec, format, stride, src, srcOfs, srcScan);
+        }
+    }
+
+/**
+*
+* Removes all tiles.
+*
+**/
+
+    public void clear() {
+        for (int i=0; i<SEGMENTS; i++) {
+            synchronized (segments[i]) {
+                segments[i].layout(segments[i].slotSize);
+            }
+        }
+    }
+
+/**
+*
+* Gets the number of lookups that found their tile.
+*
+**/
+
+    public long getHits() {
+        long hits = 0;
+        for (int i=0; i<SEGMENTS; i++) {
+            synchronized (segments[i]) {
+                hits += segments[i].hits;
+            }
+        }
+        return hits;
+    }
+
+/**
+*
+* Gets the number of lookups that didn't find their tile.
+*
+**/
+
+    public long getMisses() {
+        long misses = 0;
+        for (int i=0; i<SEGMENTS; i++) {
+            synchronized (segments[i]) {
+                misses += segments[i].misses;
+            }
+        }
+        return misses;
+    }
+
+    private static long hash(long source, long offset, TileCodec codec, int format, int stride) {
+        long h = (offset * 0x9E3779B97F4A7C15L) + (source * 0xC2B2AE3D27D4EB4FL)
+               + (System.identityHashCode(codec) * 31L) + (format * 17L) + stride;
+        h ^= (h >>> 29);
+        h ^= (h >>> 32);
+        return h;
+    }
+
+/**
+*
+* One part of the cache. Its methods are called with its monitor held.
+*
+**/
+
+    private static class Segment {
+
+        private int budget;         // total number of ints the slab may hold
+        private int slotSize = 0;   // ints per slot, i.e. the largest tile area seen
+        private int capacity = 0;   // number of slots
+
+        private int[] data = new int[0];
+        private long[] slotSource;
+        private long[] slotOffset;
+        private TileCodec[] slotCodec;
+        private int[] slotFormat;       // (tileWidth << 16) | tileHeight
+        private int[] slotStride;
+
+        private int[] buckets;
+        private int[] chain;
+        private int[] prev;
+        private int[] next;             // doubles as the free list link
+        private int head = -1;          // most recently used
+        private int tail = -1;          // least recently used
+        private int free = -1;
+
+        private long hits = 0;
+        private long misses = 0;
+
+        Segment(int budget) {
+            this.budget = budget;
+        }
+
+        boolean get(long h, long source, long offset, TileCodec codec, int format, int stride,
+                    int[] dst, int dstOfs, int dstScan) {
+            int slot = (capacity == 0) ? -1 : find(h, source, offset, codec, format, stride);
+            if (slot < 0) {
+                misses++;
+                return false;
+            }
+            hits++;
+            unlink(slot);
+            linkFirst(slot);
+            int tileWidth = format >>> 16;
+            int tileHeight = format & 0xFFFF;
+            int pos = slot * slotSize;
+            for (int p=0; p<tileHeight; p++) {
+                System.arraycopy(data, pos, dst, dstOfs, tileWidth);
+                pos += tileWidth;
+                dstOfs += dstScan;
+            }
+            return true;
+        }
+
+        void put(long h, long source, long offset, TileCodec codec, int format, int stride,
+                 int[] src, int srcOfs, int srcScan) {
+            int tileWidth = format >>> 16;
+            int tileHeight = format & 0xFFFF;
+            if (tileWidth * tileHeight > slotSize) {
+                layout(tileWidth * tileHeight);
+            }
+            if (capacity == 0) return;
+            int slot = find(h, source, offset, codec, format, stride);
+            if (slot >= 0) {
+                unlink(slot);
+            }
+            else {
+                if (free >= 0) {
+                    slot = free;
+                    free = next[slot];
+                }
+                else {
+                    slot = tail;
+                    unlink(slot);
+                    unhash(slot);
+                }
+                slotSource[slot] = source;
+                slotOffset[slot] = offset;
+                slotCodec[slot] = codec;
+                slotFormat[slot] = format;
+                slotStride[slot] = stride;
+                int b = (int)h & (buckets.length - 1);
+                chain[slot] = buckets[b];
+                buckets[b] = slot;
+            }
+            linkFirst(slot);
+            int pos = slot * slotSize;
+            for (int p=0; p<tileHeight; p++) {
+                System.arraycopy(src, srcOfs, data, pos, tileWidth);
+                pos += tileWidth;
+                srcOfs += srcScan;
+            }
+        }
+
+/**
+*
+* (Re)allocates the storage for slots of the given size, dropping all tiles.
+*
+**/
+
+        void layout(int size) {
+            slotSize = size;
+            capacity = (size > 0) ? budget / size : 0;
+            data = new int[capacity * size];
+            slotSource = new long[capacity];
+            slotOffset = new long[capacity];
+            slotCodec = new TileCodec[capacity];
+            slotFormat = new int[capacity];
+            slotStride = new int[capacity];
+            int bucketCount = 1;
+            while (bucketCount < capacity * 2) bucketCount <<= 1;
+            buckets = new int[bucketCount];
+            java.util.Arrays.fill(buckets, -1);
+            chain = new int[capacity];
+            prev = new int[capacity];
+            next = new int[capacity];
+            head = -1;
+            tail = -1;
+            // all slots start out on the free list
+            free = (capacity > 0) ? 0 : -1;
+            for (int i=0; i<capacity; i++) {
+                next[i] = (i + 1 < capacity) ? i + 1 : -1;
+            }
+        }
+
+        private int find(long h, long source, long offset, TileCodec codec, int format, int stride) {
+            int slot = buckets[(int)h & (buckets.length - 1)];
+            while (slot >= 0) {
+                if ((slotOffset[slot] == offset) && (slotSource[slot] == source) && (slotCodec[slot] == codec)
+                    && (slotFormat[slot] == format) && (slotStride[slot] == stride)) {
+                    return slot;
+                }
+                slot = chain[slot];
+            }
+            return -1;
+        }
+
+        private void unhash(int slot) {
+            long h = hash(slotSource[slot], slotOffset[slot], slotCodec[slot], slotFormat[slot], slotStride[slot]);
+            int b = (int)h & (buckets.length - 1);
+            if (buckets[b] == slot) {
+                buckets[b] = chain[slot];
+                return;
+            }
+            int s = buckets[b];
+            while (chain[s] != slot) {
+                s = chain[s];
+            }
+            chain[s] = chain[slot];
+        }
+
+        private void linkFirst(int slot) {
+            prev[slot] = -1;
+            next[slot] = head;
+            if (head >= 0) prev[head] = slot;
+            head = slot;
+            if (tail < 0) tail = slot;
+        }
+
+        private void unlink(int slot) {
+            if (prev[slot] >= 0) next[prev[slot]] = next[slot];
+            else head = next[slot];
+            if (next[slot] >= 0) prev[next[slot]] = prev[slot];
+            else tail = prev[slot];
+        }
+
+    }
+
+}
@@ -0,0 +1,213 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.colorcodecs;
+
+/**
+*
+* Reverse lookup structure for a table of RGB values (a palette).
+*
+* Exact matches are found through an open-addressing hash map from RGB value
+* to the first table index holding it; further indices with the same value are
+* chained in ascending order. Closest matches are found through a 3-D grid of
+* 8x8x8 cells over the RGB cube, searched in rings of cells around the target
+* color until no closer entry can exist.
+*
+* Both lookups return exactly what a linear scan from the start of the range
+* would: the first index holding the value, or the first index at the minimum
+* Manhattan distance in RGB space.
+*
+* The table is copied when the lookup is built; build a new lookup when the
+* table changes.
+*
+**/
+
+public class ColorLookup {
+
+    private static final int CELL_SHIFT = 5;        // 256 >> 5 = 8 cells per component
+    private static final int CELLS = 256 >> CELL_SHIFT;
+    private static final int CELL_SIZE = 1 << CELL_SHIFT;
+
+    private int[] values;
+
+    // exact match map
+    private int[] keys;
+    private int[] heads;        // first index holding keys[slot], -1 if the slot is empty
+    private int[] nextSame;     // next index holding the same value, -1 if none
+
+    // closest match grid; the indices in cell c are cellIndices[cellStart[c]..cellStart[c+1]-1]
+    private int[] cellStart;
+    private int[] cellIndices;
+
+/**
+*
+* Builds the lookup for the given table of RGB values.
+*
+**/
+
+    public ColorLookup(int[] values) {
+        int n = values.length;
+        this.values = values.clone();
+
+        int capacity = 4;
+        while (capacity < n * 2) capacity <<= 1;
+        keys = new int[capacity];
+        heads = new int[capacity];
+        java.util.Arrays.fill(heads, -1);
+        nextSame = new int[n];
+        // insert from the back, so that each chain ends up in ascending order
+        for (int i=n-1; i>=0; i--) {
+            int slot = slotOf(this.values[i]);
+            keys[slot] = this.values[i];
+            nextSame[i] = heads[slot];
+            heads[slot] = i;
+        }
+
+        cellStart = new int[CELLS * CELLS * CELLS + 1];
+        for (int i=0; i<n; i++) {
+            cellStart[cellOf(this.values[i]) + 1]++;
+        }
+        for (int c=0; c<CELLS * CELLS * CELLS; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        int[] fill = cellStart.clone();
+        cellIndices = new int[n];
+        for (int i=0; i<n; i++) {
+            cellIndices[fill[cellOf(this.values[i])]++] = i;
+        }
+    }
+
+/**
+*
+* Gets the number of values in the table.
+*
+**/
+
+    public int getSize() {
+        return values.length;
+    }
+
+/**
+*
+* Gets the first index >= startIndex that holds the given value, or -1 if
+* there is none.
+*
+**/
+
+    public int indexOf(int startIndex, int value) {
+        int i = heads[slotOf(value)];
+        while ((i >= 0) && (i < startIndex)) {
+            i = nextSame[i];
+        }
+        return i;
+    }
+
+/**
+*
+* Gets the index in startIndex..startIndex+colorCount-1 whose RGB components
+* are the closest to those of the given value (alpha is ignored). Ties go to
+* the lowest index. Returns startIndex if the range is empty.
+*
+**/
+
+    public int closest(int startIndex, int colorCount, int argb) {
+        int endIndex = startIndex + colorCount;
+        int targetR = (argb & 0x00FF0000) >> 16;
+        int targetG = (argb & 0x0000FF00) >> 8;
+        int targetB = (argb & 0x000000FF);
+        int cr = targetR >> CELL_SHIFT;
+        int cg = targetG >> CELL_SHIFT;
+        int cb = targetB >> CELL_SHIFT;
+        int bestEntry = startIndex, bestDiff = Integer.MAX_VALUE;
+        for (int d=0; d<CELLS; d++) {
+            // every cell of ring d is at least this far away along one axis
+            if ((d > 0) && ((d - 1) * CELL_SIZE + 1 > bestDiff)) break;
+            for (int r=Math.max(cr-d, 0); r<=Math.min(cr+d, CELLS-1); r++) {
+                int dr = Math.abs(r - cr);
+                int boundR = axisDistance(targetR, r);
+                for (int g=Math.max(cg-d, 0); g<=Math.min(cg+d, CELLS-1); g++) {
+                    int dg = Math.abs(g - cg);
+                    int boundRG = boundR + axisDistance(targetG, g);
+                    if (boundRG > bestDiff) continue;
+                    boolean onRing = (dr == d) || (dg == d);
+                    // only the two faces of the ring are visited when r and g are inside it
+                    int step = onRing ? 1 : Math.max(2 * d, 1);
+                    for (int b=cb-d; b<=cb+d; b+=step) {
+                        if ((b < 0) || (b >= CELLS)) continue;
+                        int bound = boundRG + axisDistance(targetB, b);
+                        if (bound > bestDiff) continue;
+                        int cell = (((r * CELLS) + g) * CELLS) + b;
+                        for (int k=cellStart[cell]; k<cellStart[cell + 1]; k++) {
+                            int i = cellIndices[k];
+                            if ((i < startIndex) || (i >= endIndex)) continue;
+                            int val = values[i];
+                            int diff = Math.abs(targetR - ((val & 0x00FF0000) >> 16))
+                                     + Math.abs(targetG - ((val & 0x0000FF00) >> 8))
+                                     + Math.abs(targetB - (val & 0x000000FF));
+                            if ((diff < bestDiff) || ((diff == bestDiff) && (i < bestEntry))) {
+                                bestDiff = diff;
+                                bestEntry = i;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return bestEntry;
+    }
+
+/**
+*
+* Gets the distance along one axis from the given component to the nearest
+* value covered by the given cell.
+*
+**/
+
+    private static int axisDistance(int component, int cell) {
+        int low = cell << CELL_SHIFT;
+        if (component < low) return low - component;
+        int high = low + CELL_SIZE - 1;
+        if (component > high) return component - high;
+        return 0;
+    }
+
+    private static int cellOf(int rgb) {
+        int r = ((rgb & 0x00FF0000) >> 16) >> CELL_SHIFT;
+        int g = ((rgb & 0x0000FF00) >> 8) >> CELL_SHIFT;
+        int b = (rgb & 0x000000FF) >> CELL_SHIFT;
+        return (((r * CELLS) + g) * CELLS) + b;
+    }
+
+/**
+*
+* Gets the map slot that holds the given value, or the empty slot where it
+* would be inserted.
+*
+**/
+
+    private int slotOf(int value) {
+        int mask = keys.length - 1;
+        int h = value * 0x9E3779B9;
+        int slot = (h ^ (h >>> 16)) & mask;
+        while ((heads[slot] >= 0) && (keys[slot] != value)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+}
@@ -68,6 +68,46 @@ public class DirectColorCodec extends ColorCodec {
         return -1;  // no bits set
     }
 
+/**
+*
+* Gets the bitmask of the Red component.
+*
+**/
+
+    public int getRedMask() {
+        return rmask;
+    }
+
+/**
+*
+* Gets the bitmask of the Green component.
+*
+**/
+
+    public int getGreenMask() {
+        return gmask;
+    }
+
+/**
+*
+* Gets the bitmask of the Blue component.
+*
+**/
+
+    public int getBlueMask() {
+        return bmask;
+    }
+
+/**
+*
+* Gets the bitmask of the Alpha component.
+*
+**/
+
+    public int getAlphaMask() {
+        return amask;
+    }
+
 /**
 *
 *
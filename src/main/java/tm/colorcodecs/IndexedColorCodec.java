@@ -28,6 +28,7 @@ package tm.colorcodecs;
 public class IndexedColorCodec extends ColorCodec {
 
     private int[] colorTable;   // table of pre-defined ARGB values
+    private ColorLookup lookup; // reverse lookup of colorTable, built on first encode
 
     public IndexedColorCodec(String id, int bitsPerPixel, int[] colorTable, String description) {
         super(id, bitsPerPixel, description);
@@ -54,22 +55,10 @@ public class IndexedColorCodec extends ColorCodec {
 **/
 
     public int encode(int argb) {
-        int targetR = (argb & 0x00FF0000) >> 16;
-        int targetG = (argb & 0x0000FF00) >> 8;
-        int targetB = (argb & 0x000000FF);
-        int bestEntry=0, bestDiff=1000000;
-        for (int i=0; i<colorTable.length; i++) {
-            int val = colorTable[i];
-            int r = (val & 0x00FF0000) >> 16;
-            int g = (val & 0x0000FF00) >> 8;
-            int b = (val & 0x000000FF);
-            int diff = Math.abs(targetR - r) + Math.abs(targetG - g) + Math.abs(targetB - b);
-            if (diff < bestDiff) {
-                bestDiff = diff;
-                bestEntry = i;
-            }
+        if (lookup == null) {
+            lookup = new ColorLookup(colorTable);
         }
-        return bestEntry;
+        return lookup.closest(0, colorTable.length, argb);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,244 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.filelistener;
+
+import tm.utils.ByteBufferChannel;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+*
+* Streaming transform for file formats that consist of a header followed by
+* blocks of a fixed size which can be converted independently, such as
+* interleaved ROM images.
+*
+* The data is read from the input channel a batch of blocks at a time; the
+* blocks of a batch are transformed in parallel, and written to the output
+* channel in order. When either channel is a ByteBufferChannel its buffer
+* is used directly, so loading into (or saving from) the heap doesn't take
+* an extra copy.
+*
+**/
+
+public abstract class BlockTransform {
+
+    private static final int BLOCKS_PER_THREAD = 8;
+
+    private int headerSize;
+    private int blockSize;
+
+/**
+*
+* Creates a transform for a header of <code>headerSize</code> bytes followed
+* by blocks of <code>blockSize</code> bytes.
+*
+**/
+
+    protected BlockTransform(int headerSize, int blockSize) {
+        this.headerSize = headerSize;
+        this.blockSize = blockSize;
+    }
+
+/**
+*
+* Transforms the header. Returns the bytes to write in its place; the
+* default is to copy it unchanged, a transform that strips the header
+* returns an empty buffer.
+*
+**/
+
+    protected ByteBuffer transformHeader(ByteBuffer header) {
+        return header;
+    }
+
+/**
+*
+* Transforms one block from <code>src</code> to <code>dst</code>, both of
+* which hold exactly one block starting at index 0. Invoked from several
+* threads at once, so it must not modify shared state.
+*
+**/
+
+    protected abstract void transformBlock(ByteBuffer src, ByteBuffer dst);
+
+/**
+*
+* Transforms the incomplete block at the end of the data, if any.
+* The default is to copy it unchanged.
+*
+**/
+
+    protected void transformTail(ByteBuffer src, ByteBuffer dst) {
+        dst.put(0, src, 0, src.remaining());
+    }
+
+/**
+*
+* Reads all of <code>in</code>, transforms it and writes the result to
+* <code>out</code>.
+*
+**/
+
+    public void run(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        readFully(in, header);
+        header.flip();
+        writeFully(out, transformHeader(header));
+        if (header.limit() < headerSize) {
+            return;     // the data ended inside the header
+        }
+
+        final int threads = Runtime.getRuntime().availableProcessors();
+        int batchSize = threads * BLOCKS_PER_THREAD * blockSize;
+        ByteBuffer srcBuffer = (in instanceof ByteBufferChannel) ? null : ByteBuffer.allocateDirect(batchSize);
+        ByteBuffer dstBuffer = (out instanceof ByteBufferChannel) ? null : ByteBuffer.allocateDirect(batchSize);
+        ExecutorService pool = null;
+        if (threads > 1) {
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "BlockTransform");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        try {
+            int n;
+            do {
+                ByteBuffer src;
+                if (srcBuffer != null) {
+                    srcBuffer.clear();
+                    readFully(in, srcBuffer);
+                    src = srcBuffer.flip();
+                }
+                else {
+                    src = ((ByteBufferChannel)in).claim(batchSize);
+                }
+                n = src.remaining();
+                ByteBuffer dst;
+                if (dstBuffer != null) {
+                    dst = dstBuffer.clear().limit(n);
+                }
+                else {
+                    dst = ((ByteBufferChannel)out).claim(n);
+                    if (dst.remaining() < n) {
+                        throw new IOException("Data does not fit in the buffer");
+                    }
+                }
+                transformBatch(src, dst, n, pool, threads);
+                if (dstBuffer != null) {
+                    writeFully(out, dst);
+                }
+            } while (n == batchSize);
+        }
+        finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+/**
+*
+* Transforms the first <code>n</code> bytes of <code>src</code> to
+* <code>dst</code>, splitting the whole blocks among the threads.
+*
+**/
+
+    private void transformBatch(final ByteBuffer src, final ByteBuffer dst, int n,
+                                ExecutorService pool, int threads) throws IOException {
+        final int blockCount = n / blockSize;
+        if ((pool == null) || (blockCount < 2)) {
+            transformBlocks(src, dst, 0, blockCount);
+        }
+        else {
+            int perThread = (blockCount + threads - 1) / threads;
+            Vector tasks = new Vector();
+            for (int i=0; i<blockCount; i+=perThread) {
+                final int first = i;
+                final int end = Math.min(i + perThread, blockCount);
+                tasks.add(new Callable() {
+                    public Object call() {
+                        transformBlocks(src, dst, first, end);
+                        return null;
+                    }
+                });
+            }
+            try {
+                java.util.List results = pool.invokeAll(tasks);
+                for (int i=0; i<results.size(); i++) {
+                    ((Future)results.get(i)).get();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        int tail = n % blockSize;
+        if (tail > 0) {
+            int ofs = blockCount * blockSize;
+            transformTail(src.slice(ofs, tail), dst.slice(ofs, tail));
+        }
+    }
+
+    private void transformBlocks(ByteBuffer src, ByteBuffer dst, int first, int end) {
+        for (int i=first; i<end; i++) {
+            int ofs = i * blockSize;
+            transformBlock(src.slice(ofs, blockSize), dst.slice(ofs, blockSize));
+        }
+    }
+
+/**
+*
+* Reads from the channel until the buffer is full or the data ends.
+*
+**/
+
+    static void readFully(ReadableByteChannel in, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining() && (in.read(buf) >= 0)) {
+        }
+    }
+
+/**
+*
+* Writes all remaining bytes of the buffer to the channel.
+*
+**/
+
+    static void writeFully(WritableByteChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+}
@@ -39,6 +39,14 @@ public class GameBoyAdvanceFileListener extends TMFileListener {
         0xD6,0x25,0xE4,0x8B,0x38,0x0A,0xAC,0x72,0x21,0xD4,0xF8,0x07
     } ;
 
+    // header locations
+    private static final int COMPLEMENT_CHECK = 0xBD;
+    private static final int CHECKSUM = 0xBE;   // 2 bytes, big-endian
+
+    // sum of the bytes the checksum covers, kept up to date by bytesChanged()
+    private boolean summed = false;
+    private int sum;
+
 /**
 *
 * Detects if this is a Game Boy Advance file.
@@ -79,26 +87,94 @@ public class GameBoyAdvanceFileListener extends TMFileListener {
 /**
 *
 * Recalculates the complement check and checksum on file save.
+* The checksum is the one kept up to date as the file was edited, so this
+* only touches the header.
 *
 **/
 
     public void fileSaving(byte[] data, String extension) {
-        // update complement check
+        if (!summed) {
+            checksumInit(data);
+        }
+
+        // update complement check (which the checksum covers)
+        byte complement = getComplementCheck(data);
+        sum += (complement & 0xFF) - (data[COMPLEMENT_CHECK] & 0xFF);
+        data[COMPLEMENT_CHECK] = complement;
+
+        // update checksum
+        data[CHECKSUM] = (byte)((sum >> 8) & 0xFF);
+        data[CHECKSUM+1] = (byte)(sum & 0xFF);
+    }
+
+/**
+*
+* fileSaving() only writes the complement check and the checksum.
+*
+**/
+
+    public int[] getSavingRanges(String extension) {
+        return new int[] { COMPLEMENT_CHECK, CHECKSUM+2 };
+    }
+
+/**
+*
+* Computes the complement check of the header.
+*
+**/
+
+    private static byte getComplementCheck(byte[] data) {
         int complementCheck = 0xE7;
-        for(int i=0xA0; i<=0xBC; i++) {
+        for(int i=0xA0; i<COMPLEMENT_CHECK; i++) {
             complementCheck -= data[i] & 0xFF;
         }
-        data[0xBD] = (byte)(complementCheck & 0xFF);
+        return (byte)(complementCheck & 0xFF);
+    }
 
-        // update checksum
-        int checkSum = 0;
-        data[0xBE] = 0;
-        data[0xBF] = 0;
+    public boolean hasChecksum() {
+        return true;
+    }
+
+/**
+*
+* Sums the bytes that the checksum covers: all but its own two bytes.
+*
+**/
+
+    public void checksumInit(byte[] data) {
+        sum = 0;
         for (int i=0; i<data.length; i++) {
-            checkSum += data[i] & 0xFF;
+            sum += data[i] & 0xFF;
         }
-        data[0xBE] = (byte)((checkSum >> 8) & 0xFF);
-        data[0xBF] = (byte)(checkSum & 0xFF);
+        sum -= (data[CHECKSUM] & 0xFF) + (data[CHECKSUM+1] & 0xFF);
+        summed = true;
+    }
+
+/**
+*
+* Adjusts the sum by the difference between the new and old bytes.
+*
+**/
+
+    public void bytesChanged(int pos, byte[] oldBytes, int oldOfs, byte[] newBytes, int newOfs, int len) {
+        if (!summed) return;
+        for (int i=0; i<len; i++) {
+            if ((pos+i != CHECKSUM) && (pos+i != CHECKSUM+1)) {
+                sum += (newBytes[newOfs+i] & 0xFF) - (oldBytes[oldOfs+i] & 0xFF);
+            }
+        }
+    }
+
+/**
+*
+* Checks the complement check, which is what the hardware verifies. The
+* checksum written on save isn't part of the format (the bytes are reserved
+* and zero in most ROMs), so it isn't required to match.
+*
+**/
+
+    public boolean isChecksumValid(byte[] data) {
+        return data[COMPLEMENT_CHECK] == getComplementCheck(data);
     }
 
 }
\ No newline at end of file
@@ -55,6 +55,15 @@ public class GameBoyFileListener extends TMFileListener {
     private static final int SIZE_10M = 0x53;
     private static final int SIZE_12M = 0x54;
 
+    // header locations
+    private static final int COMPLEMENT_CHECK = 0x14D;
+    private static final int CHECKSUM = 0x14E;  // 2 bytes, big-endian
+
+    // sum of the bytes the checksum covers, kept up to date by bytesChanged()
+    private boolean summed = false;
+    private int sum;
+    private int sumEnd;
+
 /**
 *
 * Detects if this is a GameBoy file.
@@ -130,27 +139,116 @@ public class GameBoyFileListener extends TMFileListener {
 /**
 *
 * Recalculates the complement check and checksum on file save.
+* The checksum is the one kept up to date as the file was edited, so this
+* only touches the header.
 *
 **/
 
     public void fileSaving(byte[] data, String extension) {
-        // update complement check
+        if (!summed) {
+            checksumInit(data);
+        }
+
+        // update complement check (which the checksum covers)
+        byte complement = getComplementCheck(data);
+        if (COMPLEMENT_CHECK < sumEnd) {
+            sum += (complement & 0xFF) - (data[COMPLEMENT_CHECK] & 0xFF);
+        }
+        data[COMPLEMENT_CHECK] = complement;
+
+        // update checksum
+        data[CHECKSUM] = (byte)((sum >> 8) & 0xFF);
+        data[CHECKSUM+1] = (byte)(sum & 0xFF);
+    }
+
+/**
+*
+* fileSaving() only writes the complement check and the checksum.
+*
+**/
+
+    public int[] getSavingRanges(String extension) {
+        return new int[] { COMPLEMENT_CHECK, CHECKSUM+2 };
+    }
+
+/**
+*
+* Computes the complement check of the header.
+*
+**/
+
+    private static byte getComplementCheck(byte[] data) {
         int r = 25;
-        for(int i=0x134; i<0x14D; i++) {
+        for(int i=0x134; i<COMPLEMENT_CHECK; i++) {
             r += data[i] & 0xFF;
         }
-        data[0x14D] = (byte)(0x100-r);
+        return (byte)(0x100-r);
+    }
 
-        // update checksum
-        int checkSum = 0;
-        data[0x14E] = 0;
-        data[0x14F] = 0;
-        int len = data.length & 0x0FFF8000;
-        for (int i=0; i<len; i++) {
-            checkSum += data[i] & 0xFF;
+/**
+*
+* The checksum covers every byte of the ROM (rounded down to a whole number
+* of 32K banks) except its own two bytes.
+*
+**/
+
+    private boolean isSummed(int pos) {
+        return (pos < sumEnd) && (pos != CHECKSUM) && (pos != CHECKSUM+1);
+    }
+
+    public boolean hasChecksum() {
+        return true;
+    }
+
+/**
+*
+* Sums the bytes that the checksum covers.
+*
+**/
+
+    public void checksumInit(byte[] data) {
+        sumEnd = data.length & 0x0FFF8000;
+        sum = 0;
+        for (int i=0; i<sumEnd; i++) {
+            sum += data[i] & 0xFF;
+        }
+        if (CHECKSUM+1 < sumEnd) {
+            sum -= (data[CHECKSUM] & 0xFF) + (data[CHECKSUM+1] & 0xFF);
+        }
+        summed = true;
+    }
+
+/**
+*
+* Adjusts the sum by the difference between the new and old bytes.
+*
+**/
+
+    public void bytesChanged(int pos, byte[] oldBytes, int oldOfs, byte[] newBytes, int newOfs, int len) {
+        if (!summed) return;
+        int end = Math.min(pos + len, sumEnd);
+        for (int i=pos; i<end; i++) {
+            if (isSummed(i)) {
+                sum += (newBytes[newOfs+i-pos] & 0xFF) - (oldBytes[oldOfs+i-pos] & 0xFF);
+            }
+        }
+    }
+
+/**
+*
+* Checks the complement check and the checksum stored in the header.
+*
+**/
+
+    public boolean isChecksumValid(byte[] data) {
+        if (!summed) {
+            checksumInit(data);
+        }
+        if (data[COMPLEMENT_CHECK] != getComplementCheck(data)) {
+            return false;
         }
-        data[0x14E] = (byte)((checkSum >> 8) & 0xFF);
-        data[0x14F] = (byte)(checkSum & 0xFF);
+        int stored = ((data[CHECKSUM] & 0xFF) << 8) | (data[CHECKSUM+1] & 0xFF);
+        return stored == (sum & 0xFFFF);
     }
 
 }
\ No newline at end of file
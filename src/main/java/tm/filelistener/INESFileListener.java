@@ -47,4 +47,12 @@ public class INESFileListener extends TMFileListener {
     public void fileSaving(byte[] data, String extension) {
     }
 
+    public int[] getSavingRanges(String extension) {
+        return new int[0];
+    }
+
+    public boolean needsContents(String extension) {
+        return false;
+    }
+
 }
\ No newline at end of file
@@ -18,6 +18,11 @@
 
 package tm.filelistener;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
 /**
 *
 * Listener for Sega Genesis / Master System / 32X (*.smd) files.
@@ -44,6 +49,30 @@ public class SegaGenesisFileListener extends TMFileListener {
         sega_32X________
     };
 
+    private static final int SMD_HEADER_SIZE = 512;
+    private static final int SMD_BLOCK_SIZE = 16384;
+
+    // smd blocks hold the odd bytes in their first half, the even bytes in the second
+    private static final BlockTransform DEINTERLEAVE = new BlockTransform(SMD_HEADER_SIZE, SMD_BLOCK_SIZE) {
+        protected void transformBlock(ByteBuffer src, ByteBuffer dst) {
+            int half = SMD_BLOCK_SIZE / 2;
+            for (int j=0; j<half; j++) {
+                dst.put((j << 1) + 1, src.get(j));
+                dst.put(j << 1, src.get(half + j));
+            }
+        }
+    };
+
+    private static final BlockTransform REINTERLEAVE = new BlockTransform(SMD_HEADER_SIZE, SMD_BLOCK_SIZE) {
+        protected void transformBlock(ByteBuffer src, ByteBuffer dst) {
+            int half = SMD_BLOCK_SIZE / 2;
+            for (int j=0; j<half; j++) {
+                dst.put(j, src.get((j << 1) + 1));
+                dst.put(half + j, src.get(j << 1));
+            }
+        }
+    };
+
 /**
 *
 * Detect if this is a Sega Genesis / Master System / 32X file.
@@ -51,6 +80,16 @@ public class SegaGenesisFileListener extends TMFileListener {
 **/
 
     public boolean doFormatDetect(final byte[] data, String extension) {
+        return doFormatDetect(data, data.length, extension);
+    }
+
+/**
+*
+* Detect the format from the header of the file and its size.
+*
+**/
+
+    public boolean doFormatDetect(final byte[] data, long size, String extension) {
         // verify extension
         if (!(extension.equals("smd")
             || extension.equals("md"))) {
@@ -58,6 +97,9 @@ public class SegaGenesisFileListener extends TMFileListener {
         }
 
         if (extension.equals("smd")) {
+            if (data.length < SMD_HEADER_SIZE + SMD_BLOCK_SIZE) {
+                return false;
+            }
             int[] offsets = {
                 0x2280, 0x0280, 0x2281, 0x0281, 0x2282, 0x0282, 0x2283, 0x0283,
                 0x2284, 0x0284, 0x2285, 0x0285, 0x2286, 0x0286, 0x2287, 0x0287
@@ -83,7 +125,7 @@ public class SegaGenesisFileListener extends TMFileListener {
         }
 
         // verify file size
-        if (((data.length-512) % 16384) != 0) {
+        if (((size-SMD_HEADER_SIZE) % SMD_BLOCK_SIZE) != 0) {
             return false;
         }
 
@@ -96,40 +138,59 @@ public class SegaGenesisFileListener extends TMFileListener {
 
 /**
 *
-* Deinterleaves the data on file load.
+* smd files are deinterleaved while they are read, and reinterleaved while
+* they are written.
 *
 **/
 
-    public void fileLoaded(byte[] data, String extension) {
+    public boolean transformsFile(String extension) {
+        return extension.equals("smd");
+    }
+
+/**
+*
+* Deinterleaves the data as the file is loaded.
+*
+**/
+
+    public void transformLoad(ReadableByteChannel in, WritableByteChannel out, String extension)
+        throws IOException {
         if (extension.equals("smd")) {
-            byte[] block = new byte[16384];
-            int blockCount = (data.length-512) / 16384;
-            for (int i=0; i<blockCount; i++) {
-                // decode a block
-                int ofs = (i * 16384) + 512;
-                // odd - 0..8191
-                for (int j=1; j<16384; j+=2) {
-                    block[j] = data[ofs++];
-                }
-                // even - 8192..16383
-                for (int j=0; j<16384; j+=2) {
-                    block[j] = data[ofs++];
-                }
-                // store the decoded block
-                ofs = (i * 16384) + 512;
-                for (int j=0; j<16384; j++) {
-                    data[ofs+j] = block[j];
-                }
-            }
+            DEINTERLEAVE.run(in, out);
         }
         else {
-            // md extension
+            copy(in, out);
         }
     }
 
 /**
 *
-* Reinterleaves the data on file save.
+* Reinterleaves the data as the file is saved.
+*
+**/
+
+    public void transformSave(ReadableByteChannel in, WritableByteChannel out, String extension)
+        throws IOException {
+        if (extension.equals("smd")) {
+            REINTERLEAVE.run(in, out);
+        }
+        else {
+            copy(in, out);
+        }
+    }
+
+/**
+*
+* Does nothing on file load; the data has already been deinterleaved.
+*
+**/
+
+    public void fileLoaded(byte[] data, String extension) {
+    }
+
+/**
+*
+* Updates the checksum on file save.
 *
 **/
 
@@ -143,34 +204,23 @@ public class SegaGenesisFileListener extends TMFileListener {
             }
             data[0x38E] = (byte)((checkSum >> 8) & 0xFF);
             data[0x38F] = (byte)(checkSum & 0xFF);
-
-            // reinterleave data
-            byte[] block = new byte[16384];
-            int blockCount = (data.length-512) / 16384;
-            for (int i=0; i<blockCount; i++) {
-                // encode a block
-                // odd - 0..8191
-                int ofs = (i * 16384) + 512 + 1;
-                for (int j=0; j<8192; j++) {
-                    block[j] = data[ofs];
-                    ofs += 2;
-                }
-                // even - 8192..16383
-                ofs = (i * 16384) + 512;
-                for (int j=8192; j<16384; j++) {
-                    block[j] = data[ofs];
-                    ofs += 2;
-                }
-                // store the encoded block
-                ofs = (i * 16384) + 512;
-                for (int j=0; j<16384; j++) {
-                    data[ofs+j] = block[j];
-                }
-            }
         }
         else {
             // md extension
         }
     }
 
+/**
+*
+* fileSaving() only writes the checksum of smd files.
+*
+**/
+
+    public int[] getSavingRanges(String extension) {
+        if (extension.equals("smd")) {
+            return new int[] { 0x38E, 0x390 };
+        }
+        return new int[0];
+    }
+
 }
\ No newline at end of file
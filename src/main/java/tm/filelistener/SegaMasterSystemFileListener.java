@@ -81,4 +81,14 @@ public class SegaMasterSystemFileListener extends TMFileListener {
         data[0x7FFB] = (byte)((checkSum >> 8) & 0xFF);
     }
 
+/**
+*
+* fileSaving() only writes the checksum.
+*
+**/
+
+    public int[] getSavingRanges(String extension) {
+        return new int[] { 0x7FFA, 0x7FFC };
+    }
+
 }
\ No newline at end of file
@@ -18,6 +18,13 @@
 
 package tm.filelistener;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
 /**
 *
 * Abstract class that defines the interface for filelisteners.
@@ -29,10 +36,23 @@ package tm.filelistener;
 * the file being saved is indeed of a supported format. This usually involves
 * checking the header (verifying ID strings and such).
 *
+* A filelistener may also keep the checksum of the file up to date as it is
+* edited (see hasChecksum()), so that repairing it on save doesn't take a
+* pass over the whole file, and so that the UI can show whether it is
+* currently valid.
+*
+* Conversions between the layout of the file on disk and the layout that is
+* edited (such as deinterleaving) are done while the file is streamed in and
+* out (see transformsFile()), so they also work for files that are too
+* large to be loaded into the heap.
+*
 **/
 
 public abstract class TMFileListener {
 
+    public static final int HEADER_SIZE = 0x10000;    // bytes read for format detection
+    private static final int COPY_SIZE = 0x10000;
+
 /**
 *
 * This method is invoked when a file has been loaded, to give the file
@@ -44,6 +64,91 @@ public abstract class TMFileListener {
 
     public abstract boolean doFormatDetect(final byte[] data, String extension);
 
+/**
+*
+* Detects the file format before the file is loaded. <code>header</code>
+* holds the first HEADER_SIZE bytes of the file (or all of it, if it is
+* shorter) and <code>size</code> is the size of the whole file.
+* The default implementation passes the header to doFormatDetect(); a
+* listener that looks at the size of the file has to override this.
+*
+**/
+
+    public boolean doFormatDetect(final byte[] header, long size, String extension) {
+        return doFormatDetect(header, extension);
+    }
+
+/**
+*
+* Reads the bytes of the file that are passed to doFormatDetect().
+*
+**/
+
+    public static byte[] readHeader(File file) throws IOException {
+        FileChannel in = FileChannel.open(file.toPath());
+        try {
+            ByteBuffer header = ByteBuffer.allocate((int)Math.min(in.size(), HEADER_SIZE));
+            BlockTransform.readFully(in, header);
+            return header.array();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+/**
+*
+* Returns true if the data that is edited differs in layout from the file
+* on disk. If so, transformLoad() is used to read the file and
+* transformSave() to write it.
+*
+**/
+
+    public boolean transformsFile(String extension) {
+        return false;
+    }
+
+/**
+*
+* Reads the file from <code>in</code> and writes the data to be edited to
+* <code>out</code>. The data may be shorter than the file, but not longer.
+* The default implementation copies it unchanged.
+*
+**/
+
+    public void transformLoad(ReadableByteChannel in, WritableByteChannel out, String extension)
+        throws IOException {
+        copy(in, out);
+    }
+
+/**
+*
+* The reverse of transformLoad(): reads the edited data from <code>in</code>
+* and writes the file to <code>out</code>. This is invoked after
+* fileSaving(). The default implementation copies it unchanged.
+*
+**/
+
+    public void transformSave(ReadableByteChannel in, WritableByteChannel out, String extension)
+        throws IOException {
+        copy(in, out);
+    }
+
+/**
+*
+* Copies all of <code>in</code> to <code>out</code>.
+*
+**/
+
+    protected static void copy(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(COPY_SIZE);
+        while (in.read(buf) >= 0) {
+            buf.flip();
+            BlockTransform.writeFully(out, buf);
+            buf.clear();
+        }
+    }
+
 /**
 *
 * This method is invoked when the file has been loaded (and doFormatDetect() has
@@ -61,4 +166,94 @@ public abstract class TMFileListener {
 
     public abstract void fileSaving(byte[] data, String extension);
 
+/**
+*
+* Gets the bytes that fileSaving() may change, as pairs of start and end
+* offsets, so that saving can write only those besides the edited ones.
+* The default implementation returns null, meaning that it may change any
+* byte and the whole file has to be written.
+*
+**/
+
+    public int[] getSavingRanges(String extension) {
+        return null;
+    }
+
+/**
+*
+* Returns true if fileLoaded(), fileSaving() or checksumInit() have to see
+* the contents of the file. Those files are always loaded into the heap,
+* rather than memory-mapped, so that they can be given the whole array.
+* A listener whose methods do nothing overrides this to return false.
+*
+**/
+
+    public boolean needsContents(String extension) {
+        return true;
+    }
+
+/**
+*
+* Creates a new listener of the same kind, to be used for another file.
+* Listeners that keep track of a checksum hold state for the file they
+* were detected for, so each file gets its own instance. Listeners need a
+* public no-argument constructor for this (TMSpecReader uses it as well).
+*
+**/
+
+    public TMFileListener newInstance() {
+        try {
+            return getClass().getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException e) {
+            // sharing this instance would mix up the state of two files
+            throw new IllegalStateException("Can't create a new " + getClass().getName(), e);
+        }
+    }
+
+/**
+*
+* Returns true if this listener keeps track of the checksum of the file.
+* If so, checksumInit() is invoked once when the file has been loaded, and
+* bytesChanged() whenever bytes of the file change from then on.
+*
+**/
+
+    public boolean hasChecksum() {
+        return false;
+    }
+
+/**
+*
+* This method is invoked when the file has been loaded (after fileLoaded()),
+* to compute the checksum of the whole file.
+*
+**/
+
+    public void checksumInit(byte[] data) {
+    }
+
+/**
+*
+* This method is invoked when <code>len</code> bytes starting at offset
+* <code>pos</code> of the file have changed. The old values are in
+* <code>oldBytes</code> starting at <code>oldOfs</code>, the new ones in
+* <code>newBytes</code> starting at <code>newOfs</code>. An additive checksum
+* can be brought up to date in O(len) time.
+*
+**/
+
+    public void bytesChanged(int pos, byte[] oldBytes, int oldOfs, byte[] newBytes, int newOfs, int len) {
+    }
+
+/**
+*
+* Returns true if the checksum stored in the file matches its contents.
+*
+**/
+
+    public boolean isChecksumValid(byte[] data) {
+        return true;
+    }
+
 }
\ No newline at end of file
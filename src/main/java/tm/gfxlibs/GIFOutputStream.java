@@ -8,13 +8,10 @@
    Shetline. The author assumes no liability for the suitability of this
    code in any application.
 
-   Note: This code does *NOT* implement LZW compression. While the output
-   of the compression routine is compatible with LZW, only a simple run-
-   length compression is performed. The degree of compression as compared
-   to LZW is not as high, but execution time is faster, and LZW licensing
-   issues are avoided. Depending on image size and image complexity, the
-   differences in compression may or may not have practical significance
-   for particular applications.
+   Note: The original version of this code did *NOT* implement LZW
+   compression, only a simple run-length compression that was compatible
+   with LZW. It has since been replaced by a real LZW encoder (see
+   writeCompressedImageData()).
 
    Date           Comments
    -----------    --------
@@ -27,6 +24,9 @@
                   tables need to have at least two entries, so if the image only
                   has one color, an unused entry of either black or white is
                   added to the table to make it a valid length.
+   2024           Replaced the run-length compression with LZW using a hashed
+                  code table, and the Hashtable of boxed Integers used for
+                  the color set with a primitive hash map.
 */
 
 package tm.gfxlibs;
@@ -34,8 +34,6 @@ package tm.gfxlibs;
 import java.io.*;
 import java.awt.*;
 import java.awt.image.*;
-import java.util.Hashtable;
-import java.util.Enumeration;
 
 public class GIFOutputStream extends FilterOutputStream
 {
@@ -195,7 +193,7 @@ public class GIFOutputStream extends FilterOutputStream
 
       switch (colorMode) {
          case ORIGINAL_COLOR:
-            Hashtable   colorSet = getColorSet(pixels);
+            ColorMap    colorSet = getColorSet(pixels);
             colorCount = colorSet.size();
             if (colorCount > 256) {
                errorStatus = TOO_MANY_COLORS;
@@ -272,67 +270,134 @@ public class GIFOutputStream extends FilterOutputStream
       write(0x3B); // GIF file terminator.
    }
 
-   protected Hashtable getColorSet(int[] pixels)
+   /**
+    * Open-addressing hash map from 24-bit RGB values to color table indices.
+    */
+   protected static class ColorMap
    {
-      Hashtable   colorSet = new Hashtable();
-      boolean[]   checked = new boolean[pixels.length];
-      int         needsChecking = pixels.length;
+      protected int[]   keys;
+      protected int[]   values;
+      protected int     size = 0;
+
+      public ColorMap(int capacity)
+      {
+         int   n = 16;
+         while (n < capacity * 2)
+            n <<= 1;
+         keys = new int[n];
+         values = new int[n];
+         java.util.Arrays.fill(keys, -1);
+      }
+
+      protected int slot(int key)
+      {
+         int   mask = keys.length - 1;
+         int   h = key * 0x9E3779B9;
+         int   i = (h ^ (h >>> 16)) & mask;
+
+         while (keys[i] != -1 && keys[i] != key)
+            i = (i + 1) & mask;
+
+         return i;
+      }
+
+      /** Gets the index stored for the color, or -1 if there is none. */
+      public int get(int key)
+      {
+         int   i = slot(key);
+         return (keys[i] == key) ? values[i] : -1;
+      }
+
+      public void put(int key, int value)
+      {
+         int   i = slot(key);
+         if (keys[i] != key) {
+            if ((size + 1) * 2 > keys.length) {
+               grow();
+               i = slot(key);
+            }
+            keys[i] = key;
+            ++size;
+         }
+         values[i] = value;
+      }
+
+      protected void grow()
+      {
+         int[]    oldKeys = keys;
+         int[]    oldValues = values;
+
+         keys = new int[oldKeys.length * 2];
+         values = new int[oldKeys.length * 2];
+         java.util.Arrays.fill(keys, -1);
+         for (int j = 0; j < oldKeys.length; ++j) {
+            if (oldKeys[j] != -1) {
+               int   i = slot(oldKeys[j]);
+               keys[i] = oldKeys[j];
+               values[i] = oldValues[j];
+            }
+         }
+      }
+
+      public int size() { return size; }
+   }
+
+   protected ColorMap getColorSet(int[] pixels)
+   {
+      // 257 colors are enough to know that there are too many
+      ColorMap    colorSet = new ColorMap(257);
       int         color;
+      int         lastColor = -1;
       int         colorIndex = 0;
-      Integer     key;
 
-      for (int j = 0; j < pixels.length && needsChecking > 0; ++j) {
-         if (!checked[j]) {
-            color = pixels[j] & 0x00FFFFFF;
-            checked[j] = true;
-            --needsChecking;
+      for (int j = 0; j < pixels.length; ++j) {
+         color = pixels[j] & 0x00FFFFFF;
+         if (color == lastColor)
+            continue;
+         lastColor = color;
 
-            key = new Integer(color);
-            colorSet.put(key, new Integer(colorIndex));
+         if (colorSet.get(color) < 0) {
+            colorSet.put(color, colorIndex);
             if (++colorIndex > 256)
                break;
-
-            for (int j2 = j + 1; j2 < pixels.length; ++j2) {
-               if ((pixels[j2] & 0x00FFFFFF) == color) {
-                  checked[j2] = true;
-                  --needsChecking;
-               }
-            }
          }
       }
 
       if (colorIndex == 1) {
-         if (colorSet.get(new Integer(0)) == null)
-            colorSet.put(new Integer(0), new Integer(1));
+         if (colorSet.get(0) < 0)
+            colorSet.put(0, 1);
          else
-            colorSet.put(new Integer(0xFFFFFF), new Integer(1));
+            colorSet.put(0xFFFFFF, 1);
       }
 
       return colorSet;
    }
 
-   protected int[] createColorTable(Hashtable colorSet, int colorCount)
+   protected int[] createColorTable(ColorMap colorSet, int colorCount)
    {
       int[]    colorTable = new int[colorCount];
-      Integer  key;
 
-      for (Enumeration e = colorSet.keys(); e.hasMoreElements(); ) {
-         key = (Integer) e.nextElement();
-         colorTable[((Integer) colorSet.get(key)).intValue()] = key.intValue();
+      for (int j = 0; j < colorSet.keys.length; ++j) {
+         if (colorSet.keys[j] != -1)
+            colorTable[colorSet.values[j]] = colorSet.keys[j];
       }
 
       return colorTable;
    }
 
-   protected byte[] createBytePixels(int[] pixels, Hashtable colorSet)
+   protected byte[] createBytePixels(int[] pixels, ColorMap colorSet)
    {
       byte[]   bytePixels = new byte[pixels.length];
-      Integer  key;
-      int      colorIndex;
+      int      color;
+      int      lastColor = -1;
+      int      colorIndex = 0;
 
       for (int j = 0; j < pixels.length; ++j) {
-         key = new Integer(pixels[j] & 0x00FFFFFF);
-         colorIndex = ((Integer) colorSet.get(key)).intValue();
+         color = pixels[j] & 0x00FFFFFF;
+         if (color != lastColor) {
+            colorIndex = colorSet.get(color);
+            lastColor = color;
+         }
          bytePixels[j] = (byte) colorIndex;
       }
 
@@ -472,11 +537,20 @@ public class GIFOutputStream extends FilterOutputStream
       int      r2, g2, b2;
       int      x, y;
       int      threshold;
+      ColorMap matched = new ColorMap(256);   // colors matched so far (when not dithering)
 
       for (int j = 0; j < pixels.length; ++j) {
          color = pixels[j] & 0xFFFFFF;
          minIndex = -1;
 
+         if (!dither) {
+            minIndex = matched.get(color);
+            if (minIndex >= 0) {
+               bytePixels[j] = (byte) minIndex;
+               continue;
+            }
+         }
+
          r = (color & 0xFF0000) >> 16;
          g = (color & 0x00FF00) >> 8;
          b =  color & 0x0000FF;
@@ -562,6 +636,7 @@ public class GIFOutputStream extends FilterOutputStream
             }
 
             bytePixels[j] = (byte) minIndex;
+            matched.put(color, minIndex);
          }
       }
 
@@ -683,33 +758,25 @@ public class GIFOutputStream extends FilterOutputStream
 
    /********************************************************************\
    |                                                                    |
-   |  The following code is based on C code for GIF compression         |
-   |  obtained from http://www.boutell.com                              |
-   |                                                                    |
-   |  Based on GIFENCOD by David Rowley <mgardi@watdscu.waterloo.edu>   |
-   |  Modified by Marcel Wijkstra <wijkstra@fwi.uva.nl>                 |
-   |  One version, Copyright (C) 1989 by Jef Poskanzer.                 |
-   |  Heavily modified by Mouse, 1998-02-12.                            |
-   |                                                                    |
-   |  And now, modified and rendered in Java by Kerry Shetline, 2000,   |
-   |  kerry@shetline.com                                                |
+   |  LZW compression, after GIFCOMPR.C (GIF Image compression) by      |
+   |  Lempel-Ziv compression based on 'compress'. GIF modifications by  |
+   |  David Rowley. Rendered in Java by Jef Poskanzer. The code table   |
+   |  is an open-addressing hash table of (prefix, pixel) keys with     |
+   |  double hashing.                                                   |
    |                                                                    |
    \********************************************************************/
 
-   protected int        rl_pixel;
-   protected int        rl_basecode;
-   protected int        rl_count;
-   protected int        rl_table_pixel;
-   protected int        rl_table_max;
-   protected boolean    just_cleared;
-   protected int        out_bits;
-   protected int        out_bits_init;
-   protected int        out_count;
-   protected int        out_bump;
-   protected int        out_bump_init;
-   protected int        out_clear;
-   protected int        out_clear_init;
-   protected int        max_ocodes;
+   protected final static int GIFBITS = 12;
+   protected final static int HSIZE = 5003;            // 80% occupancy
+   protected final static int MAXMAXCODE = 1 << GIFBITS;
+
+   protected int[]      htab = new int[HSIZE];         // (pixel << GIFBITS) + prefix, -1 if empty
+   protected int[]      codetab = new int[HSIZE];
+   protected int        n_bits;                        // number of bits per code
+   protected int        maxcode;                       // maximum code for n_bits
+   protected int        init_code_bits;
+   protected int        free_ent;                      // first unused entry
+   protected boolean    clear_flg;
    protected int        code_clear;
    protected int        code_eof;
    protected int        obuf;
@@ -717,8 +784,6 @@ public class GIFOutputStream extends FilterOutputStream
    protected byte[]     oblock = new byte[256];
    protected int        oblen;
 
-   protected final static int GIFBITS = 12;
-
    protected void writeCompressedImageData(byte[] bytePixels, int bitsPerPixel)
       throws IOException
    {
@@ -729,48 +794,79 @@ public class GIFOutputStream extends FilterOutputStream
 
       write(init_bits);
 
-      int      c;
-
       obuf = 0;
       obits = 0;
       oblen = 0;
+      init_code_bits = init_bits + 1;
+      n_bits = init_code_bits;
+      maxcode = (1 << n_bits) - 1;
+      clear_flg = false;
       code_clear = 1 << init_bits;
       code_eof = code_clear + 1;
-      rl_basecode = code_eof + 1;
-      out_bump_init = (1 << init_bits) - 1;
-      /* for images with a lot of runs, making out_clear_init larger will
-         give better compression. */
-      out_clear_init = (init_bits <= 2) ? 9 : (out_bump_init - 1);
-      out_bits_init = init_bits + 1;
-      max_ocodes = (1 << GIFBITS) - ((1 << (out_bits_init - 1)) + 3);
-      did_clear();
+      free_ent = code_clear + 2;
+
+      int   hshift = 0;
+      for (int fcode = HSIZE; fcode < 65536; fcode *= 2)
+         ++hshift;
+      hshift = 8 - hshift;     // set hash code range bound
+
+      clear_hash();
       output(code_clear);
-      rl_count = 0;
 
-      for (int j = 0; j < bytePixels.length; ++j) {
-         c = (int) bytePixels[j];
-         if (c < 0)
-            c += 256;
+      if (bytePixels.length > 0) {
+         int   ent = bytePixels[0] & 0xFF;
 
-         if ((rl_count > 0) && (c != rl_pixel))
-            rl_flush();
+         outer:
+         for (int j = 1; j < bytePixels.length; ++j) {
+            int   c = bytePixels[j] & 0xFF;
+            int   fcode = (c << GIFBITS) + ent;
+            int   i = (c << hshift) ^ ent;   // xor hashing
 
-         if (rl_pixel == c) {
-            rl_count++;
-         }
-         else {
-            rl_pixel = c;
-            rl_count = 1;
+            if (htab[i] == fcode) {
+               ent = codetab[i];
+               continue;
+            }
+            else if (htab[i] >= 0) {
+               // secondary hash (after G. Knott)
+               int   disp = HSIZE - i;
+               if (i == 0)
+                  disp = 1;
+               do {
+                  if ((i -= disp) < 0)
+                     i += HSIZE;
+                  if (htab[i] == fcode) {
+                     ent = codetab[i];
+                     continue outer;
+                  }
+               } while (htab[i] >= 0);
+            }
+
+            output(ent);
+            ent = c;
+            if (free_ent < MAXMAXCODE) {
+               codetab[i] = free_ent++;
+               htab[i] = fcode;
+            }
+            else {
+               // table full: start over
+               clear_hash();
+               free_ent = code_clear + 2;
+               clear_flg = true;
+               output(code_clear);
+            }
          }
-      }
 
-      if (rl_count > 0)
-         rl_flush();
+         output(ent);
+      }
 
       output(code_eof);
       output_flush();
    }
 
+   protected void clear_hash()
+   {
+      java.util.Arrays.fill(htab, -1);
+   }
 
    protected void write_block() throws IOException
    {
@@ -792,218 +888,39 @@ public class GIFOutputStream extends FilterOutputStream
          write_block();
    }
 
-   protected void output(int val) throws IOException
+   protected void output(int code) throws IOException
    {
-      obuf |= val << obits;
-      obits += out_bits;
+      obuf |= code << obits;
+      obits += n_bits;
       while (obits >= 8) {
          block_out(obuf & 0xFF);
          obuf >>= 8;
          obits -= 8;
       }
-   }
-
-   protected void output_flush() throws IOException
-   {
-      if (obits > 0)
-         block_out(obuf);
-      block_flush();
-   }
-
-   protected void did_clear() throws IOException
-   {
-      out_bits = out_bits_init;
-      out_bump = out_bump_init;
-      out_clear = out_clear_init;
-      out_count = 0;
-      rl_table_max = 0;
-      just_cleared = true;
-   }
-
-   protected void output_plain(int c) throws IOException
-   {
-      just_cleared = false;
-      output(c);
-      out_count++;
-      if (out_count >= out_bump) {
-         out_bits++;
-         out_bump += 1 << (out_bits - 1);
-      }
-      if (out_count >= out_clear) {
-         output(code_clear);
-         did_clear();
-      }
-   }
-
-   protected int isqrt(int x)
-   {
-      int   r;
-      int   v;
-
-      if (x < 2)
-         return x;
-
-      for (v = x, r = 1; v != 0; v >>= 2, r <<= 1);
-
-      while (true) {
-         v = ((x / r) + r) / 2;
-         if ((v == r) || (v == r + 1))
-            return r;
-         r = v;
-      }
-   }
-
-   protected int compute_triangle_count(int count, int nrepcodes)
-   {
-      int   perrep;
-      int   cost;
-
-      cost = 0;
-      perrep = (nrepcodes * (nrepcodes +1 )) / 2;
-      while (count >= perrep) {
-         cost += nrepcodes;
-         count -= perrep;
-      }
-      if (count > 0) {
-         int      n = isqrt(count);
-         while ((n * (n + 1)) >= 2 * count)
-            n--;
-         while ((n * (n + 1)) < 2 * count)
-            n++;
-         cost += n;
-      }
-
-      return cost;
-   }
-
-   protected void max_out_clear()
-   {
-      out_clear = max_ocodes;
-   }
-
-   protected void reset_out_clear() throws IOException
-   {
-      out_clear = out_clear_init;
-      if (out_count >= out_clear) {
-         output(code_clear);
-         did_clear();
-      }
-   }
-
-   protected void rl_flush_fromclear(int count) throws IOException
-   {
-      int   n;
-
-      max_out_clear();
-      rl_table_pixel = rl_pixel;
-      n = 1;
-      while (count > 0) {
-         if (n == 1) {
-            rl_table_max = 1;
-            output_plain(rl_pixel);
-            count--;
-         }
-         else if (count >= n) {
-            rl_table_max = n;
-            output_plain(rl_basecode + n - 2);
-            count -= n;
-         }
-         else if (count == 1) {
-            rl_table_max++;
-            output_plain(rl_pixel);
-            count = 0;
-         }
-         else {
-            rl_table_max++;
-            output_plain(rl_basecode + count - 2);
-            count = 0;
-         }
-
-         if (out_count == 0)
-            n = 1;
-         else
-            n++;
-      }
-
-      reset_out_clear();
-   }
-
-   protected void rl_flush_clearorrep(int count) throws IOException
-   {
-      int   withclr;
-
-      withclr = 1 + compute_triangle_count(count, max_ocodes);
-      if (withclr < count) {
-         output(code_clear);
-         did_clear();
-         rl_flush_fromclear(count);
-      }
-      else {
-         for (; count > 0; count--)
-            output_plain(rl_pixel);
-      }
-   }
-
-   protected void rl_flush_withtable(int count) throws IOException
-   {
-      int   repmax;
-      int   repleft;
-      int   leftover;
-
-      repmax = count / rl_table_max;
-      leftover = count % rl_table_max;
-      repleft = (leftover != 0 ? 1 : 0);
-      if (out_count + repmax + repleft > max_ocodes) {
-         repmax = max_ocodes - out_count;
-         leftover = count - (repmax * rl_table_max);
-         repleft = 1 + compute_triangle_count(leftover, max_ocodes);
-      }
 
-      if (1 + compute_triangle_count(count,max_ocodes) < repmax + repleft) {
-         output(code_clear);
-         did_clear();
-         rl_flush_fromclear(count);
-         return;
-      }
-
-      max_out_clear();
-      for (; repmax > 0; repmax--)
-         output_plain(rl_basecode + rl_table_max - 2);
-      if (leftover != 0) {
-         if (just_cleared) {
-            rl_flush_fromclear(leftover);
-         }
-         else if (leftover == 1) {
-            output_plain(rl_pixel);
+      // If the next entry is going to be too big for the code size,
+      // then increase it, if possible.
+      if (free_ent > maxcode || clear_flg) {
+         if (clear_flg) {
+            n_bits = init_code_bits;
+            maxcode = (1 << n_bits) - 1;
+            clear_flg = false;
          }
          else {
-            output_plain(rl_basecode + leftover - 2);
+            ++n_bits;
+            if (n_bits == GIFBITS)
+               maxcode = MAXMAXCODE;
+            else
+               maxcode = (1 << n_bits) - 1;
          }
       }
-      reset_out_clear();
    }
 
-   protected void rl_flush() throws IOException
+   protected void output_flush() throws IOException
    {
-      int   table_reps;
-      int   table_extra;
-
-      if (rl_count == 1) {
-         output_plain(rl_pixel);
-         rl_count = 0;
-         return;
-      }
-      if (just_cleared) {
-         rl_flush_fromclear(rl_count);
-      }
-      else if ((rl_table_max < 2) || (rl_table_pixel != rl_pixel)) {
-         rl_flush_clearorrep(rl_count);
-      }
-      else {
-         rl_flush_withtable(rl_count);
-      }
-
-      rl_count = 0;
+      if (obits > 0)
+         block_out(obuf);
+      block_flush();
    }
 
    /******** END OF IMPORTED GIF COMPRESSION CODE ********/
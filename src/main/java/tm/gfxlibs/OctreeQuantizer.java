@@ -0,0 +1,616 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.gfxlibs;
+
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+*
+* Octree color quantizer. It uses the same algorithm as Quantize, and gives
+* the same colors, but works on a flat array of pixels (row after row, as
+* the image classes and PixelGrabber use), keeps the tree in flat arrays of
+* primitives rather than a Node object per cube, and spreads the work over
+* several threads.
+*
+* Classification gives each thread a part of the image to build a tree of
+* its own; the trees are then merged into one, which is reduced as usual.
+* Assignment of the pixels to the colors of the reduced tree is split over
+* the threads as well.
+*
+* The cube a color falls in at each level only depends on the top bits of
+* its components (less one, as the midpoints themselves belong to the lower
+* half), so for the tree depths used for up to 1023 colors the leaf of
+* each color is looked up in a table instead of walking the tree. The
+* pixels are only counted in their leaves; the (weighted) pixel counts of
+* the nodes above them are added up once the trees have been merged.
+*
+**/
+
+public class OctreeQuantizer {
+
+    private static final int MAX_RGB = 255;
+    private static final int MAX_NODES = 266817;
+    private static final int MAX_TREE_DEPTH = 8;
+    private static final int MIN_PIXELS_PER_THREAD = 16384;
+    private static final int MAX_TABLE_DEPTH = 5;   // trees this deep never need pruning
+
+    private static final long[] SHIFT = new long[MAX_TREE_DEPTH + 1];
+
+    static {
+        for (int i=0; i<SHIFT.length; i++) {
+            SHIFT[i] = 1 << (15 - i);
+        }
+    }
+
+    private int maxColors;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+/**
+*
+* Creates a quantizer that reduces images to at most maxColors colors.
+*
+**/
+
+    public OctreeQuantizer(int maxColors) {
+        this.maxColors = maxColors;
+    }
+
+/**
+*
+* Sets the number of threads to quantize with.
+*
+**/
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+/**
+*
+* Convenience method that quantizes the pixels with the default number of
+* threads. See quantize().
+*
+**/
+
+    public static int[] quantizeImage(int[] pixels, int maxColors) {
+        return new OctreeQuantizer(maxColors).quantize(pixels);
+    }
+
+/**
+*
+* Reduces the colors of the given (A)RGB pixels. Each pixel is replaced by
+* the index of its color in the returned colormap.
+*
+**/
+
+    public int[] quantize(final int[] pixels) {
+        int sliceCount = Math.max(1, Math.min(threads, pixels.length / MIN_PIXELS_PER_THREAD));
+        final int depth = getDepth(maxColors);
+        final Tree[] trees = new Tree[sliceCount];
+        final int sliceSize = (pixels.length + sliceCount - 1) / sliceCount;
+
+        // classification
+        Vector tasks = new Vector();
+        for (int i=0; i<sliceCount; i++) {
+            final int slice = i;
+            tasks.add(new Callable() {
+                public Object call() {
+                    Tree tree = new Tree(depth);
+                    tree.classify(pixels, slice * sliceSize, Math.min(pixels.length, (slice + 1) * sliceSize));
+                    trees[slice] = tree;
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+        final Tree tree = trees[0];
+        for (int i=1; i<trees.length; i++) {
+            tree.merge(trees[i]);
+            trees[i] = null;
+        }
+        tree.countPixels(0);
+
+        // reduction
+        tree.reduce(maxColors);
+        final int[] colormap = tree.colormap();
+
+        // assignment
+        tasks.clear();
+        for (int i=0; i<sliceCount; i++) {
+            final int slice = i;
+            tasks.add(new Callable() {
+                public Object call() {
+                    tree.assign(pixels, slice * sliceSize, Math.min(pixels.length, (slice + 1) * sliceSize));
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+        return colormap;
+    }
+
+/**
+*
+* Runs the given tasks, on several threads if there's more than one.
+*
+**/
+
+    private void runAll(Vector tasks) {
+        if (tasks.size() == 1) {
+            try {
+                ((Callable)tasks.get(0)).call();
+            }
+            catch (RuntimeException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(tasks.size(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "OctreeQuantizer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            java.util.List results = pool.invokeAll(tasks);
+            for (int i=0; i<results.size(); i++) {
+                ((Future)results.get(i)).get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+/**
+*
+* Gets the depth of the tree for the given number of colors:
+* log4(maxColors), between 2 and MAX_TREE_DEPTH.
+*
+**/
+
+    private static int getDepth(int maxColors) {
+        int depth;
+        int i = maxColors;
+        for (depth = 1; i != 0; depth++) {
+            i /= 4;
+        }
+        if (depth > 1) {
+            --depth;
+        }
+        return Math.max(2, Math.min(MAX_TREE_DEPTH, depth));
+    }
+
+/**
+*
+* Color description tree. Node 0 is the root; a child index of 0 means
+* there is no such child. The midpoints of the cubes aren't stored, see
+* getChildIndex().
+*
+**/
+
+    private static class Tree {
+
+        private int depth;
+        private int size = 1;       // number of node slots in use
+        private int nodes;          // number of nodes in the tree, not counting the root
+        private int colors;
+
+        private int[] child;        // 8 per node
+        private int[] parent;
+        private byte[] id;          // index within the parent
+        private byte[] level;
+        private byte[] nchild;
+        private long[] numberPixels;    // (weighted) pixel count of this node and all children, see countPixels()
+        private int[] unique;           // pixel count of this node
+        private long[] totalRed;
+        private long[] totalGreen;
+        private long[] totalBlue;
+        private int[] colorNumber;
+
+        Tree(int depth) {
+            this.depth = depth;
+            allocate(1024);
+            numberPixels[0] = Long.MAX_VALUE;
+        }
+
+        private void allocate(int capacity) {
+            child = grow(child, capacity * 8);
+            parent = grow(parent, capacity);
+            id = grow(id, capacity);
+            level = grow(level, capacity);
+            nchild = grow(nchild, capacity);
+            numberPixels = grow(numberPixels, capacity);
+            unique = grow(unique, capacity);
+            totalRed = grow(totalRed, capacity);
+            totalGreen = grow(totalGreen, capacity);
+            totalBlue = grow(totalBlue, capacity);
+            colorNumber = grow(colorNumber, capacity);
+        }
+
+        private static int[] grow(int[] a, int length) {
+            int[] b = new int[length];
+            if (a != null) {
+                System.arraycopy(a, 0, b, 0, a.length);
+            }
+            return b;
+        }
+
+        private static long[] grow(long[] a, int length) {
+            long[] b = new long[length];
+            if (a != null) {
+                System.arraycopy(a, 0, b, 0, a.length);
+            }
+            return b;
+        }
+
+        private static byte[] grow(byte[] a, int length) {
+            byte[] b = new byte[length];
+            if (a != null) {
+                System.arraycopy(a, 0, b, 0, a.length);
+            }
+            return b;
+        }
+
+        private int newNode(int p, int i, int l) {
+            if (size == parent.length) {
+                allocate(size * 2);
+            }
+            int n = size++;
+            parent[n] = p;
+            id[n] = (byte)i;
+            level[n] = (byte)l;
+            child[p * 8 + i] = n;
+            nchild[p]++;
+            nodes++;
+            return n;
+        }
+
+/**
+*
+* Adds the pixels from..to-1 to the tree.
+*
+**/
+
+        void classify(int[] pixels, int from, int to) {
+            int[] leaves = (depth <= MAX_TABLE_DEPTH) ? new int[1 << (3 * depth)] : null;
+            for (int i=from; i<to; i++) {
+                int pixel = pixels[i];
+                int red   = (pixel >> 16) & 0xFF;
+                int green = (pixel >>  8) & 0xFF;
+                int blue  = pixel & 0xFF;
+
+                int node;
+                if (leaves != null) {
+                    int key = getKey(red, green, blue, depth);
+                    node = leaves[key];
+                    if (node == 0) {
+                        node = insert(red, green, blue);
+                        leaves[key] = node;
+                    }
+                }
+                else {
+                    // a hard limit on the number of nodes in the tree
+                    if (nodes > MAX_NODES) {
+                        pruneLevel(0);
+                        --depth;
+                    }
+                    node = insert(red, green, blue);
+                }
+                unique[node]++;
+                totalRed[node]   += red;
+                totalGreen[node] += green;
+                totalBlue[node]  += blue;
+            }
+        }
+
+/**
+*
+* Gets the index of the given color in a table of the leaves of a tree of
+* the given depth.
+*
+**/
+
+        private static int getKey(int red, int green, int blue, int depth) {
+            int shift = MAX_TREE_DEPTH - depth;
+            return (((red - ((red + 255) >> 8)) >> shift) << (depth * 2))
+                 | (((green - ((green + 255) >> 8)) >> shift) << depth)
+                 | ((blue - ((blue + 255) >> 8)) >> shift);
+        }
+
+/**
+*
+* Gets the index (0-7) of the child cube the given color falls in, below
+* a node at level - 1. Equivalent to comparing the components to the
+* midpoints of the node's cube.
+*
+**/
+
+        private static int getChildIndex(int red, int green, int blue, int level) {
+            int shift = MAX_TREE_DEPTH - level;
+            return (((red - ((red + 255) >> 8)) >> shift) & 1)
+                 | ((((green - ((green + 255) >> 8)) >> shift) & 1) << 1)
+                 | ((((blue - ((blue + 255) >> 8)) >> shift) & 1) << 2);
+        }
+
+/**
+*
+* Walks the tree to depth for the given color, creating nodes as needed,
+* and returns the leaf.
+*
+**/
+
+        private int insert(int red, int green, int blue) {
+            int node = 0;
+            for (int l=1; l<=depth; l++) {
+                int i = getChildIndex(red, green, blue, l);
+                int c = child[node * 8 + i];
+                if (c == 0) {
+                    c = newNode(node, i, l);
+                }
+                node = c;
+            }
+            return node;
+        }
+
+/**
+*
+* Walks the tree for the given color as far as it goes.
+*
+**/
+
+        private int find(int red, int green, int blue) {
+            int node = 0;
+            for (int l=1; ; l++) {
+                int c = child[node * 8 + getChildIndex(red, green, blue, l)];
+                if (c == 0) {
+                    return node;
+                }
+                node = c;
+            }
+        }
+
+/**
+*
+* Works out the weighted pixel counts of the nodes below n from the pixel
+* counts of the leaves: every pixel counts SHIFT[level] in each node on
+* its way down. Returns the number of pixels in n and below.
+*
+**/
+
+        long countPixels(int n) {
+            long count = unique[n];
+            if (nchild[n] != 0) {
+                for (int i=0; i<8; i++) {
+                    int c = child[n * 8 + i];
+                    if (c != 0) {
+                        count += countPixels(c);
+                    }
+                }
+            }
+            if (n != 0) {
+                numberPixels[n] = count * SHIFT[level[n]];
+            }
+            return count;
+        }
+
+/**
+*
+* Adds the counts of another tree to this one.
+*
+**/
+
+        void merge(Tree other) {
+            merge(other, 0, 0);
+            if (nodes > MAX_NODES) {
+                pruneLevel(0);
+                --depth;
+            }
+        }
+
+        private void merge(Tree other, int s, int t) {
+            unique[t] += other.unique[s];
+            totalRed[t] += other.totalRed[s];
+            totalGreen[t] += other.totalGreen[s];
+            totalBlue[t] += other.totalBlue[s];
+            if (other.nchild[s] == 0) {
+                return;
+            }
+            for (int i=0; i<8; i++) {
+                int sc = other.child[s * 8 + i];
+                if (sc == 0) {
+                    continue;
+                }
+                if (level[t] == depth) {
+                    // the other tree goes deeper (it was pruned less); fold its nodes into this one
+                    merge(other, sc, t);
+                }
+                else {
+                    int tc = child[t * 8 + i];
+                    if (tc == 0) {
+                        tc = newNode(t, i, level[t] + 1);
+                    }
+                    merge(other, sc, tc);
+                }
+            }
+        }
+
+        private void pruneChild(int n) {
+            int p = parent[n];
+            nchild[p]--;
+            unique[p] += unique[n];
+            totalRed[p] += totalRed[n];
+            totalGreen[p] += totalGreen[n];
+            totalBlue[p] += totalBlue[n];
+            child[p * 8 + id[n]] = 0;
+            nodes--;
+        }
+
+        private void pruneLevel(int n) {
+            if (nchild[n] != 0) {
+                for (int i=0; i<8; i++) {
+                    int c = child[n * 8 + i];
+                    if (c != 0) {
+                        pruneLevel(c);
+                    }
+                }
+            }
+            if (level[n] == depth) {
+                pruneChild(n);
+            }
+        }
+
+/**
+*
+* Collapses the tree until it has at most maxColors colors.
+*
+**/
+
+        void reduce(int maxColors) {
+            colors = countColors(0);
+            long threshold = 1;
+            while (colors > maxColors) {
+                colors = 0;
+                threshold = reduce(0, threshold, Long.MAX_VALUE);
+            }
+        }
+
+        private int countColors(int n) {
+            int count = (unique[n] != 0) ? 1 : 0;
+            if (nchild[n] != 0) {
+                for (int i=0; i<8; i++) {
+                    int c = child[n * 8 + i];
+                    if (c != 0) {
+                        count += countColors(c);
+                    }
+                }
+            }
+            return count;
+        }
+
+        private long reduce(int n, long threshold, long nextThreshold) {
+            if (nchild[n] != 0) {
+                for (int i=0; i<8; i++) {
+                    int c = child[n * 8 + i];
+                    if (c != 0) {
+                        nextThreshold = reduce(c, threshold, nextThreshold);
+                    }
+                }
+            }
+            if (numberPixels[n] <= threshold) {
+                pruneChild(n);
+            }
+            else {
+                if (unique[n] != 0) {
+                    colors++;
+                }
+                if (numberPixels[n] < nextThreshold) {
+                    nextThreshold = numberPixels[n];
+                }
+            }
+            return nextThreshold;
+        }
+
+/**
+*
+* Numbers the colors of the tree and returns them: the mean color of the
+* pixels of each node that has any.
+*
+**/
+
+        int[] colormap() {
+            int[] colormap = new int[countColors(0)];
+            colors = 0;
+            colormap(0, colormap);
+            return colormap;
+        }
+
+        private void colormap(int n, int[] colormap) {
+            if (nchild[n] != 0) {
+                for (int i=0; i<8; i++) {
+                    int c = child[n * 8 + i];
+                    if (c != 0) {
+                        colormap(c, colormap);
+                    }
+                }
+            }
+            int u = unique[n];
+            if (u != 0) {
+                int r = (int)((totalRed[n]   + (u >> 1)) / u);
+                int g = (int)((totalGreen[n] + (u >> 1)) / u);
+                int b = (int)((totalBlue[n]  + (u >> 1)) / u);
+                colormap[colors] = 0xFF000000 | ((r & 0xFF) << 16) | ((g & 0xFF) << 8) | (b & 0xFF);
+                colorNumber[n] = colors++;
+            }
+        }
+
+/**
+*
+* Replaces the pixels from..to-1 by the number of the color of the cube
+* they fall in.
+*
+**/
+
+        void assign(int[] pixels, int from, int to) {
+            int[] table = null;
+            if (depth <= MAX_TABLE_DEPTH) {
+                table = new int[1 << (3 * depth)];
+                Arrays.fill(table, -1);
+            }
+            for (int i=from; i<to; i++) {
+                int pixel = pixels[i];
+                int red   = (pixel >> 16) & 0xFF;
+                int green = (pixel >>  8) & 0xFF;
+                int blue  = pixel & 0xFF;
+                if (table != null) {
+                    int key = getKey(red, green, blue, depth);
+                    int c = table[key];
+                    if (c < 0) {
+                        c = colorNumber[find(red, green, blue)];
+                        table[key] = c;
+                    }
+                    pixels[i] = c;
+                }
+                else {
+                    pixels[i] = colorNumber[find(red, green, blue)];
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,470 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.gfxlibs;
+
+import java.awt.Image;
+import java.awt.image.ImageObserver;
+import java.awt.image.PixelGrabber;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+*
+* PNG encoder that spreads the work over several threads and writes the
+* file as it goes.
+*
+* The image is cut into chunks of rows. Each chunk is filtered and deflated
+* independently, the way pigz does it: every row gets the filter (None, Sub,
+* Up, Average or Paeth) that gives the smallest sum of absolute differences,
+* and the deflater of a chunk is primed with the last 32K of filtered data of
+* the chunk before it, so the compression is nearly as good as for a single
+* stream. The chunks end on a byte boundary (sync flush), so their output can
+* simply be concatenated, and each is written as an IDAT chunk as soon as it
+* and all chunks before it are done.
+*
+**/
+
+public class ParallelPngEncoder {
+
+    private static final byte[] SIGNATURE = { -119, 80, 78, 71, 13, 10, 26, 10 };
+    private static final int CHUNK_SIZE = 128 * 1024;   // uncompressed bytes per chunk (approx.)
+    private static final int WINDOW_SIZE = 32 * 1024;   // deflate dictionary size
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    private Image image;
+    private boolean encodeAlpha;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private int width;
+    private int height;
+    private int bytesPerPixel;
+    private int rowBytes;
+    private int[] pixels;
+
+/**
+*
+* Creates an encoder for the given image.
+*
+**/
+
+    public ParallelPngEncoder(Image image, boolean encodeAlpha) {
+        this.image = image;
+        this.encodeAlpha = encodeAlpha;
+    }
+
+/**
+*
+* Sets the compression level (0-9).
+*
+**/
+
+    public void setCompressionLevel(int level) {
+        if ((level >= 0) && (level <= 9)) {
+            compressionLevel = level;
+        }
+    }
+
+/**
+*
+* Sets the number of threads to compress with.
+*
+**/
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+/**
+*
+* Encodes the image and writes it to the given file.
+*
+**/
+
+    public void write(File file) throws IOException {
+        width = image.getWidth(null);
+        height = image.getHeight(null);
+        bytesPerPixel = encodeAlpha ? 4 : 3;
+        rowBytes = width * bytesPerPixel;
+        pixels = new int[width * height];
+        PixelGrabber pg = new PixelGrabber(image, 0, 0, width, height, pixels, 0, width);
+        try {
+            pg.grabPixels();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while grabbing pixels");
+        }
+        if ((pg.getStatus() & ImageObserver.ABORT) != 0) {
+            throw new IOException("Image fetch aborted or errored");
+        }
+
+        FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PNG encoder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            writeFully(out, ByteBuffer.wrap(SIGNATURE));
+            writeHeader(out);
+            writeImageData(out, pool);
+            writeChunk(out, "IEND", new byte[0], 0, 0);
+        }
+        finally {
+            pool.shutdownNow();
+            out.close();
+            pixels = null;
+        }
+    }
+
+/**
+*
+* Writes the IHDR chunk.
+*
+**/
+
+    private void writeHeader(FileChannel out) throws IOException {
+        ByteBuffer hdr = ByteBuffer.allocate(13);
+        hdr.putInt(width);
+        hdr.putInt(height);
+        hdr.put((byte)8);                       // bit depth
+        hdr.put((byte)(encodeAlpha ? 6 : 2));   // direct model
+        hdr.put((byte)0);                       // compression method
+        hdr.put((byte)0);                       // filter method
+        hdr.put((byte)0);                       // no interlace
+        writeChunk(out, "IHDR", hdr.array(), 0, 13);
+    }
+
+/**
+*
+* Compresses the rows in parallel and writes the results as IDAT chunks, in
+* order. Only a few chunks more than there are threads are in flight at any
+* time, so memory use doesn't grow with the image.
+*
+**/
+
+    private void writeImageData(FileChannel out, ExecutorService pool) throws IOException {
+        int rowsPerChunk = Math.max(1, CHUNK_SIZE / (rowBytes + 1));
+        int chunkCount = Math.max(1, (height + rowsPerChunk - 1) / rowsPerChunk);
+        LinkedList pending = new LinkedList();
+        int submitted = 0;
+        long adler = 1;
+
+        // zlib header: deflate with 32K window, check bits make it a multiple of 31
+        int levelFlags = (compressionLevel == 0 || compressionLevel == 1) ? 0 : (compressionLevel >= 7 ? 3 : 2);
+        int cmf = 0x78;
+        int flg = levelFlags << 6;
+        flg += 31 - (((cmf << 8) + flg) % 31);
+        byte[] zlibHeader = { (byte)cmf, (byte)flg };
+
+        try {
+            for (int c=0; c<chunkCount; c++) {
+                while ((submitted < chunkCount) && (pending.size() < threads * 2)) {
+                    final int firstRow = submitted * rowsPerChunk;
+                    final int lastRow = Math.min(height, firstRow + rowsPerChunk);
+                    final boolean last = (submitted == chunkCount - 1);
+                    pending.add(pool.submit(new Callable() {
+                        public Object call() {
+                            return compressRows(firstRow, lastRow, last);
+                        }
+                    }));
+                    submitted++;
+                }
+                Chunk chunk = (Chunk)((Future)pending.removeFirst()).get();
+                adler = adler32Combine(adler, chunk.adler, chunk.rawLength);
+                byte[] data = chunk.data;
+                int len = chunk.length;
+                if (c == 0) {
+                    byte[] tmp = new byte[len + 2];
+                    System.arraycopy(zlibHeader, 0, tmp, 0, 2);
+                    System.arraycopy(data, 0, tmp, 2, len);
+                    data = tmp;
+                    len += 2;
+                }
+                if (c == chunkCount - 1) {
+                    byte[] tmp = new byte[len + 4];
+                    System.arraycopy(data, 0, tmp, 0, len);
+                    tmp[len] = (byte)(adler >>> 24);
+                    tmp[len + 1] = (byte)(adler >>> 16);
+                    tmp[len + 2] = (byte)(adler >>> 8);
+                    tmp[len + 3] = (byte)adler;
+                    data = tmp;
+                    len += 4;
+                }
+                writeChunk(out, "IDAT", data, 0, len);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+/**
+*
+* Compressed output of one chunk of rows.
+*
+**/
+
+    private static class Chunk {
+        byte[] data;
+        int length;
+        long adler;         // Adler-32 of the filtered (uncompressed) rows
+        int rawLength;      // number of filtered bytes
+    }
+
+/**
+*
+* Filters and deflates the rows firstRow..lastRow-1.
+*
+**/
+
+    private Chunk compressRows(int firstRow, int lastRow, boolean last) {
+        Deflater deflater = new Deflater(compressionLevel, true);
+        try {
+            if (firstRow > 0) {
+                // prime with the end of the previous chunk, filtered the same way
+                int dictRows = Math.min(firstRow, (WINDOW_SIZE + rowBytes) / (rowBytes + 1));
+                byte[] prev = filterRows(firstRow - dictRows, firstRow);
+                int dictLen = Math.min(WINDOW_SIZE, prev.length);
+                deflater.setDictionary(prev, prev.length - dictLen, dictLen);
+            }
+            byte[] raw = filterRows(firstRow, lastRow);
+            Chunk chunk = new Chunk();
+            Adler32 adler = new Adler32();
+            adler.update(raw, 0, raw.length);
+            chunk.adler = adler.getValue();
+            chunk.rawLength = raw.length;
+
+            deflater.setInput(raw);
+            byte[] buf = new byte[raw.length / 2 + 1024];
+            int len = 0;
+            if (last) {
+                deflater.finish();
+            }
+            while (true) {
+                if (len == buf.length) {
+                    byte[] tmp = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, tmp, 0, len);
+                    buf = tmp;
+                }
+                int n = last ? deflater.deflate(buf, len, buf.length - len)
+                             : deflater.deflate(buf, len, buf.length - len, Deflater.SYNC_FLUSH);
+                len += n;
+                if (last ? deflater.finished() : (len < buf.length)) {
+                    break;
+                }
+            }
+            chunk.data = buf;
+            chunk.length = len;
+            return chunk;
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+/**
+*
+* Builds the filtered scanlines for rows firstRow..lastRow-1, each preceded
+* by its filter type. Every row gets the filter whose output has the
+* smallest sum of absolute (signed) values, the usual heuristic.
+*
+**/
+
+    private byte[] filterRows(int firstRow, int lastRow) {
+        byte[] out = new byte[(lastRow - firstRow) * (rowBytes + 1)];
+        byte[] prior = new byte[rowBytes];
+        byte[] current = new byte[rowBytes];
+        byte[][] candidates = new byte[5][rowBytes];
+        if (firstRow > 0) {
+            getRowBytes(firstRow - 1, prior);
+        }
+        int pos = 0;
+        for (int row=firstRow; row<lastRow; row++) {
+            getRowBytes(row, current);
+            int bestFilter = FILTER_NONE;
+            long bestSum = Long.MAX_VALUE;
+            for (int f=FILTER_NONE; f<=FILTER_PAETH; f++) {
+                long sum = filterRow(f, current, prior, candidates[f]);
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    bestFilter = f;
+                }
+            }
+            out[pos++] = (byte)bestFilter;
+            System.arraycopy(candidates[bestFilter], 0, out, pos, rowBytes);
+            pos += rowBytes;
+            byte[] tmp = prior;
+            prior = current;
+            current = tmp;
+        }
+        return out;
+    }
+
+/**
+*
+* Applies one filter to a row and returns the sum of absolute values of the
+* result.
+*
+**/
+
+    private long filterRow(int filter, byte[] row, byte[] prior, byte[] dst) {
+        int bpp = bytesPerPixel;
+        long sum = 0;
+        for (int i=0; i<rowBytes; i++) {
+            int x = row[i] & 0xFF;
+            int a = (i >= bpp) ? (row[i - bpp] & 0xFF) : 0;
+            int b = prior[i] & 0xFF;
+            int v;
+            switch (filter) {
+                case FILTER_SUB:
+                    v = x - a;
+                    break;
+                case FILTER_UP:
+                    v = x - b;
+                    break;
+                case FILTER_AVERAGE:
+                    v = x - ((a + b) >> 1);
+                    break;
+                case FILTER_PAETH:
+                    int c = (i >= bpp) ? (prior[i - bpp] & 0xFF) : 0;
+                    v = x - paeth(a, b, c);
+                    break;
+                default:
+                    v = x;
+                    break;
+            }
+            byte result = (byte)v;
+            dst[i] = result;
+            sum += Math.abs(result);
+        }
+        return sum;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if ((pa <= pb) && (pa <= pc)) return a;
+        if (pb <= pc) return b;
+        return c;
+    }
+
+/**
+*
+* Gets the unfiltered bytes of a row (RGB or RGBA).
+*
+**/
+
+    private void getRowBytes(int row, byte[] dst) {
+        int ofs = row * width;
+        int pos = 0;
+        for (int x=0; x<width; x++) {
+            int argb = pixels[ofs + x];
+            dst[pos++] = (byte)(argb >> 16);
+            dst[pos++] = (byte)(argb >> 8);
+            dst[pos++] = (byte)argb;
+            if (encodeAlpha) {
+                dst[pos++] = (byte)(argb >> 24);
+            }
+        }
+    }
+
+/**
+*
+* Combines the Adler-32 checksums of two consecutive pieces of data, given
+* the length of the second (as zlib's adler32_combine).
+*
+**/
+
+    private static long adler32Combine(long adler1, long adler2, long len2) {
+        final long base = 65521;
+        long rem = len2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= (base << 1)) sum2 -= (base << 1);
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+/**
+*
+* Writes a PNG chunk: length, type, data and CRC.
+*
+**/
+
+    private static void writeChunk(FileChannel out, String type, byte[] data, int ofs, int len)
+        throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, ofs, len);
+        ByteBuffer head = ByteBuffer.allocate(8);
+        head.putInt(len);
+        head.put(typeBytes);
+        head.flip();
+        ByteBuffer tail = ByteBuffer.allocate(4);
+        tail.putInt((int)crc.getValue());
+        tail.flip();
+        writeFully(out, head);
+        writeFully(out, ByteBuffer.wrap(data, ofs, len));
+        writeFully(out, tail);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+}
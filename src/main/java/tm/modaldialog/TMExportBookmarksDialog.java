@@ -0,0 +1,212 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.modaldialog;
+
+import tm.treenodes.*;
+import javax.swing.*;
+import javax.swing.tree.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.File;
+
+/**
+*
+* The dialog where the user picks a bookmark folder to export, and the
+* directory and image format to export it to.
+*
+**/
+
+public class TMExportBookmarksDialog extends TMModalDialog {
+
+    private static final String[] FORMATS = { "png", "bmp", "gif", "pcx", "jpg" };
+
+    private TMTreeNodeTree tree;
+    private JLabel exportFromLabel;
+    private JLabel dirLabel;
+    private JLabel formatLabel;
+    private JTextField dirField;
+    private JButton browseButton;
+    private JComboBox formatComboBox;
+    private JFileChooser dirChooser;
+    private JScrollPane scrollPane;
+
+/**
+*
+* Creates the dialog.
+*
+**/
+
+    public TMExportBookmarksDialog(Frame owner, tm.utils.Xlator xl) {
+        super(owner, "Export_Bookmarks_Dialog_Title", xl);
+    }
+
+/**
+*
+* Creates the dialog pane with the folder tree and the output settings.
+*
+**/
+
+    protected JPanel getDialogPane() {
+        exportFromLabel = new JLabel(xlate("Export_From"));
+        dirLabel = new JLabel(xlate("Directory_Prompt"));
+        formatLabel = new JLabel(xlate("Format_Prompt"));
+        dirField = new JTextField();
+        dirField.getDocument().addDocumentListener(new TMDocumentListener());
+        formatComboBox = new JComboBox(FORMATS);
+
+        dirChooser = new JFileChooser();
+        dirChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        browseButton = new JButton(xlate("Browse"));
+        browseButton.addActionListener(
+            new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    doBrowseCommand();
+                }
+            }
+        );
+
+        tree = new TMTreeNodeTree();
+        tree.setCellRenderer(new FolderCellRenderer());
+        scrollPane = new JScrollPane(tree);
+
+        JPanel p = new JPanel();
+        GridBagLayout gbl = new GridBagLayout();
+        p.setLayout(gbl);
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.anchor = GridBagConstraints.WEST;
+        gbc.fill = GridBagConstraints.NONE;
+        buildConstraints(gbc, 0, 0, 3, 1, 100, 10);
+        gbl.setConstraints(exportFromLabel, gbc);
+        p.add(exportFromLabel);
+        gbc.anchor = GridBagConstraints.CENTER;
+        gbc.fill = GridBagConstraints.BOTH;
+        buildConstraints(gbc, 0, 1, 3, 1, 100, 70);
+        gbl.setConstraints(scrollPane, gbc);
+        p.add(scrollPane);
+        gbc.anchor = GridBagConstraints.WEST;
+        gbc.fill = GridBagConstraints.NONE;
+        buildConstraints(gbc, 0, 2, 1, 1, 20, 10);
+        gbl.setConstraints(dirLabel, gbc);
+        p.add(dirLabel);
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+        buildConstraints(gbc, 1, 2, 1, 1, 60, 10);
+        gbl.setConstraints(dirField, gbc);
+        p.add(dirField);
+        gbc.fill = GridBagConstraints.NONE;
+        gbc.anchor = GridBagConstraints.EAST;
+        buildConstraints(gbc, 2, 2, 1, 1, 20, 10);
+        gbl.setConstraints(browseButton, gbc);
+        p.add(browseButton);
+        gbc.anchor = GridBagConstraints.WEST;
+        buildConstraints(gbc, 0, 3, 1, 1, 20, 10);
+        gbl.setConstraints(formatLabel, gbc);
+        p.add(formatLabel);
+        buildConstraints(gbc, 1, 3, 2, 1, 80, 10);
+        gbl.setConstraints(formatComboBox, gbc);
+        p.add(formatComboBox);
+
+        p.setPreferredSize(new Dimension(360, 260));
+        return p;
+    }
+
+/**
+*
+* Lets the user pick the directory to export to.
+*
+**/
+
+    public void doBrowseCommand() {
+        if (!dirField.getText().trim().equals("")) {
+            dirChooser.setCurrentDirectory(new File(dirField.getText().trim()));
+        }
+        int retVal = dirChooser.showOpenDialog(this);
+        if (retVal == JFileChooser.APPROVE_OPTION) {
+            dirField.setText(dirChooser.getSelectedFile().getAbsolutePath());
+        }
+    }
+
+/**
+*
+* Gets the folder whose bookmarks are to be exported.
+*
+**/
+
+    public FolderNode getFolder() {
+        return (FolderNode)tree.getSelectedNode();
+    }
+
+/**
+*
+* Gets the directory to export to.
+*
+**/
+
+    public File getDirectory() {
+        return new File(dirField.getText().trim());
+    }
+
+/**
+*
+* Gets the file extension of the image format to export to.
+*
+**/
+
+    public String getFormat() {
+        return (String)formatComboBox.getSelectedItem();
+    }
+
+/**
+*
+*
+*
+**/
+
+    private class FolderCellRenderer extends DefaultTreeCellRenderer {
+
+        public FolderCellRenderer() {
+            super();
+            setLeafIcon(openIcon);
+        }
+    }
+
+/**
+*
+* Shows the dialog for the given bookmark tree. The root is selected, so
+* that all bookmarks are exported unless the user picks a folder.
+*
+**/
+
+    public int showDialog(TMTreeNode root) {
+        tree.loadTreeNodes(root, false);
+        tree.setSelectionPath(new TreePath(root.getPath()));
+        maybeEnableOKButton();
+        return super.showDialog();
+    }
+
+/**
+*
+*
+*
+**/
+
+    public boolean inputOK() {
+        return !(dirField.getText().trim().equals(""));
+    }
+
+}
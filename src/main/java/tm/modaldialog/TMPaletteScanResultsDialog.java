@@ -0,0 +1,172 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.modaldialog;
+
+import tm.PaletteScanner;
+import tm.colorcodecs.ColorCodec;
+import javax.swing.*;
+import javax.swing.border.EtchedBorder;
+import javax.swing.border.TitledBorder;
+import javax.swing.event.*;
+import java.awt.*;
+
+/**
+*
+* The dialog that lists the results of a palette scan, best first, each with
+* a preview of its colors.
+* The candidates the user selects are added as palettes.
+*
+**/
+
+public class TMPaletteScanResultsDialog extends TMModalDialog {
+
+    private JList candidateList;
+    private PaletteScanner.Candidate[] candidates = new PaletteScanner.Candidate[0];
+
+/**
+*
+* Creates the Palette Scan Results dialog.
+*
+**/
+
+    public TMPaletteScanResultsDialog(Frame owner, tm.utils.Xlator xl) {
+        super(owner, "Palette_Scan_Results_Dialog_Title", xl);
+    }
+
+/**
+*
+* Gets the candidates that were selected.
+*
+**/
+
+    public PaletteScanner.Candidate[] getSelectedCandidates() {
+        int[] indices = candidateList.getSelectedIndices();
+        PaletteScanner.Candidate[] selected = new PaletteScanner.Candidate[indices.length];
+        for (int i=0; i<indices.length; i++) {
+            selected[i] = candidates[indices[i]];
+        }
+        return selected;
+    }
+
+/**
+*
+* Gets a one-line description of the given candidate.
+*
+**/
+
+    public String describe(PaletteScanner.Candidate c) {
+        String order = (c.getEndianness() == ColorCodec.LITTLE_ENDIAN) ? xlate("Little_Endian") : xlate("Big_Endian");
+        return Integer.toHexString(c.getOffset()).toUpperCase()
+             + ": " + c.getCodec().getDescription()
+             + ", " + order
+             + ", " + c.getSize() + " " + xlate("Colors")
+             + " (" + (int)Math.round(c.getScore() * 100) + "%)";
+    }
+
+/**
+*
+*
+*
+**/
+
+    protected JPanel getDialogPane() {
+        JPanel p = new JPanel();
+        p.setLayout(new BorderLayout());
+        p.setBorder(new TitledBorder(new EtchedBorder(), xlate("Palette_Scan_Results_Prompt")));
+        candidateList = new JList();
+        candidateList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        candidateList.setCellRenderer(new DefaultListCellRenderer() {
+            public Component getListCellRendererComponent(JList list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                PaletteScanner.Candidate c = (PaletteScanner.Candidate)value;
+                super.getListCellRendererComponent(list, describe(c), index, isSelected, cellHasFocus);
+                setIcon(new SwatchIcon(c.getColors()));
+                return this;
+            }
+        });
+        candidateList.addListSelectionListener(new ListSelectionListener() {
+            public void valueChanged(ListSelectionEvent e) {
+                maybeEnableOKButton();
+            }
+        });
+        p.add(new JScrollPane(candidateList), BorderLayout.CENTER);
+        p.setPreferredSize(new Dimension(600, 300));
+        return p;
+    }
+
+/**
+*
+* Shows the given candidates.
+*
+**/
+
+    public int showDialog(PaletteScanner.Candidate[] candidates) {
+        this.candidates = candidates;
+        DefaultListModel model = new DefaultListModel();
+        for (int i=0; i<candidates.length; i++) {
+            model.addElement(candidates[i]);
+        }
+        candidateList.setModel(model);
+        maybeEnableOKButton();
+        return super.showDialog();
+    }
+
+    public boolean inputOK() {
+        return !candidateList.isSelectionEmpty();
+    }
+
+/**
+*
+* Icon that shows a row (or, for large palettes, a few rows) of colors.
+*
+**/
+
+    private static class SwatchIcon implements Icon {
+
+        private static final int WIDTH = 128;
+        private static final int HEIGHT = 12;
+
+        private int[] colors;
+
+        public SwatchIcon(int[] colors) {
+            this.colors = colors;
+        }
+
+        public int getIconWidth() {
+            return WIDTH;
+        }
+
+        public int getIconHeight() {
+            return HEIGHT;
+        }
+
+        public void paintIcon(Component c, Graphics g, int x, int y) {
+            int cols = Math.min(colors.length, 64);
+            int rows = (colors.length + cols - 1) / cols;
+            int cellWidth = WIDTH / cols;
+            int cellHeight = HEIGHT / rows;
+            for (int i=0; i<colors.length; i++) {
+                g.setColor(new Color(colors[i] & 0xFFFFFF));
+                g.fillRect(x + ((i % cols) * cellWidth), y + ((i / cols) * cellHeight), cellWidth, cellHeight);
+            }
+        }
+
+    }
+
+}
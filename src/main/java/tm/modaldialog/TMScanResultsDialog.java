@@ -0,0 +1,124 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.modaldialog;
+
+import tm.GraphicsScanner;
+import tm.tilecodecs.TileCodec;
+import javax.swing.*;
+import javax.swing.border.EtchedBorder;
+import javax.swing.border.TitledBorder;
+import javax.swing.event.*;
+import java.awt.*;
+
+/**
+*
+* The dialog that lists the results of a graphics scan, best first.
+* The candidates the user selects are added as bookmarks.
+*
+**/
+
+public class TMScanResultsDialog extends TMModalDialog {
+
+    private JList candidateList;
+    private GraphicsScanner.Candidate[] candidates = new GraphicsScanner.Candidate[0];
+
+/**
+*
+* Creates the Scan Results dialog.
+*
+**/
+
+    public TMScanResultsDialog(Frame owner, tm.utils.Xlator xl) {
+        super(owner, "Scan_Results_Dialog_Title", xl);
+    }
+
+/**
+*
+* Gets the candidates that were selected.
+*
+**/
+
+    public GraphicsScanner.Candidate[] getSelectedCandidates() {
+        int[] indices = candidateList.getSelectedIndices();
+        GraphicsScanner.Candidate[] selected = new GraphicsScanner.Candidate[indices.length];
+        for (int i=0; i<indices.length; i++) {
+            selected[i] = candidates[indices[i]];
+        }
+        return selected;
+    }
+
+/**
+*
+* Gets a one-line description of the given candidate.
+*
+**/
+
+    public String describe(GraphicsScanner.Candidate c) {
+        String mode = (c.getMode() == TileCodec.MODE_1D) ? xlate("1_Dimensional") : xlate("2_Dimensional");
+        return Integer.toHexString(c.getOffset()).toUpperCase()
+             + ": " + c.getCodec().getDescription()
+             + ", " + mode
+             + ", " + c.getLength() + " " + xlate("Bytes")
+             + " (" + (int)Math.round(c.getScore() * 100) + "%)";
+    }
+
+/**
+*
+*
+*
+**/
+
+    protected JPanel getDialogPane() {
+        JPanel p = new JPanel();
+        p.setLayout(new BorderLayout());
+        p.setBorder(new TitledBorder(new EtchedBorder(), xlate("Scan_Results_Prompt")));
+        candidateList = new JList();
+        candidateList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        candidateList.addListSelectionListener(new ListSelectionListener() {
+            public void valueChanged(ListSelectionEvent e) {
+                maybeEnableOKButton();
+            }
+        });
+        p.add(new JScrollPane(candidateList), BorderLayout.CENTER);
+        p.setPreferredSize(new Dimension(480, 300));
+        return p;
+    }
+
+/**
+*
+* Shows the given candidates.
+*
+**/
+
+    public int showDialog(GraphicsScanner.Candidate[] candidates) {
+        this.candidates = candidates;
+        DefaultListModel model = new DefaultListModel();
+        for (int i=0; i<candidates.length; i++) {
+            model.addElement(describe(candidates[i]));
+        }
+        candidateList.setModel(model);
+        maybeEnableOKButton();
+        return super.showDialog();
+    }
+
+    public boolean inputOK() {
+        return !candidateList.isSelectionEmpty();
+    }
+
+}
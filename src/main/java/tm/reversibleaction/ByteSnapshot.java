@@ -0,0 +1,151 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.reversibleaction;
+
+import tm.FileImage;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+*
+* Deflated copies of a range of a FileImage's contents from before an
+* edit, and from before it was last undone.
+*
+* Undoing always puts back the bytes from before the edit, so the result
+* doesn't depend on what was written to the range in between, whether or
+* not that was recorded (re-encoding a selection isn't, for instance).
+* The bytes it replaces are kept for redoing; they are only copied when
+* the edit is actually undone.
+*
+**/
+
+public class ByteSnapshot {
+
+    private int start;
+    private int length;
+    private byte[] before;  // deflated bytes from before the edit
+    private byte[] after;   // deflated bytes from before the last undo, null if never undone
+
+/**
+*
+* Creates a snapshot of <code>bytes</code>, the contents starting at
+* offset <code>start</code> from before the edit.
+*
+**/
+
+    public ByteSnapshot(int start, byte[] bytes) {
+        this.start = start;
+        this.length = bytes.length;
+        before = deflate(bytes);
+    }
+
+/**
+*
+* Writes the bytes from before the edit to the image, keeping the bytes
+* that were there for redo().
+*
+**/
+
+    public void undo(FileImage img) {
+        byte[] current = new byte[length];
+        img.read(start, current, 0, length);
+        after = deflate(current);
+        img.write(start, inflate(before, length), 0, length);
+    }
+
+/**
+*
+* Writes the bytes that the last undo() replaced back to the image.
+*
+**/
+
+    public void redo(FileImage img) {
+        if (after != null) {
+            img.write(start, inflate(after, length), 0, length);
+        }
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(bytes);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] data, int length) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        byte[] bytes = new byte[length];
+        try {
+            int pos = 0;
+            while ((pos < length) && !inflater.finished()) {
+                pos += inflater.inflate(bytes, pos, length - pos);
+            }
+        }
+        catch (DataFormatException e) {
+            // can't happen; the data was deflated by this class
+            throw new IllegalStateException(e.getMessage());
+        }
+        finally {
+            inflater.end();
+        }
+        return bytes;
+    }
+
+/**
+*
+* Gets the offset of the first byte covered by the snapshot.
+*
+**/
+
+    public int getStart() {
+        return start;
+    }
+
+/**
+*
+* Gets the offset following the last byte covered by the snapshot.
+*
+**/
+
+    public int getEnd() {
+        return start + length;
+    }
+
+/**
+*
+* Gets the number of bytes the snapshot takes up.
+*
+**/
+
+    public int getMemorySize() {
+        return before.length + ((after != null) ? after.length : 0);
+    }
+
+}
@@ -77,4 +77,16 @@ public abstract class ReversibleAction {
         return timeStamp;
     }
 
+/**
+*
+* Gets a rough estimate of the number of bytes this action keeps in memory.
+* The undo history is trimmed to a memory budget based on this. Actions that
+* hold on to large buffers should override it.
+*
+**/
+
+    public int getMemorySize() {
+        return 64;
+    }
+
 }
\ No newline at end of file
@@ -134,4 +134,12 @@ public class ReversibleActionsSelectionAction extends ReversibleAction {
 
     public boolean canRedo() { return true; }
 
+    // the editor canvas is there anyway, a selection is kept alive by the action
+    public int getMemorySize() {
+        if (canvas instanceof TMEditorCanvas) {
+            return super.getMemorySize();
+        }
+        return super.getMemorySize() + canvas.getBufferSize();
+    }
+
 }
\ No newline at end of file
@@ -44,4 +44,9 @@ public class ReversibleApplySelectionAction extends ReversibleAction {
     {
         return true;
     }
+
+    public int getMemorySize()
+    {
+        return super.getMemorySize() + selection.getBufferSize() + modifiedTiles.getMemorySize();
+    }
 }
@@ -50,6 +50,10 @@ public class ReversibleCutAction extends ReversibleAction {
         owner.repaint();
     }
 
+    public int getMemorySize() {
+        return super.getMemorySize() + selection.getBufferSize();
+    }
+
     public boolean canUndo() { return true; }
     public boolean canRedo() { return true; }
 
@@ -52,6 +52,10 @@ public class ReversibleMoveSelectionAction extends ReversibleAction {
 
     }
 
+    public int getMemorySize() {
+        return super.getMemorySize() + selection.getBufferSize();
+    }
+
     public boolean canUndo() { return true; }
     public boolean canRedo() { return true; }
 
@@ -50,6 +50,10 @@ public class ReversibleNewSelectionAction extends ReversibleAction {
         owner.repaint();
     }
 
+    public int getMemorySize() {
+        return super.getMemorySize() + newSelection.getBufferSize();
+    }
+
     public boolean canUndo() { return true; }
     public boolean canRedo() { return true; }
 
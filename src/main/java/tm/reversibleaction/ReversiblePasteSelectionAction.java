@@ -39,4 +39,9 @@ public class ReversiblePasteSelectionAction extends ReversibleAction{
     {
         owner.showSelection(pastedSel,0,0);
     }
+
+    public int getMemorySize()
+    {
+        return super.getMemorySize() + pastedSel.getBufferSize();
+    }
 }
@@ -57,6 +57,10 @@ public class ReversibleStretchAction extends ReversibleAction {
         canvas.redraw();
     }
 
+    public int getMemorySize() {
+        return super.getMemorySize() + canvas.getBufferSize() + oldBits.length;
+    }
+
     public boolean canUndo() { return true; }
     public boolean canRedo() { return true; }
 
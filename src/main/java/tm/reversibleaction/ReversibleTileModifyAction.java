@@ -18,16 +18,14 @@
 
 package tm.reversibleaction;
 
-import java.awt.Point;
 import tm.treenodes.BookmarkItemNode;
 import tm.canvases.TMEditorCanvas;
 
 /**
 *
 * Allows undo/redo of drawing operations.
-* Records the view settings when the edit was done,
-* the grid coordinates of the tiles that were modified,
-* the old pixels, and the new pixels.
+* Records the view settings when the edit was done and the encoded data
+* from before the edit of the modified tiles (see ByteSnapshot).
 *
 **/
 
@@ -35,49 +33,44 @@ public class ReversibleTileModifyAction extends ReversibleAction {
 
     TMEditorCanvas canvas;
     BookmarkItemNode bookmark;
-    Point[] gridCoords;
-    int[] oldPixels;
-    int[] newPixels;
+    ByteSnapshot[] snapshots;   // one per range of modified tiles, in ascending order
 
     public ReversibleTileModifyAction(
         String presentationName,
         TMEditorCanvas canvas,
         BookmarkItemNode bookmark,
-        Point[] gridCoords,
-        int[] oldPixels,
-        int[] newPixels) {
+        ByteSnapshot[] snapshots) {
 
         super(presentationName);
         this.canvas = canvas;
         this.bookmark = bookmark;
-        this.gridCoords = gridCoords;
-        this.oldPixels = oldPixels;
-        this.newPixels = newPixels;
+        this.snapshots = snapshots;
     }
 
     public void undo() {
         canvas.getView().gotoBookmark(bookmark);
-        int tileWidth = (canvas.getCodec() != null) ? canvas.getCodec().getTileWidth() : 8;
-        int tileHeight = (canvas.getCodec() != null) ? canvas.getCodec().getTileHeight() : 8;
-        int tileSize = tileWidth * tileHeight;
-        for (int i=0; i<gridCoords.length; i++) {
-            Point p = gridCoords[i];
-            canvas.copyBufferToTilePixels(p.x, p.y, oldPixels, i * tileSize);
-            canvas.packTile(p.x, p.y);
+        for (int i=snapshots.length-1; i>=0; i--) {
+            snapshots[i].undo(canvas.getView().getFileImage());
         }
-        canvas.redraw();
+        dataChanged();
     }
 
     public void redo() {
         canvas.getView().gotoBookmark(bookmark);
-        int tileWidth = (canvas.getCodec() != null) ? canvas.getCodec().getTileWidth() : 8;
-        int tileHeight = (canvas.getCodec() != null) ? canvas.getCodec().getTileHeight() : 8;
-        int tileSize = tileWidth * tileHeight;
-        for (int i=0; i<gridCoords.length; i++) {
-            Point p = gridCoords[i];
-            canvas.copyBufferToTilePixels(p.x, p.y, newPixels, i * tileSize);
-            canvas.packTile(p.x, p.y);
+        for (int i=0; i<snapshots.length; i++) {
+            snapshots[i].redo(canvas.getView().getFileImage());
         }
+        dataChanged();
+    }
+
+/**
+*
+* Shows the data that has been written back.
+*
+**/
+
+    private void dataChanged() {
+        canvas.dataChanged(snapshots);
         canvas.redraw();
     }
 
@@ -89,4 +82,12 @@ public class ReversibleTileModifyAction extends ReversibleAction {
         return true;
     }
 
+    public int getMemorySize() {
+        int size = super.getMemorySize();
+        for (int i=0; i<snapshots.length; i++) {
+            size += snapshots[i].getMemorySize();
+        }
+        return size;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,213 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.threads;
+
+import tm.FileImage;
+import tm.TMBitmapExporter;
+import tm.TMPalette;
+import tm.canvases.TMBookmarkCanvas;
+import tm.treenodes.*;
+import java.io.File;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+*
+* Thread for exporting the bookmarks in a folder and its subfolders to image
+* files (see TMBitmapExporter).
+*
+* Every bookmark is rendered with a canvas of its own, from a copy of the
+* data it covers, on a bounded pool of workers. The images are written to
+* the given directory, in subdirectories named after the bookmark folders.
+*
+**/
+
+public class BookmarkExportThread extends ProgressThread {
+
+    private FileImage img;
+    private TMPalette palette;
+    private File dir;
+    private String ext;
+    private int threads;
+    private Vector bookmarks = new Vector();   // BookmarkItemNodes
+    private Vector files = new Vector();       // image file of each bookmark
+    private AtomicInteger exported = new AtomicInteger();
+    private Exception error = null;
+    private volatile boolean done = false;
+
+/**
+*
+* Creates a thread that exports the bookmarks under <code>folder</code>
+* to files with extension <code>ext</code> in <code>dir</code>, using
+* <code>threads</code> workers.
+*
+**/
+
+    public BookmarkExportThread(FileImage img, FolderNode folder, TMPalette palette,
+                                File dir, String ext, int threads) {
+        super();
+        this.img = img;
+        this.palette = palette;
+        this.dir = dir;
+        this.ext = ext;
+        this.threads = Math.max(1, threads);
+        collectBookmarks(folder, dir);
+        this.setPriority(NORM_PRIORITY);
+    }
+
+/**
+*
+* Adds the bookmarks in a folder and its subfolders to the list, along with
+* the files they will be exported to.
+*
+**/
+
+    private void collectBookmarks(TMTreeNode folder, File folderDir) {
+        TMTreeNode[] children = folder.getChildren();
+        for (int i=0; i<children.length; i++) {
+            String name = String.format("%04d_%s", Integer.valueOf(i), getFileName(children[i].toString()));
+            if (children[i] instanceof BookmarkItemNode) {
+                bookmarks.add(children[i]);
+                files.add(new File(folderDir, name + "." + ext));
+            }
+            else if (children[i] instanceof FolderNode) {
+                collectBookmarks(children[i], new File(folderDir, name));
+            }
+        }
+    }
+
+/**
+*
+* Replaces the characters that can't be used in file names.
+*
+**/
+
+    private static String getFileName(String description) {
+        String name = (description != null) ? description.trim() : "";
+        name = name.replaceAll("[^A-Za-z0-9 ._-]", "_");
+        if (name.length() > 64) {
+            name = name.substring(0, 64);
+        }
+        return name;
+    }
+
+    public int getPercentageCompleted() {
+        if (done) return 100;
+        if (bookmarks.size() == 0) return 99;
+        // 100 means finished, so hold at 99 until all the workers are through
+        return Math.min(99, (exported.get() * 100) / bookmarks.size());
+    }
+
+/**
+*
+* Gets the number of bookmarks to export.
+*
+**/
+
+    public int getBookmarkCount() {
+        return bookmarks.size();
+    }
+
+/**
+*
+* Gets the number of bookmarks that were exported.
+*
+**/
+
+    public int getExportedCount() {
+        return exported.get();
+    }
+
+/**
+*
+* Gets the first error that occurred, or null if all bookmarks were exported.
+*
+**/
+
+    public Exception getError() {
+        return error;
+    }
+
+    public void run() {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, bookmarks.size())));
+        try {
+            Vector results = new Vector();
+            for (int i=0; i<bookmarks.size(); i++) {
+                final BookmarkItemNode bookmark = (BookmarkItemNode)bookmarks.get(i);
+                final File file = (File)files.get(i);
+                results.add(pool.submit(new Callable() {
+                    public Object call() throws Exception {
+                        export(bookmark, file);
+                        exported.incrementAndGet();
+                        return null;
+                    }
+                }));
+            }
+            for (int i=0; i<results.size(); i++) {
+                try {
+                    ((Future)results.get(i)).get();
+                }
+                catch (ExecutionException e) {
+                    if (error == null) {
+                        Throwable cause = e.getCause();
+                        error = (cause instanceof Exception) ? (Exception)cause : new Exception(cause);
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            error = e;
+        }
+        finally {
+            pool.shutdownNow();
+            done = true;
+        }
+    }
+
+/**
+*
+* Renders a bookmark and saves it.
+*
+**/
+
+    private void export(BookmarkItemNode bookmark, File file) throws Exception {
+        if (bookmark.getCodec() == null) {
+            throw new Exception(bookmark.getDescription() + ": unknown codec");
+        }
+        // render from a copy of the data the bookmark covers
+        TMBookmarkCanvas canvas = new TMBookmarkCanvas(new byte[0], bookmark, palette);
+        int offset = bookmark.getOffset();
+        int len = Math.max(0, Math.min(canvas.getDataExtent(), img.getSize() - offset));
+        byte[] window = new byte[len];
+        if (len > 0) {
+            img.read(offset, window, 0, len);
+        }
+        canvas.setBits(window);
+        canvas.setOffset(0);
+        canvas.render();
+        file.getParentFile().mkdirs();
+        TMBitmapExporter.saveTileCanvasToFile(canvas, file);
+    }
+
+}
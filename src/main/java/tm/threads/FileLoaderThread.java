@@ -18,64 +18,159 @@
 
 package tm.threads;
 
+import tm.filelistener.TMFileListener;
+import tm.utils.ByteBufferChannel;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 /**
 *
 * Thread for reading a file into a buffer.
 *
+* If a filelistener that transforms the file (see
+* TMFileListener.transformsFile()) is given, the data is passed through it
+* as it is read. The result can also be written to another file instead of
+* the heap, for files that are too large to load.
+*
 **/
 
 public class FileLoaderThread extends ProgressThread {
 
     private static final int CHUNK_SIZE = 16384;
-    BufferedInputStream bis=null;
-    private int bytesLeft;
+    private FileChannel in;
+    private long length;
     private byte[] contents;
+    private File target;                // written to instead of contents, if not null
+    private TMFileListener listener;
+    private String extension;
+    private volatile boolean done=false;
+    private IOException error=null;
 
     public FileLoaderThread(File file) throws OutOfMemoryError, FileNotFoundException {
-        super();
+        this(file, null, null);
+    }
+
+/**
+*
+* Creates a thread that reads the file into a buffer, transforming it with
+* the given filelistener if it transforms files with this extension.
+*
+**/
+
+    public FileLoaderThread(File file, TMFileListener listener, String extension)
+        throws OutOfMemoryError, FileNotFoundException {
+        this(file, listener, extension, null);
         try {
             contents = new byte[(int)file.length()];
         }
         catch (OutOfMemoryError e) {
+            try {
+                in.close();
+            } catch (IOException x) { }
             throw e;
         }
+    }
+
+/**
+*
+* Creates a thread that transforms the file with the given filelistener
+* and writes the result to <code>target</code>.
+*
+**/
+
+    public FileLoaderThread(File file, TMFileListener listener, String extension, File target)
+        throws FileNotFoundException {
+        super();
         try {
-            bis = new BufferedInputStream(new FileInputStream(file));
-        } catch (FileNotFoundException e) {
-            throw e;
+            in = FileChannel.open(file.toPath());
+        }
+        catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+        if ((listener != null) && listener.transformsFile(extension)) {
+            this.listener = listener;
+            this.extension = extension;
         }
-        bytesLeft = contents.length;
+        this.target = target;
+        length = file.length();
         this.setPriority(NORM_PRIORITY);
     }
 
     public int getPercentageCompleted() {
-        int result = (int)((long)(((long)contents.length - (long)bytesLeft) * 100) / (long)contents.length);
-        return result;
+        if (done || (length == 0)) return 100;
+        try {
+            return (int)(in.position() * 100 / length);
+        }
+        catch (IOException e) {
+            return 0;
+        }
+    }
+
+/**
+*
+* Gets the error that made the load fail, or null if it succeeded.
+*
+**/
+
+    public IOException getError() {
+        return error;
     }
 
     public void run() {
-        while (bytesLeft > 0) {
-            if (bytesLeft > CHUNK_SIZE) {
-                try {
-                    bis.read(contents, contents.length - bytesLeft, CHUNK_SIZE);
-                }
-                catch (Exception e) { }
-                bytesLeft -= CHUNK_SIZE;
+        WritableByteChannel out = null;
+        try {
+            if (target != null) {
+                out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE,
+                                       StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            else {
+                out = new ByteBufferChannel(contents);
+            }
+            if (listener != null) {
+                listener.transformLoad(in, out, extension);
             }
             else {
-                try {
-                    bis.read(contents, contents.length - bytesLeft, bytesLeft);
+                ByteBuffer buf = (target != null) ? ByteBuffer.allocateDirect(CHUNK_SIZE) : null;
+                while (in.position() < length) {
+                    if (buf == null) {
+                        // read straight into the contents, one chunk at a time
+                        ByteBuffer chunk = ((ByteBufferChannel)out).claim(CHUNK_SIZE);
+                        while (chunk.hasRemaining() && (in.read(chunk) >= 0)) {
+                        }
+                        if (chunk.hasRemaining()) break;    // the file got shorter
+                    }
+                    else {
+                        buf.clear();
+                        if (in.read(buf) < 0) break;
+                        buf.flip();
+                        while (buf.hasRemaining()) {
+                            out.write(buf);
+                        }
+                    }
+                    ProgressThread.yield();
                 }
-                catch (Exception e) { }
-                bytesLeft = 0;
             }
-            ProgressThread.yield();
+            if ((target == null) && (((ByteBufferChannel)out).position() < contents.length)) {
+                // the filelistener stripped part of the file
+                contents = Arrays.copyOf(contents, (int)((ByteBufferChannel)out).position());
+            }
+        }
+        catch (IOException e) {
+            error = e;
+        }
+        finally {
+            try {
+                in.close();
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) { }
+            done = true;
         }
-        try {
-            bis.close();
-        } catch (Exception e) { }
         // done loading data
     }
 
@@ -87,4 +182,4 @@ public class FileLoaderThread extends ProgressThread {
         contents = null;
     }
 
-}
\ No newline at end of file
+}
@@ -18,66 +18,280 @@
 
 package tm.threads;
 
+import tm.MappedFileBuffer;
+import tm.filelistener.TMFileListener;
+import tm.utils.ByteBufferChannel;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 /**
 *
 * Thread for writing a buffer to a file.
 *
+* If the ranges of the buffer that changed since the file was last written
+* are given, only those are written, at their positions in the existing
+* file. Otherwise the whole buffer is written to a temporary file next to
+* the target, which then replaces the target in one step, so an
+* interrupted save never leaves a half-written file behind.
+*
+* A filelistener that transforms the file (see
+* TMFileListener.transformsFile()) can be given; the buffer is then passed
+* through it on the way to the temporary file.
+*
 **/
 
 public class FileSaverThread extends ProgressThread {
 
     private static final int CHUNK_SIZE = 16384;
-    private RandomAccessFile raf=null;
-    private int bytesLeft;
+    private Path target;
+    private File tempFile=null;         // written to and renamed when saving the whole buffer
+    private FileChannel channel=null;
+    private int[] ranges;               // (start, end) pairs to write, or null for everything
+    private long length;
+    private long bytesLeft;
     private byte[] contents;
+    private MappedFileBuffer mapped;    // source when saving a memory-mapped image
+    private TMFileListener listener;    // transforms the buffer when saving it whole, or null
+    private String extension;
+    private ReadableByteChannel source; // what the listener reads from
+    private IOException error=null;
 
     public FileSaverThread(byte[] contents, File file)
+        throws FileNotFoundException, IOException {
+        this(contents, file, null);
+    }
+
+/**
+*
+* Creates a thread that writes the given ranges of <code>contents</code>
+* to the file, or all of it if <code>ranges</code> is null.
+*
+**/
+
+    public FileSaverThread(byte[] contents, File file, int[] ranges)
         throws FileNotFoundException, IOException {
         super();
         this.contents = contents;
-        try {
-            raf = new RandomAccessFile(file, "rw");
-            raf.seek(0);
+        openFile(file, ranges, contents.length);
+        this.setPriority(NORM_PRIORITY);
+    }
+
+/**
+*
+* Creates a thread that writes the (possibly modified) contents of a
+* memory-mapped buffer to a file, one chunk at a time.
+*
+**/
+
+    public FileSaverThread(MappedFileBuffer mapped, File file)
+        throws FileNotFoundException, IOException {
+        this(mapped, file, null);
+    }
+
+/**
+*
+* Creates a thread that writes the given ranges of a memory-mapped buffer
+* to the file, or all of it if <code>ranges</code> is null.
+*
+**/
+
+    public FileSaverThread(MappedFileBuffer mapped, File file, int[] ranges)
+        throws FileNotFoundException, IOException {
+        super();
+        this.mapped = mapped;
+        this.contents = new byte[CHUNK_SIZE];
+        openFile(file, ranges, mapped.length());
+        this.setPriority(NORM_PRIORITY);
+    }
+
+    private void openFile(File file, int[] ranges, long size)
+        throws FileNotFoundException, IOException {
+        // replace the file a symbolic link points to, not the link
+        target = file.exists() ? file.toPath().toRealPath() : file.toPath();
+        // patching only works if the file is still there and has the right size
+        if ((ranges != null) && (!file.exists() || (file.length() != size))) {
+            ranges = null;
         }
-        catch (FileNotFoundException e) {
-            throw e;
+        this.ranges = ranges;
+        if (ranges != null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            length = 0;
+            for (int i=0; i<ranges.length; i+=2) {
+                length += ranges[i+1] - ranges[i];
+            }
         }
-        catch (IOException e) {
-            throw e;
+        else {
+            File dir = target.toAbsolutePath().getParent().toFile();
+            tempFile = File.createTempFile(file.getName(), ".tmp", dir);
+            if (file.exists()) {
+                // temporary files are private; keep the permissions of the original
+                try {
+                    Files.setPosixFilePermissions(tempFile.toPath(), Files.getPosixFilePermissions(target));
+                }
+                catch (UnsupportedOperationException e) { }
+            }
+            channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE);
+            length = size;
+        }
+        bytesLeft = length;
+    }
+
+/**
+*
+* Sets the filelistener that transforms the buffer on the way to the file,
+* if it transforms files with the given extension. Only has an effect when
+* the whole buffer is written.
+*
+**/
+
+    public void setFileListener(TMFileListener listener, String extension) {
+        if ((ranges == null) && (listener != null) && listener.transformsFile(extension)) {
+            this.listener = listener;
+            this.extension = extension;
         }
-        bytesLeft = contents.length;
-        this.setPriority(NORM_PRIORITY);
     }
 
     public int getPercentageCompleted() {
-        int result = (int)(((long)contents.length - (long)bytesLeft) * 100 / (long)contents.length);
+        if (length == 0) return 100;
+        if (source instanceof ByteBufferChannel) {
+            // the transform takes the bytes straight from the buffer
+            return (int)(((ByteBufferChannel)source).position() * 100 / length);
+        }
+        int result = (int)((length - bytesLeft) * 100 / length);
         return result;
     }
 
+/**
+*
+* Gets the error that made the save fail, or null if it succeeded.
+*
+**/
+
+    public IOException getError() {
+        return error;
+    }
+
     public void run() {
-        while (bytesLeft > 0) {
-            if (bytesLeft > CHUNK_SIZE) {
-                try {
-                    raf.write(contents, contents.length - bytesLeft, CHUNK_SIZE);
+        try {
+            if (ranges != null) {
+                for (int i=0; i<ranges.length; i+=2) {
+                    writeRange(ranges[i], ranges[i+1]);
                 }
-                catch (Exception e) { }
-                bytesLeft -= CHUNK_SIZE;
+                channel.force(false);
+                channel.close();
             }
-            else {
-                try {
-                    raf.write(contents, contents.length - bytesLeft, bytesLeft);
+            else if (listener != null) {
+                if (mapped != null) {
+                    source = new MappedChannel();
                 }
-                catch (Exception e) { }
-                bytesLeft = 0;
+                else {
+                    source = new ByteBufferChannel(contents);
+                }
+                listener.transformSave(source, channel, extension);
+                channel.force(false);
+                channel.close();
+                replaceFile();
+            }
+            else {
+                writeRange(0, (mapped != null) ? mapped.length() : contents.length);
+                channel.force(false);
+                channel.close();
+                replaceFile();
+            }
+        }
+        catch (IOException e) {
+            error = e;
+            try {
+                channel.close();
+            } catch (IOException x) { }
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+        finally {
+            bytesLeft = 0;
+        }
+        // done saving data
+    }
+
+/**
+*
+* Writes bytes <code>start</code> to <code>end</code> of the source to the
+* same position in the channel.
+*
+**/
+
+    private void writeRange(long start, long end) throws IOException {
+        long pos = start;
+        while (pos < end) {
+            int n = (int)Math.min(CHUNK_SIZE, end - pos);
+            ByteBuffer buf;
+            if (mapped != null) {
+                mapped.read(pos, contents, 0, n);
+                buf = ByteBuffer.wrap(contents, 0, n);
+            }
+            else {
+                buf = ByteBuffer.wrap(contents, (int)pos, n);
             }
+            long p = pos;
+            while (buf.hasRemaining()) {
+                p += channel.write(buf, p);
+            }
+            pos += n;
+            bytesLeft -= n;
             ProgressThread.yield();
         }
+    }
+
+/**
+*
+* Moves the temporary file over the target file.
+*
+**/
+
+    private void replaceFile() throws IOException {
         try {
-            raf.close();
-        } catch (Exception e) { }
-        // done saving data
+            Files.move(tempFile.toPath(), target,
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+/**
+*
+* Channel that reads the memory-mapped buffer from start to end.
+*
+**/
+
+    private class MappedChannel implements ReadableByteChannel {
+
+        private long pos = 0;
+
+        public int read(ByteBuffer dst) {
+            if (pos >= length) return -1;
+            int n = (int)Math.min(Math.min(dst.remaining(), CHUNK_SIZE), length - pos);
+            mapped.read(pos, contents, 0, n);
+            dst.put(contents, 0, n);
+            pos += n;
+            bytesLeft -= n;
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() { }
+
     }
 
-}
\ No newline at end of file
+}
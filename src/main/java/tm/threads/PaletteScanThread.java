@@ -0,0 +1,60 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.threads;
+
+import tm.PaletteScanner;
+
+/**
+*
+* Thread for scanning a file for palettes (see PaletteScanner).
+*
+**/
+
+public class PaletteScanThread extends ProgressThread {
+
+    private PaletteScanner scanner;
+    private PaletteScanner.Candidate[] candidates = new PaletteScanner.Candidate[0];
+    private volatile boolean done = false;
+
+    public PaletteScanThread(PaletteScanner scanner) {
+        super();
+        this.scanner = scanner;
+        this.setPriority(NORM_PRIORITY);
+    }
+
+    public int getPercentageCompleted() {
+        if (done) return 100;
+        // 100 means finished, so hold at 99 until the results are ranked
+        return Math.min(99, scanner.getPercentageCompleted());
+    }
+
+    public void run() {
+        try {
+            candidates = scanner.scan();
+        }
+        finally {
+            done = true;
+        }
+    }
+
+    public PaletteScanner.Candidate[] getCandidates() {
+        return candidates;
+    }
+
+}
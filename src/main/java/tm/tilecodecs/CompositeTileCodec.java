@@ -36,6 +36,8 @@ package tm.tilecodecs;
 public class CompositeTileCodec extends TileCodec {
 
     private TileCodec[] codecs;
+    // holds one decoded sub-tile; one per thread so tiles can be decoded in parallel
+    private final ThreadLocal<int[]> scratch = new ThreadLocal<int[]>();
 
 /**
 *
@@ -59,24 +61,39 @@ public class CompositeTileCodec extends TileCodec {
 *
 **/
 
-    public int[] decode(byte[] bits, int ofs, int stride) {
-        // decode the first sub-tile
-        int[] tilePixels = codecs[0].decode(bits, ofs, stride);
-        int[] pixels = new int[tileWidth * tileHeight];
-        System.arraycopy(tilePixels, 0, pixels, 0, Math.min(tilePixels.length, pixels.length));
-        // decode remaining sub-tiles
-        int p = codecs[0].getBitsPerPixel();
-        for (int i=1; i<codecs.length; i++) {
-            ofs += (stride+1) * codecs[i-1].getTileSize();
-            tilePixels = codecs[i].decode(bits, ofs, stride);
+    public void decodeInto(byte[] bits, int ofs, int stride, int[] dst, int dstOfs, int dstScan) {
+        int p = 0;
+        for (int i=0; i<codecs.length; i++) {
+            if (i > 0) {
+                ofs += (stride+1) * codecs[i-1].getTileSize();
+            }
+            // decode the sub-tile into scratch space
+            TileCodec c = codecs[i];
+            int subPixels = c.getTileWidth() * c.getTileHeight();
+            int[] sub = scratch.get();
+            if ((sub == null) || (sub.length < subPixels)) {
+                sub = new int[subPixels];
+                scratch.set(sub);
+            }
+            c.decodeInto(bits, ofs, stride, sub, 0, c.getTileWidth());
             // "overlay" the tile
-            int maxPixels = Math.min(pixels.length, tilePixels.length);
-            for (int j=0; j<maxPixels; j++) {
-                pixels[j] |= tilePixels[j] << p;
+            int pos = dstOfs;
+            int k = 0;
+            for (int y=0; y<tileHeight; y++) {
+                for (int x=0; x<tileWidth; x++) {
+                    int v = (k < subPixels) ? (sub[k] << p) : 0;
+                    if (i == 0) {
+                        dst[pos + x] = v;
+                    }
+                    else {
+                        dst[pos + x] |= v;
+                    }
+                    k++;
+                }
+                pos += dstScan;
             }
-            p += codecs[i].getBitsPerPixel();
+            p += c.getBitsPerPixel();
         }
-        return pixels;
     }
 
 /**
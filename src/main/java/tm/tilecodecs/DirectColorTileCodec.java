@@ -110,13 +110,12 @@ public class DirectColorTileCodec extends TileCodec {
 *
 **/
 
-    public int[] decode(byte[] bits, int ofs, int stride) {
-        int[] pixels = new int[tileWidth * tileHeight];
+    public void decodeInto(byte[] bits, int ofs, int stride, int[] dst, int dstOfs, int dstScan) {
         int v, r, g, b, a, s;
-        int pos=0;
         stride *= bytesPerRow;
         for (int i=0; i<tileHeight; i++) {
             // do one row of pixels
+            int pos = dstOfs;
             for (int j=0; j<tileWidth; j++) {
 
                 // get encoded pixel
@@ -164,11 +163,11 @@ public class DirectColorTileCodec extends TileCodec {
                 }
 
                 // final pixel
-                pixels[pos++] = a | r | g | b;
+                dst[pos++] = a | r | g | b;
             }
             ofs += stride;
+            dstOfs += dstScan;
         }
-        return pixels;
     }
 
 /**
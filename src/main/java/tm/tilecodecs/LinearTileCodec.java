@@ -121,27 +121,26 @@ public class LinearTileCodec extends TileCodec {
 *
 **/
 
-    public int[] decode(byte[] bits, int ofs, int stride) {
-        int[] pixels = new int[tileWidth * tileHeight];
-        int pos=0;
+    public void decodeInto(byte[] bits, int ofs, int stride, int[] dst, int dstOfs, int dstScan) {
         stride *= bytesPerRow;
         for (int i=0; i<tileHeight; i++) {
             // do one row
+            int pos = dstOfs;
             int pixelsInRow = 0;
             for (int k=0; k<bytesPerRow; k++) {
                 // do one byte
                 int b = bits[ofs++] & 0xFF; // TODO: rowbyteoffset[k]
                 for (int m = startPixel; m != boundary; m += step) {
                     // decode one pixel, but don't exceed tile width
-                    if (pixelsInRow < tileWidth && pos < pixels.length) {
-                        pixels[pos++] = (b >> bitsPerPixel*m) & pixelMask;
+                    if (pixelsInRow < tileWidth) {
+                        dst[pos++] = (b >> bitsPerPixel*m) & pixelMask;
                         pixelsInRow++;
                     }
                 }
             }
             ofs += stride;
+            dstOfs += dstScan;
         }
-        return pixels;
     }
 
 /**
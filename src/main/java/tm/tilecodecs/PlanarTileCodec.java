@@ -29,7 +29,6 @@ package tm.tilecodecs;
 public class PlanarTileCodec extends TileCodec {
 
     protected int[] bpOffsets;
-    protected int[] bp;
     protected static int[][][] bitsToPixelsLookup=null;
 
 /**
@@ -43,7 +42,6 @@ public class PlanarTileCodec extends TileCodec {
     public PlanarTileCodec(String id, int[] bpOffsets, String description) {
         super(id, bpOffsets.length, description);
         this.bpOffsets = bpOffsets;
-        bp = new int[8];
 
         if (bitsToPixelsLookup == null) {
             // Precalculate all bit patterns
@@ -70,9 +68,7 @@ public class PlanarTileCodec extends TileCodec {
 *
 **/
 
-    public int[] decode(byte[] bits, int ofs, int stride) {
-        int[] pixels = new int[tileWidth * tileHeight];
-        int pos = 0;
+    public void decodeInto(byte[] bits, int ofs, int stride, int[] dst, int dstOfs, int dstScan) {
         stride++;
         stride *= bytesPerRow;
         
@@ -80,28 +76,25 @@ public class PlanarTileCodec extends TileCodec {
             // Process pixels in 8-pixel blocks for this row
             int pixelsProcessed = 0;
             int rowOfs = ofs;
+            int pos = dstOfs;
             
             while (pixelsProcessed < tileWidth) {
-                // Read bitplanes for this 8-pixel block
-                for (int j = 0; j < bitsPerPixel; j++) {
-                    if (rowOfs + bpOffsets[j] < bits.length) {
-                        bp[j] = bits[rowOfs + bpOffsets[j]] & 0xFF;
-                    } else {
-                        bp[j] = 0;
-                    }
-                }
-                
-                // Decode up to 8 pixels from this block
+                // Decode up to 8 pixels from this block, one bitplane at a time.
+                // The planes are OR'ed straight into dst, so no state is kept in
+                // the codec and several threads can decode with it at once.
                 int pixelsInThisBlock = Math.min(8, tileWidth - pixelsProcessed);
                 for (int j = 0; j < pixelsInThisBlock; j++) {
-                    int p = 0;
-                    for (int k = 0; k < bitsPerPixel; k++) {
-                        p |= bitsToPixelsLookup[k][bp[k]][j];
-                    }
-                    if (pos < pixels.length) {
-                        pixels[pos++] = p;
+                    dst[pos + j] = 0;
+                }
+                for (int k = 0; k < bitsPerPixel; k++) {
+                    if (rowOfs + bpOffsets[k] < bits.length) {
+                        int[] lookup = bitsToPixelsLookup[k][bits[rowOfs + bpOffsets[k]] & 0xFF];
+                        for (int j = 0; j < pixelsInThisBlock; j++) {
+                            dst[pos + j] |= lookup[j];
+                        }
                     }
                 }
+                pos += pixelsInThisBlock;
                 
                 pixelsProcessed += pixelsInThisBlock;
                 
@@ -111,8 +104,8 @@ public class PlanarTileCodec extends TileCodec {
             
             // Move to next row
             ofs += stride;
+            dstOfs += dstScan;
         }
-        return pixels;
     }
 
 /**
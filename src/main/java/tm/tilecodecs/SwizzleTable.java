@@ -0,0 +1,187 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.tilecodecs;
+
+import java.util.Arrays;
+
+/**
+*
+* Precomputed swizzle permutation for a canvas of a given size.
+*
+* Entry (y * width) + x holds the position inside a tile's decoded pixel data
+* that canvas pixel (x, y) is taken from (when rendering) or stored to (when
+* encoding), i.e. SwizzleUtil.applySwizzle(x, y, ...) modulo the tile area.
+* The table is built once for a pattern, canvas size, tile size and custom
+* block parameters, so the per-pixel work is reduced to a single lookup.
+*
+**/
+
+public class SwizzleTable {
+
+    private final String pattern;
+    private final int width;
+    private final int height;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int blockWidth;
+    private final int blockHeight;
+    private final boolean mortonOrder;
+
+    private final int[] table;
+    private volatile int[] inverse;     // swizzled index -> canvas pixel index, built on demand
+
+/**
+*
+* Builds the table.
+*
+* @param pattern        Swizzle pattern
+* @param width          Canvas width in pixels
+* @param height         Canvas height in pixels
+* @param tileWidth      Tile width in pixels
+* @param tileHeight     Tile height in pixels
+* @param blockWidth     Custom block width (for custom pattern)
+* @param blockHeight    Custom block height (for custom pattern)
+* @param mortonOrder    Whether to use Morton order (for custom pattern)
+*
+**/
+
+    public SwizzleTable(String pattern, int width, int height, int tileWidth, int tileHeight,
+                        int blockWidth, int blockHeight, boolean mortonOrder) {
+        this.pattern = pattern;
+        this.width = width;
+        this.height = height;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.blockWidth = blockWidth;
+        this.blockHeight = blockHeight;
+        this.mortonOrder = mortonOrder;
+
+        int tileArea = tileWidth * tileHeight;
+        table = new int[width * height];
+        int pos = 0;
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                int globalPos = SwizzleUtil.applySwizzle(x, y, width, height, pattern,
+                    blockWidth, blockHeight, mortonOrder);
+                table[pos++] = globalPos % tileArea;
+            }
+        }
+    }
+
+/**
+*
+* Creates a table for the given swizzle pattern and the codec's tile size
+* and custom swizzle settings.
+*
+**/
+
+    public static SwizzleTable forCodec(TileCodec codec, String pattern, int width, int height) {
+        return new SwizzleTable(pattern, width, height,
+            codec.getTileWidth(), codec.getTileHeight(),
+            codec.getCustomBlockWidth(), codec.getCustomBlockHeight(), codec.getCustomMortonOrder());
+    }
+
+/**
+*
+* Returns true if this table was built for the given parameters.
+*
+**/
+
+    public boolean matches(String pattern, int width, int height, int tileWidth, int tileHeight,
+                           int blockWidth, int blockHeight, boolean mortonOrder) {
+        return this.pattern.equals(pattern)
+            && (this.width == width) && (this.height == height)
+            && (this.tileWidth == tileWidth) && (this.tileHeight == tileHeight)
+            && (!TileCodec.SWIZZLE_CUSTOM.equals(pattern)
+                || ((this.blockWidth == blockWidth) && (this.blockHeight == blockHeight)
+                    && (this.mortonOrder == mortonOrder)));
+    }
+
+/**
+*
+* Returns true if this table was built for the given swizzle pattern,
+* codec settings and canvas size.
+*
+**/
+
+    public boolean matches(TileCodec codec, String pattern, int width, int height) {
+        return matches(pattern, width, height,
+            codec.getTileWidth(), codec.getTileHeight(),
+            codec.getCustomBlockWidth(), codec.getCustomBlockHeight(), codec.getCustomMortonOrder());
+    }
+
+/**
+*
+* Gets the permutation. Entry (y * width) + x is the tile-relative data
+* position of canvas pixel (x, y).
+*
+**/
+
+    public int[] getTable() {
+        return table;
+    }
+
+/**
+*
+* Gets the canvas pixel index (y * width) + x whose swizzled (global) index
+* is <code>index</code>, or -1 if no pixel maps to it.
+*
+**/
+
+    public int reverse(int index) {
+        if (inverse == null) {
+            buildInverse();
+        }
+        if ((index < 0) || (index >= inverse.length)) {
+            return -1;
+        }
+        return inverse[index];
+    }
+
+/**
+*
+* Builds the inverse permutation of the (unreduced) swizzled indices.
+*
+**/
+
+    private synchronized void buildInverse() {
+        if (inverse != null) return;
+        int[] global = new int[width * height];
+        int max = -1;
+        int pos = 0;
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                int g = SwizzleUtil.applySwizzle(x, y, width, height, pattern,
+                    blockWidth, blockHeight, mortonOrder);
+                global[pos++] = g;
+                if (g > max) max = g;
+            }
+        }
+        int[] inv = new int[max + 1];
+        Arrays.fill(inv, -1);
+        // keep the first pixel that maps to an index, like a forward scan would
+        for (int i=global.length-1; i>=0; i--) {
+            if (global[i] >= 0) {
+                inv[global[i]] = i;
+            }
+        }
+        inverse = inv;
+    }
+
+}
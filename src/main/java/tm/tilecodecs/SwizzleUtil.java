@@ -37,6 +37,9 @@ public class SwizzleUtil {
     private static final int BLOCK_FORMAT_TILE_SIZE = 4;  // BC, WII, SWITCH
     private static final int NINTENDO_TILE_SIZE = 8;      // NDS, 3DS
 
+    // Inverse permutation used by the most recent reverseSwizzle() call
+    private static volatile SwizzleTable reverseTable = null;
+
     /**
      * Applies swizzling to pixel coordinates based on the specified pattern.
      * 
@@ -139,13 +142,17 @@ public class SwizzleUtil {
             return new int[] { index % width, index / width };
         }
         
-        // For reverse operations, we need to find which x,y produces the given index
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                if (applySwizzle(x, y, width, height, pattern) == index) {
-                    return new int[] { x, y };
-                }
-            }
+        // Look the index up in a precomputed inverse permutation instead of
+        // searching for the x,y that produces it; the table for the last
+        // size/pattern is kept, since callers tend to reverse many indices in a row
+        SwizzleTable table = reverseTable;
+        if ((table == null) || !table.matches(pattern, width, height, width, height, 4, 4, true)) {
+            table = new SwizzleTable(pattern, width, height, width, height, 4, 4, true);
+            reverseTable = table;
+        }
+        int pos = table.reverse(index);
+        if (pos >= 0) {
+            return new int[] { pos % width, pos / width };
         }
         
         // Fallback to linear
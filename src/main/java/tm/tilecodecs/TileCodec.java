@@ -21,7 +21,7 @@ package tm.tilecodecs;
 /**
 *
 * Abstract class for configurable size tile codecs.
-* To add a new tile format, simply extend this class and implement decode() and encode().
+* To add a new tile format, simply extend this class and implement decodeInto() and encode().
 *
 **/
 
@@ -93,14 +93,34 @@ public abstract class TileCodec {
 
 /**
 *
-* Decodes a tile.
+* Decodes a tile into a newly allocated array of tileWidth * tileHeight pixels.
 *
 * @param bits   An array of encoded tile data
 * @param ofs    Start offset of tile in bits array
 *
 **/
 
-    public abstract int[] decode(byte[] bits, int ofs, int stride);
+    public int[] decode(byte[] bits, int ofs, int stride) {
+        int[] pixels = new int[tileWidth * tileHeight];
+        decodeInto(bits, ofs, stride, pixels, 0, tileWidth);
+        return pixels;
+    }
+
+/**
+*
+* Decodes a tile straight into a caller-supplied pixel buffer, without
+* allocating anything. Pixel (x, y) of the tile is stored at
+* dst[dstOfs + (y * dstScan) + x].
+*
+* @param bits       An array of encoded tile data
+* @param ofs        Start offset of tile in bits array
+* @param dst        Destination pixel buffer
+* @param dstOfs     Where the top-left pixel of the tile goes in dst
+* @param dstScan    Distance between two rows of the tile in dst
+*
+**/
+
+    public abstract void decodeInto(byte[] bits, int ofs, int stride, int[] dst, int dstOfs, int dstScan);
 
 /**
 *
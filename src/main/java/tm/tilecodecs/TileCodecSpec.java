@@ -0,0 +1,111 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.tilecodecs;
+
+/**
+*
+* Entry of the tile codec registry. Holds what the UI needs to list a codec
+* (its ID and description); the codec itself is created the first time it
+* is asked for.
+*
+**/
+
+public class TileCodecSpec {
+
+    private String id;
+    private String description;
+    private TileCodec codec;
+
+/**
+*
+* Creates an entry for a codec that will be created by createCodec().
+*
+**/
+
+    public TileCodecSpec(String id, String description) {
+        this.id = id;
+        this.description = description;
+    }
+
+/**
+*
+* Creates an entry for a codec that already exists.
+*
+**/
+
+    public TileCodecSpec(TileCodec codec) {
+        this(codec.getID(), codec.getDescription());
+        this.codec = codec;
+    }
+
+/**
+*
+* Gets the ID of the codec.
+*
+**/
+
+    public String getID() {
+        return id;
+    }
+
+/**
+*
+* Gets the description of the codec.
+*
+**/
+
+    public String getDescription() {
+        return description;
+    }
+
+/**
+*
+* Gets the codec, creating it if this is the first time it's used.
+*
+**/
+
+    public synchronized TileCodec getCodec() {
+        if (codec == null) {
+            codec = createCodec();
+        }
+        return codec;
+    }
+
+/**
+*
+* Returns true if the given codec is the one this entry has created.
+*
+**/
+
+    public synchronized boolean holds(TileCodec codec) {
+        return (this.codec != null) && (this.codec == codec);
+    }
+
+/**
+*
+* Creates the codec. Entries that were not given a codec to begin with
+* override this.
+*
+**/
+
+    protected TileCodec createCodec() {
+        throw new IllegalStateException("No codec for " + id);
+    }
+
+}
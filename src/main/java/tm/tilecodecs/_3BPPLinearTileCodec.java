@@ -16,45 +16,26 @@ public class _3BPPLinearTileCodec extends TileCodec {
 *
 **/
 
-    public int[] decode(byte[] bits, int ofs, int stride) {
-        int[] pixels = new int[tileWidth * tileHeight];
-        int pos=0;
-        int b1, b2, b3;
+    public void decodeInto(byte[] bits, int ofs, int stride, int[] dst, int dstOfs, int dstScan) {
         stride *= bytesPerRow;
         for (int i=0; i<tileHeight; i++) {
-            // do one row
-            b1 = bits[ofs++] & 0xFF; // byte 1: 0001 1122
-            b2 = bits[ofs++] & 0xFF; // byte 2: 2333 4445
-            b3 = bits[ofs++] & 0xFF; // byte 3: 5566 6777
-            
-            // Original 8-pixel decoding with bounds checking
-            if (pos + 7 < pixels.length) {
-                pixels[pos++] = (b1 >> 5) & 7;
-                pixels[pos++] = (b1 >> 2) & 7;
-                pixels[pos++] = ((b1 & 3) << 1) | ((b2 >> 7) & 1);
-                pixels[pos++] = (b2 >> 4) & 7;
-                pixels[pos++] = (b2 >> 1) & 7;
-                pixels[pos++] = ((b2 & 1) << 2) | ((b3 >> 6) & 3);
-                pixels[pos++] = (b3 >> 3) & 7;
-                pixels[pos++] = b3 & 7;
-            } else {
-                // Handle tiles narrower than 8 pixels
-                for (int j = 0; j < 8 && pos < pixels.length; j++) {
-                    switch (j) {
-                        case 0: pixels[pos++] = (b1 >> 5) & 7; break;
-                        case 1: pixels[pos++] = (b1 >> 2) & 7; break;
-                        case 2: pixels[pos++] = ((b1 & 3) << 1) | ((b2 >> 7) & 1); break;
-                        case 3: pixels[pos++] = (b2 >> 4) & 7; break;
-                        case 4: pixels[pos++] = (b2 >> 1) & 7; break;
-                        case 5: pixels[pos++] = ((b2 & 1) << 2) | ((b3 >> 6) & 3); break;
-                        case 6: pixels[pos++] = (b3 >> 3) & 7; break;
-                        case 7: pixels[pos++] = b3 & 7; break;
-                    }
+            // do one row, 8 pixels (3 bytes) at a time
+            int pos = dstOfs;
+            int pixelsProcessed = 0;
+            while (pixelsProcessed < tileWidth) {
+                int v = (bits[ofs++] & 0xFF) << 16;  // byte 1: 0001 1122
+                v |= (bits[ofs++] & 0xFF) << 8;      // byte 2: 2333 4445
+                v |= (bits[ofs++] & 0xFF);           // byte 3: 5566 6777
+                // handle tiles narrower than 8 pixels
+                int pixelsInThisBlock = Math.min(8, tileWidth - pixelsProcessed);
+                for (int j = 0; j < pixelsInThisBlock; j++) {
+                    dst[pos++] = (v >> (21 - 3*j)) & 7;
                 }
+                pixelsProcessed += pixelsInThisBlock;
             }
             ofs += stride;
+            dstOfs += dstScan;
         }
-        return pixels;
     }
 
 /**
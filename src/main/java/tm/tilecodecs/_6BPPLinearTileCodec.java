@@ -16,54 +16,40 @@ public class _6BPPLinearTileCodec extends TileCodec {
 *
 **/
 
-    public int[] decode(byte[] bits, int ofs, int stride) {
-        int[] pixels = new int[tileWidth * tileHeight];
-        int pos=0;
-        int b1, b2, b3, b4, b5, b6;
+    public void decodeInto(byte[] bits, int ofs, int stride, int[] dst, int dstOfs, int dstScan) {
         stride *= bytesPerRow;
         for (int i=0; i<tileHeight; i++) {
             // Process pixels for each row
+            int pos = dstOfs;
             int pixelsProcessed = 0;
             
             // Process 8-pixel blocks from the data
             while (pixelsProcessed < tileWidth) {
+                int pixelsToTake = Math.min(8, tileWidth - pixelsProcessed);
                 // Read 6 bytes that encode 8 pixels
                 if (ofs + 5 < bits.length) {
-                    b6 = bits[ofs++] & 0xFF; // byte 1: 0000 0011
-                    b5 = bits[ofs++] & 0xFF; // byte 2: 1111 2222
-                    b4 = bits[ofs++] & 0xFF; // byte 3: 2233 3333
-                    b3 = bits[ofs++] & 0xFF; // byte 4: 4444 4455
-                    b2 = bits[ofs++] & 0xFF; // byte 5: 5555 6666
-                    b1 = bits[ofs++] & 0xFF; // byte 6: 6677 7777
+                    long v = (long)(bits[ofs++] & 0xFF);        // byte 1: 0000 0011
+                    v |= (long)(bits[ofs++] & 0xFF) << 8;       // byte 2: 1111 2222
+                    v |= (long)(bits[ofs++] & 0xFF) << 16;      // byte 3: 2233 3333
+                    v |= (long)(bits[ofs++] & 0xFF) << 24;      // byte 4: 4444 4455
+                    v |= (long)(bits[ofs++] & 0xFF) << 32;      // byte 5: 5555 6666
+                    v |= (long)(bits[ofs++] & 0xFF) << 40;      // byte 6: 6677 7777
                     
-                    // Decode up to 8 pixels, but only use what we need
-                    int[] decodedPixels = new int[8];
-                    decodedPixels[0] = (b1 >> 2) & 63;
-                    decodedPixels[1] = ((b1 & 3) << 4) | ((b2 >> 4) & 15);
-                    decodedPixels[2] = ((b2 & 15) << 2) | ((b3 >> 6) & 3);
-                    decodedPixels[3] = b3 & 63;
-                    decodedPixels[4] = (b4 >> 2) & 63;
-                    decodedPixels[5] = ((b4 & 3) << 4) | ((b5 >> 4) & 15);
-                    decodedPixels[6] = ((b5 & 15) << 2) | ((b6 >> 6) & 3);
-                    decodedPixels[7] = b6 & 63;
-                    
-                    // Copy only the pixels we need for this row
-                    int pixelsToTake = Math.min(8, tileWidth - pixelsProcessed);
-                    for (int p = 0; p < pixelsToTake && pos < pixels.length; p++) {
-                        pixels[pos++] = decodedPixels[p];
+                    // Take only the pixels we need for this row
+                    for (int p = 0; p < pixelsToTake; p++) {
+                        dst[pos++] = (int)(v >> (42 - 6*p)) & 63;
                     }
-                    pixelsProcessed += pixelsToTake;
                 } else {
                     // Not enough data, fill with zeros
-                    while (pixelsProcessed < tileWidth && pos < pixels.length) {
-                        pixels[pos++] = 0;
-                        pixelsProcessed++;
+                    for (int p = 0; p < pixelsToTake; p++) {
+                        dst[pos++] = 0;
                     }
                 }
+                pixelsProcessed += pixelsToTake;
             }
             ofs += stride;
+            dstOfs += dstScan;
         }
-        return pixels;
     }
 
 /**
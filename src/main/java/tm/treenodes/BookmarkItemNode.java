@@ -254,7 +254,7 @@ public class BookmarkItemNode extends TMTreeNode {
 **/
 
     public void setText(String text) {
-        this.description = text;
+        setDescription(text);
     }
 
 /**
@@ -18,17 +18,52 @@
 
 package tm.treenodes;
 
+import java.util.Enumeration;
+import javax.swing.tree.MutableTreeNode;
+import javax.swing.tree.TreeNode;
+
 /**
 *
 * A folder.
 * Has a name and zero or more children, each of which may be either
 * an item or a folder.
 *
+* The children of a folder can be loaded lazily (see setLazy()); they are
+* then read the first time they are accessed, so that only the folders that
+* are actually opened have to be read.
+*
+* A folder is dirty when its children have changed since they were last
+* stored: a child was inserted or removed, or was itself modified (see
+* TMTreeNode.setModified()).
+*
 **/
 
 public class FolderNode extends TMTreeNode {
 
     private String name;
+    private Loader loader;      // reads the children on first access, or null if they have been read
+    private long section = -1;  // where the children are stored (see Loader)
+    private int pendingCount;   // number of children that have yet to be read
+    private boolean dirty = true;   // children changed since they were stored
+
+/**
+*
+* Reads the children of lazily loaded folders.
+*
+**/
+
+    public interface Loader {
+
+/**
+*
+* Reads the children stored at <code>section</code> and adds them to the
+* folder.
+*
+**/
+
+        public void loadChildren(FolderNode folder, long section);
+
+    }
 
 /**
 *
@@ -81,6 +116,119 @@ public class FolderNode extends TMTreeNode {
 
     public void setText(String text) {
         this.name = text;
+        setModified(true);  // the name is stored with the parent
+    }
+
+/**
+*
+* Makes the children of this folder be read by the given loader when they
+* are first accessed. <code>childCount</code> is their number, so that the
+* folder can tell whether it is empty without reading them.
+*
+**/
+
+    public void setLazy(Loader loader, long section, int childCount) {
+        this.loader = loader;
+        this.section = section;
+        this.pendingCount = childCount;
+        dirty = false;
+    }
+
+/**
+*
+* Returns true if the children of this folder have yet to be read.
+*
+**/
+
+    public boolean isLazy() {
+        return (loader != null);
+    }
+
+/**
+*
+* Gets where the children of this folder were last stored, or -1.
+*
+**/
+
+    public long getSection() {
+        return section;
+    }
+
+/**
+*
+* Sets where the children of this folder have been stored.
+*
+**/
+
+    public void setSection(long section) {
+        this.section = section;
+    }
+
+/**
+*
+* Returns true if the children of this folder have changed since they were
+* last stored.
+*
+**/
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+/**
+*
+* Sets whether the children of this folder have to be stored again.
+*
+**/
+
+    public void setDirty(boolean dirty) {
+        this.dirty = dirty;
+    }
+
+/**
+*
+* Reads the children if that hasn't been done yet.
+*
+**/
+
+    private void load() {
+        if (loader != null) {
+            Loader l = loader;
+            loader = null;
+            l.loadChildren(this, section);
+            dirty = false;  // (they are just as they were stored)
+        }
+    }
+
+    public int getChildCount() {
+        return (loader != null) ? pendingCount : super.getChildCount();
+    }
+
+    public TreeNode getChildAt(int index) {
+        load();
+        return super.getChildAt(index);
+    }
+
+    public int getIndex(TreeNode node) {
+        load();
+        return super.getIndex(node);
+    }
+
+    public Enumeration<TreeNode> children() {
+        load();
+        return super.children();
+    }
+
+    public void insert(MutableTreeNode child, int index) {
+        load();
+        super.insert(child, index);
+        dirty = true;
+    }
+
+    public void remove(int index) {
+        load();
+        super.remove(index);
+        dirty = true;
     }
 
 }
\ No newline at end of file
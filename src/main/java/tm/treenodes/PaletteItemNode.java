@@ -32,11 +32,13 @@ public class PaletteItemNode extends TMTreeNode {
 
     private TMPalette palette;
     private String description;
+    private int storedVersion;  // version of the palette when it was last stored
 
     public PaletteItemNode(TMPalette palette, String description) {
         super();
         this.palette = palette;
         this.description = description;
+        storedVersion = palette.getVersion();
     }
 
 /**
@@ -49,6 +51,27 @@ public class PaletteItemNode extends TMTreeNode {
         return palette;
     }
 
+/**
+*
+* Returns true if the palette has been edited since setStored() was last
+* called.
+*
+**/
+
+    public boolean isPaletteChanged() {
+        return palette.getVersion() != storedVersion;
+    }
+
+/**
+*
+* Records that the palette has been stored as it is now.
+*
+**/
+
+    public void setStored() {
+        storedVersion = palette.getVersion();
+    }
+
 /**
 *
 * Gets the palette description.
@@ -80,7 +103,9 @@ public class PaletteItemNode extends TMTreeNode {
         StringBuffer s = new StringBuffer();
         s.append(getIndent());
         s.append("<palette");
-//        s.append(" id=\""+palette.getID()+"\"");
+        if ((palette.getID() != null) && (palette.getID().length() > 0)) {
+            s.append(" id=\"").append(palette.getID()).append("\"");
+        }
         s.append(" size=\"").append(palette.getSize()).append("\"");
         s.append(" direct=\"").append(palette.isDirect() ? "yes" : "no").append("\"");
         if (!palette.isDirect()) {
@@ -86,6 +86,10 @@ public abstract class TMTreeNode extends DefaultMutableTreeNode {
 
     public void setModified(boolean modified) {
         this.modified = modified;
+        // the node is stored with the other children of its folder
+        if (modified && (getParent() instanceof FolderNode)) {
+            ((FolderNode)getParent()).setDirty(true);
+        }
     }
 
     public boolean isModified() {
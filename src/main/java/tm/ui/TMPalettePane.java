@@ -288,8 +288,7 @@ public class TMPalettePane extends JPanel implements MouseInputListener {
                 // PS: If palette is NOT direct then this means fileimage.modified!!
                 if (!palette.isDirect()) {
                     byte[] src = palette.getEntryBytes(colorIndex);
-                    byte[] dest = view.getFileImage().getContents();
-                    System.arraycopy(src, 0, dest, palette.getOffset()+(colorIndex*src.length), src.length);
+                    view.getFileImage().write(palette.getOffset()+(colorIndex*src.length), src, 0, src.length);
                     ui.fileImageModified(view.getFileImage());
                 }
 
@@ -414,8 +413,6 @@ public class TMPalettePane extends JPanel implements MouseInputListener {
         boolean modified = palette.isModified();
 
         // create the palette
-        byte[] data = view.getFileImage().getContents();
-
         //checks palette bounds
         int newOffset = offset+shift;
         //System.out.println("Filesize="+view.getFileImage().getSize()+" pixelsize="+codec.getBytesPerPixel()+" newoffset="+newOffset+" palettesize="+size); USEFUL IN CASE I MESSED THE MATH
@@ -426,7 +423,7 @@ public class TMPalettePane extends JPanel implements MouseInputListener {
                 newOffset = view.getFileImage().getSize()-(codec.getBytesPerPixel()*size);
         }
 
-        palette = new TMPalette("ID", data, newOffset, size, codec, endianness, copy, modified);
+        palette = new TMPalette("ID", view.getFileImage(), newOffset, size, codec, endianness, copy, modified);
 
         // set the new palette
         view.setPalette(palette);
@@ -0,0 +1,334 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.ui;
+
+import tm.ByteSearcher;
+import tm.canvases.TMEditorCanvas;
+import tm.utils.Xlator;
+import javax.swing.*;
+import javax.swing.border.EtchedBorder;
+import javax.swing.border.TitledBorder;
+import java.awt.*;
+import java.awt.event.*;
+
+/**
+*
+* Non-modal dialog for searching the file of the selected view for a byte
+* pattern (see ByteSearcher). The search runs in the background, and the
+* matches are added to the list as they are found. Double-clicking a match
+* (or pressing Enter) goes to its offset.
+*
+**/
+
+public class TMSearchDialog extends JDialog {
+
+    private static final int MAX_MATCHES = 100000;
+
+    // pattern types, in the order of the type combobox
+    private static final int HEX = 0;
+    private static final int TEXT = 1;
+    private static final int RELATIVE_TEXT = 2;
+    private static final int RELATIVE_HEX = 3;
+
+    private TMUI ui;
+    private Xlator xl;
+
+    private JTextField patternField = new JTextField(24);
+    private JComboBox typeCombo;
+    private JButton tileButton;
+    private JButton findButton;
+    private JButton stopButton;
+    private JLabel statusLabel = new JLabel(" ");
+    private DefaultListModel matchModel = new DefaultListModel();
+    private JList matchList = new JList(matchModel);
+    private Timer timer;
+
+    private TMView searchView;      // the view the matches belong to
+    private ByteSearcher searcher;
+    private Thread searchThread;
+
+/**
+*
+* Creates the Search dialog.
+*
+**/
+
+    public TMSearchDialog(TMUI ui, Xlator xl) {
+        super(ui, xl.xlate("Search_Dialog_Title"), false);
+        this.ui = ui;
+        this.xl = xl;
+
+        typeCombo = new JComboBox(new String[] {
+            xlate("Hex_Bytes"), xlate("Text"), xlate("Relative_Text"), xlate("Relative_Hex")
+        });
+        tileButton = new JButton(xlate("Selected_Tile"));
+        findButton = new JButton(xlate("Find"));
+        stopButton = new JButton(xlate("Stop"));
+        stopButton.setEnabled(false);
+
+        JPanel patternPane = new JPanel(new BorderLayout(5, 5));
+        patternPane.setBorder(new TitledBorder(new EtchedBorder(), xlate("Pattern")));
+        patternPane.add(patternField, BorderLayout.CENTER);
+        patternPane.add(typeCombo, BorderLayout.EAST);
+        patternPane.add(new JLabel(xlate("Pattern_Hint")), BorderLayout.SOUTH);
+
+        JPanel buttonPane = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttonPane.add(tileButton);
+        buttonPane.add(findButton);
+        buttonPane.add(stopButton);
+
+        JPanel top = new JPanel(new BorderLayout());
+        top.add(patternPane, BorderLayout.CENTER);
+        top.add(buttonPane, BorderLayout.SOUTH);
+
+        matchList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        matchList.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        matchList.setCellRenderer(new DefaultListCellRenderer() {
+            public Component getListCellRendererComponent(JList list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                String text = String.format("%08X", new Object[] { value });
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        JScrollPane matchPane = new JScrollPane(matchList);
+        matchPane.setBorder(new TitledBorder(new EtchedBorder(), xlate("Matches")));
+        matchPane.setPreferredSize(new Dimension(360, 240));
+
+        JPanel contentPane = new JPanel(new BorderLayout(5, 5));
+        contentPane.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        contentPane.add(top, BorderLayout.NORTH);
+        contentPane.add(matchPane, BorderLayout.CENTER);
+        contentPane.add(statusLabel, BorderLayout.SOUTH);
+        setContentPane(contentPane);
+        getRootPane().setDefaultButton(findButton);
+
+        findButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                startSearch();
+            }
+        });
+        stopButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                if (searcher != null) {
+                    searcher.cancel();
+                }
+            }
+        });
+        tileButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                useSelectedTile();
+            }
+        });
+        matchList.addMouseListener(new MouseAdapter() {
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    goToSelectedMatch();
+                }
+            }
+        });
+        matchList.addKeyListener(new KeyAdapter() {
+            public void keyPressed(KeyEvent e) {
+                if (e.getKeyCode() == KeyEvent.VK_ENTER) {
+                    goToSelectedMatch();
+                    e.consume();
+                }
+            }
+        });
+        addWindowListener(new WindowAdapter() {
+            public void windowClosing(WindowEvent e) {
+                if (searcher != null) {
+                    searcher.cancel();
+                }
+            }
+        });
+
+        timer = new Timer(100, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                if (searcher != null) {
+                    statusLabel.setText(xlate("Searching") + " " + searcher.getPercentageCompleted()
+                                        + "%, " + matchModel.getSize() + " " + xlate("Matches_Found"));
+                }
+            }
+        });
+
+        pack();
+    }
+
+/**
+*
+* Shows the dialog.
+*
+**/
+
+    public void showDialog() {
+        if (!isVisible()) {
+            setLocationRelativeTo(ui);
+        }
+        setVisible(true);
+        patternField.requestFocus();
+        patternField.selectAll();
+    }
+
+/**
+*
+* Parses the pattern field according to the selected type.
+*
+**/
+
+    private ByteSearcher.Pattern getPattern() {
+        String text = patternField.getText();
+        switch (typeCombo.getSelectedIndex()) {
+            case TEXT:
+                return ByteSearcher.Pattern.fromText(text, false);
+            case RELATIVE_TEXT:
+                return ByteSearcher.Pattern.fromText(text, true);
+            case RELATIVE_HEX:
+                return ByteSearcher.Pattern.parseHex(text, true);
+            default:
+                return ByteSearcher.Pattern.parseHex(text, false);
+        }
+    }
+
+/**
+*
+* Starts searching the file of the selected view, replacing the matches of
+* the previous search.
+*
+**/
+
+    private void startSearch() {
+        TMView view = ui.getSelectedView();
+        if ((view == null) || (searchThread != null)) return;
+        ByteSearcher.Pattern pattern;
+        try {
+            pattern = getPattern();
+        }
+        catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this,
+                    xlate("Invalid_Pattern"),
+                    "Tile Molester",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        searchView = view;
+        matchModel.clear();
+        searcher = new ByteSearcher(view.getFileImage(), pattern,
+                                    Runtime.getRuntime().availableProcessors(), MAX_MATCHES);
+        final ByteSearcher s = searcher;
+        searchThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    s.search(new ByteSearcher.MatchListener() {
+                        public void matchesFound(final int[] offsets) {
+                            SwingUtilities.invokeLater(new Runnable() {
+                                public void run() {
+                                    for (int i=0; i<offsets.length; i++) {
+                                        matchModel.addElement(Integer.valueOf(offsets[i]));
+                                    }
+                                }
+                            });
+                        }
+                    });
+                }
+                finally {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            searchDone(s);
+                        }
+                    });
+                }
+            }
+        }, "Search");
+        searchThread.setDaemon(true);
+        findButton.setEnabled(false);
+        stopButton.setEnabled(true);
+        timer.start();
+        searchThread.start();
+    }
+
+/**
+*
+* Called on the event dispatch thread when a search has ended.
+*
+**/
+
+    private void searchDone(ByteSearcher s) {
+        timer.stop();
+        searchThread = null;
+        findButton.setEnabled(true);
+        stopButton.setEnabled(false);
+        String status = matchModel.getSize() + " " + xlate("Matches_Found");
+        if (s.isCancelled()) {
+            status += " (" + xlate("Search_Stopped") + ")";
+        }
+        statusLabel.setText(status);
+    }
+
+/**
+*
+* Fills in the encoded form of the selected tile under the view's current
+* codec: the top-left tile of the selection if there is one, or else the
+* tile under the mouse cursor.
+*
+**/
+
+    private void useSelectedTile() {
+        TMView view = ui.getSelectedView();
+        if ((view == null) || (view.getTileCodec() == null)) return;
+        TMEditorCanvas ec = view.getEditorCanvas();
+        byte[] tile;
+        if (ec.hasSelection()) {
+            tile = ec.getSelectionCanvas().encodeTile(0, 0);
+        }
+        else {
+            tile = ec.encodeTile(ec.getCurrentCol(), ec.getCurrentRow());
+        }
+        StringBuffer sb = new StringBuffer();
+        for (int i=0; i<tile.length; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(String.format("%02X", new Object[] { Integer.valueOf(tile[i] & 0xFF) }));
+        }
+        patternField.setText(sb.toString());
+        typeCombo.setSelectedIndex(HEX);
+    }
+
+/**
+*
+* Scrolls the view that was searched to the selected match.
+*
+**/
+
+    private void goToSelectedMatch() {
+        Object value = matchList.getSelectedValue();
+        if ((value != null) && (searchView != null) && (searchView.getFileImage().getFile() != null)) {
+            searchView.setAbsoluteOffset(((Integer)value).intValue());
+        }
+    }
+
+    private String xlate(String key) {
+        try {
+            return xl.xlate(key);
+        }
+        catch (Exception e) {
+            return key;
+        }
+    }
+
+}
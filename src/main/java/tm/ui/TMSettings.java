@@ -17,6 +17,7 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
+import tm.PaletteDitherer;
 import tm.utils.XMLParser;
 import tm.utils.Xlator;
 
@@ -30,6 +31,13 @@ public class TMSettings extends JFrame {
 	public int maxRecentFiles = 10;
 	public Vector recentFiles = new Vector();
 	public String lastPath = "";
+	public int mappedFileThreshold = 64 * 1024 * 1024; // files this large are memory-mapped
+	public int renderThreads = Runtime.getRuntime().availableProcessors(); // tile grid decoding workers
+	public int tileCacheSize = 16; // megabytes of decoded tiles to keep
+	public int undoMemory = 16; // megabytes of undo history to keep per view
+	public boolean volatileCanvasCache = true; // keep scaled canvas frames in video memory
+	public int importDither = PaletteDitherer.NONE; // dithering of bitmaps pasted into palettized views
+	public boolean importPalette = false; // set the view's colors to those of pasted bitmaps
 
 	public TMSettings() {
 		super();
@@ -143,6 +151,23 @@ public class TMSettings extends JFrame {
 				if (file.exists()) recentFiles.add(file);
 			} else if (key.equals("lastPath")) {
 				lastPath = value;
+			} else if (key.equals("mappedFileThreshold")) {
+				mappedFileThreshold = Integer.parseInt(value);
+			} else if (key.equals("renderThreads")) {
+				renderThreads = Integer.parseInt(value);
+			} else if (key.equals("tileCacheSize")) {
+				tileCacheSize = Integer.parseInt(value);
+			} else if (key.equals("undoMemory")) {
+				undoMemory = Integer.parseInt(value);
+			} else if (key.equals("volatileCanvasCache")) {
+				volatileCanvasCache = value.equals("true");
+			} else if (key.equals("importDither")) {
+				try {
+					importDither = PaletteDitherer.parseMode(value);
+				} catch (IllegalArgumentException e) {
+				}
+			} else if (key.equals("importPalette")) {
+				importPalette = value.equals("true");
 			}
 		}
 		if (!loadedLocale) selectLanguage();
@@ -223,6 +248,13 @@ public class TMSettings extends JFrame {
 			sb.append(makePropertyTag("recentFile", recentFile.getAbsolutePath()));
 		}
 		sb.append(makePropertyTag("lastPath", lastPath));
+		sb.append(makePropertyTag("mappedFileThreshold", "" + mappedFileThreshold));
+		sb.append(makePropertyTag("renderThreads", "" + renderThreads));
+		sb.append(makePropertyTag("tileCacheSize", "" + tileCacheSize));
+		sb.append(makePropertyTag("undoMemory", "" + undoMemory));
+		sb.append(makePropertyTag("volatileCanvasCache", "" + volatileCanvasCache));
+		sb.append(makePropertyTag("importDither", PaletteDitherer.getModeName(importDither)));
+		sb.append(makePropertyTag("importPalette", "" + importPalette));
 
 		sb.append("</settings>\n");
 
@@ -310,6 +342,34 @@ public class TMSettings extends JFrame {
 		return lastPath;
 	}
 
+	public int getMappedFileThreshold() {
+		return mappedFileThreshold;
+	}
+
+	public int getRenderThreads() {
+		return renderThreads;
+	}
+
+	public int getTileCacheSize() {
+		return tileCacheSize;
+	}
+
+	public int getUndoMemory() {
+		return undoMemory;
+	}
+
+	public boolean getVolatileCanvasCache() {
+		return volatileCanvasCache;
+	}
+
+	public int getImportDither() {
+		return importDither;
+	}
+
+	public boolean getImportPalette() {
+		return importPalette;
+	}
+
 	public void setViewStatusBar(boolean newViewStatusBar) {
 		viewStatusBar = newViewStatusBar;
 	}
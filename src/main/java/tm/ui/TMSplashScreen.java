@@ -25,16 +25,21 @@ import javax.swing.*;
 /**
 *
 * Tile Molester splash screen.
+* It stays up while the program starts, and for a few seconds after that
+* with the startup time shown below the image (see startupFinished()).
 *
 **/
 
 public class TMSplashScreen extends JWindow {
 
+    private JLabel statusLabel = new JLabel(" ", SwingConstants.CENTER);
+
     public TMSplashScreen(Frame owner) {
         super(owner);
         ClassLoader cl = getClass().getClassLoader();
-        JLabel l = new JLabel(new ImageIcon(cl.getResource("tm/splash.gif")));
+        JLabel l = new JLabel(new ImageIcon(cl.getResource("splash.gif")));
         getContentPane().add(l, BorderLayout.CENTER);
+        getContentPane().add(statusLabel, BorderLayout.SOUTH);
         pack();
 
         // center the window
@@ -53,6 +58,24 @@ public class TMSplashScreen extends JWindow {
             }
         });
 
+        setVisible(true);
+    }
+
+/**
+*
+* Shows the given text (the startup time) and closes the splash screen
+* a few seconds later.
+*
+**/
+
+    public void startupFinished(final String status) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                statusLabel.setText(status);
+                toFront();
+            }
+        });
+
         final Runnable closerRunner = new Runnable() {
             public void run() {
                 setVisible(false);
@@ -74,7 +97,6 @@ public class TMSplashScreen extends JWindow {
             }
         };
 
-        setVisible(true);
         Thread splashThread = new Thread(waitRunner, "SplashThread");
         splashThread.setPriority(Thread.MIN_PRIORITY);
         splashThread.start();
@@ -18,8 +18,11 @@
 
 package tm.ui;
 
+import tm.FileImage;
+import tm.filelistener.TMFileListener;
 import tm.tilecodecs.TileCodec;
 import tm.canvases.TMEditorCanvas;
+import tm.canvases.TileCache;
 import javax.swing.*;
 import javax.swing.event.*;
 import java.awt.*;
@@ -40,6 +43,8 @@ public class TMStatusBar extends JPanel {
     private JLabel palOffsetLabel = new JLabel(" ");
     private JLabel modeLabel = new JLabel(" ");
     private JLabel tilesLabel = new JLabel(" ");
+    private JLabel cacheLabel = new JLabel(" ");
+    private JLabel checksumLabel = new JLabel(" ");
     private JLabel messageLabel = new JLabel(" ");
     private JLabel swizzleLabel = new JLabel(" ");  // Swizzle pattern information
     
@@ -77,9 +82,11 @@ public class TMStatusBar extends JPanel {
         p2.add(codecLabel);
 
         JPanel p3 = new JPanel();
-        p3.setLayout(new GridLayout(1, 2));
+        p3.setLayout(new GridLayout(1, 4));
         p3.add(modeLabel);
         p3.add(tilesLabel);
+        p3.add(cacheLabel);
+        p3.add(checksumLabel);
         
         // Only add tile size controls if parentUI is provided
         if (parentUI != null) {
@@ -344,6 +351,43 @@ public class TMStatusBar extends JPanel {
         tilesLabel.setText(" "+w+"x"+h+" tiles ");  // i18n
     }
 
+/**
+*
+* Sets the text that shows how well the decoded-tile cache is doing.
+*
+**/
+
+    public void setCacheStatistics(long hits, long misses) {
+        long total = hits + misses;
+        int ratio = (total == 0) ? 0 : (int)((hits * 100) / total);
+        cacheLabel.setText(" Cache: "+ratio+"% ");   // i18n
+        cacheLabel.setToolTipText(hits+" hits, "+misses+" misses");   // i18n
+    }
+
+/**
+*
+* Sets the text that indicates whether the checksum stored in the given
+* file is valid. It is blank unless the file listener detected for the file
+* keeps track of a checksum, in which case checking it is cheap.
+*
+**/
+
+    public void setChecksum(FileImage img) {
+        TMFileListener fl = img.getFileListener();
+        if ((fl == null) || !fl.hasChecksum() || img.isMapped()) {
+            checksumLabel.setText(" ");
+            checksumLabel.setForeground(cacheLabel.getForeground());
+        }
+        else if (fl.isChecksumValid(img.getContents())) {
+            checksumLabel.setText(" Checksum: OK "); // i18n
+            checksumLabel.setForeground(cacheLabel.getForeground());
+        }
+        else {
+            checksumLabel.setText(" Checksum: Bad "); // i18n
+            checksumLabel.setForeground(Color.red);
+        }
+    }
+
 /**
 *
 * Called when a view has been selected.
@@ -374,6 +418,9 @@ public class TMStatusBar extends JPanel {
         setPalOffset(view.getPalette().getOffset());
         setMode(view.getMode());
         setTiles(view.getCols(), view.getRows());
+        TileCache cache = TileCache.getSharedCache();
+        setCacheStatistics(cache.getHits(), cache.getMisses());
+        setChecksum(view.getFileImage());
         
         // Update block size spinners and label
         setBlockSize(view.getBlockWidth(), view.getBlockHeight());
@@ -35,6 +35,8 @@ import java.awt.event.*;
 import java.io.*;
 
 import javax.swing.border.*;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.plaf.ButtonUI;
 import javax.swing.plaf.ComponentUI;
@@ -109,6 +111,10 @@ public class TMUI extends JFrame {
 	private TMAddToTreeDialog addBookmarkDialog;
 	private TMAddToTreeDialog addPaletteDialog;
 	private TMOrganizeTreeDialog organizeBookmarksDialog;
+	private TMExportBookmarksDialog exportBookmarksDialog;
+	private TMSearchDialog searchDialog;
+	private TMScanResultsDialog scanResultsDialog;
+	private TMPaletteScanResultsDialog paletteScanResultsDialog;
 	private TMOrganizeTreeDialog organizePalettesDialog;
 	private TMNewPaletteDialog newPaletteDialog;
 	private TMPaletteSizeDialog paletteSizeDialog;
@@ -263,12 +269,18 @@ public class TMUI extends JFrame {
 	private JCheckBoxMenuItem blockGridMenuItem = new JCheckBoxMenuItem("Block Grid");
 	private JCheckBoxMenuItem tileGridMenuItem = new JCheckBoxMenuItem("Tile Grid");
 	private JCheckBoxMenuItem pixelGridMenuItem = new JCheckBoxMenuItem("Pixel Grid");
+	private JCheckBoxMenuItem duplicateTilesMenuItem = new JCheckBoxMenuItem("Duplicate Tiles");
+	private JCheckBoxMenuItem editAllCopiesMenuItem = new JCheckBoxMenuItem("Edit All Copies");
 	// Navigate menu
 	private JMenu navigateMenu = new JMenu("Navigate");
 	private JMenuItem goToMenuItem = new JMenuItem("Go To...");
 	private JMenuItem goToAgainMenuItem = new JMenuItem("Go To Again");
+	private JMenuItem searchMenuItem = new JMenuItem("Search...");
+	private JMenuItem scanForGraphicsMenuItem = new JMenuItem("Scan For Graphics...");
+	private JMenuItem nextOccurrenceMenuItem = new JMenuItem("Next Occurrence Of Tile");
 	private JMenuItem addToBookmarksMenuItem = new JMenuItem("Add To Bookmarks...");
 	private JMenuItem organizeBookmarksMenuItem = new JMenuItem("Organize Bookmarks...");
+	private JMenuItem exportBookmarksMenuItem = new JMenuItem("Export Bookmarks...");
 	// private JMenuItem saveBookmarksMenuItem = new JMenuItem("Save Bookmarks");
 	// Palette menu
 	private JMenu paletteMenu = new JMenu("Palette");
@@ -283,6 +295,7 @@ public class TMUI extends JFrame {
 	private JMenu importPaletteMenu = new JMenu("Import From");
 	private JMenuItem importInternalPaletteMenuItem = new JMenuItem("This File...");
 	private JMenuItem importExternalPaletteMenuItem = new JMenuItem("Another File...");
+	private JMenuItem scanForPalettesMenuItem = new JMenuItem("Scan For Palettes...");
 	private JMenuItem addToPalettesMenuItem = new JMenuItem("Add To Palettes...");
 	private JMenuItem organizePalettesMenuItem = new JMenuItem("Organize Palettes...");
 	// private JMenuItem savePalettesMenuItem = new JMenuItem("Save Palettes");
@@ -313,7 +326,6 @@ public class TMUI extends JFrame {
 	private Hashtable tileCodecButtonHashtable = new Hashtable();
 	private Hashtable colorCodecButtonHashtable = new Hashtable();
 	private Hashtable paletteButtonHashtable = new Hashtable();
-	private Hashtable fileListenerHashtable = new Hashtable();
 
 	private Xlator xl;
 
@@ -343,6 +355,9 @@ public class TMUI extends JFrame {
 		
 		locale = TileMolester.settings.getLocale();
 		lastPath = TileMolester.settings.getLastPath();
+		TMTileCanvas.setRenderThreads(TileMolester.settings.getRenderThreads());
+		TileCache.setSharedCacheSize(TileMolester.settings.getTileCacheSize());
+		TMPixelCanvas.setVolatileCacheEnabled(TileMolester.settings.getVolatileCanvasCache());
 		// create a translator
 		try {
 			xl = new Xlator("languages/language", locale);
@@ -430,12 +445,18 @@ public class TMUI extends JFrame {
 		blockGridMenuItem.setText(xlate("Block_Grid"));
 		tileGridMenuItem.setText(xlate("Tile_Grid"));
 		pixelGridMenuItem.setText(xlate("Pixel_Grid"));
+		duplicateTilesMenuItem.setText(xlate("Duplicate_Tiles"));
+		editAllCopiesMenuItem.setText(xlate("Edit_All_Copies"));
 		// Navigate menu
 		navigateMenu.setText(xlate("Navigate"));
 		goToMenuItem.setText(xlate("Go_To"));
 		goToAgainMenuItem.setText(xlate("Go_To_Again"));
+		searchMenuItem.setText(xlate("Search"));
+		scanForGraphicsMenuItem.setText(xlate("Scan_For_Graphics"));
+		nextOccurrenceMenuItem.setText(xlate("Next_Occurrence"));
 		addToBookmarksMenuItem.setText(xlate("Add_To_Bookmarks"));
 		organizeBookmarksMenuItem.setText(xlate("Organize_Bookmarks"));
+		exportBookmarksMenuItem.setText(xlate("Export_Bookmarks"));
 		// Palette menu
 		paletteMenu.setText(xlate("Palette"));
 		editColorsMenuItem.setText(xlate("Edit_Color"));
@@ -448,6 +469,7 @@ public class TMUI extends JFrame {
 		importPaletteMenu.setText(xlate("Import_From"));
 		importInternalPaletteMenuItem.setText(xlate("This_File"));
 		importExternalPaletteMenuItem.setText(xlate("Another_File"));
+		scanForPalettesMenuItem.setText(xlate("Scan_For_Palettes"));
 		addToPalettesMenuItem.setText(xlate("Add_To_Palettes"));
 		organizePalettesMenuItem.setText(xlate("Organize_Palettes"));
 		// Window menu
@@ -505,13 +527,13 @@ public class TMUI extends JFrame {
 		}
 
 		colorcodecs = TMSpecReader.getColorCodecs();
-		tilecodecs = TMSpecReader.getTileCodecs();
+		tilecodecs = TMSpecReader.getTileCodecSpecs();
 		filefilters = TMSpecReader.getFileFilters();
 		palettefilters = TMSpecReader.getPaletteFilters();
 		filelisteners = TMSpecReader.getFileListeners();
 
-		tilecodecs.add(new _3BPPLinearTileCodec());
-		tilecodecs.add(new _6BPPLinearTileCodec());
+		tilecodecs.add(new TileCodecSpec(new _3BPPLinearTileCodec()));
+		tilecodecs.add(new TileCodecSpec(new _6BPPLinearTileCodec()));
 		//////////
 
 		// create dialogs.
@@ -525,6 +547,10 @@ public class TMUI extends JFrame {
 		addBookmarkDialog = new TMAddToTreeDialog(this, "Add_To_Bookmarks_Dialog_Title", xl);
 		addPaletteDialog = new TMAddToTreeDialog(this, "Add_To_Palettes_Dialog_Title", xl);
 		organizeBookmarksDialog = new TMOrganizeTreeDialog(this, "Organize_Bookmarks_Dialog_Title", xl);
+		exportBookmarksDialog = new TMExportBookmarksDialog(this, xl);
+		searchDialog = new TMSearchDialog(this, xl);
+		scanResultsDialog = new TMScanResultsDialog(this, xl);
+		paletteScanResultsDialog = new TMPaletteScanResultsDialog(this, xl);
 		organizePalettesDialog = new TMOrganizeTreeDialog(this, "Organize_Palettes_Dialog_Title", xl);
 		newPaletteDialog = new TMNewPaletteDialog(this, xl);
 		paletteSizeDialog = new TMPaletteSizeDialog(this, xl);
@@ -1335,6 +1361,17 @@ public class TMUI extends JFrame {
 					}
 				});
 		editMenu.add(pasteFromMenuItem);
+		//
+		editMenu.addSeparator();
+		// Edit All Copies
+		editAllCopiesMenuItem.setMnemonic(KeyEvent.VK_E);
+		editAllCopiesMenuItem.addActionListener(
+				new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						doEditAllCopiesCommand();
+					}
+				});
+		editMenu.add(editAllCopiesMenuItem);
 
 		menuBar.add(editMenu);
 		// View menu
@@ -1596,6 +1633,15 @@ public class TMUI extends JFrame {
 					}
 				});
 		viewMenu.add(pixelGridMenuItem);
+		// Duplicate Tiles
+		duplicateTilesMenuItem.setMnemonic(KeyEvent.VK_D);
+		duplicateTilesMenuItem.addActionListener(
+				new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						doDuplicateTilesCommand();
+					}
+				});
+		viewMenu.add(duplicateTilesMenuItem);
 		//
 		viewMenu.addSeparator();
 		// Statusbar
@@ -1759,6 +1805,35 @@ public class TMUI extends JFrame {
 					}
 				});
 		navigateMenu.add(goToAgainMenuItem);
+		// Search
+		searchMenuItem.setMnemonic(KeyEvent.VK_R);
+		searchMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F, Event.CTRL_MASK));
+		searchMenuItem.addActionListener(
+				new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						doSearchCommand();
+					}
+				});
+		navigateMenu.add(searchMenuItem);
+		// Scan For Graphics
+		scanForGraphicsMenuItem.setMnemonic(KeyEvent.VK_S);
+		scanForGraphicsMenuItem.addActionListener(
+				new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						doScanForGraphicsCommand();
+					}
+				});
+		navigateMenu.add(scanForGraphicsMenuItem);
+		// Next Occurrence Of Tile
+		nextOccurrenceMenuItem.setMnemonic(KeyEvent.VK_N);
+		nextOccurrenceMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F6, 0));
+		nextOccurrenceMenuItem.addActionListener(
+				new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						doNextOccurrenceCommand();
+					}
+				});
+		navigateMenu.add(nextOccurrenceMenuItem);
 		//
 		navigateMenu.addSeparator();
 		// Add To Bookmarks
@@ -1779,6 +1854,15 @@ public class TMUI extends JFrame {
 					}
 				});
 		navigateMenu.add(organizeBookmarksMenuItem);
+		// Export Bookmarks
+		exportBookmarksMenuItem.setMnemonic(KeyEvent.VK_E);
+		exportBookmarksMenuItem.addActionListener(
+				new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						doExportBookmarksCommand();
+					}
+				});
+		navigateMenu.add(exportBookmarksMenuItem);
 		//
 		menuBar.add(navigateMenu);
 		// Palette menu
@@ -1862,6 +1946,15 @@ public class TMUI extends JFrame {
 				});
 		importPaletteMenu.add(importExternalPaletteMenuItem);
 		paletteMenu.add(importPaletteMenu);
+		// Scan For Palettes...
+		scanForPalettesMenuItem.setMnemonic(KeyEvent.VK_C);
+		scanForPalettesMenuItem.addActionListener(
+				new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						doScanForPalettesCommand();
+					}
+				});
+		paletteMenu.add(scanForPalettesMenuItem);
 		//
 		paletteMenu.addSeparator();
 		// Add To Palettes...
@@ -1969,7 +2062,7 @@ public class TMUI extends JFrame {
 			FileImage img = new FileImage(newFileDialog.getFileSize());
 			new TMFileResources(img, this);
 			// create view for it
-			TileCodec tc = (TileCodec) tilecodecs.get(0); // default
+			TileCodec tc = ((TileCodecSpec) tilecodecs.get(0)).getCodec(); // default
 			TMPalette pal = new TMPalette("PAL000", TMPalette.defaultPalette, getColorCodecByID("CF01"),
 					ColorCodec.LITTLE_ENDIAN, true);
 			addViewToDesktop(createView(img, tc, pal, TileCodec.MODE_1D));
@@ -2035,8 +2128,6 @@ public class TMUI extends JFrame {
 						return; // return to program without saving and/or closing
 					}
 				}
-				// remove potential file listener
-				fileListenerHashtable.remove(img.getContents());
 			}
 
 			// update recent files
@@ -2085,10 +2176,8 @@ public class TMUI extends JFrame {
 			if (!res.exists()) {
 				res.mkdir();
 			}
-			FileWriter fw = new FileWriter(resourceFile);
-			if(img.getResources() != null) {
-				fw.write(img.getResources().toXML());
-				fw.close();
+			if (img.getResources() != null) {
+				img.getResources().save(resourceFile);
 			}
 		} catch (Exception e) {
 			JOptionPane.showMessageDialog(this,
@@ -2136,8 +2225,6 @@ public class TMUI extends JFrame {
 						return;
 					}
 				}
-				// remove potential file listener
-				fileListenerHashtable.remove(img.getContents());
 			}
 		}
 
@@ -2190,9 +2277,33 @@ public class TMUI extends JFrame {
 							JOptionPane.ERROR_MESSAGE);
 				} else {
 					FileSaverThread thread = null;
-					byte[] contents = img.getContents();
+					byte[] contents = img.isMapped() ? null : img.getContents();
+
+					// see if a filelistener should be notified
+					// (the filelistener of a mapped file doesn't need to see the contents)
+					TMFileListener fl = img.getFileListener();
+					int[] saving = new int[0];
+					if ((fl != null) && (contents != null)) {
+						fl.fileSaving(contents, ext);
+						saving = fl.getSavingRanges(ext);
+					}
+
+					// write only what changed, including the bytes the filelistener
+					// changed, unless it transforms or may have modified the whole buffer
+					int[] ranges = null;
+					if (((fl == null) || !fl.transformsFile(ext)) && (saving != null)) {
+						for (int i = 0; i < saving.length; i += 2) {
+							img.markDirty(saving[i], saving[i + 1]);
+						}
+						ranges = img.getDirtyRanges();
+					}
 					try {
-						thread = new FileSaverThread(contents, file);
+						if (img.isMapped()) {
+							thread = new FileSaverThread(img.getMappedBuffer(), file, ranges);
+						} else {
+							thread = new FileSaverThread(contents, file, ranges);
+						}
+						thread.setFileListener(fl, ext);
 					} catch (Exception e) {
 						JOptionPane.showMessageDialog(this,
 								xlate("File_Save_Error") + "\n" + e.getMessage(),
@@ -2201,20 +2312,24 @@ public class TMUI extends JFrame {
 						return;
 					}
 
-					// see if a filelistener should be notified
-					TMFileListener fl = (TMFileListener) fileListenerHashtable.get(contents);
-					if (fl != null) {
-						fl.fileSaving(contents, ext);
-					}
-
 					// save it!
 					new ProgressDialog(this, thread);
-					img.setModified(false);
-					setSaveButtonsEnabled(false);
+					try {
+						thread.join();
+					} catch (InterruptedException e) {
+					}
 
-					if (fl != null) {
-						fl.fileLoaded(contents, ext);
+					if (thread.getError() != null) {
+						JOptionPane.showMessageDialog(this,
+								xlate("File_Save_Error") + "\n" + thread.getError().getMessage(),
+								"Tile Molester",
+								JOptionPane.ERROR_MESSAGE);
+						return;
 					}
+					img.setModified(false);
+					img.clearDirtyRanges();
+					setSaveButtonsEnabled(false);
+					statusBar.setChecksum(img);
 				}
 			} else {
 				doSaveAsCommand();
@@ -2278,6 +2393,7 @@ public class TMUI extends JFrame {
 		// if all frames were closed, the operation was successful and we can exit.
 		if (desktop.getAllFrames().length == 0) {
 			TileMolester.settings.saveSettings();
+			ResourceCache.awaitWrites();    // finish writing resource files
 			System.exit(0);
 		}
 	}
@@ -2424,6 +2540,21 @@ public class TMUI extends JFrame {
 		}
 	}
 
+	/**
+	 *
+	 * Handles menu command "Search...".
+	 * Shows the (non-modal) dialog where the file can be searched for hex,
+	 * text or relative patterns, or for the selected tile.
+	 *
+	 **/
+
+	public void doSearchCommand() {
+		TMView view = getSelectedView();
+		if (view != null) {
+			searchDialog.showDialog();
+		}
+	}
+
 	/**
 	 *
 	 * Handles menu command "Select All".
@@ -2478,10 +2609,21 @@ public class TMUI extends JFrame {
 			int retVal = bitmapOpenChooser.showOpenDialog(this);
 			if (retVal == JFileChooser.APPROVE_OPTION) {
 				File file = bitmapOpenChooser.getSelectedFile();
+				// dither to (or derive) the colors the view can use
+				TMPalette palette = null;
+				int colorCount = 0;
+				TileCodec codec = view.getTileCodec();
+				if ((codec.getBitsPerPixel() <= 8) && (view.getPalette() != null)) {
+					palette = view.getPalette();
+					colorCount = codec.getColorCount();
+				}
+				boolean derivePalette = (palette != null) && TileMolester.settings.getImportPalette();
 				// paste it
 				TMTileCanvas bitmapCanvas = null;
 				try {
-					bitmapCanvas = TMBitmapImporter.loadTileCanvasFromFile(file);
+					bitmapCanvas = TMBitmapImporter.loadTileCanvasFromFile(file, palette,
+							view.getPalIndex() * colorCount, colorCount,
+							TileMolester.settings.getImportDither(), derivePalette);
 				} catch (Exception e) {
 					JOptionPane.showMessageDialog(this,
 							xlate("Load_Bitmap_Error") + "\n" + e.getMessage(),
@@ -2493,6 +2635,12 @@ public class TMUI extends JFrame {
 						this, bitmapCanvas, 0, 0,
 						bitmapCanvas.getCols(),
 						bitmapCanvas.getRows());
+				if (derivePalette) {
+					// show the tiles (and the palette) in the new colors
+					view.getEditorCanvas().unpackPixels();
+					view.getEditorCanvas().redraw();
+					refreshPalettePane();
+				}
 				view.getEditorCanvas().paste(selCanvas);
 			}
 		}
@@ -2717,6 +2865,42 @@ public class TMUI extends JFrame {
 		}
 	}
 
+	/**
+	 *
+	 * Handles menu command "Duplicate Tiles".
+	 * Tiles whose data occurs elsewhere in the file are shaded. The tiles of
+	 * the file are indexed in the background the first time, and again when
+	 * the codec or the alignment of the offset changes.
+	 *
+	 **/
+
+	public void doDuplicateTilesCommand() {
+		TMView view = getSelectedView();
+		if (view != null) {
+			view.setDuplicateTilesVisible(!view.isDuplicateTilesVisible());
+			duplicateTilesMenuItem.setSelected(view.isDuplicateTilesVisible());
+			view.repaint();
+		}
+	}
+
+	/**
+	 *
+	 * Handles menu command "Edit All Copies".
+	 * When on, drawing on a tile also writes its new data to the other
+	 * places in the file where the tile's old data occurs (in 1-dimensional
+	 * mode, once the tiles of the file have been indexed). The copies are
+	 * undone together with the tile.
+	 *
+	 **/
+
+	public void doEditAllCopiesCommand() {
+		TMView view = getSelectedView();
+		if (view != null) {
+			view.setEditAllCopies(!view.getEditAllCopies());
+			editAllCopiesMenuItem.setSelected(view.getEditAllCopies());
+		}
+	}
+
 	/**
 	 *
 	 * Handles menu command "Statusbar".
@@ -3266,7 +3450,7 @@ public class TMUI extends JFrame {
 				// int endianness = customCodecDialog.getEndianness();
 				String desc = customCodecDialog.getDescription();
 				DirectColorTileCodec codec = new DirectColorTileCodec("", bpp, rmask, gmask, bmask, amask, desc);
-				addTileCodec(codec);
+				addTileCodec(new TileCodecSpec(codec));
 				view.setTileCodec(codec);
 			}
 		}
@@ -3381,6 +3565,143 @@ public class TMUI extends JFrame {
 		}
 	}
 
+	/**
+	 *
+	 * Handles the menu command "Scan For Graphics".
+	 * The file is scanned with every tile codec in the background, and the
+	 * candidates the user picks from the results are added as bookmarks.
+	 *
+	 **/
+
+	public void doScanForGraphicsCommand() {
+		TMView view = getSelectedView();
+		if (view != null) {
+			TileCodec[] codecs = new TileCodec[tilecodecs.size()];
+			for (int i = 0; i < codecs.length; i++) {
+				codecs[i] = ((TileCodecSpec) tilecodecs.get(i)).getCodec();
+			}
+			GraphicsScanner scanner = new GraphicsScanner(view.getFileImage(), codecs,
+					TMTileCanvas.getRenderThreads());
+			GraphicsScanThread thread = new GraphicsScanThread(scanner);
+			new ProgressDialog(this, thread);
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+			}
+			GraphicsScanner.Candidate[] candidates = thread.getCandidates();
+			if (candidates.length == 0) {
+				JOptionPane.showMessageDialog(this,
+						xlate("No_Graphics_Found"),
+						"Tile Molester",
+						JOptionPane.INFORMATION_MESSAGE);
+				return;
+			}
+			int retVal = scanResultsDialog.showDialog(candidates);
+			if (retVal == JOptionPane.OK_OPTION) {
+				FolderNode folder = new FolderNode(xlate("Scan_Results_Folder"));
+				GraphicsScanner.Candidate[] selected = scanResultsDialog.getSelectedCandidates();
+				for (int i = 0; i < selected.length; i++) {
+					GraphicsScanner.Candidate c = selected[i];
+					folder.add(new BookmarkItemNode(c.getOffset(), 16, 16, 16, 16, false, true,
+							c.getMode(), 0, c.getCodec(), TileCodec.SWIZZLE_NONE,
+							scanResultsDialog.describe(c)));
+				}
+				view.getFileImage().getResources().getBookmarksRoot().add(folder);
+				refreshBookmarksMenu();
+			}
+		}
+	}
+
+	/**
+	 *
+	 * Handles the menu command "Next Occurrence Of Tile".
+	 * Scrolls to the next place in the file (wrapping around) where the data
+	 * of the tile under the mouse cursor occurs, so that it shows up at the
+	 * same position in the grid.
+	 *
+	 **/
+
+	public void doNextOccurrenceCommand() {
+		TMView view = getSelectedView();
+		if (view != null) {
+			TMEditorCanvas ec = view.getEditorCanvas();
+			TileIndex index = ec.getTileIndex();
+			if (index == null) {
+				JOptionPane.showMessageDialog(this,
+						xlate("Tile_Index_Unavailable"),
+						"Tile Molester",
+						JOptionPane.INFORMATION_MESSAGE);
+				return;
+			}
+			if (!index.isReady()) {
+				JOptionPane.showMessageDialog(this,
+						xlate("Tile_Index_Building"),
+						"Tile Molester",
+						JOptionPane.INFORMATION_MESSAGE);
+				return;
+			}
+			int ofs = ec.getTileOffset(ec.getCurrentCol(), ec.getCurrentRow());
+			int[] occurrences = index.getOccurrences(ofs);
+			if (occurrences.length < 2) {
+				JOptionPane.showMessageDialog(this,
+						xlate("No_Other_Occurrences"),
+						"Tile Molester",
+						JOptionPane.INFORMATION_MESSAGE);
+				return;
+			}
+			int next = occurrences[0];
+			for (int i = 0; i < occurrences.length; i++) {
+				if (occurrences[i] > ofs) {
+					next = occurrences[i];
+					break;
+				}
+			}
+			// keep the tile at the same grid position, if the view can scroll that far
+			int newOffset = next - (ofs - view.getOffset());
+			if ((newOffset < view.getMinOffset()) || (newOffset > view.getMaxOffset())) {
+				newOffset = next;
+			}
+			view.setAbsoluteOffset(newOffset);
+		}
+	}
+
+	/**
+	 *
+	 * Handles the menu command "Export Bookmarks".
+	 * The bookmarks in the chosen folder and its subfolders are rendered with
+	 * the view's palette and saved as image files in the background.
+	 *
+	 **/
+
+	public void doExportBookmarksCommand() {
+		TMView view = getSelectedView();
+		if (view != null) {
+			int retVal = exportBookmarksDialog.showDialog(view.getFileImage().getResources().getBookmarksRoot());
+			if (retVal == JOptionPane.OK_OPTION) {
+				BookmarkExportThread thread = new BookmarkExportThread(view.getFileImage(),
+						exportBookmarksDialog.getFolder(), view.getPalette(),
+						exportBookmarksDialog.getDirectory(), exportBookmarksDialog.getFormat(),
+						Runtime.getRuntime().availableProcessors());
+				new ProgressDialog(this, thread);
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+				}
+				if (thread.getError() != null) {
+					JOptionPane.showMessageDialog(this,
+							xlate("Export_Bookmarks_Error") + "\n" + thread.getError().getMessage(),
+							"Tile Molester",
+							JOptionPane.ERROR_MESSAGE);
+				} else {
+					JOptionPane.showMessageDialog(this,
+							xlate("Bookmarks_Exported") + " " + thread.getExportedCount(),
+							"Tile Molester",
+							JOptionPane.INFORMATION_MESSAGE);
+				}
+			}
+		}
+	}
+
 	/**
 	 *
 	 * Handles the menu command "Organize Bookmarks".
@@ -3560,8 +3881,7 @@ public class TMUI extends JFrame {
 				boolean copy = importInternalPaletteDialog.getCopy();
 
 				// create the palette
-				byte[] data = view.getFileImage().getContents();
-				TMPalette palette = new TMPalette("ID", data, offset, size, codec, endianness, copy, false);
+				TMPalette palette = new TMPalette("ID", view.getFileImage(), offset, size, codec, endianness, copy, false);
 
 				// set the new palette
 				view.setPalette(palette);
@@ -3571,6 +3891,58 @@ public class TMUI extends JFrame {
 		}
 	}
 
+	/**
+	 *
+	 * Handles the menu command "Scan For Palettes".
+	 * The file is scanned with every direct color codec in the background,
+	 * and the candidates the user picks from the results are added as
+	 * palettes.
+	 *
+	 **/
+
+	public void doScanForPalettesCommand() {
+		TMView view = getSelectedView();
+		if (view != null) {
+			Vector direct = new Vector();
+			for (int i = 0; i < colorcodecs.size(); i++) {
+				if (colorcodecs.get(i) instanceof DirectColorCodec) {
+					direct.add(colorcodecs.get(i));
+				}
+			}
+			DirectColorCodec[] codecs = new DirectColorCodec[direct.size()];
+			direct.toArray(codecs);
+			PaletteScanner scanner = new PaletteScanner(view.getFileImage(), codecs,
+					TMTileCanvas.getRenderThreads());
+			PaletteScanThread thread = new PaletteScanThread(scanner);
+			new ProgressDialog(this, thread);
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+			}
+			PaletteScanner.Candidate[] candidates = thread.getCandidates();
+			if (candidates.length == 0) {
+				JOptionPane.showMessageDialog(this,
+						xlate("No_Palettes_Found"),
+						"Tile Molester",
+						JOptionPane.INFORMATION_MESSAGE);
+				return;
+			}
+			int retVal = paletteScanResultsDialog.showDialog(candidates);
+			if (retVal == JOptionPane.OK_OPTION) {
+				FolderNode folder = new FolderNode(xlate("Palette_Scan_Results_Folder"));
+				PaletteScanner.Candidate[] selected = paletteScanResultsDialog.getSelectedCandidates();
+				for (int i = 0; i < selected.length; i++) {
+					PaletteScanner.Candidate c = selected[i];
+					TMPalette palette = new TMPalette("ID", view.getFileImage(), c.getOffset(), c.getSize(),
+							c.getCodec(), c.getEndianness(), false, false);
+					folder.add(new PaletteItemNode(palette, paletteScanResultsDialog.describe(c)));
+				}
+				view.getFileImage().getResources().getPalettesRoot().add(folder);
+				refreshPalettesMenu();
+			}
+		}
+	}
+
 	/**
 	 *
 	 * Handles the menu command "Import Palette From Another File".
@@ -3741,6 +4113,10 @@ public class TMUI extends JFrame {
 		img.setModified(true);
 		setSaveButtonsEnabled(true);
 		saveAllMenuItem.setEnabled(true);
+		TMView view = getSelectedView();
+		if ((view != null) && (view.getFileImage() == img)) {
+			statusBar.setChecksum(img);
+		}
 	}
 
 	/**
@@ -3889,11 +4265,11 @@ public class TMUI extends JFrame {
 	 *
 	 **/
 
-	public void addTileCodec(TileCodec codec) {
-		TileCodecMenuItem codecMenuItem = new TileCodecMenuItem(codec);
+	public void addTileCodec(TileCodecSpec spec) {
+		TileCodecMenuItem codecMenuItem = new TileCodecMenuItem(spec);
 		tileCodecMenu.add(codecMenuItem);
 		tileCodecButtonGroup.add(codecMenuItem);
-		tileCodecButtonHashtable.put(codec, codecMenuItem);
+		tileCodecButtonHashtable.put(spec, codecMenuItem);
 	}
 
 	/**
@@ -3904,12 +4280,12 @@ public class TMUI extends JFrame {
 
 	private class TileCodecMenuItem extends JRadioButtonMenuItem {
 
-		private TileCodec codec;
+		private TileCodecSpec spec;
 
 		// Creates a TileCodecMenuItem for the given codec.
-		public TileCodecMenuItem(TileCodec codec) {
-			super(codec.getDescription()); // use description as button text
-			this.codec = codec;
+		public TileCodecMenuItem(TileCodecSpec spec) {
+			super(spec.getDescription()); // use description as button text
+			this.spec = spec;
 			// TODO: setToolTipText(exampleFormats)
 			addActionListener(
 					new ActionListener() {
@@ -3927,7 +4303,7 @@ public class TMUI extends JFrame {
 		 **/
 
 		public TileCodec getCodec() {
-			return codec;
+			return spec.getCodec();
 		}
 
 	}
@@ -3940,11 +4316,11 @@ public class TMUI extends JFrame {
 	 **/
 
 	public TileCodec getTileCodecSuccessor(TileCodec codec) {
-		int i = tilecodecs.indexOf(codec);
+		int i = indexOfTileCodec(codec);
 		if (i == tilecodecs.size() - 1) {
-			return (TileCodec) tilecodecs.get(0);
+			return ((TileCodecSpec) tilecodecs.get(0)).getCodec();
 		} else {
-			return (TileCodec) tilecodecs.get(i + 1);
+			return ((TileCodecSpec) tilecodecs.get(i + 1)).getCodec();
 		}
 	}
 
@@ -3956,12 +4332,28 @@ public class TMUI extends JFrame {
 	 **/
 
 	public TileCodec getTileCodecPredecessor(TileCodec codec) {
-		int i = tilecodecs.indexOf(codec);
+		int i = indexOfTileCodec(codec);
 		if (i == 0) {
-			return (TileCodec) tilecodecs.get(tilecodecs.size() - 1);
+			return ((TileCodecSpec) tilecodecs.get(tilecodecs.size() - 1)).getCodec();
 		} else {
-			return (TileCodec) tilecodecs.get(i - 1);
+			return ((TileCodecSpec) tilecodecs.get(i - 1)).getCodec();
+		}
+	}
+
+	/**
+	 *
+	 * Gets the position of the given codec in the global list of codecs,
+	 * or -1 if it isn't in the list.
+	 *
+	 **/
+
+	private int indexOfTileCodec(TileCodec codec) {
+		for (int i = 0; i < tilecodecs.size(); i++) {
+			if (((TileCodecSpec) tilecodecs.get(i)).holds(codec)) {
+				return i;
+			}
 		}
+		return -1;
 	}
 
 	/**
@@ -4183,7 +4575,7 @@ public class TMUI extends JFrame {
 		tileCodecMenu.setMnemonic(KeyEvent.VK_C);
 		tileCodecMenu.removeAll();
 		for (int i = 0; i < tilecodecs.size(); i++) {
-			addTileCodec((TileCodec) tilecodecs.get(i));
+			addTileCodec((TileCodecSpec) tilecodecs.get(i));
 		}
 
 	}
@@ -4316,15 +4708,15 @@ public class TMUI extends JFrame {
 	/**
 	 *
 	 * Gets the tile codec that has the specified ID, or null if no such codec
-	 * exists.
+	 * exists. The codec is created if this is the first time it's used.
 	 *
 	 **/
 
 	public TileCodec getTileCodecByID(String codecID) {
 		for (int i = 0; i < tilecodecs.size(); i++) {
-			TileCodec tc = (TileCodec) tilecodecs.get(i);
+			TileCodecSpec tc = (TileCodecSpec) tilecodecs.get(i);
 			if (tc.getID().equals(codecID)) {
-				return tc;
+				return tc.getCodec();
 			}
 		}
 		return null;
@@ -4390,8 +4782,8 @@ public class TMUI extends JFrame {
 
 	private void buildBookmarksMenu(FolderNode root) {
 		// remove old bookmark menuitems, if any
-		while (navigateMenu.getItemCount() > 5) {
-			navigateMenu.remove(5);
+		while (navigateMenu.getItemCount() > 9) {
+			navigateMenu.remove(9);
 		}
 
 		TMTreeNode[] children = root.getChildren();
@@ -4408,28 +4800,43 @@ public class TMUI extends JFrame {
 
 	/**
 	 *
-	 * Recursive routine that adds the given node to the given menu.
-	 * If the node is internal it is expanded into a menu of its own.
+	 * Adds the given node to the given menu.
+	 * If the node is internal it is expanded into a menu of its own, which is
+	 * filled in when it is first opened, so that folders of bookmarks that are
+	 * never looked at don't have to be loaded (see FolderNode.setLazy()).
 	 *
 	 **/
 
-	public void addToBookmarksMenu(TMTreeNode node, JMenu menu) {
+	public void addToBookmarksMenu(final TMTreeNode node, JMenu menu) {
 		if (node instanceof BookmarkItemNode) {
 			menu.add(new BookmarkMenuItem((BookmarkItemNode) node));
 		} else {
 			// folder
 			JMenu subMenu = new JMenu(node.toString());
-			TMTreeNode[] children = node.getChildren();
-			if (children.length == 0) {
+			if (node.getChildCount() == 0) {
 				// no bookmarks exist in this folder
 				JMenuItem emptyItem = new JMenuItem("(" + xlate("Empty") + ")");
 				emptyItem.setEnabled(false);
 				subMenu.add(emptyItem);
 			} else {
-				// add all the child bookmarks/folders
-				for (int i = 0; i < children.length; i++) {
-					addToBookmarksMenu(children[i], subMenu);
-				}
+				subMenu.addMenuListener(new MenuListener() {
+					public void menuSelected(MenuEvent e) {
+						JMenu subMenu = (JMenu) e.getSource();
+						if (subMenu.getMenuComponentCount() == 0) {
+							// add all the child bookmarks/folders
+							TMTreeNode[] children = node.getChildren();
+							for (int i = 0; i < children.length; i++) {
+								addToBookmarksMenu(children[i], subMenu);
+							}
+						}
+					}
+
+					public void menuDeselected(MenuEvent e) {
+					}
+
+					public void menuCanceled(MenuEvent e) {
+					}
+				});
 			}
 			menu.add(subMenu);
 		}
@@ -4472,8 +4879,8 @@ public class TMUI extends JFrame {
 
 	private void buildPalettesMenu(FolderNode root) {
 		// remove old palette menuitems, if any
-		while (paletteMenu.getItemCount() > 10) {
-			paletteMenu.remove(10);
+		while (paletteMenu.getItemCount() > 11) {
+			paletteMenu.remove(11);
 		}
 
 		paletteButtonHashtable.clear();
@@ -4570,6 +4977,8 @@ public class TMUI extends JFrame {
 		blockGridMenuItem.setSelected(ec.isBlockGridVisible());
 		tileGridMenuItem.setSelected(ec.isTileGridVisible());
 		pixelGridMenuItem.setSelected(ec.isPixelGridVisible());
+		duplicateTilesMenuItem.setSelected(ec.isDuplicateTilesVisible());
+		editAllCopiesMenuItem.setSelected(ec.getEditAllCopies());
 		rowInterleaveBlocksMenuItem.setSelected(ec.getRowInterleaveBlocks());
 		updateSwizzleMenuSelection(ec.getSwizzlePattern());
 
@@ -4617,7 +5026,14 @@ public class TMUI extends JFrame {
 	 **/
 
 	public void refreshTileCodecSelection(TMView view) {
-		((TileCodecMenuItem) tileCodecButtonHashtable.get(view.getTileCodec())).setSelected(true);
+		Enumeration specs = tileCodecButtonHashtable.keys();
+		while (specs.hasMoreElements()) {
+			TileCodecSpec spec = (TileCodecSpec) specs.nextElement();
+			if (spec.holds(view.getTileCodec())) {
+				((TileCodecMenuItem) tileCodecButtonHashtable.get(spec)).setSelected(true);
+				return;
+			}
+		}
 	}
 
 	/**
@@ -4763,11 +5179,73 @@ public class TMUI extends JFrame {
 	 **/
 
 	public void openFile(File file) {
+		// see if a filelistener should receive notification
+		String ext = TMFileFilter.getExtension(file);
+		TMFileListener listener = null;
+		byte[] header = null;
+		try {
+			header = TMFileListener.readHeader(file);
+		} catch (Exception e) {
+			JOptionPane.showMessageDialog(this,
+					xlate("Load_File_Error") + "\n" + e.getMessage(),
+					"Tile Molester",
+					JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		for (int i = 0; i < filelisteners.size(); i++) {
+			TMFileListener fl = (TMFileListener) filelisteners.get(i);
+			boolean detected = false;
+			try {
+				detected = fl.doFormatDetect(header, file.length(), ext);
+			} catch (IndexOutOfBoundsException e) {
+				// too short to be in this format
+			}
+			if (detected) {
+				listener = fl.newInstance();
+				break;
+			}
+		}
+
+		if ((file.length() >= TileMolester.settings.getMappedFileThreshold())
+				&& ((listener == null) || !listener.needsContents(ext))) {
+			// large file: map it instead of reading it into the heap.
+			// If a filelistener transforms the data, the result is streamed to a
+			// temporary file, which is mapped instead. Files whose filelistener
+			// has to see the contents (to fix a header or checksum) are read
+			// into the heap whatever their size.
+			MappedFileBuffer mapped = null;
+			try {
+				if ((listener != null) && listener.transformsFile(ext)) {
+					File tempFile = File.createTempFile("tm", ".tmp");
+					tempFile.deleteOnExit();
+					FileLoaderThread thread = new FileLoaderThread(file, listener, ext, tempFile);
+					new ProgressDialog(this, thread);
+					thread.join();
+					if (thread.getError() != null) {
+						tempFile.delete();
+						throw thread.getError();
+					}
+					mapped = new MappedFileBuffer(tempFile, true);
+				} else {
+					mapped = new MappedFileBuffer(file);
+				}
+			} catch (Exception e) {
+				JOptionPane.showMessageDialog(this,
+						xlate("Load_File_Error") + "\n" + e.getMessage(),
+						"Tile Molester",
+						JOptionPane.ERROR_MESSAGE);
+				return;
+			}
+			FileImage img = new FileImage(file, mapped);
+			img.setFileListener(listener);
+			openFileImage(img);
+			return;
+		}
 		System.gc();
 		// read file
 		FileLoaderThread thread = null;
 		try {
-			thread = new FileLoaderThread(file);
+			thread = new FileLoaderThread(file, listener, ext);
 		} catch (OutOfMemoryError e) {
 			JOptionPane.showMessageDialog(this,
 					xlate("Out_Of_Memory") + "\n" + file.length() + " bytes needed to load file.", // i18n
@@ -4781,22 +5259,44 @@ public class TMUI extends JFrame {
 					JOptionPane.ERROR_MESSAGE);
 			return;
 		}
-		ProgressDialog dialog = new ProgressDialog(this, thread);
+		new ProgressDialog(this, thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+		}
+		if (thread.getError() != null) {
+			JOptionPane.showMessageDialog(this,
+					xlate("Load_File_Error") + "\n" + thread.getError().getMessage(),
+					"Tile Molester",
+					JOptionPane.ERROR_MESSAGE);
+			return;
+		}
 		byte[] contents = thread.getContents();
 
-		// see if a filelistener should receive notification
-		String ext = TMFileFilter.getExtension(file);
-		for (int i = 0; i < filelisteners.size(); i++) {
-			TMFileListener fl = (TMFileListener) filelisteners.get(i);
-			if (fl.doFormatDetect(contents, ext)) {
-				fileListenerHashtable.put(contents, fl);
-				fl.fileLoaded(contents, ext);
-				break;
+		if (listener != null) {
+			listener.fileLoaded(contents, ext);
+			if (listener.hasChecksum()) {
+				listener.checksumInit(contents);
 			}
 		}
 
-		// create fileimage
 		FileImage img = new FileImage(file, contents);
+		img.setFileListener(listener);
+		openFileImage(img);
+
+		thread.killContentsRef();
+		thread = null;
+		System.gc();
+	}
+
+	/**
+	 *
+	 * Creates the resources and a default view for a freshly opened FileImage.
+	 *
+	 **/
+
+	private void openFileImage(FileImage img) {
+		File file = img.getFile();
 		// create resources for it
 		File resourceFile = TMFileResources.getResourceFileFor(file);
 		if (resourceFile.exists() && resourceFile.length() > 0) {
@@ -4845,10 +5345,6 @@ public class TMUI extends JFrame {
 				break;
 			}
 		}
-
-		thread.killContentsRef();
-		thread = null;
-		System.gc();
 	}
 
 	/**
@@ -20,6 +20,7 @@ package tm.ui;
 
 import tm.FileImage;
 import tm.TMPalette;
+import tm.TileMolester;
 import tm.treenodes.*;
 import tm.reversibleaction.*;
 import tm.canvases.TMEditorCanvas;
@@ -458,8 +459,7 @@ public class TMView extends JInternalFrame {
 			absOfs = maxOffset; // upper boundary
 		}
 		slider.setValue(absOfs);
-		editorCanvas.setOffset(absOfs);
-		editorCanvas.unpackPixels();
+		editorCanvas.scrollTo(absOfs);
 		editorCanvas.repaint();
 
 		// Update statusbar
@@ -555,6 +555,46 @@ public class TMView extends JInternalFrame {
 		editorCanvas.setPixelGridVisible(showPixelGrid);
 	}
 
+	/**
+	 *
+	 * Turns highlighting of duplicate tiles on or off.
+	 *
+	 **/
+
+	public void setDuplicateTilesVisible(boolean showDuplicateTiles) {
+		editorCanvas.setDuplicateTilesVisible(showDuplicateTiles);
+	}
+
+	/**
+	 *
+	 * Gets whether duplicate tiles are highlighted.
+	 *
+	 **/
+
+	public boolean isDuplicateTilesVisible() {
+		return editorCanvas.isDuplicateTilesVisible();
+	}
+
+	/**
+	 *
+	 * Sets whether drawing on a tile also changes its copies in the file.
+	 *
+	 **/
+
+	public void setEditAllCopies(boolean editAllCopies) {
+		editorCanvas.setEditAllCopies(editAllCopies);
+	}
+
+	/**
+	 *
+	 * Gets whether drawing on a tile also changes its copies in the file.
+	 *
+	 **/
+
+	public boolean getEditAllCopies() {
+		return editorCanvas.getEditAllCopies();
+	}
+
 	/**
 	 *
 	 * Gets the visibility status of the block grid.
@@ -770,15 +810,31 @@ public class TMView extends JInternalFrame {
 	 **/
 
 	public void addReversibleAction(ReversibleAction ra) {
-		if (undoableActions.size() > 32) {
-			undoableActions.remove(0);
-		}
 		undoableActions.add(ra);
 		redoableActions.clear();
+		trimUndoableActions();
 		ui.fileImageModified(getFileImage());
 		ui.refreshUndoRedo();
 	}
 
+	/**
+	 *
+	 * Drops the oldest undoable actions until the rest fit in the memory
+	 * budget set in the settings. The latest action is always kept.
+	 *
+	 **/
+
+	private void trimUndoableActions() {
+		long budget = (long) TileMolester.settings.getUndoMemory() << 20;
+		long total = 0;
+		for (int i = 0; i < undoableActions.size(); i++) {
+			total += ((ReversibleAction) undoableActions.get(i)).getMemorySize();
+		}
+		while ((total > budget) && (undoableActions.size() > 1)) {
+			total -= ((ReversibleAction) undoableActions.remove(0)).getMemorySize();
+		}
+	}
+
 	/**
 	*
 	*
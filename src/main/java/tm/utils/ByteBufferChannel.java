@@ -0,0 +1,134 @@
+/*
+*
+*    Copyright (C) 2024 Hans Bonini.
+*
+*    This file is part of Tile Molester.
+*
+*    Tile Molester is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation; either version 2 of the License, or
+*    (at your option) any later version.
+*
+*    Tile Molester is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*/
+
+package tm.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+*
+* Channel that reads from or writes to a buffer in memory, so that the
+* contents of a file that is loaded into the heap can be fed through the
+* same streaming code as a file on disk.
+*
+* Code that knows about this class can use claim() to work on the bytes of
+* the buffer directly instead of having them copied in or out.
+*
+**/
+
+public class ByteBufferChannel implements ReadableByteChannel, WritableByteChannel {
+
+    private ByteBuffer buffer;
+    private boolean open = true;
+
+/**
+*
+* Creates a channel over the remaining bytes of the given buffer.
+*
+**/
+
+    public ByteBufferChannel(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+/**
+*
+* Creates a channel over the given array.
+*
+**/
+
+    public ByteBufferChannel(byte[] data) {
+        this(ByteBuffer.wrap(data));
+    }
+
+/**
+*
+* Gets the number of bytes that have been read or written so far.
+*
+**/
+
+    public long position() {
+        return buffer.position();
+    }
+
+/**
+*
+* Gets the number of bytes that can still be read or written.
+*
+**/
+
+    public int remaining() {
+        return buffer.remaining();
+    }
+
+/**
+*
+* Takes the next <code>len</code> bytes of the buffer (or as many as are
+* left) and returns them as a buffer of their own, as if they had been
+* read or written. A writer must fill in all of the returned bytes.
+*
+**/
+
+    public ByteBuffer claim(int len) throws IOException {
+        ensureOpen();
+        int pos = buffer.position();
+        len = Math.min(len, buffer.remaining());
+        ByteBuffer result = buffer.slice(pos, len);
+        buffer.position(pos + len);
+        return result;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(dst.remaining(), buffer.remaining());
+        dst.put(claim(n));
+        return n;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        int n = src.remaining();
+        if (n > buffer.remaining()) {
+            throw new IOException("Data does not fit in the buffer");
+        }
+        buffer.put(src);
+        return n;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void close() {
+        open = false;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+}
@@ -28,6 +28,7 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
+import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
@@ -52,6 +53,19 @@ public class XMLParser {
 			InputSource is = new InputSource(inputStream);
 			is.setEncoding("UTF-8");
 
+			// resource files refer to their DTD with a Windows path ("resources\tmres.dtd"),
+			// which isn't a valid URI
+			builder.setEntityResolver(
+					new EntityResolver() {
+						public InputSource resolveEntity(String publicId, String systemId) {
+							if ((systemId != null) && (systemId.indexOf('\\') != -1)) {
+								File dtd = new File(systemId.replace('\\', File.separatorChar));
+								return new InputSource(dtd.toURI().toString());
+							}
+							return null;
+						}
+					});
+
 			builder.setErrorHandler(
 					new org.xml.sax.ErrorHandler() { // ignore fatal errors (an exception is guaranteed)
 						public void fatalError(SAXParseException exception)